@@ -95,6 +95,10 @@ public class KylinConfig {
 
     public static final String COPROCESSOR_SCAN_BITS_THRESHOLD = "kylin.coprocessor.scan.bits.threshold";
 
+    public static final String COPROCESSOR_MIN_SCAN_ROWS = "kylin.coprocessor.min.scan.rows";
+
+    public static final String COPROCESSOR_MAX_REDUCTION_RATIO = "kylin.coprocessor.max.reduction.ratio";
+
     public static final String KYLIN_JOB_LOG_DIR = "kylin.job.log.dir";
 
     public static final String KYLIN_HDFS_WORKING_DIR = "kylin.hdfs.working.dir";
@@ -348,6 +352,22 @@ public class KylinConfig {
         return Integer.parseInt(getOptional(COPROCESSOR_SCAN_BITS_THRESHOLD, "32"));
     }
 
+    public long getCoprocessorMinScanRows() {
+        return Long.parseLong(getOptional(COPROCESSOR_MIN_SCAN_ROWS, "10000"));
+    }
+
+    public boolean isCoprocessorOffHeapEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.coprocessor.offheap.enabled", "false"));
+    }
+
+    public long getCoprocessorSpillMaxBytes() {
+        return Long.parseLong(getOptional("kylin.coprocessor.spill.max.bytes", String.valueOf(10L * 1024 * 1024 * 1024)));
+    }
+
+    public double getCoprocessorMaxReductionRatio() {
+        return Double.parseDouble(getOptional(COPROCESSOR_MAX_REDUCTION_RATIO, "0.5"));
+    }
+
     public double getDefaultHadoopJobReducerInputMB() {
         return Double.parseDouble(getOptional(KYLIN_JOB_MAPREDUCE_DEFAULT_REDUCE_INPUT_MB, "500"));
     }
@@ -456,6 +476,90 @@ public class KylinConfig {
         return Integer.parseInt(this.getOptional("kylin.query.scan.thread.count", "40"));
     }
 
+    public int getQueryScanThreadPerQuery() {
+        return Integer.parseInt(this.getOptional("kylin.query.scan.thread.per.query", "8"));
+    }
+
+    public boolean isQueryScanParallelEnabled() {
+        return Boolean.parseBoolean(this.getOptional("kylin.query.scan.parallel.enabled", "false"));
+    }
+
+    public int getQueryScanPrefetchSize() {
+        return Integer.parseInt(this.getOptional("kylin.query.scan.prefetch.size", "4096"));
+    }
+
+    public long getQueryScanMaxResultSize() {
+        return Long.parseLong(this.getOptional("kylin.query.scan.max.result.size", String.valueOf(8 * 1024 * 1024)));
+    }
+
+    public long getQueryScanRangeMergeGapRows() {
+        return Long.parseLong(this.getOptional("kylin.query.scan.range.merge.gap.rows", "1000"));
+    }
+
+    public int getQueryIIEndpointPageRows() {
+        return Integer.parseInt(this.getOptional("kylin.query.ii.endpoint.page.rows", "10000"));
+    }
+
+    public long getQueryScanCacheBlocksMaxRows() {
+        return Long.parseLong(this.getOptional("kylin.query.scan.cache.blocks.max.rows", "1000000"));
+    }
+
+    public boolean isQueryStorageAggregationEnabled() {
+        return Boolean.parseBoolean(this.getOptional("kylin.query.storage.aggregation.enabled", "false"));
+    }
+
+    /**
+     * Max groups pre-aggregated in storage, tuples beyond are passed through unaggregated
+     */
+    public int getQueryStorageAggregationMaxGroups() {
+        return Integer.parseInt(this.getOptional("kylin.query.storage.aggregation.max.groups", "100000"));
+    }
+
+    public boolean isQueryStorageCacheEnabled() {
+        return Boolean.parseBoolean(this.getOptional("kylin.query.storage.cache.enabled", "false"));
+    }
+
+    public long getQueryStorageCacheMaxBytes() {
+        return Long.parseLong(this.getOptional("kylin.query.storage.cache.max.bytes", String.valueOf(100L * 1024 * 1024)));
+    }
+
+    public int getQueryStorageCacheEntryMaxRows() {
+        return Integer.parseInt(this.getOptional("kylin.query.storage.cache.entry.max.rows", "10000"));
+    }
+
+    public boolean isDictionaryOffHeap() {
+        return Boolean.parseBoolean(this.getOptional("kylin.dictionary.offheap", "false"));
+    }
+
+    /**
+     * Where off heap dictionaries are memory mapped, empty to use direct memory instead
+     */
+    public String getDictionaryMmapDir() {
+        return this.getOptional("kylin.dictionary.mmap.dir", "");
+    }
+
+    public int getDictionaryMaxCardinality() {
+        return Integer.parseInt(this.getOptional("kylin.dictionary.max.cardinality", "2000000"));
+    }
+
+    /**
+     * Distinct values held in memory when building a dictionary, more are sorted and spilled to disk
+     */
+    public int getDictionaryBuildSortBufferValues() {
+        return Integer.parseInt(this.getOptional("kylin.dictionary.build.sort.buffer.values", "1000000"));
+    }
+
+    public long getDictionaryValueCacheMaxEntries() {
+        return Long.parseLong(this.getOptional("kylin.dictionary.value.cache.max.entries", "1000000"));
+    }
+
+    /**
+     * Estimated heap bytes of snapshots and lookup tables cached on a server
+     */
+    public long getSnapshotCacheMaxBytes() {
+        return Long.parseLong(this.getOptional("kylin.snapshot.cache.max.bytes", String.valueOf(1024L * 1024 * 1024)));
+    }
+
     public boolean isQueryCacheEnabled() {
         return Boolean.parseBoolean(this.getOptional("kylin.query.cache.enabled", "true"));
     }
@@ -72,6 +72,8 @@ public class CubeSegment implements Comparable<CubeSegment>, ISegment {
     private ConcurrentHashMap<String, String> dictionaries; // table/column ==> dictionary resource path
     @JsonProperty("snapshots")
     private ConcurrentHashMap<String, String> snapshots; // table name ==> snapshot resource path
+    @JsonProperty("column_stats")
+    private ConcurrentHashMap<String, SegmentColumnStats> columnStats; // table/column ==> value stats, for segment pruning
 
     public CubeDesc getCubeDesc() {
         return getCubeInstance().getDescriptor();
@@ -234,6 +236,20 @@ public class CubeSegment implements Comparable<CubeSegment>, ISegment {
         return getSnapshots().values();
     }
 
+    public Map<String, SegmentColumnStats> getColumnStats() {
+        if (columnStats == null)
+            columnStats = new ConcurrentHashMap<String, SegmentColumnStats>();
+        return columnStats;
+    }
+
+    public SegmentColumnStats getColumnStats(TblColRef col) {
+        return getColumnStats().get(dictKey(col));
+    }
+
+    public void putColumnStats(TblColRef col, SegmentColumnStats stats) {
+        getColumnStats().put(dictKey(col), stats);
+    }
+
     public String getDictResPath(TblColRef col) {
         return getDictionaries().get(dictKey(col));
     }
@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.cube;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.net.util.Base64;
+import org.apache.kylin.cube.kv.RowKeyColumnOrder;
+import org.apache.kylin.metadata.model.DataType;
+import org.apache.kylin.metadata.model.TblColRef;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Value statistics of a fact column in one segment, collected from the fact
+ * distinct values at build time. The storage engine skips a segment when its
+ * min/max or bloom filter proves no value can match a filter.
+ * 
+ * Values are kept in the same order as the row key (see RowKeyColumnOrder),
+ * which dictionaries preserve. Only string and number columns are covered;
+ * the bloom filter is only built for strings, since a number may be written
+ * in many forms.
+ */
+@JsonAutoDetect(fieldVisibility = Visibility.NONE, getterVisibility = Visibility.NONE, isGetterVisibility = Visibility.NONE, setterVisibility = Visibility.NONE)
+public class SegmentColumnStats {
+
+    private static final int MAX_BLOOM_BITS = 64 * 1024;
+    private static final int MIN_BITS_PER_VALUE = 4;
+    private static final int BITS_PER_VALUE = 10;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    @JsonProperty("numeric")
+    private boolean numeric;
+    @JsonProperty("min")
+    private String min;
+    @JsonProperty("max")
+    private String max;
+    @JsonProperty("cardinality")
+    private long cardinality;
+    @JsonProperty("bloom")
+    private String bloom; // base64 of the bloom filter bits, null if absent
+    @JsonProperty("bloom_hashes")
+    private int bloomHashes;
+
+    private transient byte[] bloomBits;
+
+    /**
+     * The file next to the fact distinct values of the column, where the
+     * build keeps the stats until the segment gets them.
+     */
+    public static String getStatsFileName(TblColRef col) {
+        return col.getName() + ".stats";
+    }
+
+    /**
+     * @return null if the column type is not covered
+     */
+    public static SegmentColumnStats create(DataType type, Collection<String> values) {
+        if (type.isNumberFamily() == false && type.isStringFamily() == false)
+            return null;
+
+        SegmentColumnStats stats = new SegmentColumnStats();
+        stats.numeric = type.isNumberFamily();
+        RowKeyColumnOrder order = stats.order();
+        try {
+            stats.min = order.min(values);
+            stats.max = order.max(values);
+        } catch (NumberFormatException e) {
+            return null; // dirty number, no stats rather than wrong stats
+        }
+        stats.cardinality = values.size();
+
+        if (stats.numeric == false && values.size() > 0 && values.size() * MIN_BITS_PER_VALUE <= MAX_BLOOM_BITS) {
+            int nBits = 8;
+            while (nBits < values.size() * BITS_PER_VALUE && nBits < MAX_BLOOM_BITS)
+                nBits <<= 1;
+            stats.bloomHashes = Math.max(1, Math.min(8, (int) Math.round((double) nBits / values.size() * Math.log(2))));
+            stats.bloomBits = new byte[nBits / 8];
+            for (String v : values) {
+                stats.bloomAdd(v);
+            }
+            stats.bloom = new String(Base64.encodeBase64(stats.bloomBits));
+        }
+        return stats;
+    }
+
+    /**
+     * Combines the stats of segments being merged.
+     * 
+     * @return null if any of the segments has no stats
+     */
+    public static SegmentColumnStats merge(List<SegmentColumnStats> statsList) {
+        SegmentColumnStats result = null;
+        for (SegmentColumnStats stats : statsList) {
+            if (stats == null)
+                return null;
+
+            if (result == null) {
+                result = new SegmentColumnStats();
+                result.numeric = stats.numeric;
+                result.min = stats.min;
+                result.max = stats.max;
+                result.cardinality = stats.cardinality;
+                result.bloomHashes = stats.bloomHashes;
+                result.bloomBits = stats.getBloomBits() == null ? null : stats.getBloomBits().clone();
+                continue;
+            }
+
+            RowKeyColumnOrder order = result.order();
+            result.min = order.min(result.min, stats.min);
+            result.max = order.max(result.max, stats.max);
+            result.cardinality += stats.cardinality; // an upper bound
+
+            // blooms of the same shape can be OR-ed, others are dropped
+            byte[] bits = stats.getBloomBits();
+            if (result.bloomBits != null && bits != null && bits.length == result.bloomBits.length && stats.bloomHashes == result.bloomHashes) {
+                for (int i = 0; i < bits.length; i++) {
+                    result.bloomBits[i] |= bits[i];
+                }
+            } else {
+                result.bloomBits = null;
+            }
+        }
+
+        if (result != null && result.bloomBits != null) {
+            result.bloom = new String(Base64.encodeBase64(result.bloomBits));
+        }
+        return result;
+    }
+
+    // ============================================================================
+
+    /**
+     * @return false if the value is surely absent from the segment
+     */
+    public boolean mightContain(String value) {
+        if (value == null)
+            return true;
+        if (mightOverlap(value, value) == false)
+            return false;
+
+        byte[] bits = getBloomBits();
+        if (bits == null)
+            return true;
+
+        long[] hashes = hash(value);
+        int nBits = bits.length * 8;
+        for (int i = 0; i < bloomHashes; i++) {
+            int bit = bitIndex(hashes, i, nBits);
+            if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param begin
+     *            inclusive, null for unbounded
+     * @param end
+     *            inclusive, null for unbounded
+     * @return false if no value of the segment falls in the range
+     */
+    public boolean mightOverlap(String begin, String end) {
+        if (min == null || max == null) // no value at all
+            return cardinality > 0;
+
+        RowKeyColumnOrder order = order();
+        if (begin != null && order.compare(begin, max) > 0)
+            return false;
+        if (end != null && order.compare(end, min) < 0)
+            return false;
+        return true;
+    }
+
+    private void bloomAdd(String value) {
+        long[] hashes = hash(value);
+        int nBits = bloomBits.length * 8;
+        for (int i = 0; i < bloomHashes; i++) {
+            int bit = bitIndex(hashes, i, nBits);
+            bloomBits[bit >>> 3] |= (1 << (bit & 7));
+        }
+    }
+
+    private static long[] hash(String value) {
+        ByteBuffer buf = ByteBuffer.wrap(HASH.hashString(value, Charsets.UTF_8).asBytes());
+        return new long[] { buf.getLong(0), buf.getLong(8) };
+    }
+
+    // double hashing, nBits is a power of 2
+    private static int bitIndex(long[] hashes, int i, int nBits) {
+        return (int) ((hashes[0] + i * hashes[1]) & (nBits - 1));
+    }
+
+    private byte[] getBloomBits() {
+        if (bloomBits == null && bloom != null) {
+            bloomBits = Base64.decodeBase64(bloom);
+        }
+        return bloomBits;
+    }
+
+    private RowKeyColumnOrder order() {
+        return numeric ? RowKeyColumnOrder.NUMBER_ORDER : RowKeyColumnOrder.STRING_ORDER;
+    }
+
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    public String getMin() {
+        return min;
+    }
+
+    public String getMax() {
+        return max;
+    }
+
+    public long getCardinality() {
+        return cardinality;
+    }
+
+    public boolean hasBloomFilter() {
+        return bloom != null;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + min + ", " + max + "], cardinality " + cardinality + (bloom == null ? "" : ", with bloom filter");
+    }
+}
@@ -19,7 +19,13 @@
 package org.apache.kylin.cube.cli;
 
 import java.io.IOException;
+import java.io.InputStream;
 
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.kylin.common.util.HadoopUtil;
+import org.apache.kylin.common.util.JsonUtil;
+import org.apache.kylin.cube.SegmentColumnStats;
 import org.apache.kylin.cube.model.DimensionDesc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +57,7 @@ public class DictionaryGeneratorCLI {
                 if (cubeSeg.getCubeDesc().getRowkey().isUseDictionary(col)) {
                     logger.info("Building dictionary for " + col);
                     cubeMgr.buildDictionary(cubeSeg, col, factColumnsPath);
+                    loadColumnStats(cubeSeg, col, factColumnsPath);
                 }
             }
 
@@ -64,6 +71,28 @@ public class DictionaryGeneratorCLI {
                                                       // sanity check
             }
         }
+
+        cubeMgr.updateCube(cubeSeg.getCubeInstance());
+    }
+
+    private static void loadColumnStats(CubeSegment cubeSeg, TblColRef col, String factColumnsPath) throws IOException {
+        if (factColumnsPath == null)
+            return;
+
+        // only fact columns have stats, see FactDistinctColumnsReducer
+        String path = factColumnsPath + "/" + SegmentColumnStats.getStatsFileName(col);
+        FileSystem fs = HadoopUtil.getFileSystem(path);
+        if (fs.exists(new Path(path)) == false)
+            return;
+
+        InputStream in = fs.open(new Path(path));
+        try {
+            SegmentColumnStats stats = JsonUtil.readValue(in, SegmentColumnStats.class);
+            logger.info("Stats of " + col + ": " + stats);
+            cubeSeg.putColumnStats(col, stats);
+        } finally {
+            in.close();
+        }
     }
 
 }
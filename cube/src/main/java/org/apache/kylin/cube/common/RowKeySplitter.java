@@ -65,8 +65,16 @@ public class RowKeySplitter {
      * @return cuboid ID
      */
     public long split(byte[] bytes, int byteLen) {
+        return split(bytes, 0, byteLen);
+    }
+
+    /**
+     * Split a row key sitting in a larger array, e.g. the backing array of a Cell.
+     * 
+     * @return cuboid ID
+     */
+    public long split(byte[] bytes, int offset, int byteLen) {
         this.bufferSize = 0;
-        int offset = 0;
 
         // extract cuboid id
         SplittedBytes cuboidIdSplit = this.splitBuffers[this.bufferSize++];
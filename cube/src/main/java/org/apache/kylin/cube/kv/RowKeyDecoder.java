@@ -19,7 +19,9 @@
 package org.apache.kylin.cube.kv;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -44,12 +46,14 @@ public class RowKeyDecoder {
     private Cuboid cuboid;
     private List<String> names;
     private List<String> values;
+    private final LazyValues lazyValues;
 
     public RowKeyDecoder(CubeSegment cubeSegment) {
         this.cubeDesc = cubeSegment.getCubeDesc();
         this.rowKeySplitter = new RowKeySplitter(cubeSegment, 65, 255);
         this.colIO = new RowKeyColumnIO(cubeSegment);
         this.values = new ArrayList<String>();
+        this.lazyValues = new LazyValues();
     }
 
     public long decode(byte[] bytes) throws IOException {
@@ -71,6 +75,22 @@ public class RowKeyDecoder {
         return cuboidId;
     }
 
+    /**
+     * Splits the row key but leaves the columns encoded, e.g. as dictionary IDs.
+     * A column is only decoded when it is read from getLazyValues(), which is
+     * valid till the next call.
+     */
+    public long decodeLazily(byte[] bytes, int offset, int length) {
+        long cuboidId = rowKeySplitter.split(bytes, offset, length);
+        initCuboid(cuboidId);
+        lazyValues.reset(this.cuboid.getColumns().size());
+        return cuboidId;
+    }
+
+    public List<String> getLazyValues() {
+        return lazyValues;
+    }
+
     private void initCuboid(long cuboidID) {
         if (this.cuboid != null && this.cuboid.getId() == cuboidID) {
             return;
@@ -126,6 +146,41 @@ public class RowKeyDecoder {
         return values;
     }
 
+    private class LazyValues extends AbstractList<String> {
+
+        private String[] decoded = new String[0];
+        private boolean[] isDecoded = new boolean[0];
+        private int size;
+
+        void reset(int size) {
+            if (decoded.length < size) {
+                decoded = new String[size];
+                isDecoded = new boolean[size];
+            } else {
+                Arrays.fill(isDecoded, 0, size, false);
+            }
+            this.size = size;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+            if (isDecoded[index] == false) {
+                SplittedBytes split = rowKeySplitter.getSplitBuffers()[index + 1]; // skip cuboid id part
+                decoded[index] = colIO.readColumnString(cuboid.getColumns().get(index), split.value, split.length);
+                isDecoded[index] = true;
+            }
+            return decoded[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
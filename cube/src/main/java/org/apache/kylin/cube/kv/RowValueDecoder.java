@@ -73,7 +73,11 @@ public class RowValueDecoder implements Cloneable {
     }
 
     public void decode(byte[] bytes) {
-        codec.decode(ByteBuffer.wrap(bytes), values);
+        decode(bytes, 0, bytes.length);
+    }
+
+    public void decode(byte[] bytes, int offset, int length) {
+        codec.decode(ByteBuffer.wrap(bytes, offset, length), values);
         convertToJavaObjects(values, values);
     }
 
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.cube;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.kylin.common.util.JsonUtil;
+import org.apache.kylin.metadata.model.DataType;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SegmentColumnStatsTest {
+
+    @Test
+    public void testStringStats() throws Exception {
+        List<String> values = Lists.newArrayList();
+        for (int i = 100; i < 200; i++) {
+            values.add("v" + i);
+        }
+        SegmentColumnStats stats = SegmentColumnStats.create(DataType.getInstance("varchar"), values);
+        assertEquals("v100", stats.getMin());
+        assertEquals("v199", stats.getMax());
+        assertTrue(stats.hasBloomFilter());
+
+        // survives the round trip through segment metadata
+        stats = JsonUtil.readValue(JsonUtil.writeValueAsString(stats), SegmentColumnStats.class);
+        for (String v : values) {
+            assertTrue(stats.mightContain(v));
+        }
+        assertFalse(stats.mightContain("v099"));
+        assertFalse(stats.mightContain("w"));
+        assertFalse(stats.mightOverlap("v2", null));
+        assertTrue(stats.mightOverlap(null, "v100"));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (stats.mightContain("v15" + i + "x"))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < 50);
+    }
+
+    @Test
+    public void testNumberStats() {
+        SegmentColumnStats stats = SegmentColumnStats.create(DataType.getInstance("bigint"), Arrays.asList("9", "10", "200"));
+        assertEquals("9", stats.getMin());
+        assertEquals("200", stats.getMax());
+        assertFalse(stats.hasBloomFilter());
+        assertTrue(stats.mightContain("100"));
+        assertTrue(stats.mightContain("10.0"));
+        assertFalse(stats.mightContain("201"));
+        assertFalse(stats.mightOverlap(null, "8"));
+
+        assertNull(SegmentColumnStats.create(DataType.getInstance("date"), Arrays.asList("2015-01-01")));
+    }
+
+    @Test
+    public void testMerge() {
+        SegmentColumnStats s1 = SegmentColumnStats.create(DataType.getInstance("varchar"), Arrays.asList("a", "b"));
+        SegmentColumnStats s2 = SegmentColumnStats.create(DataType.getInstance("varchar"), Arrays.asList("x", "y"));
+        SegmentColumnStats merged = SegmentColumnStats.merge(Arrays.asList(s1, s2));
+        assertEquals("a", merged.getMin());
+        assertEquals("y", merged.getMax());
+        assertTrue(merged.hasBloomFilter());
+        assertTrue(merged.mightContain("b"));
+        assertTrue(merged.mightContain("x"));
+        assertFalse(merged.mightContain("z"));
+
+        assertNull(SegmentColumnStats.merge(Arrays.asList(s1, null)));
+    }
+}
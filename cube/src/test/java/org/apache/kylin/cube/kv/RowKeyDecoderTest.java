@@ -86,6 +86,26 @@ public class RowKeyDecoderTest extends LocalFileMetadataTestCase {
 
     }
 
+    @Test
+    public void testDecodeLazily() throws Exception {
+        CubeInstance cube = CubeManager.getInstance(getTestConfig()).getCube("TEST_KYLIN_CUBE_WITH_SLR_READY");
+
+        RowKeyDecoder rowKeyDecoder = new RowKeyDecoder(cube.getFirstSegment());
+
+        byte[] key = { 0, 0, 0, 0, 0, 0, 1, -1, 49, 48, 48, 48, 48, 48, 48, 48, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 11, 54, -105, 55, 13, 71, 114, 65, 66, 73, 78, 9, 9, 9, 9, 9, 9, 9, 9, 0, 10, 0 };
+
+        // the row key in the middle of a larger array, like in a Cell
+        byte[] buf = new byte[key.length + 10];
+        System.arraycopy(key, 0, buf, 3, key.length);
+
+        rowKeyDecoder.decodeLazily(buf, 3, key.length);
+        List<String> values = rowKeyDecoder.getLazyValues();
+
+        assertEquals(9, values.size());
+        assertEquals("20213", values.get(2));
+        assertEquals("[10000000, 2012-01-02, 20213, Collectibles, Postcards, US StateCities & Towns, ABIN, 0, -99]", values.toString());
+    }
+
     @Test
     public void testEncodeAndDecodeWithUtf8() throws IOException {
         CubeInstance cube = CubeManager.getInstance(getTestConfig()).getCube("TEST_KYLIN_CUBE_WITHOUT_SLR_READY");
@@ -160,6 +160,49 @@ abstract public class Dictionary<T> implements Writable {
 
     abstract protected int getValueBytesFromIdImpl(int id, byte[] returnValue, int offset);
 
+    /**
+     * Batch form of getIdFromValue(), ids[i] is set to the ID of values[i].
+     */
+    public void getIdsFromValues(T[] values, int[] ids) {
+        for (int i = 0; i < values.length; i++) {
+            ids[i] = getIdFromValue(values[i]);
+        }
+    }
+
+    /**
+     * Batch form of getValueFromId(), values[i] is set to the value of ids[i].
+     */
+    public void getValuesFromIds(int[] ids, T[] values) {
+        for (int i = 0; i < ids.length; i++) {
+            values[i] = getValueFromId(ids[i]);
+        }
+    }
+
+    /**
+     * Batch form of getIdFromValueBytes(), ids[i] is set to the ID of the whole
+     * values[i] array. Dictionaries like TrieDictionary share the lookup of the
+     * common prefix of adjacent values, so values sorted in byte order are the
+     * fastest, though any order works.
+     */
+    public void getIdsFromValueBytes(byte[][] values, int[] ids, int roundingFlag) {
+        for (int i = 0; i < values.length; i++) {
+            byte[] value = values[i];
+            ids[i] = getIdFromValueBytes(value, 0, value == null ? 0 : value.length, roundingFlag);
+        }
+    }
+
+    /**
+     * Batch form of getValueBytesFromId(), the value of ids[i] is written from
+     * the start of returnValues[i], which must hold getSizeOfValue() bytes, and
+     * lengths[i] is set to its size or -1 if null. Ascending IDs are the
+     * fastest, see getIdsFromValueBytes().
+     */
+    public void getValueBytesFromIds(int[] ids, byte[][] returnValues, int[] lengths) {
+        for (int i = 0; i < ids.length; i++) {
+            lengths[i] = getValueBytesFromId(ids[i], returnValues[i], 0);
+        }
+    }
+
     abstract public void dump(PrintStream out);
 
     public int nullId() {
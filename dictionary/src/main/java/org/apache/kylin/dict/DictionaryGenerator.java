@@ -24,14 +24,16 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.kylin.dict.lookup.TableReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Lists;
+import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.common.util.JsonUtil;
 import org.apache.kylin.dict.lookup.ReadableTable;
 import org.apache.kylin.metadata.model.DataType;
@@ -42,14 +44,23 @@ import org.apache.kylin.metadata.model.DataType;
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class DictionaryGenerator {
 
-    private static final int DICT_MAX_CARDINALITY = 2000000; // 2 million
+    private static final int MERGE_BATCH_SIZE = 1024;
 
     private static final Logger logger = LoggerFactory.getLogger(DictionaryGenerator.class);
 
     private static final String[] DATE_PATTERNS = new String[] { "yyyy-MM-dd" };
 
     public static Dictionary<?> buildDictionaryFromValueList(DictionaryInfo info, List<byte[]> values) {
-        info.setCardinality(values.size());
+        return buildDictionaryFromValues(info, values.iterator(), KylinConfig.getInstanceFromEnv().getDictionaryMaxCardinality());
+    }
+
+    /**
+     * @param values
+     *            distinct values in any order, sorted ones are the cheapest to
+     *            add into a trie
+     */
+    private static Dictionary<?> buildDictionaryFromValues(DictionaryInfo info, Iterator<byte[]> values, int maxCardinality) {
+        CountingIterator counted = new CountingIterator(values, info, maxCardinality);
 
         Dictionary dict = null;
         int baseId = 0; // always 0 for now
@@ -59,11 +70,14 @@ public class DictionaryGenerator {
         // build dict, case by data type
         DataType dataType = DataType.getInstance(info.getDataType());
         if (dataType.isDateTimeFamily())
-            dict = buildDateStrDict(values, baseId, nSamples, samples);
+            dict = buildDateStrDict(counted, baseId, nSamples, samples);
         else if (dataType.isNumberFamily())
-            dict = buildNumberDict(values, baseId, nSamples, samples);
+            dict = buildNumberDict(counted, baseId, nSamples, samples);
         else
-            dict = buildStringDict(values, baseId, nSamples, samples);
+            dict = buildStringDict(counted, baseId, nSamples, samples);
+
+        counted.drain();
+        info.setCardinality(counted.count);
 
         // log a few samples
         StringBuilder buf = new StringBuilder();
@@ -75,81 +89,119 @@ public class DictionaryGenerator {
         logger.info("Dictionary value samples: " + buf.toString());
         logger.info("Dictionary cardinality " + info.getCardinality());
 
-        if (values.size() > DICT_MAX_CARDINALITY)
-            throw new IllegalArgumentException("Too high cardinality is not suitable for dictionary -- " + info.getSourceTable() + "." + info.getSourceColumn() + " cardinality: " + values.size());
-
         return dict;
     }
 
-    public static Dictionary mergeDictionaries(DictionaryInfo targetInfo, List<DictionaryInfo> sourceDicts) {
+    public static Dictionary<?> buildDictionary(DictionaryInfo info, ReadableTable inpTable, KylinConfig config) throws IOException {
+
+        // currently all data types are casted to string to build dictionary
+        // String dataType = info.getDataType();
+
+        logger.info("Building dictionary " + JsonUtil.writeValueAsString(info));
 
-        HashSet<byte[]> dedup = new HashSet<byte[]>();
+        int bufferValues = config.getDictionaryBuildSortBufferValues();
+        ExternalValueSorter sorter = new ExternalValueSorter(bufferValues, null);
+        try {
+            loadColumnValues(inpTable, info.getSourceColumnIndex(), sorter, bufferValues);
+            if (sorter.getRunCount() > 0)
+                logger.info("Dictionary values spilled into " + sorter.getRunCount() + " sorted runs");
+            return buildDictionaryFromValues(info, sorter.sortedDistinct(), config.getDictionaryMaxCardinality());
+        } finally {
+            sorter.close();
+        }
+    }
 
+    /**
+     * Trie based dictionaries of the same type are k-way merged in ID order,
+     * which is the order of their trie bytes, and the distinct values stream
+     * into the new trie without being decoded. Others go through a sort.
+     */
+    public static Dictionary mergeDictionaries(DictionaryInfo targetInfo, List<DictionaryInfo> sourceDicts, KylinConfig config) throws IOException {
+        Class<?> dictClass = null;
+        boolean sameTrieClass = true;
         for (DictionaryInfo info : sourceDicts) {
             Dictionary<?> dict = info.getDictionaryObject();
-            int minkey = dict.getMinId();
-            int maxkey = dict.getMaxId();
-            byte[] buffer = new byte[dict.getSizeOfValue()];
-            for (int i = minkey; i <= maxkey; ++i) {
-                int size = dict.getValueBytesFromId(i, buffer, 0);
-                dedup.add(Bytes.copy(buffer, 0, size));
-            }
+            if (dict instanceof TrieDictionary == false || (dictClass != null && dictClass != dict.getClass()))
+                sameTrieClass = false;
+            dictClass = dict.getClass();
         }
 
-        List<byte[]> valueList = new ArrayList<byte[]>();
-        valueList.addAll(dedup);
-
-        return buildDictionaryFromValueList(targetInfo, valueList);
-    }
+        if (sameTrieClass && dictClass != null) {
+            List<Iterator<byte[]>> sources = new ArrayList<Iterator<byte[]>>();
+            for (DictionaryInfo info : sourceDicts) {
+                sources.add(new TrieBytesIterator((TrieDictionary<?>) info.getDictionaryObject()));
+            }
+            CountingIterator counted = new CountingIterator(ExternalValueSorter.merge(sources), targetInfo, config.getDictionaryMaxCardinality());
 
-    public static Dictionary<?> buildDictionary(DictionaryInfo info, ReadableTable inpTable) throws IOException {
+            // trie bytes are added as is, e.g. numbers stay encoded
+            TrieDictionaryBuilder builder = new TrieDictionaryBuilder(new StringBytesConverter());
+            while (counted.hasNext()) {
+                builder.addValue(counted.next());
+            }
+            byte[] trieBytes = builder.buildTrieBytes(0);
+            targetInfo.setCardinality(counted.count);
+            logger.info("Merged " + sourceDicts.size() + " dictionaries, cardinality " + counted.count);
+            return dictClass == NumberDictionary.class ? new NumberDictionary(trieBytes) : new TrieDictionary(trieBytes);
+        }
 
-        // currently all data types are casted to string to build dictionary
-        // String dataType = info.getDataType();
+        ExternalValueSorter sorter = new ExternalValueSorter(config.getDictionaryBuildSortBufferValues(), null);
+        try {
+            for (DictionaryInfo info : sourceDicts) {
+                Iterator<byte[]> it = new ValueBytesIterator(info.getDictionaryObject(), false);
+                while (it.hasNext()) {
+                    sorter.add(it.next());
+                }
+            }
+            return buildDictionaryFromValues(targetInfo, sorter.sortedDistinct(), config.getDictionaryMaxCardinality());
+        } finally {
+            sorter.close();
+        }
+    }
 
-        logger.info("Building dictionary " + JsonUtil.writeValueAsString(info));
+    private static Dictionary buildDateStrDict(Iterator<byte[]> values, int baseId, int nSamples, ArrayList samples) {
+        final int BAD_THRESHOLD = 2;
 
-        ArrayList<byte[]> values = loadColumnValues(inpTable, info.getSourceColumnIndex());
+        // check all patterns in one pass, values can only be read once
+        SimpleDateFormat[] formats = new SimpleDateFormat[DATE_PATTERNS.length];
+        int[] badCounts = new int[DATE_PATTERNS.length];
+        for (int i = 0; i < DATE_PATTERNS.length; i++) {
+            formats[i] = new SimpleDateFormat(DATE_PATTERNS[i]);
+        }
+        int nMatching = DATE_PATTERNS.length;
 
-        return buildDictionaryFromValueList(info, values);
-    }
+        while (nMatching > 0 && values.hasNext()) {
+            byte[] value = values.next();
+            if (value.length == 0)
+                continue;
 
-    private static Dictionary buildDateStrDict(List<byte[]> values, int baseId, int nSamples, ArrayList samples) {
-        final int BAD_THRESHOLD = 2;
-        String matchPattern = null;
-
-        for (String ptn : DATE_PATTERNS) {
-            matchPattern = ptn; // be optimistic
-            int badCount = 0;
-            SimpleDateFormat sdf = new SimpleDateFormat(ptn);
-            for (byte[] value : values) {
-                if (value.length == 0)
+            String str = Bytes.toString(value);
+            for (int i = 0; i < formats.length; i++) {
+                if (badCounts[i] > BAD_THRESHOLD)
                     continue;
-
-                String str = Bytes.toString(value);
                 try {
-                    sdf.parse(str);
+                    formats[i].parse(str);
                     if (samples.size() < nSamples && samples.contains(str) == false)
                         samples.add(str);
                 } catch (ParseException e) {
                     logger.info("Unrecognized datetime value: " + str);
-                    badCount++;
-                    if (badCount > BAD_THRESHOLD) {
-                        matchPattern = null;
-                        break;
-                    }
+                    badCounts[i]++;
+                    if (badCounts[i] > BAD_THRESHOLD)
+                        nMatching--;
                 }
             }
-            if (matchPattern != null)
-                return new DateStrDictionary(matchPattern, baseId);
+        }
+
+        for (int i = 0; i < DATE_PATTERNS.length; i++) {
+            if (badCounts[i] <= BAD_THRESHOLD)
+                return new DateStrDictionary(DATE_PATTERNS[i], baseId);
         }
         throw new IllegalStateException("Unrecognized datetime value");
     }
 
-    private static Dictionary buildStringDict(List<byte[]> values, int baseId, int nSamples, ArrayList samples) {
+    private static Dictionary buildStringDict(Iterator<byte[]> values, int baseId, int nSamples, ArrayList samples) {
         TrieDictionaryBuilder builder = new TrieDictionaryBuilder(new StringBytesConverter());
-        for (byte[] value : values) {
-            String v = Bytes.toString(value);
+        while (values.hasNext()) {
+            String v = Bytes.toString(values.next());
             builder.addValue(v);
             if (samples.size() < nSamples && samples.contains(v) == false)
                 samples.add(v);
@@ -157,10 +209,10 @@ public class DictionaryGenerator {
         return builder.build(baseId);
     }
 
-    private static Dictionary buildNumberDict(List<byte[]> values, int baseId, int nSamples, ArrayList samples) {
+    private static Dictionary buildNumberDict(Iterator<byte[]> values, int baseId, int nSamples, ArrayList samples) {
         NumberDictionaryBuilder builder = new NumberDictionaryBuilder(new StringBytesConverter());
-        for (byte[] value : values) {
-            String v = Bytes.toString(value);
+        while (values.hasNext()) {
+            String v = Bytes.toString(values.next());
             builder.addValue(v);
             if (samples.size() < nSamples && samples.contains(v) == false)
                 samples.add(v);
@@ -168,12 +220,16 @@ public class DictionaryGenerator {
         return builder.build(baseId);
     }
 
-    static ArrayList<byte[]> loadColumnValues(ReadableTable inpTable, int colIndex) throws IOException {
+    /**
+     * Repeated values are dropped in memory before they reach the sorter, the
+     * de-dup set is reset once it holds maxDedupValues to stay bounded, the
+     * sorter drops whatever duplicates get past it.
+     */
+    static void loadColumnValues(ReadableTable inpTable, int colIndex, ExternalValueSorter sorter, int maxDedupValues) throws IOException {
 
         TableReader reader = inpTable.getReader();
 
         try {
-            ArrayList<byte[]> result = Lists.newArrayList();
             HashSet<String> dedup = new HashSet<String>();
 
             while (reader.next()) {
@@ -193,15 +249,121 @@ public class DictionaryGenerator {
                 }
 
                 if (dedup.contains(colValue) == false) {
+                    if (dedup.size() >= maxDedupValues)
+                        dedup.clear();
                     dedup.add(colValue);
-                    result.add(Bytes.toBytes(colValue));
+                    sorter.add(Bytes.toBytes(colValue));
                 }
             }
-            return result;
-
         } finally {
             reader.close();
         }
     }
 
+    // ============================================================================
+
+    /** counts the values passed, fails once the cardinality is too high for a dictionary */
+    private static class CountingIterator implements Iterator<byte[]> {
+        final Iterator<byte[]> values;
+        final DictionaryInfo info;
+        final int maxCardinality;
+        int count;
+
+        CountingIterator(Iterator<byte[]> values, DictionaryInfo info, int maxCardinality) {
+            this.values = values;
+            this.info = info;
+            this.maxCardinality = maxCardinality;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return values.hasNext();
+        }
+
+        @Override
+        public byte[] next() {
+            byte[] value = values.next();
+            count++;
+            if (count > maxCardinality)
+                throw new IllegalArgumentException("Too high cardinality is not suitable for dictionary -- " + info.getSourceTable() + "." + info.getSourceColumn() + " cardinality: " + count + ", max " + maxCardinality);
+            return value;
+        }
+
+        void drain() {
+            while (hasNext())
+                next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** values of a dictionary in ID order, decoded in batches */
+    private static class ValueBytesIterator implements Iterator<byte[]> {
+        final Dictionary<?> dict;
+        final boolean trieBytes;
+        final int[] ids;
+        final byte[][] buffers;
+        final int[] sizes;
+        int nextId;
+        int batchEnd; // exclusive
+        int batchPos;
+
+        ValueBytesIterator(Dictionary<?> dict, boolean trieBytes) {
+            this.dict = dict;
+            this.trieBytes = trieBytes;
+            int batch = Math.max(1, Math.min(MERGE_BATCH_SIZE, dict.getMaxId() - dict.getMinId() + 1));
+            this.ids = new int[batch];
+            this.buffers = new byte[batch][];
+            for (int i = 0; i < batch; i++) {
+                buffers[i] = new byte[dict.getSizeOfValue()];
+            }
+            this.sizes = new int[batch];
+            this.nextId = dict.getMinId();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (batchPos < batchEnd)
+                return true;
+            if (nextId > dict.getMaxId())
+                return false;
+
+            int n = Math.min(ids.length, dict.getMaxId() - nextId + 1);
+            int[] batchIds = n == ids.length ? ids : Arrays.copyOf(ids, n);
+            for (int i = 0; i < n; i++) {
+                batchIds[i] = nextId + i;
+            }
+            if (trieBytes)
+                ((TrieDictionary<?>) dict).getTrieBytesFromIds(batchIds, buffers, sizes);
+            else
+                dict.getValueBytesFromIds(batchIds, buffers, sizes);
+            nextId += n;
+            batchPos = 0;
+            batchEnd = n;
+            return true;
+        }
+
+        @Override
+        public byte[] next() {
+            if (hasNext() == false)
+                throw new NoSuchElementException();
+            int i = batchPos++;
+            return Bytes.copy(buffers[i], 0, sizes[i]);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class TrieBytesIterator extends ValueBytesIterator {
+        TrieBytesIterator(TrieDictionary<?> dict) {
+            super(dict, true);
+        }
+    }
+
 }
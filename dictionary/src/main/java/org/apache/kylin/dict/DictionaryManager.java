@@ -20,6 +20,7 @@ package org.apache.kylin.dict;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -80,6 +81,8 @@ public class DictionaryManager {
     private DictionaryManager(KylinConfig config) {
         this.config = config;
         dictCache = new ConcurrentHashMap<String, DictionaryInfo>();
+        // takes effect only if no dictionary value is cached yet
+        DictionaryValueCache.setMaxEntries(config.getDictionaryValueCacheMaxEntries());
     }
 
     public Dictionary<?> getDictionary(String resourcePath) throws IOException {
@@ -93,6 +96,8 @@ public class DictionaryManager {
             dictInfo = load(resourcePath, true);
             if (dictInfo == null)
                 dictInfo = NONE_INDICATOR;
+            else
+                moveOffHeapIfConfigured(dictInfo);
             dictCache.put(resourcePath, dictInfo);
         }
         return dictInfo == NONE_INDICATOR ? null : dictInfo;
@@ -146,7 +151,7 @@ public class DictionaryManager {
             return getDictionaryInfo(dupDict);
         }
 
-        Dictionary<?> newDict = DictionaryGenerator.mergeDictionaries(newDictInfo, dicts);
+        Dictionary<?> newDict = DictionaryGenerator.mergeDictionaries(newDictInfo, dicts, config);
 
         return trySaveNewDict(newDict, newDictInfo);
     }
@@ -169,7 +174,7 @@ public class DictionaryManager {
             return getDictionaryInfo(dupDict);
         }
 
-        Dictionary<?> dictionary = DictionaryGenerator.buildDictionary(dictInfo, inpTable);
+        Dictionary<?> dictionary = DictionaryGenerator.buildDictionary(dictInfo, inpTable, config);
 
         return trySaveNewDict(dictionary, dictInfo);
     }
@@ -331,6 +336,18 @@ public class DictionaryManager {
             removeDictionary(existing);
     }
 
+    // only cached dictionaries are moved, those loaded for a one-off check are not worth it
+    private void moveOffHeapIfConfigured(DictionaryInfo dictInfo) throws IOException {
+        if (config.isDictionaryOffHeap() == false)
+            return;
+
+        Dictionary<?> dict = dictInfo.getDictionaryObject();
+        if (dict instanceof TrieDictionary) {
+            String mmapDir = config.getDictionaryMmapDir();
+            ((TrieDictionary<?>) dict).moveOffHeap(mmapDir.isEmpty() ? null : new File(mmapDir));
+        }
+    }
+
     void save(DictionaryInfo dict) throws IOException {
         ResourceStore store = MetadataManager.getInstance(config).getStore();
         String path = dict.getResourcePath();
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.dict;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A bounded value <==> ID cache shared by all TrieDictionary in the JVM,
+ * replacing the per-dictionary soft caches whose size grew with the number of
+ * dictionaries loaded. Entries are keyed on a per-dictionary cache ID, those of
+ * unloaded dictionaries simply age out.
+ */
+public class DictionaryValueCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DictionaryValueCache.class);
+
+    public static final long DEFAULT_MAX_ENTRIES = 1000000;
+
+    private static volatile DictionaryValueCache instance; // created on first use
+    private static long configuredMaxEntries = DEFAULT_MAX_ENTRIES;
+
+    public static DictionaryValueCache getInstance() {
+        DictionaryValueCache r = instance;
+        if (r == null) {
+            synchronized (DictionaryValueCache.class) {
+                if (instance == null) {
+                    instance = new DictionaryValueCache(configuredMaxEntries);
+                }
+                r = instance;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Sizes the shared cache, only before its first use. The cache is never
+     * rebuilt afterwards, so a later call does not drop the cached values.
+     */
+    public static synchronized void setMaxEntries(long maxEntries) {
+        if (instance == null) {
+            configuredMaxEntries = maxEntries;
+        } else if (instance.maxEntries != maxEntries) {
+            logger.warn("Dictionary value cache is in use with " + instance.maxEntries + " max entries, ignore new size " + maxEntries);
+        }
+    }
+
+    // ============================================================================
+
+    private final long maxEntries;
+    private final Cache<Object, Object> cache;
+
+    private DictionaryValueCache(long maxEntries) {
+        this.maxEntries = maxEntries;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+    }
+
+    public Object getValue(int dictCacheId, int id) {
+        return cache.getIfPresent(new IdKey(dictCacheId, id));
+    }
+
+    public void putValue(int dictCacheId, int id, Object value) {
+        cache.put(new IdKey(dictCacheId, id), value);
+    }
+
+    public Integer getId(int dictCacheId, Object value) {
+        return (Integer) cache.getIfPresent(new ValueKey(dictCacheId, value));
+    }
+
+    public void putId(int dictCacheId, Object value, Integer id) {
+        cache.put(new ValueKey(dictCacheId, value), id);
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    private static final class IdKey {
+        final int dictCacheId;
+        final int id;
+
+        IdKey(int dictCacheId, int id) {
+            this.dictCacheId = dictCacheId;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * dictCacheId + id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof IdKey == false)
+                return false;
+            IdKey that = (IdKey) obj;
+            return this.dictCacheId == that.dictCacheId && this.id == that.id;
+        }
+    }
+
+    private static final class ValueKey {
+        final int dictCacheId;
+        final Object value;
+
+        ValueKey(int dictCacheId, Object value) {
+            this.dictCacheId = dictCacheId;
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * dictCacheId + value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof ValueKey == false)
+                return false;
+            ValueKey that = (ValueKey) obj;
+            return this.dictCacheId == that.dictCacheId && this.value.equals(that.value);
+        }
+    }
+}
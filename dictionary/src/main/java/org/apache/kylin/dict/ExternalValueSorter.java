@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.dict;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts and dedups values that may not fit in memory. Values are buffered up
+ * to a limit, then sorted and spilled to a run file; the final iterator k-way
+ * merges the runs with the buffer, in unsigned byte order without duplicates.
+ * 
+ * The merge is also useful on its own, e.g. for sources already sorted like
+ * the values of dictionaries in ID order, see merge().
+ */
+public class ExternalValueSorter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExternalValueSorter.class);
+
+    private final int maxInMemoryValues;
+    private final File tmpDir;
+
+    private ArrayList<byte[]> buffer = new ArrayList<byte[]>();
+    private final List<File> runFiles = new ArrayList<File>();
+    private final List<Integer> runSizes = new ArrayList<Integer>();
+    private final List<RunReader> openReaders = new ArrayList<RunReader>();
+
+    /**
+     * @param tmpDir
+     *            where runs are spilled, null for the system temp dir
+     */
+    public ExternalValueSorter(int maxInMemoryValues, File tmpDir) {
+        this.maxInMemoryValues = Math.max(1, maxInMemoryValues);
+        this.tmpDir = tmpDir;
+    }
+
+    public void add(byte[] value) throws IOException {
+        buffer.add(value);
+        if (buffer.size() >= maxInMemoryValues)
+            spill();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, Bytes.BYTES_COMPARATOR);
+
+        // tracked right away, close() deletes it even if writing fails
+        File file = File.createTempFile("dict_values_", ".run", tmpDir);
+        runFiles.add(file);
+
+        int count = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            byte[] last = null;
+            for (byte[] value : buffer) {
+                if (last != null && Bytes.equals(last, value))
+                    continue;
+                out.writeInt(value.length);
+                out.write(value);
+                last = value;
+                count++;
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        runSizes.add(count);
+        logger.info("Spilled " + count + " sorted values to " + file);
+
+        buffer = new ArrayList<byte[]>();
+    }
+
+    public int getRunCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * Ends adding and returns all values sorted and distinct. Call once.
+     */
+    public Iterator<byte[]> sortedDistinct() throws IOException {
+        Collections.sort(buffer, Bytes.BYTES_COMPARATOR);
+
+        List<Iterator<byte[]>> sources = new ArrayList<Iterator<byte[]>>();
+        sources.add(buffer.iterator());
+        for (int i = 0; i < runFiles.size(); i++) {
+            RunReader reader = new RunReader(runFiles.get(i), runSizes.get(i));
+            openReaders.add(reader);
+            sources.add(reader);
+        }
+        return merge(sources);
+    }
+
+    /**
+     * Closes open readers and deletes the run files left, safe to call more
+     * than once.
+     */
+    @Override
+    public void close() {
+        try {
+            for (RunReader reader : openReaders) {
+                reader.close();
+            }
+        } finally {
+            for (File file : runFiles) {
+                deleteRun(file);
+            }
+            openReaders.clear();
+            runFiles.clear();
+            runSizes.clear();
+            buffer = new ArrayList<byte[]>();
+        }
+    }
+
+    private static void deleteRun(File file) {
+        if (file.exists() && file.delete() == false)
+            logger.warn("Failed to delete " + file);
+    }
+
+    /**
+     * K-way merges sources sorted in unsigned byte order into one sorted
+     * iterator, dropping duplicates.
+     */
+    public static Iterator<byte[]> merge(List<? extends Iterator<byte[]>> sources) {
+        return new MergingIterator(sources);
+    }
+
+    private static class MergingIterator implements Iterator<byte[]> {
+
+        private final PriorityQueue<Cursor> queue;
+        private byte[] last;
+        private byte[] next;
+
+        MergingIterator(List<? extends Iterator<byte[]>> sources) {
+            queue = new PriorityQueue<Cursor>(Math.max(1, sources.size()));
+            for (Iterator<byte[]> source : sources) {
+                if (source.hasNext())
+                    queue.add(new Cursor(source));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && queue.isEmpty() == false) {
+                Cursor cursor = queue.poll();
+                byte[] value = cursor.head;
+                if (cursor.advance())
+                    queue.add(cursor);
+                if (last == null || Bytes.equals(last, value) == false) {
+                    next = value;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (hasNext() == false)
+                throw new NoSuchElementException();
+            last = next;
+            next = null;
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        final Iterator<byte[]> source;
+        byte[] head;
+
+        Cursor(Iterator<byte[]> source) {
+            this.source = source;
+            this.head = source.next();
+        }
+
+        boolean advance() {
+            if (source.hasNext() == false)
+                return false;
+            head = source.next();
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            return Bytes.compareTo(head, o.head);
+        }
+    }
+
+    /** reads a run file once, deletes the file as soon as it is exhausted */
+    private static class RunReader implements Iterator<byte[]>, Closeable {
+        final File file;
+        final DataInputStream in;
+        int remaining;
+        boolean closed;
+
+        RunReader(File file, int size) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.remaining = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public byte[] next() {
+            if (remaining <= 0)
+                throw new NoSuchElementException();
+            boolean done = true;
+            try {
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                remaining--;
+                done = remaining == 0;
+                return value;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read sorted values", e);
+            } finally {
+                if (done)
+                    close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            remaining = 0;
+            try {
+                IOUtils.closeQuietly(in);
+            } finally {
+                deleteRun(file);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
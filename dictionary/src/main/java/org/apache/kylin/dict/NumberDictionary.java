@@ -18,6 +18,8 @@
 
 package org.apache.kylin.dict;
 
+import java.util.Arrays;
+
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
@@ -180,4 +182,33 @@ public class NumberDictionary<T> extends TrieDictionary<T> {
         return codec.decodeNumber(returnValue, offset);
     }
 
+    @Override
+    public void getIdsFromValueBytes(byte[][] values, int[] ids, int roundingFlag) {
+        NumberBytesCodec codec = getCodec();
+        byte[][] encoded = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            byte[] value = values[i];
+            if (value != null) {
+                codec.encodeNumber(value, 0, value.length);
+                encoded[i] = Arrays.copyOfRange(codec.buf, codec.bufOffset, codec.bufOffset + codec.bufLen);
+            }
+        }
+        super.getIdsFromValueBytes(encoded, ids, roundingFlag);
+    }
+
+    @Override
+    public void getValueBytesFromIds(int[] ids, byte[][] returnValues, int[] lengths) {
+        super.getValueBytesFromIds(ids, returnValues, lengths);
+
+        NumberBytesCodec codec = getCodec();
+        for (int i = 0; i < ids.length; i++) {
+            if (lengths[i] < 0)
+                continue;
+            System.arraycopy(returnValues[i], 0, codec.buf, 0, lengths[i]);
+            codec.bufOffset = 0;
+            codec.bufLen = lengths[i];
+            lengths[i] = codec.decodeNumber(returnValues[i], 0);
+        }
+    }
+
 }
@@ -23,10 +23,14 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.File;
 import java.io.PrintStream;
-import java.lang.ref.SoftReference;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.kylin.common.util.BytesUtil;
 import org.apache.kylin.common.util.ClassUtil;
@@ -39,8 +43,12 @@ import org.slf4j.LoggerFactory;
  * 
  * With Trie the memory footprint of the mapping is kinda minimized at the cost
  * CPU, if compared to HashMap of ID Arrays. Performance test shows Trie is
- * roughly 10 times slower, so there's a cache layer overlays on top of Trie and
- * gracefully fall back to Trie using a weak reference.
+ * roughly 10 times slower, so there's a cache layer overlays on top of Trie.
+ * The cache is the bounded DictionaryValueCache shared by all dictionaries, so
+ * heap does not grow with the number of loaded dictionaries.
+ * 
+ * The trie is read from a ByteBuffer, which is on heap after build or load, and
+ * can be moved to direct memory or a memory mapped file, see moveOffHeap().
  * 
  * The implementation is thread-safe.
  * 
@@ -56,8 +64,9 @@ public class TrieDictionary<T> extends Dictionary<T> {
     public static final int BIT_IS_END_OF_VALUE = 0x40;
 
     private static final Logger logger = LoggerFactory.getLogger(TrieDictionary.class);
+    private static final AtomicInteger NEXT_CACHE_ID = new AtomicInteger();
 
-    private byte[] trieBytes;
+    private ByteBuffer trie; // absolute reads only, position stays 0
 
     // non-persistent part
     transient private int headSize;
@@ -75,24 +84,26 @@ public class TrieDictionary<T> extends Dictionary<T> {
     transient private int firstByteOffset;
 
     transient private boolean enableCache = true;
-    transient private SoftReference<HashMap> valueToIdCache;
-    transient private SoftReference<Object[]> idToValueCache;
+    transient private int cacheId; // identifies this dictionary in the shared value cache
 
     public TrieDictionary() { // default constructor for Writable interface
     }
 
     public TrieDictionary(byte[] trieBytes) {
-        init(trieBytes);
+        init(ByteBuffer.wrap(trieBytes));
     }
 
-    private void init(byte[] trieBytes) {
-        this.trieBytes = trieBytes;
-        if (BytesUtil.compareBytes(HEAD_MAGIC, 0, trieBytes, 0, HEAD_MAGIC.length) != 0)
+    private void init(ByteBuffer trie) {
+        this.trie = trie;
+        byte[] magic = copyBytes(0, HEAD_MAGIC.length);
+        if (BytesUtil.compareBytes(HEAD_MAGIC, 0, magic, 0, HEAD_MAGIC.length) != 0)
             throw new IllegalArgumentException("Wrong file type (magic does not match)");
 
         try {
+            int headSize = trie.getShort(HEAD_SIZE_I);
+            byte[] head = copyBytes(0, headSize);
             DataInputStream headIn = new DataInputStream( //
-                    new ByteArrayInputStream(trieBytes, HEAD_SIZE_I, trieBytes.length - HEAD_SIZE_I));
+                    new ByteArrayInputStream(head, HEAD_SIZE_I, head.length - HEAD_SIZE_I));
             this.headSize = headIn.readShort();
             this.bodyLen = headIn.readInt();
             this.sizeChildOffset = headIn.read();
@@ -104,7 +115,7 @@ public class TrieDictionary<T> extends Dictionary<T> {
             if (converterName.isEmpty() == false)
                 this.bytesConvert = (BytesConverter<T>) ClassUtil.forName(converterName, BytesConverter.class).newInstance();
 
-            this.nValues = BytesUtil.readUnsigned(trieBytes, headSize + sizeChildOffset, sizeNoValuesBeneath);
+            this.nValues = readUnsigned(headSize + sizeChildOffset, sizeNoValuesBeneath);
             this.sizeOfId = BytesUtil.sizeForValue(baseId + nValues + 1); // note baseId could raise 1 byte in ID space, +1 to reserve all 0xFF for NULL case
             this.childOffsetMask = ~((BIT_IS_LAST_CHILD | BIT_IS_END_OF_VALUE) << ((sizeChildOffset - 1) * 8));
             this.firstByteOffset = sizeChildOffset + sizeNoValuesBeneath + 1; // the offset from begin of node to its first value byte
@@ -115,12 +126,71 @@ public class TrieDictionary<T> extends Dictionary<T> {
                 throw new RuntimeException(e);
         }
 
-        if (enableCache) {
-            valueToIdCache = new SoftReference<HashMap>(new HashMap());
-            idToValueCache = new SoftReference<Object[]>(new Object[nValues]);
+        this.cacheId = NEXT_CACHE_ID.incrementAndGet();
+    }
+
+    private int readUnsigned(int offset, int size) {
+        int integer = 0;
+        for (int i = offset, n = offset + size; i < n; i++) {
+            integer <<= 8;
+            integer |= (int) trie.get(i) & 0xFF;
+        }
+        return integer;
+    }
+
+    private byte[] copyBytes(int offset, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = trie.get(offset + i);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the trie out of java heap. With a directory, the trie is written to
+     * a file there and memory mapped, so it lives in OS page cache; otherwise
+     * it goes to a direct ByteBuffer. The heap copy is dropped afterwards.
+     */
+    public synchronized void moveOffHeap(File mmapDir) throws IOException {
+        if (isOffHeap())
+            return;
+
+        ByteBuffer offHeap;
+        if (mmapDir == null) {
+            offHeap = ByteBuffer.allocateDirect(trie.capacity());
+            offHeap.put(trie.duplicate());
+        } else {
+            offHeap = mapToFile(mmapDir);
+        }
+        offHeap.clear(); // position back to 0, see the absolute reads
+        this.trie = offHeap;
+    }
+
+    private MappedByteBuffer mapToFile(File mmapDir) throws IOException {
+        if (mmapDir.exists() == false && mmapDir.mkdirs() == false && mmapDir.exists() == false)
+            throw new IOException("Cannot create dictionary mmap dir " + mmapDir);
+
+        File file = File.createTempFile("trie_", ".dict", mmapDir);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer src = trie.duplicate();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, trie.capacity());
+        } finally {
+            raf.close();
+            // the mapping stays valid after the file is unlinked
+            if (file.delete() == false)
+                file.deleteOnExit();
         }
     }
 
+    public boolean isOffHeap() {
+        return trie.isDirect();
+    }
+
     @Override
     public int getMinId() {
         return baseId;
@@ -144,21 +214,16 @@ public class TrieDictionary<T> extends Dictionary<T> {
     @Override
     final protected int getIdFromValueImpl(T value, int roundingFlag) {
         if (enableCache && roundingFlag == 0) {
-            HashMap cache = valueToIdCache.get(); // SoftReference to skip cache
-                                                  // gracefully when short of
-                                                  // memory
-            if (cache != null) {
-                Integer id = null;
-                id = (Integer) cache.get(value);
-                if (id != null)
-                    return id.intValue();
-
-                byte[] valueBytes = bytesConvert.convertToBytes(value);
-                id = getIdFromValueBytes(valueBytes, 0, valueBytes.length, roundingFlag);
-
-                cache.put(value, id);
-                return id;
-            }
+            DictionaryValueCache cache = DictionaryValueCache.getInstance();
+            Integer id = cache.getId(cacheId, value);
+            if (id != null)
+                return id.intValue();
+
+            byte[] valueBytes = bytesConvert.convertToBytes(value);
+            id = getIdFromValueBytes(valueBytes, 0, valueBytes.length, roundingFlag);
+
+            cache.putId(cacheId, value, id);
+            return id;
         }
         byte[] valueBytes = bytesConvert.convertToBytes(value);
         return getIdFromValueBytes(valueBytes, 0, valueBytes.length, roundingFlag);
@@ -193,21 +258,32 @@ public class TrieDictionary<T> extends Dictionary<T> {
         if (inp.length == 0) // special 'empty' value
             return checkFlag(headSize, BIT_IS_END_OF_VALUE) ? 0 : roundSeqNo(roundingFlag, -1, -1, 0);
 
-        int seq = 0; // the sequence no under track
+        return lookupSeqNoFromValue(n, 0, inp, o, inpEnd, roundingFlag, null);
+    }
 
+    /**
+     * @param seq
+     *            -- the sequence no under track, 0 from root
+     * @param path
+     *            -- if not null, records the state on entering each node, so
+     *            the next lookup can resume from the common prefix
+     */
+    private int lookupSeqNoFromValue(int n, int seq, byte[] inp, int o, int inpEnd, int roundingFlag, LookupPath path) {
         while (true) {
+            if (path != null)
+                path.push(n, o, seq, 0); // depends on inp[0, o) only
             // match the current node, note [0] of node's value has been matched
             // when this node is selected by its parent
             int p = n + firstByteOffset; // start of node's value
-            int end = p + BytesUtil.readUnsigned(trieBytes, p - 1, 1); // end of
+            int end = p + readUnsigned(p - 1, 1); // end of
                                                                        // node's
                                                                        // value
             for (p++; p < end && o < inpEnd; p++, o++) { // note matching start
                                                          // from [1]
-                if (trieBytes[p] != inp[o]) {
-                    int comp = BytesUtil.compareByteUnsigned(trieBytes[p], inp[o]);
+                if (trie.get(p) != inp[o]) {
+                    int comp = BytesUtil.compareByteUnsigned(trie.get(p), inp[o]);
                     if (comp < 0) {
-                        seq += BytesUtil.readUnsigned(trieBytes, n + sizeChildOffset, sizeNoValuesBeneath);
+                        seq += readUnsigned(n + sizeChildOffset, sizeNoValuesBeneath);
                     }
                     return roundSeqNo(roundingFlag, seq - 1, -1, seq); // mismatch
                 }
@@ -224,7 +300,7 @@ public class TrieDictionary<T> extends Dictionary<T> {
                 seq++;
 
             // find a child to continue
-            int c = headSize + (BytesUtil.readUnsigned(trieBytes, n, sizeChildOffset) & childOffsetMask);
+            int c = headSize + (readUnsigned(n, sizeChildOffset) & childOffsetMask);
             if (c == headSize) // has no children
                 return roundSeqNo(roundingFlag, seq - 1, -1, seq); // input only
                                                                    // partially
@@ -233,14 +309,14 @@ public class TrieDictionary<T> extends Dictionary<T> {
             int comp;
             while (true) {
                 p = c + firstByteOffset;
-                comp = BytesUtil.compareByteUnsigned(trieBytes[p], inpByte);
+                comp = BytesUtil.compareByteUnsigned(trie.get(p), inpByte);
                 if (comp == 0) { // continue in the matching child, reset n and
                                  // loop again
                     n = c;
                     o++;
                     break;
                 } else if (comp < 0) { // try next child
-                    seq += BytesUtil.readUnsigned(trieBytes, c + sizeChildOffset, sizeNoValuesBeneath);
+                    seq += readUnsigned(c + sizeChildOffset, sizeNoValuesBeneath);
                     if (checkFlag(c, BIT_IS_LAST_CHILD))
                         return roundSeqNo(roundingFlag, seq - 1, -1, seq); // no
                                                                            // child
@@ -251,7 +327,7 @@ public class TrieDictionary<T> extends Dictionary<T> {
                                                                            // byte
                                                                            // of
                                                                            // input
-                    c = p + BytesUtil.readUnsigned(trieBytes, p - 1, 1);
+                    c = p + readUnsigned(p - 1, 1);
                 } else { // children are ordered by their first value byte
                     return roundSeqNo(roundingFlag, seq - 1, -1, seq); // no
                                                                        // child
@@ -279,23 +355,22 @@ public class TrieDictionary<T> extends Dictionary<T> {
     @Override
     final protected T getValueFromIdImpl(int id) {
         if (enableCache) {
-            Object[] cache = idToValueCache.get(); // SoftReference to skip
-                                                   // cache gracefully when
-                                                   // short of memory
-            if (cache != null) {
-                int seq = calcSeqNoFromId(id);
-                if (seq < 0 || seq >= nValues)
-                    throw new IllegalArgumentException("Not a valid ID: " + id);
-                if (cache[seq] != null)
-                    return (T) cache[seq];
-
-                byte[] value = new byte[getSizeOfValue()];
-                int length = getValueBytesFromId(id, value, 0);
-                T result = bytesConvert.convertFromBytes(value, 0, length);
-
-                cache[seq] = result;
-                return result;
-            }
+            int seq = calcSeqNoFromId(id);
+            if (seq < 0 || seq >= nValues)
+                throw new IllegalArgumentException("Not a valid ID: " + id);
+
+            DictionaryValueCache cache = DictionaryValueCache.getInstance();
+            Object cached = cache.getValue(cacheId, id);
+            if (cached != null)
+                return (T) cached;
+
+            byte[] value = new byte[getSizeOfValue()];
+            int length = getValueBytesFromId(id, value, 0);
+            T result = bytesConvert.convertFromBytes(value, 0, length);
+
+            if (result != null)
+                cache.putValue(cacheId, id, result);
+            return result;
         }
         byte[] value = new byte[getSizeOfValue()];
         int length = getValueBytesFromId(id, value, 0);
@@ -312,6 +387,10 @@ public class TrieDictionary<T> extends Dictionary<T> {
         return lookupValueFromSeqNo(headSize, seq, returnValue, offset);
     }
 
+    private int lookupValueFromSeqNo(int n, int seq, byte[] returnValue, int offset) {
+        return lookupValueFromSeqNo(n, seq, returnValue, offset, offset, null, seq);
+    }
+
     /**
      * returns a code point from [0, nValues), preserving order of value, or -1
      * if not found
@@ -319,17 +398,28 @@ public class TrieDictionary<T> extends Dictionary<T> {
      * @param n
      *            -- the offset of current node
      * @param seq
-     *            -- the code point under track
+     *            -- the code point under track, relative to the subtree of n
      * @param returnValue
      *            -- where return value is written to
+     * @param o
+     *            -- where the value of n is written, bytes before are the
+     *            values of its parents
+     * @param path
+     *            -- if not null, records the subtree of each node entered, so
+     *            the next lookup can resume from the deepest common node
+     * @param absSeq
+     *            -- the code point looked up, from root
      */
-    private int lookupValueFromSeqNo(int n, int seq, byte[] returnValue, int offset) {
-        int o = offset;
+    private int lookupValueFromSeqNo(int n, int seq, byte[] returnValue, int offset, int o, LookupPath path, int absSeq) {
         while (true) {
+            if (path != null)
+                path.push(n, o, absSeq - seq, readUnsigned(n + sizeChildOffset, sizeNoValuesBeneath));
             // write current node value
             int p = n + firstByteOffset;
-            int len = BytesUtil.readUnsigned(trieBytes, p - 1, 1);
-            System.arraycopy(trieBytes, p, returnValue, o, len);
+            int len = readUnsigned(p - 1, 1);
+            for (int i = 0; i < len; i++) {
+                returnValue[o + i] = trie.get(p + i);
+            }
             o += len;
 
             // if the value is ended
@@ -341,12 +431,12 @@ public class TrieDictionary<T> extends Dictionary<T> {
             }
 
             // find a child to continue
-            int c = headSize + (BytesUtil.readUnsigned(trieBytes, n, sizeChildOffset) & childOffsetMask);
+            int c = headSize + (readUnsigned(n, sizeChildOffset) & childOffsetMask);
             if (c == headSize) // has no children
                 return -1; // no child? corrupted dictionary!
             int nValuesBeneath;
             while (true) {
-                nValuesBeneath = BytesUtil.readUnsigned(trieBytes, c + sizeChildOffset, sizeNoValuesBeneath);
+                nValuesBeneath = readUnsigned(c + sizeChildOffset, sizeNoValuesBeneath);
                 if (seq - nValuesBeneath < 0) { // value is under this child,
                                                 // reset n and loop again
                     n = c;
@@ -356,14 +446,142 @@ public class TrieDictionary<T> extends Dictionary<T> {
                     if (checkFlag(c, BIT_IS_LAST_CHILD))
                         return -1; // no more child? corrupted dictionary!
                     p = c + firstByteOffset;
-                    c = p + BytesUtil.readUnsigned(trieBytes, p - 1, 1);
+                    c = p + readUnsigned(p - 1, 1);
                 }
             }
         }
     }
 
+    @Override
+    public void getIdsFromValueBytes(byte[][] values, int[] ids, int roundingFlag) {
+        LookupPath path = new LookupPath();
+        byte[] last = null;
+        for (int i = 0; i < values.length; i++) {
+            byte[] value = values[i];
+            int len = value == null ? 0 : value.length;
+            if (len == 0 || isNullByteForm(value, 0, len)) { // null or the special 'empty' value
+                ids[i] = getIdFromValueBytes(value, 0, len, roundingFlag);
+                continue;
+            }
+
+            int k = last == null ? -1 : path.deepestByPrefix(commonPrefixLength(last, value));
+            int seq;
+            if (k < 0) {
+                path.size = 0;
+                seq = lookupSeqNoFromValue(headSize, 0, value, 0, len, roundingFlag, path);
+            } else {
+                int n = path.nodes[k];
+                int o = path.offsets[k];
+                int s = path.seqs[k];
+                path.size = k;
+                seq = lookupSeqNoFromValue(n, s, value, o, len, roundingFlag, path);
+            }
+
+            int id = calcIdFromSeqNo(seq);
+            if (id < 0)
+                throw new IllegalArgumentException("Not a valid value: " + bytesConvert.convertFromBytes(value, 0, len));
+            ids[i] = id;
+            last = value;
+        }
+    }
+
+    @Override
+    public void getValueBytesFromIds(int[] ids, byte[][] returnValues, int[] lengths) {
+        getTrieBytesFromIds(ids, returnValues, lengths);
+    }
+
+    /**
+     * Same as getValueBytesFromIds(), but always returns the bytes as stored in
+     * the trie, e.g. before number decoding. They are sorted in ID order.
+     */
+    void getTrieBytesFromIds(int[] ids, byte[][] returnValues, int[] lengths) {
+        LookupPath path = new LookupPath();
+        byte[] last = null;
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            if (isNullId(id)) {
+                lengths[i] = -1;
+                continue;
+            }
+            if (id < baseId || id >= baseId + nValues)
+                throw new IllegalArgumentException("Not a valid ID: " + id);
+
+            int seq = calcSeqNoFromId(id);
+            byte[] returnValue = returnValues[i];
+            int k = path.deepestBySeq(seq);
+            if (k < 0) {
+                path.size = 0;
+                lengths[i] = lookupValueFromSeqNo(headSize, seq, returnValue, 0, 0, path, seq);
+            } else {
+                // the values of the common parents are already in the last result
+                if (returnValue != last)
+                    System.arraycopy(last, 0, returnValue, 0, path.offsets[k]);
+                int n = path.nodes[k];
+                int o = path.offsets[k];
+                int base = path.seqs[k];
+                path.size = k;
+                lengths[i] = lookupValueFromSeqNo(n, seq - base, returnValue, 0, o, path, seq);
+            }
+            last = returnValue;
+        }
+    }
+
+    private static int commonPrefixLength(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < n && a[i] == b[i])
+            i++;
+        return i;
+    }
+
+    /**
+     * The nodes entered by the last lookup of a batch, root first. For value
+     * ==> ID, seqs are the sequence no tracked on entering; for ID ==> value,
+     * the first sequence no of the node subtree, which holds counts values.
+     */
+    private static class LookupPath {
+        int[] nodes = new int[16];
+        int[] offsets = new int[16];
+        int[] seqs = new int[16];
+        int[] counts = new int[16];
+        int size;
+
+        void push(int node, int offset, int seq, int count) {
+            if (size == nodes.length) {
+                int newLen = size * 2;
+                nodes = Arrays.copyOf(nodes, newLen);
+                offsets = Arrays.copyOf(offsets, newLen);
+                seqs = Arrays.copyOf(seqs, newLen);
+                counts = Arrays.copyOf(counts, newLen);
+            }
+            nodes[size] = node;
+            offsets[size] = offset;
+            seqs[size] = seq;
+            counts[size] = count;
+            size++;
+        }
+
+        // the deepest node entered with only the common prefix matched
+        int deepestByPrefix(int commonPrefixLength) {
+            for (int k = size - 1; k >= 0; k--) {
+                if (offsets[k] <= commonPrefixLength)
+                    return k;
+            }
+            return -1;
+        }
+
+        // the deepest node whose subtree holds the sequence no
+        int deepestBySeq(int seq) {
+            for (int k = size - 1; k >= 0; k--) {
+                if (seqs[k] <= seq && seq < seqs[k] + counts[k])
+                    return k;
+            }
+            return -1;
+        }
+    }
+
     private boolean checkFlag(int offset, int bit) {
-        return (trieBytes[offset] & bit) > 0;
+        return (trie.get(offset) & bit) > 0;
     }
 
     private int calcIdFromSeqNo(int seq) {
@@ -379,7 +597,17 @@ public class TrieDictionary<T> extends Dictionary<T> {
 
     @Override
     public void write(DataOutput out) throws IOException {
-        out.write(trieBytes);
+        if (trie.hasArray()) {
+            out.write(trie.array(), trie.arrayOffset(), trie.capacity());
+            return;
+        }
+        ByteBuffer src = trie.duplicate();
+        byte[] buf = new byte[Math.min(8192, src.remaining())];
+        while (src.hasRemaining()) {
+            int n = Math.min(buf.length, src.remaining());
+            src.get(buf, 0, n);
+            out.write(buf, 0, n);
+        }
     }
 
     @Override
@@ -400,7 +628,7 @@ public class TrieDictionary<T> extends Dictionary<T> {
         System.arraycopy(headPartial, 0, all, 0, headPartial.length);
         in.readFully(all, headPartial.length, all.length - headPartial.length);
 
-        init(all);
+        init(ByteBuffer.wrap(all));
     }
 
     @Override
@@ -415,7 +643,7 @@ public class TrieDictionary<T> extends Dictionary<T> {
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(trieBytes);
+        return trie.hashCode(); // content of the whole trie, position stays 0
     }
 
     @Override
@@ -425,7 +653,7 @@ public class TrieDictionary<T> extends Dictionary<T> {
             return false;
         }
         TrieDictionary that = (TrieDictionary) o;
-        return Arrays.equals(this.trieBytes, that.trieBytes);
+        return this.trie.equals(that.trie);
     }
 
     public static void main(String[] args) throws Exception {
@@ -20,7 +20,12 @@ package org.apache.kylin.dict.lookup;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -33,7 +38,8 @@ import org.apache.kylin.metadata.model.TableDesc;
 
 /**
  * An in-memory lookup table, in which each cell is an object of type T. The
- * table is indexed by specified PK for fast lookup.
+ * table is indexed by specified PK for fast lookup. Other columns get a sorted
+ * index on first lookup by value or range.
  * 
  * @author yangli9
  */
@@ -43,6 +49,8 @@ abstract public class LookupTable<T extends Comparable<T>> {
     protected String[] keyColumns;
     protected ReadableTable table;
     protected ConcurrentHashMap<Array<T>, T[]> data;
+    protected ArrayList<T[]> rowList;
+    private final ConcurrentHashMap<Integer, ColumnIndex> indexes = new ConcurrentHashMap<Integer, ColumnIndex>();
 
     public LookupTable(TableDesc tableDesc, String[] keyColumns, ReadableTable table) throws IOException {
         this.tableDesc = tableDesc;
@@ -66,6 +74,7 @@ abstract public class LookupTable<T extends Comparable<T>> {
         } finally {
             reader.close();
         }
+        rowList = new ArrayList<T[]>(data.values());
     }
 
     @SuppressWarnings("unchecked")
@@ -94,12 +103,13 @@ abstract public class LookupTable<T extends Comparable<T>> {
     }
 
     public List<T> scan(String col, List<T> values, String returnCol) {
-        ArrayList<T> result = new ArrayList<T>();
         int colIdx = tableDesc.findColumnByName(col).getZeroBasedIndex();
         int returnIdx = tableDesc.findColumnByName(returnCol).getZeroBasedIndex();
-        for (T[] row : data.values()) {
-            if (values.contains(row[colIdx]))
+        ArrayList<T> result = new ArrayList<T>();
+        for (T value : new LinkedHashSet<T>(values)) {
+            for (T[] row : getRowsByValue(colIdx, value)) {
                 result.add(row[returnIdx]);
+            }
         }
         return result;
     }
@@ -107,11 +117,12 @@ abstract public class LookupTable<T extends Comparable<T>> {
     public Pair<T, T> mapRange(String col, T beginValue, T endValue, String returnCol) {
         int colIdx = tableDesc.findColumnByName(col).getZeroBasedIndex();
         int returnIdx = tableDesc.findColumnByName(returnCol).getZeroBasedIndex();
+        ColumnIndex index = getIndex(colIdx);
         T returnBegin = null;
         T returnEnd = null;
-        for (T[] row : data.values()) {
-            if (between(beginValue, row[colIdx], endValue)) {
-                T returnValue = row[returnIdx];
+        for (int i = index.lowerBound(beginValue), end = index.upperBound(endValue); i < end; i++) {
+            for (int j = index.starts[i]; j < index.starts[i + 1]; j++) {
+                T returnValue = rowList.get(index.rowIds[j])[returnIdx];
                 if (returnBegin == null || returnValue.compareTo(returnBegin) < 0) {
                     returnBegin = returnValue;
                 }
@@ -130,16 +141,156 @@ abstract public class LookupTable<T extends Comparable<T>> {
         int colIdx = tableDesc.findColumnByName(col).getZeroBasedIndex();
         int returnIdx = tableDesc.findColumnByName(returnCol).getZeroBasedIndex();
         Set<T> result = Sets.newHashSetWithExpectedSize(values.size());
-        for (T[] row : data.values()) {
-            if (values.contains(row[colIdx])) {
+        for (T value : values) {
+            for (T[] row : getRowsByValue(colIdx, value)) {
                 result.add(row[returnIdx]);
             }
         }
         return result;
     }
 
-    private boolean between(T beginValue, T v, T endValue) {
-        return (beginValue == null || beginValue.compareTo(v) <= 0) && (endValue == null || v.compareTo(endValue) <= 0);
+    /**
+     * Returns the rows whose column equals the value, looked up in the index of
+     * the column.
+     */
+    public List<T[]> getRowsByValue(int colIdx, T value) {
+        ColumnIndex index = getIndex(colIdx);
+        int i = index.find(value);
+        if (i < 0)
+            return Collections.emptyList();
+
+        List<T[]> result = new ArrayList<T[]>(index.starts[i + 1] - index.starts[i]);
+        for (int j = index.starts[i]; j < index.starts[i + 1]; j++) {
+            result.add(rowList.get(index.rowIds[j]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the distinct values of a column between beginValue and endValue
+     * (both inclusive, null for unbounded) in ascending order.
+     */
+    public List<T> getDistinctValues(int colIdx, T beginValue, T endValue) {
+        ColumnIndex index = getIndex(colIdx);
+        int begin = index.lowerBound(beginValue);
+        int end = Math.max(begin, index.upperBound(endValue));
+        return Arrays.asList(index.values).subList(begin, end);
+    }
+
+    private ColumnIndex getIndex(int colIdx) {
+        ColumnIndex index = indexes.get(colIdx);
+        if (index == null) {
+            index = new ColumnIndex(colIdx);
+            ColumnIndex existing = indexes.putIfAbsent(colIdx, index);
+            if (existing != null)
+                index = existing;
+        }
+        return index;
+    }
+
+    /**
+     * A sorted index on one column. Distinct values are kept in ascending
+     * order, rows having values[i] are rowIds[starts[i]] until
+     * rowIds[starts[i + 1]] exclusive. Nulls are not indexed.
+     */
+    private class ColumnIndex {
+        final T[] values;
+        final int[] starts;
+        final int[] rowIds;
+
+        @SuppressWarnings("unchecked")
+        ColumnIndex(final int colIdx) {
+            Integer[] sorted = new Integer[rowList.size()];
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (rowList.get(i)[colIdx] != null)
+                    sorted[n++] = i;
+            }
+            Arrays.sort(sorted, 0, n, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer r1, Integer r2) {
+                    return rowList.get(r1)[colIdx].compareTo(rowList.get(r2)[colIdx]);
+                }
+            });
+
+            ArrayList<T> distinct = new ArrayList<T>();
+            int[] starts = new int[n + 1];
+            int[] rowIds = new int[n];
+            for (int i = 0; i < n; i++) {
+                rowIds[i] = sorted[i];
+                T v = rowList.get(sorted[i])[colIdx];
+                if (distinct.isEmpty() || distinct.get(distinct.size() - 1).compareTo(v) != 0) {
+                    starts[distinct.size()] = i;
+                    distinct.add(v);
+                }
+            }
+            starts[distinct.size()] = n;
+
+            T[] values = (T[]) new Comparable[distinct.size()];
+            this.values = distinct.toArray(values);
+            this.starts = Arrays.copyOf(starts, distinct.size() + 1);
+            this.rowIds = rowIds;
+        }
+
+        int find(T value) {
+            if (value == null)
+                return -1;
+            int i = lowerBound(value);
+            return i < values.length && values[i].compareTo(value) == 0 ? i : -1;
+        }
+
+        // first position whose value >= v
+        int lowerBound(T v) {
+            if (v == null)
+                return 0;
+            int lo = 0, hi = values.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid].compareTo(v) < 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        // first position whose value > v
+        int upperBound(T v) {
+            if (v == null)
+                return values.length;
+            int lo = 0, hi = values.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid].compareTo(v) <= 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Rough heap size of the key map, row list and rows, each distinct cell
+     * value counted once, plus what column indexes may take. Rows shared with
+     * the snapshot are counted again so the cache bound stays conservative.
+     */
+    public long estimateMemoryBytes() {
+        int n = rowList.size();
+        long bytes = 64 + n * (48L + 16 + 4 * keyColumns.length + 4) + n * 12L;
+        IdentityHashMap<T, Boolean> counted = new IdentityHashMap<T, Boolean>();
+        for (T[] row : rowList) {
+            bytes += 16 + 4 * row.length;
+            for (T cell : row) {
+                if (cell != null && counted.put(cell, Boolean.TRUE) == null)
+                    bytes += estimateCellBytes(cell);
+            }
+        }
+        return bytes;
+    }
+
+    protected long estimateCellBytes(T cell) {
+        return cell instanceof String ? 40 + 2 * ((String) cell).length() : 16;
     }
 
     public String toString() {
@@ -20,11 +20,19 @@ package org.apache.kylin.dict.lookup;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
 import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.common.persistence.ResourceStore;
 import org.apache.kylin.metadata.MetadataManager;
@@ -52,36 +60,119 @@ public class SnapshotManager {
         return r;
     }
 
+    public static void clearCache() {
+        SERVICE_CACHE.clear();
+    }
+
     // ============================================================================
 
     private KylinConfig config;
-    private ConcurrentHashMap<String, SnapshotTable> snapshotCache; // resource
-
-    // path ==>
-    // SnapshotTable
+    // resource path ==> SnapshotTable, LookupKey ==> LookupStringTable, weighed
+    // by estimated heap bytes and evicted LRU
+    private Cache<Object, Object> cache;
 
     private SnapshotManager(KylinConfig config) {
         this.config = config;
-        snapshotCache = new ConcurrentHashMap<String, SnapshotTable>();
+        // one segment, otherwise the weight limit is split across segments and
+        // a single large snapshot is evicted right after it is put
+        this.cache = CacheBuilder.newBuilder() //
+                .concurrencyLevel(1) //
+                .maximumWeight(config.getSnapshotCacheMaxBytes()) //
+                .weigher(new Weigher<Object, Object>() {
+                    @Override
+                    public int weigh(Object key, Object value) {
+                        long bytes = value instanceof SnapshotTable ? ((SnapshotTable) value).estimateMemoryBytes() : ((LookupTable<?>) value).estimateMemoryBytes();
+                        return (int) Math.min(bytes, Integer.MAX_VALUE);
+                    }
+                }) //
+                .removalListener(new RemovalListener<Object, Object>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Object, Object> notification) {
+                        if (notification.wasEvicted())
+                            logger.info("Evicted " + notification.getKey() + " from snapshot cache, " + cache.stats());
+                    }
+                }) //
+                .recordStats().build();
     }
 
     public void wipeoutCache() {
-        snapshotCache.clear();
+        cache.invalidateAll();
+    }
+
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    long getCacheSize() {
+        return cache.size();
     }
 
     public SnapshotTable getSnapshotTable(String resourcePath) throws IOException {
-        SnapshotTable r = snapshotCache.get(resourcePath);
+        SnapshotTable r = (SnapshotTable) cache.getIfPresent(resourcePath);
         if (r == null) {
             r = load(resourcePath, true);
-            snapshotCache.put(resourcePath, r);
+            putSnapshot(resourcePath, r);
         }
         return r;
     }
 
+    /**
+     * Returns the lookup table of a snapshot keyed by the given columns. Lookup
+     * tables are shared by all snapshots of the same signature, i.e. segments
+     * whose snapshots were taken of the same source table version.
+     */
+    public LookupStringTable getLookupTable(String snapshotResPath, TableDesc tableDesc, String[] keyColumns) throws IOException {
+        SnapshotTable snapshot = getSnapshotTable(snapshotResPath);
+        Object snapshotKey = snapshot.getSignature() == null ? snapshotResPath : snapshot.getSignature();
+        LookupKey key = new LookupKey(snapshotKey, tableDesc.getIdentity(), keyColumns);
+
+        LookupStringTable r = (LookupStringTable) cache.getIfPresent(key);
+        if (r == null) {
+            r = new LookupStringTable(tableDesc, keyColumns, snapshot);
+            cache.put(key, r);
+        }
+        return r;
+    }
+
+    /**
+     * Deletes the snapshot and drops it from the cache, together with the
+     * lookup tables built from it. Lookup tables shared by snapshots of the
+     * same signature are dropped too and rebuilt on the next use.
+     */
     public void removeSnapshot(String resourcePath) throws IOException {
+        SnapshotTable snapshot = (SnapshotTable) cache.getIfPresent(resourcePath);
+        if (snapshot == null)
+            snapshot = load(resourcePath, false);
+        TableSignature signature = snapshot == null ? null : snapshot.getSignature();
+
         ResourceStore store = MetadataManager.getInstance(this.config).getStore();
         store.deleteResource(resourcePath);
-        snapshotCache.remove(resourcePath);
+        cache.invalidate(resourcePath);
+
+        for (Object key : cache.asMap().keySet()) {
+            if (key instanceof LookupKey) {
+                Object snapshotKey = ((LookupKey) key).snapshotKey;
+                if (snapshotKey.equals(resourcePath) || snapshotKey.equals(signature))
+                    cache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Snapshots of the same signature hold the same rows, a newly loaded one
+     * shares the rows of a cached one. Each is still weighed in full so the
+     * cache bound stays conservative.
+     */
+    private void putSnapshot(String resourcePath, SnapshotTable snapshot) throws IOException {
+        if (snapshot.getSignature() != null) {
+            for (Object cached : cache.asMap().values()) {
+                if (cached instanceof SnapshotTable && cached != snapshot && snapshot.shareRowsWith((SnapshotTable) cached)) {
+                    logger.info("Snapshot " + resourcePath + " shares rows with identical " + ((SnapshotTable) cached).getResourcePath());
+                    break;
+                }
+            }
+        }
+        cache.put(resourcePath, snapshot);
     }
 
     public SnapshotTable buildSnapshot(ReadableTable table, TableDesc tableDesc) throws IOException {
@@ -108,7 +199,7 @@ public class SnapshotManager {
         }
 
         save(snapshotTable);
-        snapshotCache.put(snapshotTable.getResourcePath(), snapshotTable);
+        putSnapshot(snapshotTable.getResourcePath(), snapshotTable);
 
         return snapshotTable;
     }
@@ -167,4 +258,34 @@ public class SnapshotManager {
         return table;
     }
 
+    private static final class LookupKey {
+        final Object snapshotKey;
+        final String table;
+        final String[] keyColumns;
+
+        LookupKey(Object snapshotKey, String table, String[] keyColumns) {
+            this.snapshotKey = snapshotKey;
+            this.table = table;
+            this.keyColumns = keyColumns;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * snapshotKey.hashCode() + table.hashCode()) + Arrays.hashCode(keyColumns);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof LookupKey == false)
+                return false;
+            LookupKey that = (LookupKey) obj;
+            return this.snapshotKey.equals(that.snapshotKey) && this.table.equals(that.table) && Arrays.equals(this.keyColumns, that.keyColumns);
+        }
+
+        @Override
+        public String toString() {
+            return "lookup table " + table + Arrays.toString(keyColumns) + " of " + snapshotKey;
+        }
+    }
+
 }
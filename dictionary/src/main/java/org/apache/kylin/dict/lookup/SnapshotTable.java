@@ -23,6 +23,9 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.hadoop.fs.Path;
@@ -110,6 +113,36 @@ public class SnapshotTable extends RootPersistentEntity implements ReadableTable
         };
     }
 
+    /**
+     * Rough heap size of the rows, each distinct cell value counted once.
+     */
+    public long estimateMemoryBytes() {
+        if (rows == null)
+            return 0;
+
+        long bytes = 64;
+        IdentityHashMap<String, Boolean> counted = new IdentityHashMap<String, Boolean>();
+        for (String[] row : rows) {
+            bytes += 16 + 4 * row.length + 8; // array header and refs, slot in list
+            for (String cell : row) {
+                if (cell != null && counted.put(cell, Boolean.TRUE) == null)
+                    bytes += 40 + 2 * cell.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Takes the rows of another snapshot of the same signature, so identical
+     * snapshots of different segments keep one copy of the data.
+     */
+    boolean shareRowsWith(SnapshotTable other) throws IOException {
+        if (other.rows == null || other.rows == this.rows || signature == null || signature.equals(other.getSignature()) == false || other.rows.size() != this.rows.size())
+            return false;
+        this.rows = other.rows;
+        return true;
+    }
+
     @Override
     public TableSignature getSignature() throws IOException {
         return signature;
@@ -168,11 +201,22 @@ public class SnapshotTable extends RootPersistentEntity implements ReadableTable
         rows = new ArrayList<String[]>(rowNum);
         if (rowNum > 0) {
             int n = in.readInt();
+            // lookup columns repeat a lot (dates, categories), rows share one copy of each distinct value per column
+            List<HashMap<String, String>> distinctValues = new ArrayList<HashMap<String, String>>(n);
+            for (int j = 0; j < n; j++) {
+                distinctValues.add(new HashMap<String, String>());
+            }
             for (int i = 0; i < rowNum; i++) {
                 String[] row = new String[n];
                 rows.add(row);
                 for (int j = 0; j < n; j++) {
-                    row[j] = in.readUTF();
+                    String value = in.readUTF();
+                    String existing = distinctValues.get(j).get(value);
+                    if (existing == null)
+                        distinctValues.get(j).put(value, value);
+                    else
+                        value = existing;
+                    row[j] = value;
                 }
             }
         }
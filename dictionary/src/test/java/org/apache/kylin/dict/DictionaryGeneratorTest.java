@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.apache.kylin.dict;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.kylin.common.util.LocalFileMetadataTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("unchecked")
+public class DictionaryGeneratorTest extends LocalFileMetadataTestCase {
+
+    @Before
+    public void setup() throws Exception {
+        createTestMetadata();
+    }
+
+    @After
+    public void after() throws Exception {
+        cleanupTestMetadata();
+    }
+
+    @Test
+    public void testMergeStringDictionaries() throws Exception {
+        checkMerge("varchar", new String[] { "", "a", "abc", "b", "xyz" }, new String[] { "ab", "abc", "b", "c" });
+    }
+
+    @Test
+    public void testMergeNumberDictionaries() throws Exception {
+        checkMerge("integer", new String[] { "-10", "0", "3", "12345" }, new String[] { "-100", "3", "7", "99999" });
+    }
+
+    @Test
+    public void testMergeMixedDictionaries() throws Exception {
+        DictionaryInfo info1 = newDictionaryInfo("integer", new String[] { "1", "2", "3" });
+        DictionaryInfo info2 = newDictionaryInfo("varchar", new String[] { "2", "3", "4" });
+        List<DictionaryInfo> sources = new ArrayList<DictionaryInfo>();
+        sources.add(info1);
+        sources.add(info2);
+
+        // different dictionary classes go through the sorter
+        DictionaryInfo mergedInfo = new DictionaryInfo("T", "C", 0, "integer", null, null);
+        Dictionary<String> merged = DictionaryGenerator.mergeDictionaries(mergedInfo, sources, getTestConfig());
+        assertEquals(4, mergedInfo.getCardinality());
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(String.valueOf(i), merged.getValueFromId(merged.getIdFromValue(String.valueOf(i))));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxCardinality() throws Exception {
+        getTestConfig().setProperty("kylin.dictionary.max.cardinality", "3");
+        newDictionaryInfo("varchar", new String[] { "a", "b", "c", "d" });
+    }
+
+    private void checkMerge(String dataType, String[] values1, String[] values2) throws Exception {
+        DictionaryInfo info1 = newDictionaryInfo(dataType, values1);
+        DictionaryInfo info2 = newDictionaryInfo(dataType, values2);
+        List<DictionaryInfo> sources = new ArrayList<DictionaryInfo>();
+        sources.add(info1);
+        sources.add(info2);
+
+        // the expected dictionary is built from distinct values only
+        TreeSet<String> distinct = new TreeSet<String>();
+        for (String v : values1)
+            distinct.add(v);
+        for (String v : values2)
+            distinct.add(v);
+        DictionaryInfo expectedInfo = new DictionaryInfo("T", "C", 0, dataType, null, null);
+        Dictionary<?> expected = DictionaryGenerator.buildDictionaryFromValueList(expectedInfo, toBytesList(distinct));
+
+        DictionaryInfo mergedInfo = new DictionaryInfo("T", "C", 0, dataType, null, null);
+        Dictionary<?> merged = DictionaryGenerator.mergeDictionaries(mergedInfo, sources, getTestConfig());
+
+        assertEquals(expected.getClass(), merged.getClass());
+        assertEquals(distinct.size(), mergedInfo.getCardinality());
+        assertEquals(expectedInfo.getCardinality(), mergedInfo.getCardinality());
+        assertEquals(expected, merged);
+    }
+
+    private DictionaryInfo newDictionaryInfo(String dataType, String[] values) {
+        DictionaryInfo info = new DictionaryInfo("T", "C", 0, dataType, null, null);
+        List<String> list = new ArrayList<String>();
+        for (String v : values)
+            list.add(v);
+        info.setDictionaryObject(DictionaryGenerator.buildDictionaryFromValueList(info, toBytesList(list)));
+        return info;
+    }
+
+    private List<byte[]> toBytesList(Collection<String> values) {
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (String v : values) {
+            result.add(Bytes.toBytes(v));
+        }
+        return result;
+    }
+}
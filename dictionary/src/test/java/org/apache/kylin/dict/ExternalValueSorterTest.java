@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.apache.kylin.dict;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class ExternalValueSorterTest {
+
+    private File tmpDir;
+
+    @Before
+    public void setup() throws Exception {
+        tmpDir = Files.createTempDir();
+    }
+
+    @After
+    public void after() throws Exception {
+        FileUtils.deleteQuietly(tmpDir);
+    }
+
+    @Test
+    public void testSortWithSpills() throws Exception {
+        Random rand = new Random(1);
+        TreeSet<String> expected = new TreeSet<String>();
+        ExternalValueSorter sorter = new ExternalValueSorter(100, tmpDir);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                String v = String.valueOf(rand.nextInt(500));
+                expected.add(v);
+                sorter.add(Bytes.toBytes(v));
+            }
+            assertEquals(10, sorter.getRunCount());
+            assertEquals(10, tmpDir.list().length);
+
+            Iterator<byte[]> it = sorter.sortedDistinct();
+            for (String v : expected) {
+                assertTrue(it.hasNext());
+                assertEquals(v, Bytes.toString(it.next()));
+            }
+            assertFalse(it.hasNext());
+
+            // exhausted runs are gone before the sorter closes
+            assertEquals(0, tmpDir.list().length);
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void testCloseDeletesRuns() throws Exception {
+        ExternalValueSorter sorter = new ExternalValueSorter(10, tmpDir);
+        try {
+            for (int i = 0; i < 100; i++) {
+                sorter.add(Bytes.toBytes(String.valueOf(i)));
+            }
+            assertEquals(10, tmpDir.list().length);
+
+            // read partially
+            Iterator<byte[]> it = sorter.sortedDistinct();
+            it.next();
+        } finally {
+            sorter.close();
+        }
+        assertEquals(0, tmpDir.list().length);
+
+        // closing again is fine
+        sorter.close();
+    }
+}
@@ -25,17 +25,20 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.TreeSet;
 
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Test;
 
 public class TrieDictionaryTest {
@@ -233,6 +236,32 @@ public class TrieDictionaryTest {
         long timeIdToValueByDict = System.currentTimeMillis() - start;
         System.out.println(timeIdToValueByDict);
 
+        // benchmark value==>id, via Dict batch, array is sorted
+        System.out.println(msg + " Dictionary batch lookup value==>id");
+        int[] ids = new int[n];
+        start = System.currentTimeMillis();
+        for (int i = 0; i < times; i++) {
+            dict.getIdsFromValueBytes(array, ids, 0);
+            keep |= ids[n - 1];
+        }
+        long timeValueToIdByBatch = System.currentTimeMillis() - start;
+        System.out.println(timeValueToIdByBatch);
+
+        // benchmark id==>value, via Dict batch
+        System.out.println(msg + " Dictionary batch lookup id==>value");
+        byte[][] returnValues = new byte[n][];
+        for (int j = 0; j < n; j++) {
+            returnValues[j] = new byte[dict.getSizeOfValue()];
+        }
+        int[] lengths = new int[n];
+        start = System.currentTimeMillis();
+        for (int i = 0; i < times; i++) {
+            dict.getValueBytesFromIds(ids, returnValues, lengths);
+            keep |= lengths[n - 1];
+        }
+        long timeIdToValueByBatch = System.currentTimeMillis() - start;
+        System.out.println(timeIdToValueByBatch);
+
         return keep;
     }
 
@@ -270,6 +299,38 @@ public class TrieDictionaryTest {
             }
         }
 
+        // test batch id<==>value, sorted and shuffled
+        ArrayList<String> values = new ArrayList<String>(set);
+        for (int round = 0; round < 2; round++) {
+            if (round == 1)
+                Collections.shuffle(values, new Random(round));
+            values.add(null);
+
+            byte[][] valueBytes = new byte[values.size()][];
+            for (int i = 0; i < valueBytes.length; i++) {
+                valueBytes[i] = values.get(i) == null ? null : Bytes.toBytes(values.get(i));
+            }
+            int[] ids = new int[values.size()];
+            dict.getIdsFromValueBytes(valueBytes, ids, 0);
+
+            byte[][] returnValues = new byte[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                returnValues[i] = new byte[dict.getSizeOfValue()];
+            }
+            int[] lengths = new int[ids.length];
+            dict.getValueBytesFromIds(ids, returnValues, lengths);
+
+            for (int i = 0; i < ids.length; i++) {
+                String value = values.get(i);
+                assertEquals(dict.getIdFromValue(value), ids[i]);
+                if (value == null)
+                    assertEquals(-1, lengths[i]);
+                else
+                    assertEquals(value, Bytes.toString(returnValues[i], 0, lengths[i]));
+            }
+            values.remove(values.size() - 1);
+        }
+
         // test null value
         int nullId = dict.getIdFromValue(null);
         assertNull(dict.getValueFromId(nullId));
@@ -333,6 +394,58 @@ public class TrieDictionaryTest {
         dict.dump(System.out);
     }
 
+    @Test
+    public void testOffHeap() throws IOException {
+        ArrayList<String> str = new ArrayList<String>();
+        Random rand = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            str.add(Long.toString(rand.nextLong(), 36));
+        }
+        TrieDictionary<String> heap = newDictBuilder(str).build(0);
+
+        File mmapDir = new File(System.getProperty("java.io.tmpdir"), "kylin_dict_mmap_test");
+        TrieDictionary<String> direct = testSerialize(heap);
+        direct.moveOffHeap(null);
+        TrieDictionary<String> mapped = testSerialize(heap);
+        mapped.moveOffHeap(mmapDir);
+
+        for (TrieDictionary<String> dict : new TrieDictionary[] { direct, mapped }) {
+            assertTrue(dict.isOffHeap());
+            assertEquals(heap, dict);
+            assertEquals(heap.hashCode(), dict.hashCode());
+            for (int id = heap.getMinId(); id <= heap.getMaxId(); id++) {
+                String value = heap.getValueFromId(id);
+                assertEquals(value, dict.getValueFromId(id));
+                assertEquals(id, dict.getIdFromValue(value));
+            }
+            for (int i = 0; i < 1000; i++) {
+                String v = Long.toString(rand.nextLong(), 36);
+                assertEquals(roundedId(heap, v, -1), roundedId(dict, v, -1));
+                assertEquals(roundedId(heap, v, 1), roundedId(dict, v, 1));
+            }
+            assertEquals(heap, testSerialize(dict));
+        }
+    }
+
+    @Test
+    public void testSharedValueCacheKeptOnResize() {
+        DictionaryValueCache cache = DictionaryValueCache.getInstance();
+        cache.putValue(-1, 1, "one");
+
+        // e.g. a DictionaryManager created for another KylinConfig
+        DictionaryValueCache.setMaxEntries(cache.getMaxEntries() + 1);
+        assertSame(cache, DictionaryValueCache.getInstance());
+        assertEquals("one", DictionaryValueCache.getInstance().getValue(-1, 1));
+    }
+
+    private static int roundedId(TrieDictionary<String> dict, String value, int roundingFlag) {
+        try {
+            return dict.getIdFromValue(value, roundingFlag);
+        } catch (IllegalArgumentException e) {
+            return -1; // nothing smaller or bigger
+        }
+    }
+
     @Test
     public void testRounding() {
         // see NumberDictionaryTest.testRounding();
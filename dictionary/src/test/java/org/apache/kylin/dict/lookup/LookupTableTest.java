@@ -100,6 +100,93 @@ public class LookupTableTest extends LocalFileMetadataTestCase {
         }
     }
 
+    @Test
+    public void testColumnIndex() throws Exception {
+        int colIdx = 2; // QTR_BEG_DT
+        List<String> distinct = lookupTable.getDistinctValues(colIdx, null, null);
+        Assert.assertTrue(distinct.size() > 1);
+
+        int rows = 0;
+        String last = null;
+        for (String v : distinct) {
+            Assert.assertTrue(last == null || last.compareTo(v) < 0);
+            last = v;
+            List<String[]> matched = lookupTable.getRowsByValue(colIdx, v);
+            Assert.assertTrue(matched.size() > 0);
+            for (String[] row : matched) {
+                Assert.assertEquals(v, row[colIdx]);
+            }
+            rows += matched.size();
+        }
+        Assert.assertEquals(lookupTable.getAllRows().size(), rows);
+
+        List<String> range = lookupTable.getDistinctValues(colIdx, "2012-01-01", "2012-12-31");
+        Assert.assertEquals("2012-01-01", range.get(0));
+        Assert.assertEquals("2012-10-01", range.get(range.size() - 1));
+        Assert.assertTrue(lookupTable.getRowsByValue(colIdx, "no such value").isEmpty());
+    }
+
+    @Test
+    public void testCachedLookupTable() throws Exception {
+        String snapshotResPath = "/table_snapshot/TEST_CAL_DT.csv/4af48c94-86de-4e22-a4fd-c49b06cbaa4f.snapshot";
+        TableDesc tableDesc = MetadataManager.getInstance(config).getTableDesc("EDW.TEST_CAL_DT");
+        String[] pkCols = new String[] { "CAL_DT" };
+
+        SnapshotManager snapshotMgr = getSnapshotManager();
+        LookupStringTable t1 = snapshotMgr.getLookupTable(snapshotResPath, tableDesc, pkCols);
+        long hits = snapshotMgr.getCacheStats().hitCount();
+        LookupStringTable t2 = snapshotMgr.getLookupTable(snapshotResPath, tableDesc, pkCols);
+        Assert.assertSame(t1, t2);
+        Assert.assertTrue(snapshotMgr.getCacheStats().hitCount() > hits);
+        // the lookup table is weighed with its rows
+        long snapshotBytes = snapshotMgr.getSnapshotTable(snapshotResPath).estimateMemoryBytes();
+        Assert.assertTrue(snapshotBytes > 0);
+        Assert.assertTrue(t1.estimateMemoryBytes() > snapshotBytes);
+
+        snapshotMgr.wipeoutCache();
+        Assert.assertNotSame(t1, snapshotMgr.getLookupTable(snapshotResPath, tableDesc, pkCols));
+    }
+
+    @Test
+    public void testRemoveSnapshotDropsLookupTables() throws Exception {
+        String snapshotResPath = "/table_snapshot/TEST_CAL_DT.csv/4af48c94-86de-4e22-a4fd-c49b06cbaa4f.snapshot";
+        TableDesc tableDesc = MetadataManager.getInstance(config).getTableDesc("EDW.TEST_CAL_DT");
+
+        SnapshotManager snapshotMgr = getSnapshotManager();
+        snapshotMgr.wipeoutCache();
+        snapshotMgr.getLookupTable(snapshotResPath, tableDesc, new String[] { "CAL_DT" });
+        snapshotMgr.getLookupTable(snapshotResPath, tableDesc, new String[] { "WEEK_BEG_DT", "CAL_DT" });
+        Assert.assertEquals(3, snapshotMgr.getCacheSize());
+
+        snapshotMgr.removeSnapshot(snapshotResPath);
+        Assert.assertEquals(0, snapshotMgr.getCacheSize());
+    }
+
+    @Test
+    public void testLargeEntriesStayCached() throws Exception {
+        String snapshotResPath = "/table_snapshot/TEST_CAL_DT.csv/4af48c94-86de-4e22-a4fd-c49b06cbaa4f.snapshot";
+        TableDesc tableDesc = MetadataManager.getInstance(config).getTableDesc("EDW.TEST_CAL_DT");
+        String[] pkCols = new String[] { "CAL_DT" };
+
+        long snapshotBytes = getSnapshotManager().getSnapshotTable(snapshotResPath).estimateMemoryBytes();
+        long lookupBytes = getSnapshotManager().getLookupTable(snapshotResPath, tableDesc, pkCols).estimateMemoryBytes();
+
+        // both fit into the budget, yet each is over a quarter of it
+        long budget = snapshotBytes + lookupBytes + 1024;
+        Assert.assertTrue(snapshotBytes * 4 > budget);
+        config.setProperty("kylin.snapshot.cache.max.bytes", String.valueOf(budget));
+        SnapshotManager.clearCache();
+        try {
+            SnapshotManager snapshotMgr = getSnapshotManager();
+            LookupStringTable t1 = snapshotMgr.getLookupTable(snapshotResPath, tableDesc, pkCols);
+            Assert.assertSame(t1, snapshotMgr.getLookupTable(snapshotResPath, tableDesc, pkCols));
+            Assert.assertEquals(2, snapshotMgr.getCacheSize());
+            Assert.assertEquals(0, snapshotMgr.getCacheStats().evictionCount());
+        } finally {
+            SnapshotManager.clearCache();
+        }
+    }
+
     public LookupTable initLookupTable() throws Exception {
 
 
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.apache.kylin.invertedindex.index;
+
+/**
+ * A set of row numbers within a slice. Implementations are mutable; operations
+ * taking another bitmap convert it first if it is of a different format.
+ */
+public interface BitMap {
+
+    BitMapFormat getFormat();
+
+    void add(int i);
+
+    boolean contains(int i);
+
+    int size();
+
+    boolean isEmpty();
+
+    /** this = this | other */
+    void or(BitMap other);
+
+    /** this = this & other */
+    void and(BitMap other);
+
+    /** this = this & ~other */
+    void andNot(BitMap other);
+
+    /** flips every bit in [0, n), where n is the size of the slice */
+    void complement(int n);
+
+    BitMap clone();
+
+    IntIterator iterator();
+
+    byte[] toBytes();
+
+    public static interface IntIterator {
+
+        boolean hasNext();
+
+        int next();
+    }
+}
@@ -18,10 +18,6 @@
 
 package org.apache.kylin.invertedindex.index;
 
-import it.uniroma3.mat.extendedset.intset.ConciseSet;
-
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -30,8 +26,15 @@ import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 
 import org.apache.kylin.common.util.BytesUtil;
 import org.apache.kylin.dict.Dictionary;
+import org.apache.kylin.invertedindex.index.BitMap.IntIterator;
 
 /**
+ * Holds a bitmap per value ID. Once closed for change, a forward index of the
+ * value bytes by row is also kept, so reading the value at a row is constant
+ * time instead of probing every bitmap.
+ * <p>
+ * Bitmaps are of the format given at construction, see BitMapFormat.
+ * 
  * @author yangli9
  */
 public class BitMapContainer implements ColumnValueContainer {
@@ -39,15 +42,22 @@ public class BitMapContainer implements ColumnValueContainer {
     int valueLen;
     int nValues;
     int size;
-    ConciseSet[] sets;
+    BitMapFormat format;
+    BitMap[] sets;
     boolean closedForChange;
 
     transient byte[] temp;
+    transient byte[] forward; // valueLen bytes per row, built when closed for change
 
     public BitMapContainer(TableRecordInfoDigest digest, int col) {
+        this(digest, col, BitMapFormat.DEFAULT);
+    }
+
+    public BitMapContainer(TableRecordInfoDigest digest, int col, BitMapFormat format) {
         this.valueLen = digest.length(col);
         this.size = 0;
         this.nValues = digest.getMaxID(col) + 1;
+        this.format = format;
         this.sets = null;
         this.closedForChange = false;
 
@@ -71,13 +81,17 @@ public class BitMapContainer implements ColumnValueContainer {
 
     @Override
     public void getValueAt(int i, ImmutableBytesWritable valueBytes) {
+        if (forward != null) {
+            valueBytes.set(forward, i * valueLen, valueLen);
+            return;
+        }
         int value = getValueIntAt(i);
         BytesUtil.writeUnsigned(value, temp, 0, valueLen);
         valueBytes.set(temp, 0, valueLen);
     }
 
     @Override
-    public ConciseSet getBitMap(Integer startId, Integer endId) {
+    public BitMap getBitMap(Integer startId, Integer endId) {
         if (startId == null && endId == null) {
             return sets[this.nValues];
         }
@@ -91,15 +105,18 @@ public class BitMapContainer implements ColumnValueContainer {
             end = endId;
         }
 
-        ConciseSet ret = new ConciseSet();
+        List<BitMap> range = new ArrayList<BitMap>(Math.max(end - start + 1, 0));
         for (int i = start; i <= end; ++i) {
-            ConciseSet temp = getBitMap(i);
-            ret.addAll(temp);
+            range.add(getValueBitMap(i));
         }
-        return ret;
+        return format.union(range);
     }
 
-    private ConciseSet getBitMap(int valueId) {
+    /**
+     * The rows holding the given value ID, or the NULL rows if the ID is out of
+     * range. The bitmap is not a copy, callers must not change it.
+     */
+    public BitMap getValueBitMap(int valueId) {
         if (valueId >= 0 && valueId <= getMaxValueId())
             return sets[valueId];
         else
@@ -112,6 +129,9 @@ public class BitMapContainer implements ColumnValueContainer {
     }
 
     public int getValueIntAt(int i) {
+        if (forward != null) {
+            return BytesUtil.readUnsigned(forward, i * valueLen, valueLen);
+        }
         for (int v = 0; v < nValues; v++) {
             if (sets[v].contains(i)) {
                 return v;
@@ -126,9 +146,9 @@ public class BitMapContainer implements ColumnValueContainer {
             throw new IllegalStateException();
         }
         if (sets == null) {
-            sets = new ConciseSet[nValues + 1];
+            sets = new BitMap[nValues + 1];
             for (int i = 0; i <= nValues; i++) {
-                sets[i] = new ConciseSet();
+                sets[i] = format.create();
             }
         }
     }
@@ -140,6 +160,23 @@ public class BitMapContainer implements ColumnValueContainer {
     @Override
     public void closeForChange() {
         closedForChange = true;
+        buildForwardIndex();
+    }
+
+    private void buildForwardIndex() {
+        if (sets == null) {
+            forward = BytesUtil.EMPTY_BYTE_ARRAY;
+            return;
+        }
+        byte[] bytes = new byte[size * valueLen];
+        for (int v = 0; v <= nValues; v++) {
+            int value = v == nValues ? Dictionary.NULL_ID[valueLen] : v;
+            IntIterator rows = sets[v].iterator();
+            while (rows.hasNext()) {
+                BytesUtil.writeUnsigned(value, bytes, rows.next() * valueLen, valueLen);
+            }
+        }
+        forward = bytes;
     }
 
     @Override
@@ -147,47 +184,32 @@ public class BitMapContainer implements ColumnValueContainer {
         return size;
     }
 
+    public BitMapFormat getFormat() {
+        return format;
+    }
+
     public List<ImmutableBytesWritable> toBytes() {
         if (isClosedForChange() == false)
             closeForChange();
 
         List<ImmutableBytesWritable> r = new ArrayList<ImmutableBytesWritable>(nValues + 1);
         for (int i = 0; i <= nValues; i++) {
-            r.add(setToBytes(sets[i]));
+            r.add(new ImmutableBytesWritable(sets[i].toBytes()));
         }
         return r;
     }
 
     public void fromBytes(List<ImmutableBytesWritable> bytes) {
         assert nValues + 1 == bytes.size();
-        sets = new ConciseSet[nValues + 1];
+        sets = new BitMap[nValues + 1];
         size = 0;
         for (int i = 0; i <= nValues; i++) {
-            sets[i] = bytesToSet(bytes.get(i));
+            ImmutableBytesWritable b = bytes.get(i);
+            sets[i] = format.fromBytes(b.get(), b.getOffset(), b.getLength());
             size += sets[i].size();
         }
         closedForChange = true;
-    }
-
-    private ImmutableBytesWritable setToBytes(ConciseSet set) {
-        byte[] array;
-        if (set.isEmpty()) // ConciseSet.toByteBuffer() throws exception when
-                           // set is empty
-            array = BytesUtil.EMPTY_BYTE_ARRAY;
-        else
-            array = set.toByteBuffer().array();
-        return new ImmutableBytesWritable(array);
-    }
-
-    private ConciseSet bytesToSet(ImmutableBytesWritable bytes) {
-        if (bytes.get() == null || bytes.getLength() == 0) {
-            return new ConciseSet();
-        } else {
-            IntBuffer intBuffer = ByteBuffer.wrap(bytes.get(), bytes.getOffset(), bytes.getLength()).asIntBuffer();
-            int[] words = new int[intBuffer.capacity()];
-            intBuffer.get(words);
-            return new ConciseSet(words, false);
-        }
+        buildForwardIndex();
     }
 
     @Override
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.apache.kylin.invertedindex.index;
+
+import java.util.List;
+
+/**
+ * On-disk formats of bitmaps. The code is persisted along with the bitmap
+ * (see IIKeyValueCodec), so never reorder or reuse codes.
+ */
+public enum BitMapFormat {
+
+    /** ConciseSet words, the original and only format before codes were written */
+    CONCISE((byte) 0) {
+        @Override
+        public BitMap create() {
+            return new ConciseBitMap();
+        }
+
+        @Override
+        public BitMap fromBytes(byte[] bytes, int offset, int length) {
+            return ConciseBitMap.fromBytes(bytes, offset, length);
+        }
+
+        @Override
+        public BitMap union(List<BitMap> bitMaps) {
+            BitMap ret = create();
+            for (BitMap b : bitMaps) {
+                ret.or(b);
+            }
+            return ret;
+        }
+    },
+
+    /** Roaring bitmap, smaller for most slices and unions a range of bitmaps in one pass */
+    ROARING((byte) 1) {
+        @Override
+        public BitMap create() {
+            return new RoaringBitMap();
+        }
+
+        @Override
+        public BitMap fromBytes(byte[] bytes, int offset, int length) {
+            return RoaringBitMap.fromBytes(bytes, offset, length);
+        }
+
+        @Override
+        public BitMap union(List<BitMap> bitMaps) {
+            return RoaringBitMap.union(bitMaps);
+        }
+    };
+
+    /** format of newly built slices */
+    public static final BitMapFormat DEFAULT = ROARING;
+
+    private final byte code;
+
+    private BitMapFormat(byte code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public abstract BitMap create();
+
+    public abstract BitMap fromBytes(byte[] bytes, int offset, int length);
+
+    /** returns a new bitmap of this format, the inputs are left untouched */
+    public abstract BitMap union(List<BitMap> bitMaps);
+
+    /** returns the bitmap itself if already of this format, otherwise a copy in this format */
+    public BitMap convert(BitMap bitMap) {
+        if (bitMap.getFormat() == this) {
+            return bitMap;
+        }
+        BitMap ret = create();
+        BitMap.IntIterator it = bitMap.iterator();
+        while (it.hasNext()) {
+            ret.add(it.next());
+        }
+        return ret;
+    }
+
+    public static BitMapFormat fromCode(byte code) {
+        for (BitMapFormat f : values()) {
+            if (f.code == code) {
+                return f;
+            }
+        }
+        throw new IllegalArgumentException("Unknown bitmap format " + code);
+    }
+}
@@ -18,7 +18,6 @@
 
 package org.apache.kylin.invertedindex.index;
 
-import it.uniroma3.mat.extendedset.intset.ConciseSet;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 
 /**
@@ -35,7 +34,7 @@ public interface ColumnValueContainer {
 	// works only after closeForChange()
 	void getValueAt(int i, ImmutableBytesWritable valueBytes);
 
-	ConciseSet getBitMap(Integer startId,Integer endId);
+	BitMap getBitMap(Integer startId,Integer endId);
 
 	int getMaxValueId();
 
@@ -27,7 +27,6 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.kylin.common.util.BytesUtil;
 import com.ning.compress.lzf.LZFDecoder;
 import com.ning.compress.lzf.LZFEncoder;
-import it.uniroma3.mat.extendedset.intset.ConciseSet;
 import org.apache.kylin.dict.Dictionary;
 
 /**
@@ -63,8 +62,8 @@ public class CompressedValueContainer implements ColumnValueContainer {
     }
 
     @Override
-    public ConciseSet getBitMap(Integer startId, Integer endId) {
-        ConciseSet ret = new ConciseSet();
+    public BitMap getBitMap(Integer startId, Integer endId) {
+        BitMap ret = BitMapFormat.DEFAULT.create();
         int nullId = Dictionary.NULL_ID[valueLen];
 
         if (startId == null && endId == null) {
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.apache.kylin.invertedindex.index;
+
+import it.uniroma3.mat.extendedset.intset.ConciseSet;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.apache.kylin.common.util.BytesUtil;
+
+/**
+ * BitMap backed by ConciseSet, kept to read slices written before bitmap
+ * formats were versioned.
+ */
+public class ConciseBitMap implements BitMap {
+
+    private final ConciseSet set;
+
+    public ConciseBitMap() {
+        this(new ConciseSet());
+    }
+
+    public ConciseBitMap(ConciseSet set) {
+        this.set = set;
+    }
+
+    public ConciseSet getSet() {
+        return set;
+    }
+
+    @Override
+    public BitMapFormat getFormat() {
+        return BitMapFormat.CONCISE;
+    }
+
+    @Override
+    public void add(int i) {
+        set.add(i);
+    }
+
+    @Override
+    public boolean contains(int i) {
+        return set.contains(i);
+    }
+
+    @Override
+    public int size() {
+        return set.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return set.isEmpty();
+    }
+
+    @Override
+    public void or(BitMap other) {
+        set.addAll(concise(other));
+    }
+
+    @Override
+    public void and(BitMap other) {
+        set.retainAll(concise(other));
+    }
+
+    @Override
+    public void andNot(BitMap other) {
+        set.removeAll(concise(other));
+    }
+
+    @Override
+    public void complement(int n) {
+        // complement() flips up to the last element, so make n the last one
+        set.add(n);
+        set.complement();
+    }
+
+    @Override
+    public ConciseBitMap clone() {
+        return new ConciseBitMap(set.clone());
+    }
+
+    @Override
+    public IntIterator iterator() {
+        final it.uniroma3.mat.extendedset.intset.IntSet.IntIterator it = set.iterator();
+        return new IntIterator() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public int next() {
+                return it.next();
+            }
+        };
+    }
+
+    @Override
+    public byte[] toBytes() {
+        // ConciseSet.toByteBuffer() throws exception when set is empty
+        if (set.isEmpty())
+            return BytesUtil.EMPTY_BYTE_ARRAY;
+        else
+            return set.toByteBuffer().array();
+    }
+
+    public static ConciseBitMap fromBytes(byte[] bytes, int offset, int length) {
+        if (bytes == null || length == 0) {
+            return new ConciseBitMap();
+        }
+        IntBuffer intBuffer = ByteBuffer.wrap(bytes, offset, length).asIntBuffer();
+        int[] words = new int[intBuffer.capacity()];
+        intBuffer.get(words);
+        return new ConciseBitMap(new ConciseSet(words, false));
+    }
+
+    private static ConciseSet concise(BitMap bitMap) {
+        return ((ConciseBitMap) BitMapFormat.CONCISE.convert(bitMap)).set;
+    }
+
+    @Override
+    public int hashCode() {
+        return set.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        return set.equals(((ConciseBitMap) obj).set);
+    }
+
+    @Override
+    public String toString() {
+        return set.toString();
+    }
+}
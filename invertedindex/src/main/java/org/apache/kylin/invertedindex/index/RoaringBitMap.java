@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.apache.kylin.invertedindex.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.kylin.common.util.BytesUtil;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * BitMap backed by a RoaringBitmap.
+ */
+public class RoaringBitMap implements BitMap {
+
+    private final RoaringBitmap bitmap;
+
+    public RoaringBitMap() {
+        this(new RoaringBitmap());
+    }
+
+    public RoaringBitMap(RoaringBitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public RoaringBitmap getBitmap() {
+        return bitmap;
+    }
+
+    @Override
+    public BitMapFormat getFormat() {
+        return BitMapFormat.ROARING;
+    }
+
+    @Override
+    public void add(int i) {
+        bitmap.add(i);
+    }
+
+    @Override
+    public boolean contains(int i) {
+        return bitmap.contains(i);
+    }
+
+    @Override
+    public int size() {
+        return bitmap.getCardinality();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return bitmap.isEmpty();
+    }
+
+    @Override
+    public void or(BitMap other) {
+        bitmap.or(roaring(other));
+    }
+
+    @Override
+    public void and(BitMap other) {
+        bitmap.and(roaring(other));
+    }
+
+    @Override
+    public void andNot(BitMap other) {
+        bitmap.andNot(roaring(other));
+    }
+
+    @Override
+    public void complement(int n) {
+        bitmap.flip(0, n);
+    }
+
+    @Override
+    public RoaringBitMap clone() {
+        return new RoaringBitMap(bitmap.clone());
+    }
+
+    @Override
+    public IntIterator iterator() {
+        final org.roaringbitmap.IntIterator it = bitmap.getIntIterator();
+        return new IntIterator() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public int next() {
+                return it.next();
+            }
+        };
+    }
+
+    @Override
+    public byte[] toBytes() {
+        if (bitmap.isEmpty())
+            return BytesUtil.EMPTY_BYTE_ARRAY;
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(bitmap.serializedSizeInBytes());
+        try {
+            bitmap.serialize(new DataOutputStream(bout));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not possible on byte array
+        }
+        return bout.toByteArray();
+    }
+
+    public static RoaringBitMap fromBytes(byte[] bytes, int offset, int length) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        if (bytes != null && length > 0) {
+            try {
+                bitmap.deserialize(new DataInputStream(new ByteArrayInputStream(bytes, offset, length)));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Corrupted roaring bitmap", e);
+            }
+        }
+        return new RoaringBitMap(bitmap);
+    }
+
+    static BitMap union(List<BitMap> bitMaps) {
+        RoaringBitmap[] array = new RoaringBitmap[bitMaps.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = roaring(bitMaps.get(i));
+        }
+        if (array.length == 0) {
+            return new RoaringBitMap();
+        }
+        if (array.length == 1) {
+            return new RoaringBitMap(array[0].clone());
+        }
+        return new RoaringBitMap(FastAggregation.or(array));
+    }
+
+    private static RoaringBitmap roaring(BitMap bitMap) {
+        return ((RoaringBitMap) BitMapFormat.ROARING.convert(bitMap)).bitmap;
+    }
+
+    @Override
+    public int hashCode() {
+        return bitmap.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        return bitmap.equals(((RoaringBitMap) obj).bitmap);
+    }
+
+    @Override
+    public String toString() {
+        return bitmap.toString();
+    }
+}
@@ -20,12 +20,15 @@ package org.apache.kylin.invertedindex.index;
 
 import java.util.Iterator;
 
-import it.uniroma3.mat.extendedset.intset.ConciseSet;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.kylin.invertedindex.index.BitMap.IntIterator;
 
 /**
  * Within a partition (per timestampGranularity), records are further sliced
  * (per sliceLength) to fit into HBASE cell.
+ * <p>
+ * A slice decoded for a subset of columns holds null for the other containers,
+ * and leaves their bytes untouched in the records it iterates.
  * 
  * @author yangli9
  */
@@ -45,15 +48,24 @@ public class Slice implements Iterable<RawTableRecord>, Comparable<Slice> {
 
         this.shard = shard;
         this.timestamp = timestamp;
-        this.nRecords = containers[0].getSize();
+        this.nRecords = firstContainer(containers).getSize();
         this.containers = containers;
 
         assert nColumns == containers.length;
         for (int i = 0; i < nColumns; i++) {
-            assert nRecords == containers[i].getSize();
+            assert containers[i] == null || nRecords == containers[i].getSize();
         }
     }
 
+    private static ColumnValueContainer firstContainer(ColumnValueContainer[] containers) {
+        for (ColumnValueContainer c : containers) {
+            if (c != null) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("A slice needs at least one column");
+    }
+
     public int getRecordCount() {
         return this.nRecords;
     }
@@ -74,7 +86,17 @@ public class Slice implements Iterable<RawTableRecord>, Comparable<Slice> {
         return containers[col];
     }
 
-    public Iterator<RawTableRecord> iterateWithBitmap(final ConciseSet resultBitMap) {
+    /** the format of the bitmap containers, or the default if there is none */
+    public BitMapFormat getBitMapFormat() {
+        for (ColumnValueContainer c : containers) {
+            if (c instanceof BitMapContainer) {
+                return ((BitMapContainer) c).getFormat();
+            }
+        }
+        return BitMapFormat.DEFAULT;
+    }
+
+    public Iterator<RawTableRecord> iterateWithBitmap(final BitMap resultBitMap) {
         if (resultBitMap == null) {
             return this.iterator();
         } else {
@@ -82,26 +104,23 @@ public class Slice implements Iterable<RawTableRecord>, Comparable<Slice> {
             final ImmutableBytesWritable temp = new ImmutableBytesWritable();
 
             return new Iterator<RawTableRecord>() {
-                int i = 0;
-                int iteratedCount = 0;
-                int resultSize = resultBitMap.size();
+                IntIterator rows = resultBitMap.iterator();
 
                 @Override
                 public boolean hasNext() {
-                    return iteratedCount < resultSize;
+                    return rows.hasNext();
                 }
 
                 @Override
                 public RawTableRecord next() {
-                    while (!resultBitMap.contains(i)) {
-                        i++;
-                    }
+                    int i = rows.next();
                     for (int col = 0; col < nColumns; col++) {
+                        if (containers[col] == null) {
+                            continue;
+                        }
                         containers[col].getValueAt(i, temp);
                         rec.setValueBytes(col, temp);
                     }
-                    iteratedCount++;
-                    i++;
 
                     return rec;
                 }
@@ -130,6 +149,9 @@ public class Slice implements Iterable<RawTableRecord>, Comparable<Slice> {
             @Override
             public RawTableRecord next() {
                 for (int col = 0; col < nColumns; col++) {
+                    if (containers[col] == null) {
+                        continue;
+                    }
                     containers[col].getValueAt(i, temp);
                     rec.setValueBytes(col, temp);
                 }
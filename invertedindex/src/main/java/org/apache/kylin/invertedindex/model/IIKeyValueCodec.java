@@ -19,6 +19,7 @@
 package org.apache.kylin.invertedindex.model;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -32,6 +33,10 @@ import org.apache.kylin.common.util.BytesUtil;
 import org.apache.kylin.invertedindex.index.*;
 
 /**
+ * Row key is shard + timestamp + column number, followed by the value ID and
+ * the bitmap format code for bitmap containers. Keys written before bitmap
+ * formats were versioned have no format code, and are decoded as ConciseSet.
+ * 
  * @author yangli9
  */
 public class IIKeyValueCodec {
@@ -39,6 +44,7 @@ public class IIKeyValueCodec {
 	public static final int SHARD_LEN = 2;
 	public static final int TIMEPART_LEN = 8;
 	public static final int COLNO_LEN = 2;
+	public static final int BITMAP_FORMAT_LEN = 1;
 
 	private TableRecordInfoDigest infoDigest;
 
@@ -71,7 +77,7 @@ public class IIKeyValueCodec {
 			CompressedValueContainer container, //
 			ArrayList<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> result) {
 		ImmutableBytesWritable key = encodeKey(slice.getShard(),
-				slice.getTimestamp(), col, -1);
+				slice.getTimestamp(), col, -1, null);
 		ImmutableBytesWritable value = container.toBytes();
 		result.add(new Pair<ImmutableBytesWritable, ImmutableBytesWritable>(
 				key, value));
@@ -84,21 +90,21 @@ public class IIKeyValueCodec {
 		List<ImmutableBytesWritable> values = container.toBytes();
 		for (int v = 0; v < values.size(); v++) {
 			ImmutableBytesWritable key = encodeKey(slice.getShard(),
-					slice.getTimestamp(), col, v);
+					slice.getTimestamp(), col, v, container.getFormat());
 			result.add(new Pair<ImmutableBytesWritable, ImmutableBytesWritable>(
 					key, values.get(v)));
 		}
 	}
 
 	ImmutableBytesWritable encodeKey(short shard, long timestamp, int col,
-			int colValue) {
-		byte[] bytes = new byte[20];
-		int len = encodeKey(shard, timestamp, col, colValue, bytes, 0);
+			int colValue, BitMapFormat format) {
+		byte[] bytes = new byte[21];
+		int len = encodeKey(shard, timestamp, col, colValue, format, bytes, 0);
 		return new ImmutableBytesWritable(bytes, 0, len);
 	}
 
 	int encodeKey(short shard, long timestamp, int col, int colValue,
-			byte[] buf, int offset) {
+			BitMapFormat format, byte[] buf, int offset) {
 		int i = offset;
 
 		BytesUtil.writeUnsigned(shard, buf, i, SHARD_LEN);
@@ -113,6 +119,8 @@ public class IIKeyValueCodec {
 			int colLen = infoDigest.length(col);
 			BytesUtil.writeUnsigned(colValue, buf, i, colLen);
 			i += colLen;
+			buf[i] = format.getCode();
+			i += BITMAP_FORMAT_LEN;
 		}
 
 		return i - offset;
@@ -120,29 +128,50 @@ public class IIKeyValueCodec {
 
 	public Iterable<Slice> decodeKeyValue(
 			Iterable<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> kvs) {
-		return new Decoder(infoDigest, kvs);
+		return decodeKeyValue(kvs, null);
+	}
+
+	/**
+	 * Decodes only the given columns, KeyValues of other columns are skipped
+	 * without being copied or inflated and the slices hold no container for
+	 * them. Null means all columns.
+	 */
+	public Iterable<Slice> decodeKeyValue(
+			Iterable<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> kvs,
+			BitSet columns) {
+		if (columns != null && columns.isEmpty()) {
+			// a slice needs at least one column to know its record count
+			columns = new BitSet();
+			columns.set(0);
+		}
+		return new Decoder(infoDigest, kvs, columns);
 	}
 
 	private static class Decoder implements Iterable<Slice> {
 
 		TableRecordInfoDigest info;
 		Iterator<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> iterator;
+		BitSet columns;
 
 		Slice next = null;
 		short curShard = Short.MIN_VALUE;
 		long curSliceTimestamp = Long.MIN_VALUE;
 		int curCol = -1;
 		int curColValue = -1;
+		BitMapFormat curFormat = null;
 		short lastShard = Short.MIN_VALUE;
 		long lastSliceTimestamp = Long.MIN_VALUE;
 		int lastCol = -1;
 		ColumnValueContainer[] containers = null;
 		List<ImmutableBytesWritable> bitMapValues = Lists.newArrayList();
+		BitMapFormat bitMapFormat = null;
 
 		Decoder(TableRecordInfoDigest info,
-				Iterable<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> kvs) {
+				Iterable<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> kvs,
+				BitSet columns) {
 			this.info = info;
 			this.iterator = kvs.iterator();
+			this.columns = columns;
 		}
 
 		private void goToNext() {
@@ -186,9 +215,17 @@ public class IIKeyValueCodec {
 				int colLen = info.length(curCol);
 				curColValue = BytesUtil.readUnsigned(buf, i, colLen);
 				i += colLen;
+				if (i - k.getOffset() < k.getLength()) {
+					curFormat = BitMapFormat.fromCode(buf[i]);
+					i += BITMAP_FORMAT_LEN;
+				} else {
+					// written before bitmap formats were versioned
+					curFormat = BitMapFormat.CONCISE;
+				}
 			} else {
 				// value list
 				curColValue = -1;
+				curFormat = null;
 			}
 		}
 
@@ -198,7 +235,9 @@ public class IIKeyValueCodec {
 																// container
 				addBitMapContainer(lastCol);
 			}
-			if (curColValue < 0) {
+			if (columns != null && columns.get(curCol) == false) {
+				// column not needed, neither copy nor inflate its value
+			} else if (curColValue < 0) {
 				CompressedValueContainer c = new CompressedValueContainer(info,
 						curCol, 0);
 				c.fromBytes(v);
@@ -208,6 +247,7 @@ public class IIKeyValueCodec {
 				// make a copy, the value object from caller is typically reused
 				// through iteration
 				bitMapValues.add(new ImmutableBytesWritable(v));
+				bitMapFormat = curFormat;
 			}
 
 			lastShard = curShard;
@@ -230,7 +270,7 @@ public class IIKeyValueCodec {
 		}
 
 		private void addBitMapContainer(int col) {
-			BitMapContainer c = new BitMapContainer(info, col);
+			BitMapContainer c = new BitMapContainer(info, col, bitMapFormat);
 			c.fromBytes(bitMapValues);
 			addContainer(col, c);
 			bitMapValues.clear();
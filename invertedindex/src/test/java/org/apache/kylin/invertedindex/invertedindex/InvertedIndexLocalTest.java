@@ -37,10 +37,12 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 
@@ -88,6 +90,88 @@ public class InvertedIndexLocalTest extends LocalFileMetadataTestCase {
 		assertEquals(container, container2);
 	}
 
+	public static void main(String[] args) {
+		benchmarkBitMapContainerLookup();
+	}
+
+	/**
+	 * Random row lookups on the bitmap scan vs the forward index, for
+	 * cardinalities from 10 to 10k
+	 */
+	private static void benchmarkBitMapContainerLookup() {
+		int nRows = 100000;
+		int nProbes = 2000;
+		Random rand = new Random(1);
+		for (int cardinality : new int[] { 10, 100, 1000, 10000 }) {
+			TableRecordInfoDigest digest = new TableRecordInfoDigest(1, 2,
+					new int[] { 0 }, new int[] { cardinality - 1 },
+					new int[] { 2 }, new boolean[] { false }, null);
+			BitMapContainer scanned = new BitMapContainer(digest, 0);
+			BitMapContainer indexed = new BitMapContainer(digest, 0);
+			for (int i = 0; i < nRows; i++) {
+				int value = rand.nextInt(cardinality);
+				scanned.append(value);
+				indexed.append(value);
+			}
+			indexed.closeForChange(); // scanned stays open, without the forward index
+
+			int[] probes = new int[nProbes];
+			for (int i = 0; i < nProbes; i++) {
+				probes[i] = rand.nextInt(nRows);
+			}
+
+			long sum = 0;
+			long start = System.nanoTime();
+			for (int i : probes) {
+				sum += scanned.getValueIntAt(i);
+			}
+			long scanTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i : probes) {
+				sum -= indexed.getValueIntAt(i);
+			}
+			long indexTime = System.nanoTime() - start;
+
+			if (sum != 0)
+				throw new IllegalStateException("bitmap scan and forward index disagree");
+			System.out.println("Cardinality " + cardinality + ", " + nProbes
+					+ " lookups: bitmap scan " + scanTime / 1000 + " us, forward index "
+					+ indexTime / 1000 + " us");
+		}
+	}
+
+	@Test
+	public void testBitMapContainerLookup() {
+		int nRows = 2000;
+		Random rand = new Random(1);
+		for (int cardinality : new int[] { 10, 1000 }) {
+			TableRecordInfoDigest digest = new TableRecordInfoDigest(1, 2,
+					new int[] { 0 }, new int[] { cardinality - 1 },
+					new int[] { 2 }, new boolean[] { false }, null);
+			BitMapContainer scanned = new BitMapContainer(digest, 0);
+			BitMapContainer indexed = new BitMapContainer(digest, 0);
+			int[] values = new int[nRows];
+			for (int i = 0; i < nRows; i++) {
+				values[i] = rand.nextInt(20) == 0 ? Dictionary.NULL_ID[2]
+						: rand.nextInt(cardinality);
+				scanned.append(values[i]);
+				indexed.append(values[i]);
+			}
+			indexed.closeForChange(); // scanned stays open, without the forward index
+
+			// the bitmap scan and the forward index agree on every row
+			ImmutableBytesWritable bytes = new ImmutableBytesWritable();
+			for (int i = 0; i < nRows; i++) {
+				assertEquals(values[i], scanned.getValueIntAt(i));
+				assertEquals(values[i], indexed.getValueIntAt(i));
+				indexed.getValueAt(i, bytes);
+				assertEquals(values[i], BytesUtil.readUnsigned(bytes.get(),
+						bytes.getOffset(), bytes.getLength()));
+			}
+		}
+	}
+
 	@Test
 	public void testCompressedValueContainer() {
 		// create container
@@ -149,6 +233,111 @@ public class InvertedIndexLocalTest extends LocalFileMetadataTestCase {
 		dump(recordsCopy);
 	}
 
+	@Test
+	public void testCodecSelectedColumns() throws IOException {
+		List<TableRecord> records = loadRecordsSorted();
+		List<Slice> slices = buildTimeSlices(records);
+
+		IIKeyValueCodec codec = new IIKeyValueCodec(info.getDigest());
+		List<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> kvs = encodeKVs(
+				codec, slices);
+
+		int col = info.getDigest().getColumnCount() - 1;
+		BitSet columns = new BitSet();
+		columns.set(col);
+		List<Slice> slicesCopy = Lists.newArrayList(codec.decodeKeyValue(kvs,
+				columns));
+		assertEquals(slices.size(), slicesCopy.size());
+
+		ImmutableBytesWritable expected = new ImmutableBytesWritable();
+		for (int s = 0; s < slices.size(); s++) {
+			Slice slice = slices.get(s);
+			Slice copy = slicesCopy.get(s);
+			assertEquals(slice.getRecordCount(), copy.getRecordCount());
+			for (int c = 0; c < info.getDigest().getColumnCount(); c++) {
+				assertEquals(c == col, copy.getColumnValueContainer(c) != null);
+			}
+
+			int i = 0;
+			for (RawTableRecord rec : copy) {
+				slice.getColumnValueContainer(col).getValueAt(i++, expected);
+				assertEquals(expected, new ImmutableBytesWritable(
+						rec.getBytes(), info.getDigest().offset(col),
+						info.getDigest().length(col)));
+			}
+		}
+	}
+
+	@Test
+	public void testCodecLegacyConcise() throws IOException {
+		List<TableRecord> records = loadRecordsSorted();
+		List<Slice> slices = buildTimeSlices(records);
+
+		IIKeyValueCodec codec = new IIKeyValueCodec(info.getDigest());
+		List<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> kvs = encodeKVs(
+				codec, slices);
+
+		// rewrite bitmap KVs as before formats were versioned: ConciseSet
+		// words, and no format code at the end of key
+		int keyLen = IIKeyValueCodec.SHARD_LEN + IIKeyValueCodec.TIMEPART_LEN
+				+ IIKeyValueCodec.COLNO_LEN;
+		List<Pair<ImmutableBytesWritable, ImmutableBytesWritable>> legacy = Lists
+				.newArrayList();
+		for (Pair<ImmutableBytesWritable, ImmutableBytesWritable> kv : kvs) {
+			ImmutableBytesWritable k = kv.getFirst();
+			ImmutableBytesWritable v = kv.getSecond();
+			if (k.getLength() > keyLen) {
+				byte[] key = k.get();
+				int codeOffset = k.getOffset() + k.getLength() - 1;
+				BitMap bitMap = BitMapFormat.fromCode(key[codeOffset])
+						.fromBytes(v.get(), v.getOffset(), v.getLength());
+				k = new ImmutableBytesWritable(key, k.getOffset(),
+						k.getLength() - 1);
+				v = new ImmutableBytesWritable(BitMapFormat.CONCISE.convert(
+						bitMap).toBytes());
+			}
+			legacy.add(new Pair<ImmutableBytesWritable, ImmutableBytesWritable>(
+					k, v));
+		}
+
+		List<Slice> slicesCopy = decodeKVs(codec, legacy);
+		assertEquals(slices.size(), slicesCopy.size());
+		for (Slice slice : slicesCopy) {
+			for (ColumnValueContainer c : slice.getColumnValueContainers()) {
+				if (c instanceof BitMapContainer) {
+					assertEquals(BitMapFormat.CONCISE,
+							((BitMapContainer) c).getFormat());
+				}
+			}
+		}
+		assertEquals(iterateRecords(slices), iterateRecords(slicesCopy));
+	}
+
+	@Test
+	public void testBitMapRangeUnion() {
+		TableRecordInfoDigest digest = new TableRecordInfoDigest(1, 2,
+				new int[] { 0 }, new int[] { 99 }, new int[] { 2 },
+				new boolean[] { false }, null);
+		for (BitMapFormat format : BitMapFormat.values()) {
+			BitMapContainer container = new BitMapContainer(digest, 0, format);
+			for (int i = 0; i < 1000; i++) {
+				container.append(i % 100);
+			}
+			container.closeForChange();
+
+			BitMap range = container.getBitMap(10, 19);
+			assertEquals(format, range.getFormat());
+			assertEquals(100, range.size());
+			for (int i = 0; i < 1000; i++) {
+				int v = i % 100;
+				assertEquals(v >= 10 && v <= 19, range.contains(i));
+			}
+			// the union is a new bitmap, not the one held by container
+			range.add(5);
+			assertEquals(false, container.getBitMap(10, 19).contains(5));
+		}
+	}
+
 	private List<TableRecord> loadRecordsSorted() throws IOException {
 		File file = new File(LOCALMETA_TEST_DATA,
 				"data/flatten_data_for_ii.csv");
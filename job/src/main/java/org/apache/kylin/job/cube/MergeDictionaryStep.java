@@ -32,6 +32,7 @@ import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.cube.CubeInstance;
 import org.apache.kylin.cube.CubeManager;
 import org.apache.kylin.cube.CubeSegment;
+import org.apache.kylin.cube.SegmentColumnStats;
 import org.apache.kylin.cube.model.CubeDesc;
 import org.apache.kylin.cube.model.DimensionDesc;
 import org.apache.kylin.dict.DictionaryInfo;
@@ -67,6 +68,7 @@ public class MergeDictionaryStep extends AbstractExecutable {
             
             makeDictForNewSegment(conf, cube, newSegment, mergingSegments);
             makeSnapshotForNewSegment(cube, newSegment, mergingSegments);
+            makeColumnStatsForNewSegment(newSegment, mergingSegments);
             
             mgr.updateCube(cube);
             return new ExecuteResult(ExecuteResult.State.SUCCEED, "succeed");
@@ -159,6 +161,26 @@ public class MergeDictionaryStep extends AbstractExecutable {
         }
     }
 
+    /**
+     * the merged segment holds the values of all merging segments, combine
+     * their column stats. Columns missing stats in any segment get none.
+     *
+     * @param newSeg
+     * @param mergingSegments
+     */
+    private void makeColumnStatsForNewSegment(CubeSegment newSeg, List<CubeSegment> mergingSegments) {
+        for (String key : mergingSegments.get(0).getColumnStats().keySet()) {
+            List<SegmentColumnStats> statsList = Lists.newArrayListWithCapacity(mergingSegments.size());
+            for (CubeSegment segment : mergingSegments) {
+                statsList.add(segment.getColumnStats().get(key));
+            }
+            SegmentColumnStats merged = SegmentColumnStats.merge(statsList);
+            if (merged != null) {
+                newSeg.getColumnStats().put(key, merged);
+            }
+        }
+    }
+
     public void setCubeName(String cubeName) {
         this.setParam(CUBE_NAME, cubeName);
     }
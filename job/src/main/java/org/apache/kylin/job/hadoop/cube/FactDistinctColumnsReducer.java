@@ -35,8 +35,10 @@ import org.apache.hadoop.io.Text;
 import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.common.mr.KylinReducer;
 import org.apache.kylin.common.util.ByteArray;
+import org.apache.kylin.common.util.JsonUtil;
 import org.apache.kylin.cube.CubeInstance;
 import org.apache.kylin.cube.CubeManager;
+import org.apache.kylin.cube.SegmentColumnStats;
 import org.apache.kylin.cube.cuboid.Cuboid;
 import org.apache.kylin.cube.model.CubeDesc;
 import org.apache.kylin.job.constant.BatchConstants;
@@ -89,6 +91,25 @@ public class FactDistinctColumnsReducer extends KylinReducer<ShortWritable, Text
             out.close();
         }
 
+        writeColumnStats(fs, outputPath, col, set);
+    }
+
+    // min/max and bloom filter of the column, picked up by the dictionary step for segment pruning
+    private void writeColumnStats(FileSystem fs, String outputPath, TblColRef col, HashSet<ByteArray> set) throws IOException {
+        List<String> values = new ArrayList<String>(set.size());
+        for (ByteArray value : set) {
+            values.add(Bytes.toString(value.data));
+        }
+        SegmentColumnStats stats = SegmentColumnStats.create(col.getType(), values);
+        if (stats == null)
+            return;
+
+        FSDataOutputStream out = fs.create(new Path(outputPath, SegmentColumnStats.getStatsFileName(col)));
+        try {
+            JsonUtil.writeValue(out, stats);
+        } finally {
+            out.close();
+        }
     }
 
 }
@@ -19,6 +19,7 @@
 package org.apache.kylin.rest.controller;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
@@ -51,6 +52,9 @@ import org.supercsv.io.ICsvListWriter;
 import org.supercsv.prefs.CsvPreference;
 
 import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.cube.CubeInstance;
 import org.apache.kylin.rest.constant.Constant;
@@ -76,6 +80,13 @@ public class QueryController extends BasicController {
     public static final String SUCCESS_QUERY_CACHE = "SuccessQueryCache";
     public static final String EXCEPTION_QUERY_CACHE = "ExceptionQueryCache";
 
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    // CSV rows held back before the response is committed
+    static final int CSV_BUFFER_ROWS = 1000;
+    // first cell of the last CSV line when the query fails after rows were sent
+    static final String CSV_ERROR_MARKER = "#ERROR";
+
     @Autowired
     private QueryService queryService;
 
@@ -141,37 +152,173 @@ public class QueryController extends BasicController {
         return queryService.getQueries(creator);
     }
 
+    /**
+     * Streams the result as JSON in the layout of SQLResponse, rows are written
+     * as the query produces them and never held all in memory. Results are not
+     * cached. An error after the first row is reported in the trailing
+     * isException and exceptionMessage fields, as the status is sent already.
+     */
+    @RequestMapping(value = "/query/stream", method = RequestMethod.POST, produces = "application/json")
+    @Timed(name = "streamQuery")
+    public void streamQuery(@RequestBody SQLRequest sqlRequest, HttpServletResponse response) throws IOException {
+        long startTimestamp = System.currentTimeMillis();
+        checkQueryAllowed(sqlRequest);
+
+        response.setContentType("application/json;charset=utf-8");
+        final JsonGenerator json = JSON_MAPPER.getFactory().createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        // neither close nor flush the stream, a query failing before any output
+        // must still be able to send an error status
+        json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        json.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        final long[] rowCount = new long[1];
+        SQLResponse result = null;
+        String error = null;
+        try {
+            try {
+                result = queryService.streamQuery(sqlRequest, new QueryService.ResultHandler() {
+                    @Override
+                    public void onStart(String cube, List<SelectedColumnMeta> columnMetas) throws Exception {
+                        checkQueryAuth(cube);
+                        json.writeStartObject();
+                        json.writeObjectField("columnMetas", columnMetas);
+                        json.writeArrayFieldStart("results");
+                    }
+
+                    @Override
+                    public void onRow(List<String> row) throws Exception {
+                        json.writeStartArray();
+                        for (String cell : row) {
+                            json.writeString(cell);
+                        }
+                        json.writeEndArray();
+                        rowCount[0]++;
+                    }
+                });
+            } catch (AccessDeniedException ade) {
+                logger.error("Exception when execute sql", ade);
+                error = ade.getMessage();
+                throw new ForbiddenException(ade.getLocalizedMessage());
+            } catch (Throwable e) { // calcite may throw AssertError
+                logger.error("Exception when execute sql", e);
+                error = e.getMessage();
+                if (json.getOutputContext().inRoot())
+                    throw new InternalErrorException(QueryUtil.makeErrorMsgUserFriendly(e.getLocalizedMessage()));
+            }
+
+            if (result != null && result.getIsException()) {
+                error = result.getExceptionMessage();
+            }
+            if (json.getOutputContext().inRoot()) {
+                json.writeStartObject();
+            } else {
+                json.writeEndArray();
+            }
+            json.writeStringField("cube", result == null ? null : result.getCube());
+            json.writeNumberField("affectedRowCount", 0);
+            json.writeBooleanField("isException", error != null);
+            json.writeStringField("exceptionMessage", error);
+            json.writeNumberField("duration", System.currentTimeMillis() - startTimestamp);
+            json.writeBooleanField("partial", result != null && result.isPartial());
+            json.writeNumberField("totalScanCount", result == null ? 0 : result.getTotalScanCount());
+            json.writeBooleanField("hitCache", false);
+            json.writeEndObject();
+        } finally {
+            // failed queries are logged and counted too
+            json.close();
+            logStreamedQuery(sqlRequest, result, error, rowCount[0], startTimestamp);
+        }
+    }
+
+    /**
+     * Writes the result as CSV while the query runs, see streamQuery(). The
+     * first CSV_BUFFER_ROWS rows are held back, so a query failing before
+     * that still gets an error status. A failure after that ends the file
+     * with a line starting with CSV_ERROR_MARKER, as the status is sent
+     * already.
+     */
     @RequestMapping(value = "/query/format/{format}", method = RequestMethod.GET)
     @ResponseBody
     @Timed(name = "downloadResult")
-    public void downloadQueryResult(@PathVariable String format, SQLRequest sqlRequest, HttpServletResponse response) {
-        SQLResponse result = doQuery(sqlRequest);
-        response.setContentType("text/" + format + ";charset=utf-8");
-        response.setHeader("Content-Disposition", "attachment; filename=\"result." + format + "\"");
-        ICsvListWriter csvWriter = null;
+    public void downloadQueryResult(@PathVariable final String format, SQLRequest sqlRequest, final HttpServletResponse response) {
+        long startTimestamp = System.currentTimeMillis();
+        checkQueryAllowed(sqlRequest);
+        final DeferredWriter out = new DeferredWriter();
+        final ICsvListWriter[] csvWriter = new ICsvListWriter[1];
+        final long[] rowCount = new long[1];
+        SQLResponse result = null;
+        String error = null;
 
         try {
-            csvWriter = new CsvListWriter(response.getWriter(), CsvPreference.STANDARD_PREFERENCE);
+            result = queryService.streamQuery(sqlRequest, new QueryService.ResultHandler() {
+                @Override
+                public void onStart(String cube, List<SelectedColumnMeta> columnMetas) throws Exception {
+                    checkQueryAuth(cube);
+                    csvWriter[0] = new CsvListWriter(out, CsvPreference.STANDARD_PREFERENCE);
 
-            List<String> headerList = new ArrayList<String>();
+                    List<String> headerList = new ArrayList<String>();
 
-            for (SelectedColumnMeta column : result.getColumnMetas()) {
-                headerList.add(column.getName());
-            }
+                    for (SelectedColumnMeta column : columnMetas) {
+                        headerList.add(column.getName());
+                    }
 
-            String[] headers = new String[headerList.size()];
-            csvWriter.writeHeader(headerList.toArray(headers));
+                    String[] headers = new String[headerList.size()];
+                    csvWriter[0].writeHeader(headerList.toArray(headers));
+                }
 
-            for (List<String> row : result.getResults()) {
-                csvWriter.write(row);
+                @Override
+                public void onRow(List<String> row) throws Exception {
+                    csvWriter[0].write(row);
+                    if (++rowCount[0] == CSV_BUFFER_ROWS)
+                        commitCsv(csvWriter[0], out, format, response);
+                }
+            });
+            if (result.getIsException())
+                throw new IllegalStateException(result.getExceptionMessage());
+            if (csvWriter[0] != null)
+                commitCsv(csvWriter[0], out, format, response);
+        } catch (AccessDeniedException ade) {
+            logger.error("Exception when execute sql", ade);
+            error = ade.getMessage();
+            throw new ForbiddenException(ade.getLocalizedMessage());
+        } catch (Throwable e) { // calcite may throw AssertError
+            logger.error("Exception when execute sql", e);
+            error = e.getMessage();
+            if (out.isCommitted() == false)
+                throw new InternalErrorException(QueryUtil.makeErrorMsgUserFriendly(e.getLocalizedMessage()));
+            try {
+                csvWriter[0].write(CSV_ERROR_MARKER, "Query failed after " + rowCount[0] + " rows: " + error);
+                csvWriter[0].flush();
+            } catch (IOException ioe) {
+                logger.error("Failed to write the error marker", ioe);
             }
-        } catch (IOException e) {
-            logger.error("", e);
         } finally {
-            IOUtils.closeQuietly(csvWriter);
+            IOUtils.closeQuietly(csvWriter[0]);
+            logStreamedQuery(sqlRequest, result, error, rowCount[0], startTimestamp);
         }
     }
 
+    private void commitCsv(ICsvListWriter csvWriter, DeferredWriter out, String format, HttpServletResponse response) throws IOException {
+        csvWriter.flush();
+        if (out.isCommitted())
+            return;
+        response.setContentType("text/" + format + ";charset=utf-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"result." + format + "\"");
+        out.commit(response.getWriter());
+    }
+
+    /**
+     * Logs a streamed query and counts it in the query metrics, like
+     * query() does.
+     */
+    private void logStreamedQuery(SQLRequest sqlRequest, SQLResponse result, String error, long rowCount, long startTimestamp) {
+        long endTimestamp = System.currentTimeMillis();
+        SQLResponse logged = new SQLResponse(null, null, result == null ? null : result.getCube(), 0, error != null, error, result != null && result.isPartial());
+        logged.setDuration(endTimestamp - startTimestamp);
+        if (result != null)
+            logged.setTotalScanCount(result.getTotalScanCount());
+        queryService.logQuery(sqlRequest, logged, rowCount, new Date(startTimestamp), new Date(endTimestamp));
+    }
+
     @RequestMapping(value = "/tables_and_columns", method = RequestMethod.GET)
     @ResponseBody
     public List<TableMeta> getMetadata(MetaRequest metaRequest) {
@@ -183,7 +330,7 @@ public class QueryController extends BasicController {
         }
     }
 
-    private SQLResponse doQuery(SQLRequest sqlRequest) {
+    private void checkQueryAllowed(SQLRequest sqlRequest) {
         String sql = sqlRequest.getSql();
         String project = sqlRequest.getProject();
         logger.info("Using project: " + project);
@@ -198,6 +345,10 @@ public class QueryController extends BasicController {
             logger.debug("Directly return expection as not supported");
             throw new InternalErrorException(QueryUtil.makeErrorMsgUserFriendly("Not Supported SQL."));
         }
+    }
+
+    private SQLResponse doQuery(SQLRequest sqlRequest) {
+        checkQueryAllowed(sqlRequest);
 
         SQLResponse sqlResponse = searchQueryInCache(sqlRequest);
         try {
@@ -247,12 +398,57 @@ public class QueryController extends BasicController {
     }
 
     private void checkQueryAuth(SQLResponse sqlResponse) throws AccessDeniedException {
-        if (!sqlResponse.getIsException() && KylinConfig.getInstanceFromEnv().isQuerySecureEnabled()) {
-            CubeInstance cubeInstance = this.queryService.getCubeManager().getCube(sqlResponse.getCube());
+        if (!sqlResponse.getIsException()) {
+            checkQueryAuth(sqlResponse.getCube());
+        }
+    }
+
+    private void checkQueryAuth(String cube) throws AccessDeniedException {
+        if (KylinConfig.getInstanceFromEnv().isQuerySecureEnabled()) {
+            CubeInstance cubeInstance = this.queryService.getCubeManager().getCube(cube);
             queryService.checkAuthorization(cubeInstance);
         }
     }
 
+    /**
+     * Holds what is written until commit(), then writes through to the
+     * target.
+     */
+    static class DeferredWriter extends Writer {
+        private StringBuilder buffer = new StringBuilder();
+        private Writer target;
+
+        boolean isCommitted() {
+            return target != null;
+        }
+
+        void commit(Writer target) throws IOException {
+            target.write(buffer.toString());
+            this.target = target;
+            this.buffer = null;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (target == null)
+                buffer.append(cbuf, off, len);
+            else
+                target.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (target != null)
+                target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (target != null)
+                target.close();
+        }
+    }
+
     public void setQueryService(QueryService queryService) {
         this.queryService = queryService;
     }
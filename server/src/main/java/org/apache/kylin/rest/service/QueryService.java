@@ -119,6 +119,56 @@ public class QueryService extends BasicService {
         return executeQuery(correctedSql, sqlRequest);
     }
 
+    /**
+     * Like query(), but rows are handed to the handler as the result set
+     * produces them instead of being collected. The returned response has no
+     * results.
+     */
+    public SQLResponse streamQuery(SQLRequest sqlRequest, ResultHandler handler) throws Exception {
+        SQLResponse fakeResponse = QueryUtil.tableauIntercept(sqlRequest.getSql());
+        if (null != fakeResponse) {
+            logger.debug("Return fake response, is exception? " + fakeResponse.getIsException());
+
+            if (fakeResponse.getIsException() == false) {
+                handler.onStart(fakeResponse.getCube(), fakeResponse.getColumnMetas());
+                for (List<String> row : fakeResponse.getResults()) {
+                    handler.onRow(row);
+                }
+            }
+            return fakeResponse;
+        }
+
+        String correctedSql = QueryUtil.healSickSql(sqlRequest.getSql());
+        if (correctedSql.equals(sqlRequest.getSql()) == false)
+            logger.debug("The corrected query: " + correctedSql);
+
+        return executeQuery(correctedSql, sqlRequest, handler);
+    }
+
+    /**
+     * Receives a query result row by row.
+     */
+    public interface ResultHandler {
+        /** called once the query is planned, before any row */
+        void onStart(String cube, List<SelectedColumnMeta> columnMetas) throws Exception;
+
+        /** the row list is reused, copy it to keep it */
+        void onRow(List<String> row) throws Exception;
+    }
+
+    private static class ResultCollector implements ResultHandler {
+        final List<List<String>> results = new ArrayList<List<String>>();
+
+        @Override
+        public void onStart(String cube, List<SelectedColumnMeta> columnMetas) {
+        }
+
+        @Override
+        public void onRow(List<String> row) {
+            results.add(new ArrayList<String>(row));
+        }
+    }
+
     public void saveQuery(final String creator, final Query query) throws IOException {
         List<Query> queries = getQueries(creator);
         queries.add(query);
@@ -196,6 +246,17 @@ public class QueryService extends BasicService {
     }
 
     public void logQuery(final SQLRequest request, final SQLResponse response, final Date startTime, final Date endTime) {
+        int resultRowCount = 0;
+        if (!response.getIsException() && response.getResults() != null) {
+            resultRowCount = response.getResults().size();
+        }
+        logQuery(request, response, resultRowCount, startTime, endTime);
+    }
+
+    /**
+     * For streamed results, whose rows are not held in the response.
+     */
+    public void logQuery(final SQLRequest request, final SQLResponse response, final long resultRowCount, final Date startTime, final Date endTime) {
         final String user = SecurityContextHolder.getContext().getAuthentication().getName();
         final Set<String> realizationNames = new HashSet<String>();
         final Set<Long> cuboidIds = new HashSet<Long>();
@@ -219,11 +280,6 @@ public class QueryService extends BasicService {
             }
         }
 
-        int resultRowCount = 0;
-        if (!response.getIsException() && response.getResults() != null) {
-            resultRowCount = response.getResults().size();
-        }
-
         QueryMetrics.getInstance().increase("duration", duration);
         QueryMetrics.getInstance().increase("totalScanCount", (float) totalScanCount);
         QueryMetrics.getInstance().increase("count", (float) 1);
@@ -255,6 +311,13 @@ public class QueryService extends BasicService {
     }
 
     protected SQLResponse executeQuery(String sql, SQLRequest sqlRequest) throws Exception {
+        ResultCollector collector = new ResultCollector();
+        SQLResponse response = executeQuery(sql, sqlRequest, collector);
+        response.setResults(collector.results);
+        return response;
+    }
+
+    protected SQLResponse executeQuery(String sql, SQLRequest sqlRequest, ResultHandler handler) throws Exception {
         sql = sql.trim().replace(";", "");
 
         int limit = sqlRequest.getLimit();
@@ -272,7 +335,7 @@ public class QueryService extends BasicService {
         parameters.put(OLAPContext.PRM_ACCEPT_PARTIAL_RESULT, String.valueOf(sqlRequest.isAcceptPartial()));
         OLAPContext.setParameters(parameters);
 
-        return execute(sql, sqlRequest);
+        return execute(sql, sqlRequest, handler);
     }
 
     protected List<TableMeta> getMetadata(CubeManager cubeMgr, String project, boolean cubedOnly) throws SQLException {
@@ -332,12 +395,11 @@ public class QueryService extends BasicService {
      * @return
      * @throws Exception
      */
-    private SQLResponse execute(String sql, SQLRequest sqlRequest) throws Exception {
+    private SQLResponse execute(String sql, SQLRequest sqlRequest, ResultHandler handler) throws Exception {
         Connection conn = null;
         Statement stat = null;
         ResultSet resultSet = null;
-        List<List<String>> results = new LinkedList<List<String>>();
-        List<SelectedColumnMeta> columnMetas = new LinkedList<SelectedColumnMeta>();
+        List<SelectedColumnMeta> columnMetas = new ArrayList<SelectedColumnMeta>();
 
         try {
             conn = getOLAPDataSource(sqlRequest.getProject()).getConnection();
@@ -363,15 +425,17 @@ public class QueryService extends BasicService {
                 columnMetas.add(new SelectedColumnMeta(metaData.isAutoIncrement(i), metaData.isCaseSensitive(i), metaData.isSearchable(i), metaData.isCurrency(i), metaData.isNullable(i), metaData.isSigned(i), metaData.getColumnDisplaySize(i), metaData.getColumnLabel(i), metaData.getColumnName(i), metaData.getSchemaName(i), metaData.getCatalogName(i), metaData.getTableName(i), metaData.getPrecision(i), metaData.getScale(i), metaData.getColumnType(i), metaData.getColumnTypeName(i), metaData.isReadOnly(i), metaData.isWritable(i), metaData.isDefinitelyWritable(i)));
             }
 
-            List<String> oneRow = new LinkedList<String>();
+            handler.onStart(getRealizationName(), columnMetas);
+
+            List<String> oneRow = new ArrayList<String>(columnCount);
 
-            // fill in results
+            // hand over results
             while (resultSet.next()) {
                 for (int i = 0; i < columnCount; i++) {
                     oneRow.add((resultSet.getString(i + 1)));
                 }
 
-                results.add(new LinkedList<String>(oneRow));
+                handler.onRow(oneRow);
                 oneRow.clear();
             }
         } finally {
@@ -389,12 +453,24 @@ public class QueryService extends BasicService {
             }
         }
 
-        SQLResponse response = new SQLResponse(columnMetas, results, cube, 0, false, null, isPartialResult);
+        SQLResponse response = new SQLResponse(columnMetas, null, cube, 0, false, null, isPartialResult);
         response.setTotalScanCount(totalScanCount);
 
         return response;
     }
 
+    // the realization answering the query, known once the query is planned
+    private String getRealizationName() {
+        String cube = "";
+        if (OLAPContext.getThreadLocalContexts() != null) {
+            for (OLAPContext ctx : OLAPContext.getThreadLocalContexts()) {
+                if (ctx.realization != null)
+                    cube = ctx.realization.getName();
+            }
+        }
+        return cube;
+    }
+
     /**
      * @param preparedState
      * @param param
@@ -18,8 +18,17 @@
 
 package org.apache.kylin.rest.controller;
 
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
 import net.sf.ehcache.CacheManager;
 
+import org.apache.kylin.rest.exception.InternalErrorException;
+import org.apache.kylin.rest.model.SelectedColumnMeta;
 import org.apache.kylin.rest.request.MetaRequest;
 import org.apache.kylin.rest.request.SQLRequest;
 import org.apache.kylin.rest.service.ServiceTestBase;
@@ -27,8 +36,10 @@ import org.apache.kylin.rest.util.QueryUtil;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 import org.apache.kylin.metadata.project.ProjectInstance;
+import org.apache.kylin.rest.response.SQLResponse;
 import org.apache.kylin.rest.service.QueryService;
 
 /**
@@ -59,6 +70,137 @@ public class QueryControllerTest extends ServiceTestBase {
         queryController.query(sqlRequest);
     }
 
+    @Test
+    public void testStreamQueryException() throws Exception {
+        SQLRequest sqlRequest = new SQLRequest();
+        sqlRequest.setSql("select * from not_exist_table");
+        sqlRequest.setProject("default");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            queryController.streamQuery(sqlRequest, response);
+            fail("the query should fail");
+        } catch (InternalErrorException e) {
+            assertTrue(e.getMessage(), e.getMessage().toUpperCase().contains("NOT_EXIST_TABLE"));
+        }
+        // nothing is sent before the query fails, the error gets its own status
+        assertEquals("", response.getContentAsString());
+    }
+
+    @Test
+    public void testStreamQueryFailureAfterRows() throws Exception {
+        queryController.setQueryService(new FailingQueryService(3));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        queryController.streamQuery(newSQLRequest(), response);
+
+        String json = response.getContentAsString();
+        assertTrue(json, json.contains("[\"2\"]"));
+        assertTrue(json, json.contains("\"isException\":true"));
+        assertTrue(json, json.contains("\"exceptionMessage\":\"storage failed\""));
+    }
+
+    @Test
+    public void testStreamQueryFailureIsLogged() throws Exception {
+        final List<SQLResponse> logged = new ArrayList<SQLResponse>();
+        queryController.setQueryService(new FailingQueryService(0) {
+            @Override
+            public SQLResponse streamQuery(SQLRequest sqlRequest, ResultHandler handler) throws Exception {
+                throw new IllegalStateException("planning failed");
+            }
+
+            @Override
+            public void logQuery(SQLRequest request, SQLResponse response, long resultRowCount, Date startTime, Date endTime) {
+                logged.add(response);
+            }
+        });
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            queryController.streamQuery(newSQLRequest(), response);
+            fail("the query should fail");
+        } catch (InternalErrorException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("planning failed"));
+        }
+        assertEquals("", response.getContentAsString());
+        assertEquals(1, logged.size());
+        assertTrue(logged.get(0).getIsException());
+        assertEquals("planning failed", logged.get(0).getExceptionMessage());
+    }
+
+    @Test
+    public void testDownloadQueryResultException() throws Exception {
+        // fails before the buffered rows are sent
+        queryController.setQueryService(new FailingQueryService(3));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            queryController.downloadQueryResult("csv", newSQLRequest(), response);
+            fail("the query should fail");
+        } catch (InternalErrorException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("storage failed"));
+        }
+        assertEquals("", response.getContentAsString());
+        assertNull(response.getHeader("Content-Disposition"));
+    }
+
+    @Test
+    public void testDownloadQueryResultFailureAfterCommit() throws Exception {
+        int rows = QueryController.CSV_BUFFER_ROWS + 10;
+        queryController.setQueryService(new FailingQueryService(rows));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        queryController.downloadQueryResult("csv", newSQLRequest(), response);
+
+        String[] lines = response.getContentAsString().split("\r\n");
+        assertEquals("COL", lines[0]);
+        assertEquals(1 + rows + 1, lines.length);
+        assertEquals(String.valueOf(rows - 1), lines[rows]);
+        assertTrue(lines[rows + 1], lines[rows + 1].startsWith(QueryController.CSV_ERROR_MARKER + ","));
+        assertTrue(lines[rows + 1], lines[rows + 1].contains("storage failed"));
+    }
+
+    @Test
+    public void testDownloadQueryResult() throws Exception {
+        queryController.setQueryService(new FailingQueryService(-1));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        queryController.downloadQueryResult("csv", newSQLRequest(), response);
+
+        assertEquals("COL\r\n1\r\n2\r\n3\r\n", response.getContentAsString());
+        assertEquals("attachment; filename=\"result.csv\"", response.getHeader("Content-Disposition"));
+    }
+
+    private SQLRequest newSQLRequest() {
+        SQLRequest sqlRequest = new SQLRequest();
+        sqlRequest.setSql("select col from t");
+        sqlRequest.setProject("default");
+        return sqlRequest;
+    }
+
+    /**
+     * Streams rows 0, 1, 2, ... and fails after the given number of them, or
+     * returns 1, 2, 3 when failAfter is negative.
+     */
+    private static class FailingQueryService extends QueryService {
+        final int failAfter;
+
+        FailingQueryService(int failAfter) {
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public SQLResponse streamQuery(SQLRequest sqlRequest, ResultHandler handler) throws Exception {
+            List<SelectedColumnMeta> columnMetas = new ArrayList<SelectedColumnMeta>();
+            columnMetas.add(new SelectedColumnMeta(false, false, true, false, 2, true, 11, "COL", "COL", "", "", "", 10, 0, 4, "int4", false, true, false));
+            handler.onStart("test_kylin_cube_with_slr_ready", columnMetas);
+            if (failAfter < 0) {
+                for (int i = 1; i <= 3; i++) {
+                    handler.onRow(Arrays.asList(String.valueOf(i)));
+                }
+                return new SQLResponse(null, null, 0, false, null);
+            }
+            for (int i = 0; i < failAfter; i++) {
+                handler.onRow(Arrays.asList(String.valueOf(i)));
+            }
+            throw new IllegalStateException("storage failed");
+        }
+    }
+
     @Test
     public void testErrorMsg() {
         String errorMsg = "error while executing SQL \"select lkp.clsfd_ga_prfl_id, ga.sum_dt, sum(ga.bounces) as bounces, sum(ga.exits) as exits, sum(ga.entrances) as entrances, sum(ga.pageviews) as pageviews, count(distinct ga.GA_VSTR_ID, ga.GA_VST_ID) as visits, count(distinct ga.GA_VSTR_ID) as uniqVistors from CLSFD_GA_PGTYPE_CATEG_LOC ga left join clsfd_ga_prfl_lkp lkp on ga.SRC_GA_PRFL_ID = lkp.SRC_GA_PRFL_ID group by lkp.clsfd_ga_prfl_id,ga.sum_dt order by lkp.clsfd_ga_prfl_id,ga.sum_dt LIMIT 50000\": From line 14, column 14 to line 14, column 29: Column 'CLSFD_GA_PRFL_ID' not found in table 'LKP'";
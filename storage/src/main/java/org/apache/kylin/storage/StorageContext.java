@@ -52,6 +52,7 @@ public class StorageContext {
     private boolean exactAggregation;
     private boolean enableLimit;
     private boolean enableCoprocessor;
+    private String coprocessorEstimate;
 
     private long totalScanCount;
     private Cuboid cuboid;
@@ -190,4 +191,12 @@ public class StorageContext {
         return this.enableCoprocessor;
     }
 
+    public String getCoprocessorEstimate() {
+        return coprocessorEstimate;
+    }
+
+    public void setCoprocessorEstimate(String coprocessorEstimate) {
+        this.coprocessorEstimate = coprocessorEstimate;
+    }
+
 }
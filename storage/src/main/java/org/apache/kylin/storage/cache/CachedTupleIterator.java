@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.cache;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.apache.kylin.metadata.tuple.ITupleIterator;
+
+/**
+ * Replays the tuples of a segment from the SegmentResultCache.
+ */
+public class CachedTupleIterator implements ITupleIterator {
+
+    private final Iterator<ITuple> iterator;
+
+    public CachedTupleIterator(List<ITuple> tuples) {
+        this.iterator = tuples.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public ITuple next() {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
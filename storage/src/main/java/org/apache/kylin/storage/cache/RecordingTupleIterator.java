@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.kylin.cube.CubeSegment;
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.apache.kylin.metadata.tuple.ITupleIterator;
+import org.apache.kylin.storage.tuple.Tuple;
+
+/**
+ * Passes the tuples of a segment scan through and keeps a copy of each. The
+ * copies go into the SegmentResultCache only if the scan ran to its end, a
+ * scan stopped by limit or partial result is never cached. Recording is
+ * given up once the entry grows beyond the per entry row cap.
+ */
+public class RecordingTupleIterator implements ITupleIterator {
+
+    private final ITupleIterator delegate;
+    private final SegmentResultCache cache;
+    private final String digestKey;
+    private final CubeSegment segment;
+
+    private List<ITuple> recorded;
+    private boolean exhausted;
+
+    public RecordingTupleIterator(ITupleIterator delegate, SegmentResultCache cache, String digestKey, CubeSegment segment) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.digestKey = digestKey;
+        this.segment = segment;
+        this.recorded = new ArrayList<ITuple>();
+    }
+
+    @Override
+    public boolean hasNext() {
+        boolean hasNext = delegate.hasNext();
+        if (hasNext == false) {
+            exhausted = true;
+        }
+        return hasNext;
+    }
+
+    @Override
+    public ITuple next() {
+        ITuple t = delegate.next();
+        if (t == null) {
+            exhausted = true;
+        } else if (recorded != null) {
+            if (recorded.size() >= cache.getEntryMaxRows()) {
+                recorded = null;
+            } else {
+                // the delegate reuses one tuple per scan and one HLL counter per measure, makeCopy() clones both
+                recorded.add(((Tuple) t).makeCopy());
+            }
+        }
+        return t;
+    }
+
+    @Override
+    public void close() {
+        if (exhausted && recorded != null) {
+            cache.put(digestKey, segment, recorded);
+        }
+        recorded = null;
+        delegate.close();
+    }
+}
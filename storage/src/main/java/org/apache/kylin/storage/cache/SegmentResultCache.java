@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.cache;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.hll.HyperLogLogPlusCounter;
+import org.apache.kylin.cube.CubeInstance;
+import org.apache.kylin.cube.CubeSegment;
+import org.apache.kylin.metadata.filter.CompareTupleFilter;
+import org.apache.kylin.metadata.filter.DynamicTupleFilter;
+import org.apache.kylin.metadata.filter.LogicalTupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter;
+import org.apache.kylin.metadata.model.FunctionDesc;
+import org.apache.kylin.metadata.model.SegmentStatusEnum;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.metadata.realization.SQLDigest;
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.apache.kylin.storage.StorageContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Sets;
+
+/**
+ * Caches the tuples a query gets from each cube segment, keyed on the
+ * normalized SQLDigest and the segment uuid plus last build time. A rebuilt,
+ * refreshed or merged segment has a new signature and thus misses the cache;
+ * entries of segments that are no longer READY are dropped once the cube is
+ * seen with a new segment set. When a cube grows incrementally only the new
+ * segments are scanned.
+ * 
+ * The cache is off by default. It is bounded by the estimated bytes of the
+ * tuples held and evicts least recently used entries first.
+ */
+public class SegmentResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentResultCache.class);
+
+    static final int LIST_OVERHEAD_BYTES = 64;
+    static final int TUPLE_OVERHEAD_BYTES = 48; // tuple object and its values array
+    static final int REF_BYTES = 8;
+
+    // static cached instances
+    private static final ConcurrentHashMap<KylinConfig, SegmentResultCache> CACHE = new ConcurrentHashMap<KylinConfig, SegmentResultCache>();
+
+    public static SegmentResultCache getInstance(KylinConfig config) {
+        SegmentResultCache r = CACHE.get(config);
+        if (r != null) {
+            return r;
+        }
+
+        synchronized (SegmentResultCache.class) {
+            r = CACHE.get(config);
+            if (r != null) {
+                return r;
+            }
+            r = new SegmentResultCache(config.getQueryStorageCacheMaxBytes(), config.getQueryStorageCacheEntryMaxRows());
+            CACHE.put(config, r);
+            return r;
+        }
+    }
+
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    // ============================================================================
+
+    private final Cache<Key, List<ITuple>> cache;
+    private final int entryMaxRows;
+    // cube name ==> signatures of the READY segments last seen
+    private final ConcurrentHashMap<String, Set<String>> readySegments = new ConcurrentHashMap<String, Set<String>>();
+
+    public SegmentResultCache(long maxBytes, int entryMaxRows) {
+        this.entryMaxRows = entryMaxRows;
+        this.cache = CacheBuilder.newBuilder() //
+                .maximumWeight(maxBytes) //
+                .weigher(new Weigher<Key, List<ITuple>>() {
+                    @Override
+                    public int weigh(Key key, List<ITuple> value) {
+                        long bytes = key.estimateBytes() + estimateBytes(value);
+                        return (int) Math.min(Integer.MAX_VALUE, bytes);
+                    }
+                }) //
+                .recordStats() //
+                .build();
+    }
+
+    public List<ITuple> get(String digestKey, CubeSegment seg) {
+        return cache.getIfPresent(new Key(digestKey, seg));
+    }
+
+    public void put(String digestKey, CubeSegment seg, List<ITuple> tuples) {
+        if (tuples.size() > entryMaxRows)
+            return;
+        cache.put(new Key(digestKey, seg), tuples);
+    }
+
+    public int getEntryMaxRows() {
+        return entryMaxRows;
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Drops the entries of segments that are no longer READY in the given cube,
+     * e.g. after a merge or refresh was published.
+     */
+    public void syncReadySegments(CubeInstance cube) {
+        Set<String> current = Sets.newHashSet();
+        for (CubeSegment seg : cube.getSegments(SegmentStatusEnum.READY)) {
+            current.add(getSignature(seg));
+        }
+
+        Set<String> last = readySegments.put(cube.getName(), current);
+        if (last == null || last.equals(current))
+            return;
+
+        int n = 0;
+        for (Key key : cache.asMap().keySet()) {
+            if (key.cubeName.equals(cube.getName()) && current.contains(key.segmentSignature) == false) {
+                cache.invalidate(key);
+                n++;
+            }
+        }
+        logger.info("Segments of cube " + cube.getName() + " changed, " + n + " cached segment results dropped");
+    }
+
+    /**
+     * Rough heap bytes of the tuples, the tuple info shared by all tuples is
+     * not counted.
+     */
+    static long estimateBytes(List<ITuple> tuples) {
+        long bytes = LIST_OVERHEAD_BYTES;
+        for (ITuple tuple : tuples) {
+            bytes += TUPLE_OVERHEAD_BYTES;
+            for (Object value : tuple.getAllValues()) {
+                bytes += REF_BYTES + estimateValueBytes(value);
+            }
+        }
+        return bytes;
+    }
+
+    static int estimateValueBytes(Object value) {
+        if (value == null)
+            return 0;
+        if (value instanceof String)
+            return 40 + 2 * ((String) value).length();
+        if (value instanceof BigDecimal)
+            return 40 + ((BigDecimal) value).unscaledValue().bitLength() / 8;
+        if (value instanceof Number || value instanceof Boolean)
+            return 16;
+        if (value instanceof Date)
+            return 24;
+        if (value instanceof HyperLogLogPlusCounter)
+            return 16 + ((HyperLogLogPlusCounter) value).getMemBytes();
+        return 64;
+    }
+
+    static String getSignature(CubeSegment seg) {
+        return seg.getUuid() + "@" + seg.getLastBuildTime();
+    }
+
+    /**
+     * A canonical form of the digest and the context settings that shape the
+     * tuples; collections are sorted so equal queries give equal keys.
+     * 
+     * @return null if the query must not be cached, e.g. it has unbound variables
+     */
+    public static String makeDigestKey(SQLDigest digest, StorageContext context) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(digest.factTable);
+        buf.append("|columns=").append(sortedColumns(digest.allColumns));
+        buf.append("|groupby=").append(sortedColumns(digest.groupbyColumns));
+        buf.append("|filtercols=").append(sortedColumns(digest.filterColumns));
+        buf.append("|metrics=").append(sortedColumns(digest.metricColumns));
+
+        TreeSet<String> aggrs = new TreeSet<String>();
+        if (digest.aggregations != null) {
+            for (FunctionDesc func : digest.aggregations) {
+                aggrs.add(func.getFullExpression() + ":" + func.getReturnType());
+            }
+        }
+        buf.append("|aggrs=").append(aggrs);
+
+        buf.append("|filter=");
+        if (appendFilter(digest.filter, buf) == false)
+            return null;
+
+        TreeSet<String> aliases = new TreeSet<String>();
+        for (Map.Entry<TblColRef, String> entry : context.getAliasMap().entrySet()) {
+            aliases.add(entry.getKey().getCanonicalName() + "=" + entry.getValue());
+        }
+        buf.append("|alias=").append(aliases);
+        return buf.toString();
+    }
+
+    private static TreeSet<String> sortedColumns(Collection<TblColRef> columns) {
+        TreeSet<String> result = new TreeSet<String>();
+        if (columns != null) {
+            for (TblColRef col : columns) {
+                result.add(col.getCanonicalName());
+            }
+        }
+        return result;
+    }
+
+    private static TreeSet<String> sortedValues(Collection<String> values) {
+        TreeSet<String> result = new TreeSet<String>();
+        for (String value : values) {
+            result.add(String.valueOf(value));
+        }
+        return result;
+    }
+
+    private static boolean appendFilter(TupleFilter filter, StringBuilder buf) {
+        if (filter == null) {
+            buf.append("null");
+            return true;
+        }
+        if (filter instanceof DynamicTupleFilter) {
+            return false;
+        }
+
+        if (filter instanceof CompareTupleFilter) {
+            CompareTupleFilter compf = (CompareTupleFilter) filter;
+            if (compf.getColumn() != null) {
+                TblColRef col = compf.getColumn();
+                buf.append(filter.getOperator()).append("(").append(col.getCanonicalName()).append(",").append(sortedValues(compf.getValues())).append(")");
+                return compf.getVariables().isEmpty() || compf.getValues().isEmpty() == false;
+            }
+        } else if (filter instanceof LogicalTupleFilter) {
+            // children of AND / OR are order free
+            TreeSet<String> children = new TreeSet<String>();
+            for (TupleFilter child : filter.getChildren()) {
+                StringBuilder childBuf = new StringBuilder();
+                if (appendFilter(child, childBuf) == false)
+                    return false;
+                children.add(childBuf.toString());
+            }
+            buf.append(filter.getOperator()).append(children);
+            return true;
+        }
+
+        buf.append(filter.getOperator()).append("[");
+        for (TupleFilter child : filter.getChildren()) {
+            if (appendFilter(child, buf) == false)
+                return false;
+            buf.append(",");
+        }
+        buf.append(filter.toString()).append("]");
+        return true;
+    }
+
+    private static class Key {
+        final String digestKey;
+        final String cubeName;
+        final String segmentSignature;
+
+        Key(String digestKey, CubeSegment seg) {
+            this.digestKey = digestKey;
+            this.cubeName = seg.getCubeInstance().getName();
+            this.segmentSignature = getSignature(seg);
+        }
+
+        long estimateBytes() {
+            return 3 * 40 + 2 * (digestKey.length() + cubeName.length() + segmentSignature.length());
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + digestKey.hashCode();
+            result = prime * result + cubeName.hashCode();
+            result = prime * result + segmentSignature.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            return digestKey.equals(other.digestKey) && cubeName.equals(other.cubeName) && segmentSignature.equals(other.segmentSignature);
+        }
+    }
+}
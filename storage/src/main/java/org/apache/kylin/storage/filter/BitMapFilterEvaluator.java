@@ -18,16 +18,16 @@
 
 package org.apache.kylin.storage.filter;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.kylin.dict.Dictionary;
+import org.apache.kylin.invertedindex.index.BitMap;
 import org.apache.kylin.metadata.filter.CompareTupleFilter;
 import org.apache.kylin.metadata.filter.LogicalTupleFilter;
 import org.apache.kylin.metadata.filter.TupleFilter;
 import org.apache.kylin.metadata.model.TblColRef;
 
-import it.uniroma3.mat.extendedset.intset.ConciseSet;
-
 /**
  * @author yangli9
  *
@@ -39,7 +39,10 @@ public class BitMapFilterEvaluator {
     public static interface BitMapProvider {
 
         /** return records whose specified column having specified value */
-        ConciseSet getBitMap(TblColRef col, Integer startId, Integer endId);
+        BitMap getBitMap(TblColRef col, Integer startId, Integer endId);
+
+        /** return an empty bitmap, of the same format as getBitMap() */
+        BitMap newBitMap();
 
         /** return the size of the group */
         int getRecordCount();
@@ -58,7 +61,7 @@ public class BitMapFilterEvaluator {
      * @param filter
      * @return a set of records that match the filter; or null if filter is null or unable to evaluate
      */
-    public ConciseSet evaluate(TupleFilter filter) {
+    public BitMap evaluate(TupleFilter filter) {
         if (filter == null)
             return null;
 
@@ -71,7 +74,7 @@ public class BitMapFilterEvaluator {
         return null; // unable to evaluate
     }
 
-    private ConciseSet evalCompare(CompareTupleFilter filter) {
+    private BitMap evalCompare(CompareTupleFilter filter) {
         switch (filter.getOperator()) {
         case ISNULL:
             return evalCompareIsNull(filter);
@@ -98,86 +101,87 @@ public class BitMapFilterEvaluator {
         }
     }
 
-    private ConciseSet evalCompareLT(CompareTupleFilter filter) {
+    private BitMap evalCompareLT(CompareTupleFilter filter) {
         int id = Dictionary.stringToDictId(filter.getFirstValue());
         return collectRange(filter.getColumn(), null, id - 1);
     }
 
-    private ConciseSet evalCompareLTE(CompareTupleFilter filter) {
+    private BitMap evalCompareLTE(CompareTupleFilter filter) {
         int id = Dictionary.stringToDictId(filter.getFirstValue());
         return collectRange(filter.getColumn(), null, id);
     }
 
-    private ConciseSet evalCompareGT(CompareTupleFilter filter) {
+    private BitMap evalCompareGT(CompareTupleFilter filter) {
         int id = Dictionary.stringToDictId(filter.getFirstValue());
         return collectRange(filter.getColumn(), id + 1, null);
     }
 
-    private ConciseSet evalCompareGTE(CompareTupleFilter filter) {
+    private BitMap evalCompareGTE(CompareTupleFilter filter) {
         int id = Dictionary.stringToDictId(filter.getFirstValue());
         return collectRange(filter.getColumn(), id, null);
     }
 
-    private ConciseSet collectRange(TblColRef column, Integer startId, Integer endId) {
+    private BitMap collectRange(TblColRef column, Integer startId, Integer endId) {
         return provider.getBitMap(column, startId, endId);
     }
 
-    private ConciseSet evalCompareEqual(CompareTupleFilter filter) {
+    private BitMap evalCompareEqual(CompareTupleFilter filter) {
         int id = Dictionary.stringToDictId(filter.getFirstValue());
-        ConciseSet bitMap = provider.getBitMap(filter.getColumn(), id, id);
+        BitMap bitMap = provider.getBitMap(filter.getColumn(), id, id);
         if (bitMap == null)
             return null;
         return bitMap.clone(); // NOTE the clone() to void messing provider's cache
     }
 
-    private ConciseSet evalCompareNotEqual(CompareTupleFilter filter) {
-        ConciseSet set = evalCompareEqual(filter);
+    private BitMap evalCompareNotEqual(CompareTupleFilter filter) {
+        BitMap set = evalCompareEqual(filter);
         not(set);
         dropNull(set, filter);
         return set;
     }
 
-    private ConciseSet evalCompareIn(CompareTupleFilter filter) {
-        ConciseSet set = new ConciseSet();
+    private BitMap evalCompareIn(CompareTupleFilter filter) {
+        List<BitMap> bitMaps = new ArrayList<BitMap>();
         for (String value : filter.getValues()) {
             int id = Dictionary.stringToDictId(value);
-            ConciseSet bitMap = provider.getBitMap(filter.getColumn(), id, id);
+            BitMap bitMap = provider.getBitMap(filter.getColumn(), id, id);
             if (bitMap == null)
                 return null;
-            set.addAll(bitMap);
+            bitMaps.add(bitMap);
         }
-        return set;
+        // union all at once, instead of one by one
+        return provider.newBitMap().getFormat().union(bitMaps);
     }
 
-    private ConciseSet evalCompareNotIn(CompareTupleFilter filter) {
-        ConciseSet set = evalCompareIn(filter);
+    private BitMap evalCompareNotIn(CompareTupleFilter filter) {
+        BitMap set = evalCompareIn(filter);
         not(set);
         dropNull(set, filter);
         return set;
     }
 
-    private void dropNull(ConciseSet set, CompareTupleFilter filter) {
+    private void dropNull(BitMap set, CompareTupleFilter filter) {
         if (set == null)
             return;
 
-        ConciseSet nullSet = evalCompareIsNull(filter);
-        set.removeAll(nullSet);
+        BitMap nullSet = evalCompareIsNull(filter);
+        set.andNot(nullSet);
     }
 
-    private ConciseSet evalCompareIsNull(CompareTupleFilter filter) {
-        ConciseSet bitMap = provider.getBitMap(filter.getColumn(), null, null);
+    private BitMap evalCompareIsNull(CompareTupleFilter filter) {
+        BitMap bitMap = provider.getBitMap(filter.getColumn(), null, null);
         if (bitMap == null)
             return null;
         return bitMap.clone(); // NOTE the clone() to void messing provider's cache
     }
 
-    private ConciseSet evalCompareIsNotNull(CompareTupleFilter filter) {
-        ConciseSet set = evalCompareIsNull(filter);
+    private BitMap evalCompareIsNotNull(CompareTupleFilter filter) {
+        BitMap set = evalCompareIsNull(filter);
         not(set);
         return set;
     }
 
-    private ConciseSet evalLogical(LogicalTupleFilter filter) {
+    private BitMap evalLogical(LogicalTupleFilter filter) {
         List<? extends TupleFilter> children = filter.getChildren();
 
         switch (filter.getOperator()) {
@@ -192,51 +196,43 @@ public class BitMapFilterEvaluator {
         }
     }
 
-    private ConciseSet evalLogicalAnd(List<? extends TupleFilter> children) {
-        ConciseSet set = new ConciseSet();
+    private BitMap evalLogicalAnd(List<? extends TupleFilter> children) {
+        BitMap set = provider.newBitMap();
         not(set);
 
         for (TupleFilter c : children) {
-            ConciseSet t = evaluate(c);
+            BitMap t = evaluate(c);
             if (t == null)
                 continue; // because it's AND
 
-            set.retainAll(t);
+            set.and(t);
         }
         return set;
     }
 
-    private ConciseSet evalLogicalOr(List<? extends TupleFilter> children) {
-        ConciseSet set = new ConciseSet();
+    private BitMap evalLogicalOr(List<? extends TupleFilter> children) {
+        BitMap set = provider.newBitMap();
 
         for (TupleFilter c : children) {
-            ConciseSet t = evaluate(c);
+            BitMap t = evaluate(c);
             if (t == null)
                 return null; // because it's OR
 
-            set.addAll(t);
+            set.or(t);
         }
         return set;
     }
 
-    private ConciseSet evalLogicalNot(List<? extends TupleFilter> children) {
-        ConciseSet set = evaluate(children.get(0));
+    private BitMap evalLogicalNot(List<? extends TupleFilter> children) {
+        BitMap set = evaluate(children.get(0));
         not(set);
         return set;
     }
 
-    private void not(ConciseSet set) {
+    private void not(BitMap set) {
         if (set == null)
             return;
 
-        set.add(provider.getRecordCount());
-        set.complement();
-    }
-
-    public static void main(String[] args) {
-        ConciseSet s = new ConciseSet();
-        s.add(5);
-        s.complement();
-        System.out.println(s);
+        set.complement(provider.getRecordCount());
     }
 }
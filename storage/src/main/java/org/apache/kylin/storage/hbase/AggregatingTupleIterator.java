@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.kylin.cube.kv.RowValueDecoder;
+import org.apache.kylin.metadata.measure.HLLCAggregator;
+import org.apache.kylin.metadata.measure.MeasureAggregator;
+import org.apache.kylin.metadata.model.FunctionDesc;
+import org.apache.kylin.metadata.model.MeasureDesc;
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.apache.kylin.metadata.tuple.ITupleIterator;
+import org.apache.kylin.storage.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Pre-aggregates the tuples of a non exact aggregation on the query server,
+ * so rows of a finer cuboid are merged before they reach the SQL engine.
+ * 
+ * Tuples are grouped on all their dimension fields, not only the group by
+ * columns, since the SQL engine may still filter on the others. Measures are
+ * merged with the MeasureAggregators they were built with. The input is
+ * drained on the first call of hasNext().
+ * 
+ * Groups are held in heap, at most maxGroups of them. Once the budget is hit
+ * the groups so far are returned and the rest of the input is passed through
+ * unaggregated, leaving the merge to the SQL engine as without this iterator.
+ */
+public class AggregatingTupleIterator implements ITupleIterator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregatingTupleIterator.class);
+
+    private final ITupleIterator input;
+    private final Map<String, FunctionDesc> measureFunctions; // tuple field ==> function
+    private final int maxGroups;
+
+    private Iterator<Tuple> output;
+    private Tuple overflowTuple; // the first tuple not aggregated, if the budget was hit
+    private boolean passThrough;
+
+    public AggregatingTupleIterator(ITupleIterator input, Collection<RowValueDecoder> rowValueDecoders, int maxGroups) {
+        this.input = input;
+        this.measureFunctions = getMeasureFunctions(rowValueDecoders);
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * @return true if all measures can be merged with their MeasureAggregator
+     */
+    public static boolean isSupported(Collection<RowValueDecoder> rowValueDecoders) {
+        for (FunctionDesc func : getMeasureFunctions(rowValueDecoders).values()) {
+            String returnType = func.getReturnType();
+            if (func.isCountDistinct()) {
+                if (func.isHolisticCountDistinct() || (MeasureAggregator.create(func.getExpression(), returnType) instanceof HLLCAggregator) == false)
+                    return false;
+            } else if (MeasureAggregator.isInteger(returnType) == false && MeasureAggregator.isDouble(returnType) == false && MeasureAggregator.isBigDecimal(returnType) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, FunctionDesc> getMeasureFunctions(Collection<RowValueDecoder> rowValueDecoders) {
+        Map<String, FunctionDesc> result = Maps.newHashMap();
+        for (RowValueDecoder decoder : rowValueDecoders) {
+            List<String> names = decoder.getNames();
+            MeasureDesc[] measures = decoder.getMeasures();
+            for (int i = decoder.getProjectionIndex().nextSetBit(0); i >= 0; i = decoder.getProjectionIndex().nextSetBit(i + 1)) {
+                result.put(names.get(i), measures[i].getFunction());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (output == null) {
+            output = aggregate();
+        }
+        if (output.hasNext() || overflowTuple != null) {
+            return true;
+        }
+        return passThrough && input.hasNext();
+    }
+
+    @Override
+    public ITuple next() {
+        if (hasNext() == false) {
+            return null;
+        }
+        if (output.hasNext()) {
+            return output.next();
+        }
+        if (overflowTuple != null) {
+            Tuple r = overflowTuple;
+            overflowTuple = null;
+            return r;
+        }
+        return input.next();
+    }
+
+    @Override
+    public void close() {
+        input.close();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private Iterator<Tuple> aggregate() {
+        LinkedHashMap<List<Object>, Group> groups = new LinkedHashMap<List<Object>, Group>();
+        int[] dimensionIndexes = null;
+        int[] measureIndexes = null;
+        String[] returnTypes = null;
+        String[] funcNames = null;
+        long inputRows = 0;
+
+        while (input.hasNext()) {
+            Tuple tuple = (Tuple) input.next();
+            if (tuple == null)
+                break;
+            inputRows++;
+
+            if (dimensionIndexes == null) {
+                List<String> fields = tuple.getAllFields();
+                List<Integer> dims = new ArrayList<Integer>();
+                List<Integer> meas = new ArrayList<Integer>();
+                for (int i = 0; i < fields.size(); i++) {
+                    if (measureFunctions.containsKey(fields.get(i)))
+                        meas.add(i);
+                    else if (tuple.getAllColumns().get(i) != null)
+                        dims.add(i);
+                }
+                dimensionIndexes = toArray(dims);
+                measureIndexes = toArray(meas);
+                returnTypes = new String[measureIndexes.length];
+                funcNames = new String[measureIndexes.length];
+                for (int i = 0; i < measureIndexes.length; i++) {
+                    FunctionDesc func = measureFunctions.get(fields.get(measureIndexes[i]));
+                    returnTypes[i] = func.getReturnType();
+                    funcNames[i] = func.getExpression();
+                }
+            }
+
+            Object[] values = tuple.getAllValues();
+            List<Object> key = new ArrayList<Object>(dimensionIndexes.length);
+            for (int index : dimensionIndexes) {
+                key.add(values[index]);
+            }
+
+            Group group = groups.get(key);
+            if (group == null) {
+                if (groups.size() >= maxGroups) {
+                    logger.info("Pre-aggregation hit " + maxGroups + " groups, pass the rest of the tuples through");
+                    inputRows--;
+                    overflowTuple = tuple;
+                    passThrough = true;
+                    break;
+                }
+                MeasureAggregator[] aggrs = new MeasureAggregator[measureIndexes.length];
+                for (int i = 0; i < aggrs.length; i++) {
+                    aggrs[i] = MeasureAggregator.create(funcNames[i], returnTypes[i]);
+                }
+                group = new Group(tuple.makeCopy(), aggrs);
+                groups.put(key, group);
+            }
+            for (int i = 0; i < measureIndexes.length; i++) {
+                Object value = values[measureIndexes[i]];
+                if (value != null) {
+                    group.aggrs[i].aggregate(toAggregatorInput(value, returnTypes[i]));
+                }
+            }
+        }
+
+        List<Tuple> result = new ArrayList<Tuple>(groups.size());
+        for (Group group : groups.values()) {
+            for (int i = 0; i < measureIndexes.length; i++) {
+                Object state = group.aggrs[i].getState();
+                if (state != null) {
+                    group.tuple.setMeasureValue(measureIndexes[i], toJavaObject(state));
+                }
+            }
+            result.add(group.tuple);
+        }
+        logger.info("Pre-aggregated " + inputRows + " tuples into " + result.size());
+        return result.iterator();
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    // the reverse of what RowValueDecoder and Tuple did to the aggregator state
+    private static Object toAggregatorInput(Object value, String returnType) {
+        if (MeasureAggregator.isInteger(returnType))
+            return new LongWritable(((Number) value).longValue());
+        if (MeasureAggregator.isDouble(returnType))
+            return new DoubleWritable(((Number) value).doubleValue());
+        if (MeasureAggregator.isBigDecimal(returnType))
+            return value instanceof BigDecimal ? value : new BigDecimal(value.toString());
+        return value;
+    }
+
+    private static Object toJavaObject(Object state) {
+        if (state instanceof LongWritable)
+            return ((LongWritable) state).get();
+        if (state instanceof DoubleWritable)
+            return ((DoubleWritable) state).get();
+        return state;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static class Group {
+        final Tuple tuple;
+        final MeasureAggregator[] aggrs;
+
+        Group(Tuple tuple, MeasureAggregator[] aggrs) {
+            this.tuple = tuple;
+            this.aggrs = aggrs;
+        }
+    }
+}
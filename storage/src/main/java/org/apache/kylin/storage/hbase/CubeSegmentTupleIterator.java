@@ -28,8 +28,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.apache.kylin.storage.hbase.coprocessor.CompiledFilter;
+import org.apache.kylin.storage.hbase.coprocessor.CoprocessorFilter;
+import org.apache.kylin.storage.hbase.coprocessor.CoprocessorRowType;
+import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverCostModel;
 import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverEnabler;
 
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.client.HConnection;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Result;
@@ -47,8 +52,11 @@ import org.apache.kylin.storage.tuple.TupleInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.common.persistence.StorageException;
 import org.apache.kylin.common.util.Array;
+import org.apache.kylin.common.util.BytesUtil;
+import org.apache.kylin.common.util.SplittedBytes;
 import org.apache.kylin.cube.CubeInstance;
 import org.apache.kylin.cube.CubeManager;
 import org.apache.kylin.cube.CubeSegment;
@@ -58,12 +66,15 @@ import org.apache.kylin.cube.kv.RowValueDecoder;
 import org.apache.kylin.cube.model.HBaseColumnDesc;
 import org.apache.kylin.metadata.model.MeasureDesc;
 import org.apache.kylin.cube.model.CubeDesc.DeriveInfo;
+import org.apache.kylin.dict.Dictionary;
 import org.apache.kylin.metadata.model.TblColRef;
 import org.apache.kylin.metadata.filter.TupleFilter;
 import org.apache.kylin.metadata.tuple.ITupleIterator;
 import org.apache.kylin.storage.tuple.Tuple;
 import org.apache.kylin.storage.tuple.Tuple.IDerivedColumnFiller;
 
+import com.google.common.collect.Maps;
+
 /**
  * @author xjiang
  * 
@@ -72,7 +83,11 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
 
     public static final Logger logger = LoggerFactory.getLogger(CubeSegmentTupleIterator.class);
 
-    public static final int SCAN_CACHE = 1024;
+    public static final int SCAN_CACHE = 1024; // when the rows of a range are unknown
+    public static final int MIN_SCAN_CACHE = 2;
+    public static final int MAX_SCAN_CACHE = 8192;
+    public static final int CELL_OVERHEAD_BYTES = 32; // key value lengths, timestamp, type, family and qualifier
+    public static final int MAX_CACHED_DICT_IDS = 65536; // per column, dictionaries beyond get a bounded LRU cache
 
     private final CubeInstance cube;
     private final CubeSegment cubeSeg;
@@ -85,14 +100,29 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
     private final HTableInterface table;
     private final RowKeyDecoder rowKeyDecoder;
     private final Iterator<HBaseKeyRange> rangeIterator;
+    // family and qualifier of each value decoder, encoded once instead of per row
+    private final byte[][] valueFamilies;
+    private final byte[][] valueQualifiers;
+    private final int valueBytesEstimate;
+    private final ObserverCostModel costModel;
+    // converted dimension values by dictionary ID, shared by all ranges of the segment
+    private final Map<TblColRef, DictValueCache> dictValueCaches = Maps.newHashMap();
 
     private Scan scan;
     private ResultScanner scanner;
     private Iterator<Result> resultIterator;
+    private Result nextResult;
     private TupleInfo tupleInfo;
     private Tuple tuple;
     private int scanCount;
 
+    // per row key column of the current cuboid, resolved once per range
+    private int[] dimensionIndexes; // tuple field, -1 if not returned
+    private DictValueCache[] rangeDictValueCaches; // null if the column has no dictionary
+    private int[][] measureIndexes; // per value decoder, tuple field of each measure
+    private CoprocessorFilter rowFilterSource; // filter translated to dictionary IDs, made on first use
+    private CompiledFilter rowFilter; // skips rows before decoding, when no coprocessor does it
+
     public CubeSegmentTupleIterator(CubeSegment cubeSeg, Collection<HBaseKeyRange> keyRanges, HConnection conn, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context) {
         this.cube = cubeSeg.getCubeInstance();
         this.cubeSeg = cubeSeg;
@@ -105,6 +135,18 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
         this.rowKeyDecoder = new RowKeyDecoder(this.cubeSeg);
         this.scanCount = 0;
 
+        this.valueFamilies = new byte[rowValueDecoders.size()][];
+        this.valueQualifiers = new byte[rowValueDecoders.size()][];
+        int i = 0;
+        for (RowValueDecoder valueDecoder : rowValueDecoders) {
+            HBaseColumnDesc hbaseColumn = valueDecoder.getHBaseColumn();
+            valueFamilies[i] = Bytes.toBytes(hbaseColumn.getColumnFamilyName());
+            valueQualifiers[i] = Bytes.toBytes(hbaseColumn.getQualifier());
+            i++;
+        }
+        this.valueBytesEstimate = estimateValueBytes(rowValueDecoders);
+        this.costModel = new ObserverCostModel();
+
         try {
             this.table = conn.getTable(tableName);
         } catch (Throwable t) {
@@ -151,25 +193,35 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
 
     @Override
     public boolean hasNext() {
-        return rangeIterator.hasNext() || resultIterator.hasNext();
-    }
-
-    @Override
-    public Tuple next() {
-        // get next result from hbase
-        Result result = null;
-        while (hasNext()) {
+        // get next result from hbase, skip rows failing the row filter
+        while (nextResult == null) {
             if (resultIterator.hasNext()) {
-                result = this.resultIterator.next();
+                Result result = this.resultIterator.next();
                 scanCount++;
-                break;
-            } else {
+                if (rowFilter == null || evaluateRowFilter(result)) {
+                    nextResult = result;
+                }
+            } else if (rangeIterator.hasNext()) {
                 scanNextRange();
+            } else {
+                return false;
             }
         }
-        if (result == null) {
+        return true;
+    }
+
+    private boolean evaluateRowFilter(Result result) {
+        Cell rowCell = result.rawCells()[0];
+        return rowFilter.evaluate(rowCell.getRowArray(), rowCell.getRowOffset());
+    }
+
+    @Override
+    public Tuple next() {
+        if (hasNext() == false) {
             return null;
         }
+        Result result = nextResult;
+        nextResult = null;
         // translate result to tuple
         try {
             translateResult(result, this.tuple);
@@ -185,6 +237,8 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
             HBaseKeyRange keyRange = this.rangeIterator.next();
             this.tupleInfo = buildTupleInfo(keyRange.getCuboid());
             this.tuple = new Tuple(this.tupleInfo);
+            resolveFieldIndexes(keyRange.getCuboid());
+            this.rowFilter = compileRowFilter(keyRange.getCuboid());
 
             this.resultIterator = doScan(keyRange);
         } else {
@@ -192,6 +246,25 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
         }
     }
 
+    /**
+     * The coprocessor evaluates the filter on row keys at region server. Without
+     * it, the same loosened filter is compiled to skip rows here before they are
+     * decoded into tuples; the rows left are still checked by the query engine.
+     */
+    private CompiledFilter compileRowFilter(Cuboid cuboid) {
+        if (filter == null || context.isCoprocessorEnabled())
+            return null;
+
+        if (rowFilterSource == null) {
+            rowFilterSource = CoprocessorFilter.fromFilter(cubeSeg, filter);
+        }
+        CompiledFilter compiled = CompiledFilter.compile(rowFilterSource.getFilter(), CoprocessorRowType.fromCuboid(cubeSeg, cuboid));
+        if (compiled == null) {
+            logger.debug("Filter is not compilable, leave it to the query engine: " + rowFilterSource.getFilter());
+        }
+        return compiled;
+    }
+
     private final Iterator<Result> doScan(HBaseKeyRange keyRange) {
 
         Iterator<Result> iter = null;
@@ -238,20 +311,81 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
 
     private Scan buildScan(HBaseKeyRange keyRange) {
         Scan scan = new Scan();
-        scan.setCaching(SCAN_CACHE);
-        scan.setCacheBlocks(true);
+        applyScanSizing(scan, keyRange);
         scan.setAttribute(Scan.SCAN_ATTRIBUTES_METRICS_ENABLE, Bytes.toBytes(Boolean.TRUE));
-        for (RowValueDecoder valueDecoder : this.rowValueDecoders) {
-            HBaseColumnDesc hbaseColumn = valueDecoder.getHBaseColumn();
-            byte[] byteFamily = Bytes.toBytes(hbaseColumn.getColumnFamilyName());
-            byte[] byteQualifier = Bytes.toBytes(hbaseColumn.getQualifier());
-            scan.addColumn(byteFamily, byteQualifier);
+        for (int i = 0; i < valueFamilies.length; i++) {
+            scan.addColumn(valueFamilies[i], valueQualifiers[i]);
         }
         scan.setStartRow(keyRange.getStartKey());
         scan.setStopRow(keyRange.getStopKey());
         return scan;
     }
 
+    /**
+     * Caching, max result size and block cache use are picked per range. A
+     * batch holds the rows expected back (within the limit) and no more than
+     * the max result size. Ranges scanning many rows skip the block cache so
+     * they don't evict the hot blocks of other queries.
+     */
+    private void applyScanSizing(Scan scan, HBaseKeyRange keyRange) {
+        KylinConfig config = cube.getConfig();
+        long maxResultSize = config.getQueryScanMaxResultSize();
+        // every cell repeats the row key
+        int cells = Math.max(1, valueFamilies.length);
+        int rowBytes = (keyRange.getStartKey().length + CELL_OVERHEAD_BYTES) * cells + valueBytesEstimate;
+
+        ObserverCostModel.Estimate est = costModel.estimate(Collections.singletonList(keyRange), groupBy);
+        long rowsToScan = est.hasStats() ? est.getRowsToScan() : -1;
+        long rowsToReturn = -1;
+        if (est.hasStats()) {
+            rowsToReturn = context.isCoprocessorEnabled() ? est.getRowsToReturn() : rowsToScan;
+        }
+
+        int caching = getScanCaching(rowsToReturn, context, maxResultSize, rowBytes);
+        scan.setCaching(caching);
+        scan.setMaxResultSize(maxResultSize);
+
+        boolean cacheBlocks = isCacheBlocks(rowsToScan, config.getQueryScanCacheBlocksMaxRows());
+        scan.setCacheBlocks(cacheBlocks);
+
+        logger.info("Scan caching " + caching + ", max result size " + maxResultSize + ", cache blocks " + cacheBlocks + ", est. row bytes " + rowBytes + ", " + est);
+    }
+
+    /**
+     * @param rowsToReturn expected rows back from the range, -1 if unknown
+     */
+    static int getScanCaching(long rowsToReturn, StorageContext context, long maxResultSize, int rowBytes) {
+        if (context.isLimitEnabled()) {
+            rowsToReturn = rowsToReturn < 0 ? context.getLimit() : Math.min(rowsToReturn, context.getLimit());
+        }
+
+        long caching = rowsToReturn < 0 ? SCAN_CACHE : rowsToReturn + 1; // one more to see the end of the range
+        caching = Math.min(caching, maxResultSize / rowBytes);
+        return (int) Math.max(MIN_SCAN_CACHE, Math.min(MAX_SCAN_CACHE, caching));
+    }
+
+    /**
+     * @param rowsToScan expected rows scanned in the range, -1 if unknown
+     */
+    static boolean isCacheBlocks(long rowsToScan, long cacheBlocksMaxRows) {
+        return rowsToScan < 0 || rowsToScan <= cacheBlocksMaxRows;
+    }
+
+    private static int estimateValueBytes(Collection<RowValueDecoder> rowValueDecoders) {
+        int bytes = 0;
+        for (RowValueDecoder valueDecoder : rowValueDecoders) {
+            // the whole column comes back, not only the projected measures
+            for (MeasureDesc measure : valueDecoder.getMeasures()) {
+                try {
+                    bytes += measure.getFunction().getReturnDataType().getSpaceEstimate();
+                } catch (IllegalStateException e) {
+                    bytes += 8;
+                }
+            }
+        }
+        return bytes;
+    }
+
     private void applyFuzzyFilter(Scan scan, HBaseKeyRange keyRange) {
         List<Pair<byte[], byte[]>> fuzzyKeys = keyRange.getFuzzyKeys();
         if (fuzzyKeys != null && fuzzyKeys.size() > 0) {
@@ -322,19 +456,72 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
         return name;
     }
 
-    private void translateResult(Result res, Tuple tuple) throws IOException {
-        // groups
-        byte[] rowkey = res.getRow();
-        rowKeyDecoder.decode(rowkey);
-        List<TblColRef> columns = rowKeyDecoder.getColumns();
-        List<String> dimensionNames = rowKeyDecoder.getNames(context.getAliasMap());
-        List<String> dimensionValues = rowKeyDecoder.getValues();
-        for (int i = 0; i < dimensionNames.size(); i++) {
+    /**
+     * Resolves tuple fields by index for the cuboid, and picks the cache of
+     * converted values of each dictionary column, so repeated dimension values
+     * are neither decoded nor parsed again.
+     */
+    private void resolveFieldIndexes(Cuboid cuboid) {
+        List<TblColRef> columns = cuboid.getColumns();
+        dimensionIndexes = new int[columns.size()];
+        rangeDictValueCaches = new DictValueCache[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
             TblColRef column = columns.get(i);
-            if (!tuple.hasColumn(column)) {
+            if (tupleInfo.hasColumn(column) == false) {
+                dimensionIndexes[i] = -1;
                 continue;
             }
-            tuple.setDimensionValue(dimensionNames.get(i), dimensionValues.get(i));
+            dimensionIndexes[i] = tupleInfo.getColumnIndex(column);
+
+            DictValueCache cache = dictValueCaches.get(column);
+            if (cache == null) {
+                Dictionary<?> dict = cubeSeg.getDictionary(column);
+                if (dict == null)
+                    continue;
+                cache = new DictValueCache(dict.getMaxId(), MAX_CACHED_DICT_IDS);
+                dictValueCaches.put(column, cache);
+            }
+            rangeDictValueCaches[i] = cache;
+        }
+
+        measureIndexes = new int[rowValueDecoders.size()][];
+        int d = 0;
+        for (RowValueDecoder rowValueDecoder : rowValueDecoders) {
+            List<String> names = rowValueDecoder.getNames();
+            measureIndexes[d] = new int[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                measureIndexes[d][i] = tupleInfo.getFieldIndex(names.get(i));
+            }
+            d++;
+        }
+    }
+
+    private void translateResult(Result res, Tuple tuple) throws IOException {
+        // groups, decode straight from the cell array; columns are left as
+        // dictionary IDs till read, so unused columns are never decoded
+        Cell rowCell = res.rawCells()[0];
+        rowKeyDecoder.decodeLazily(rowCell.getRowArray(), rowCell.getRowOffset(), rowCell.getRowLength());
+        List<String> dimensionValues = rowKeyDecoder.getLazyValues();
+        SplittedBytes[] splits = rowKeyDecoder.getRowKeySplitter().getSplitBuffers();
+        for (int i = 0; i < dimensionIndexes.length; i++) {
+            int index = dimensionIndexes[i];
+            if (index < 0) {
+                continue;
+            }
+
+            DictValueCache cache = rangeDictValueCaches[i];
+            if (cache == null) {
+                tuple.setDimensionValue(index, dimensionValues.get(i));
+                continue;
+            }
+            SplittedBytes split = splits[i + 1]; // skip cuboid id part
+            int id = BytesUtil.readUnsigned(split.value, 0, split.length);
+            Object value = cache.get(id);
+            if (value == DictValueCache.MISS) {
+                value = tupleInfo.getCellType(index).convert(dimensionValues.get(i));
+                cache.put(id, value);
+            }
+            tuple.setConvertedValue(index, value);
         }
 
         // derived
@@ -343,18 +530,19 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
         }
 
         // aggregations
+        int valueIndex = 0;
         for (RowValueDecoder rowValueDecoder : this.rowValueDecoders) {
-            HBaseColumnDesc hbaseColumn = rowValueDecoder.getHBaseColumn();
-            String columnFamily = hbaseColumn.getColumnFamilyName();
-            String qualifier = hbaseColumn.getQualifier();
-            // FIXME: avoidable bytes array creation, why not use res.getValueAsByteBuffer directly?
-            byte[] valueBytes = res.getValue(Bytes.toBytes(columnFamily), Bytes.toBytes(qualifier));
-            rowValueDecoder.decode(valueBytes);
-            List<String> measureNames = rowValueDecoder.getNames();
+            Cell valueCell = res.getColumnLatestCell(valueFamilies[valueIndex], valueQualifiers[valueIndex]);
+            valueIndex++;
+            if (valueCell == null) {
+                throw new IllegalStateException("No value for " + rowValueDecoder.getHBaseColumn() + " in row " + Bytes.toStringBinary(res.getRow()));
+            }
+            rowValueDecoder.decode(valueCell.getValueArray(), valueCell.getValueOffset(), valueCell.getValueLength());
+            int[] fieldIndexes = measureIndexes[valueIndex - 1];
             Object[] measureValues = rowValueDecoder.getValues();
             BitSet projectionIndex = rowValueDecoder.getProjectionIndex();
             for (int i = projectionIndex.nextSetBit(0); i >= 0; i = projectionIndex.nextSetBit(i + 1)) {
-                tuple.setMeasureValue(measureNames.get(i), measureValues[i]);
+                tuple.setMeasureValue(fieldIndexes[i], measureValues[i]);
             }
         }
     }
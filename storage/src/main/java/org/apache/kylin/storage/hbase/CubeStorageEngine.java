@@ -25,6 +25,7 @@ import org.apache.kylin.metadata.model.MeasureDesc;
 import org.apache.kylin.metadata.model.SegmentStatusEnum;
 import org.apache.kylin.metadata.model.TblColRef;
 import org.apache.kylin.metadata.realization.SQLDigest;
+import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverCostModel;
 import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverEnabler;
 
 import org.apache.hadoop.hbase.client.HConnection;
@@ -41,6 +42,7 @@ import org.apache.kylin.common.persistence.HBaseConnection;
 import org.apache.kylin.cube.CubeInstance;
 import org.apache.kylin.cube.CubeManager;
 import org.apache.kylin.cube.CubeSegment;
+import org.apache.kylin.cube.SegmentColumnStats;
 import org.apache.kylin.cube.cuboid.Cuboid;
 import org.apache.kylin.cube.kv.RowValueDecoder;
 import org.apache.kylin.cube.model.CubeDesc;
@@ -49,6 +51,7 @@ import org.apache.kylin.cube.model.HBaseMappingDesc;
 import org.apache.kylin.cube.model.CubeDesc.DeriveInfo;
 import org.apache.kylin.dict.lookup.LookupStringTable;
 import org.apache.kylin.storage.IStorageEngine;
+import org.apache.kylin.storage.cache.SegmentResultCache;
 import org.apache.kylin.metadata.filter.ColumnTupleFilter;
 import org.apache.kylin.metadata.filter.CompareTupleFilter;
 import org.apache.kylin.metadata.filter.LogicalTupleFilter;
@@ -63,7 +66,7 @@ public class CubeStorageEngine implements IStorageEngine {
 
     private static final Logger logger = LoggerFactory.getLogger(CubeStorageEngine.class);
 
-    private static final int MERGE_KEYRANGE_THRESHOLD = 100;
+    static final int MERGE_KEYRANGE_THRESHOLD = 100;
     private static final long MEM_BUDGET_PER_QUERY = 3L * 1024 * 1024 * 1024; // 3G
 
     private final CubeInstance cubeInstance;
@@ -125,11 +128,24 @@ public class CubeStorageEngine implements IStorageEngine {
         List<RowValueDecoder> valueDecoders = translateAggregation(cubeDesc.getHBaseMapping(), metrics, context);
 
         setThreshold(dimensionsD, valueDecoders, context); // set cautious threshold to prevent out of memory
-        setCoprocessor(groupsCopD, valueDecoders, context); // enable coprocessor if beneficial
+        setCoprocessor(groupsCopD, valueDecoders, scans, context); // enable coprocessor if beneficial
         setLimit(filter, context);
 
+        // per segment results are cached by the normalized digest
+        String digestKey = null;
+        if (cubeInstance.getConfig().isQueryStorageCacheEnabled()) {
+            digestKey = SegmentResultCache.makeDigestKey(sqlDigest, context);
+        }
+
         HConnection conn = HBaseConnection.get(context.getConnUrl());
-        return new SerializedHBaseTupleIterator(conn, scans, cubeInstance, dimensionsD, filterD, groupsCopD, valueDecoders, context);
+        ITupleIterator iterator = new SerializedHBaseTupleIterator(conn, scans, cubeInstance, dimensionsD, filterD, groupsCopD, valueDecoders, context, digestKey);
+
+        // raw cuboid rows are merged here rather than row by row in the SQL engine
+        if (isExactAggregation == false && context.isCoprocessorEnabled() == false && cubeInstance.getConfig().isQueryStorageAggregationEnabled() && AggregatingTupleIterator.isSupported(valueDecoders)) {
+            logger.info("Pre-aggregate tuples in storage");
+            iterator = new AggregatingTupleIterator(iterator, valueDecoders, cubeInstance.getConfig().getQueryStorageAggregationMaxGroups());
+        }
+        return iterator;
     }
 
     private void buildDimensionsAndMetrics(Collection<TblColRef> dimensions, Collection<FunctionDesc> metrics, SQLDigest sqlDigest) {
@@ -391,6 +407,12 @@ public class CubeStorageEngine implements IStorageEngine {
                 continue;
             }
 
+            // drop the AND branches the segment's column stats cannot satisfy
+            if (pruneBySegmentStats(orAndDimRanges, cubeSeg)) {
+                logger.info("Skip segment " + cubeSeg.getName() + " as its column stats cannot satisfy the filter");
+                continue;
+            }
+
             List<HBaseKeyRange> scanRanges = Lists.newArrayListWithCapacity(orAndDimRanges.size());
             for (Collection<ColumnValueRange> andDimRanges : orAndDimRanges) {
                 HBaseKeyRange rowKeyRange = new HBaseKeyRange(dimensionColumns, andDimRanges, cubeSeg, cubeDesc);
@@ -456,6 +478,37 @@ public class CubeStorageEngine implements IStorageEngine {
         return orAndRanges;
     }
 
+    /**
+     * @return true if no AND branch is left, i.e. the segment is skipped
+     */
+    private boolean pruneBySegmentStats(List<Collection<ColumnValueRange>> orAndRanges, CubeSegment cubeSegment) {
+        if (orAndRanges.isEmpty() || cubeSegment.getColumnStats().isEmpty())
+            return false;
+
+        Iterator<Collection<ColumnValueRange>> iterator = orAndRanges.iterator();
+        while (iterator.hasNext()) {
+            for (ColumnValueRange range : iterator.next()) {
+                SegmentColumnStats stats = cubeSegment.getColumnStats(range.getColumn());
+                if (stats != null && mightSatisfy(range, stats) == false) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+        return orAndRanges.isEmpty();
+    }
+
+    private boolean mightSatisfy(ColumnValueRange range, SegmentColumnStats stats) {
+        if (range.getEqualValues() == null) {
+            return stats.mightOverlap(range.getBeginValue(), range.getEndValue());
+        }
+        for (String v : range.getEqualValues()) {
+            if (stats.mightContain(v))
+                return true;
+        }
+        return false;
+    }
+
     private Collection<ColumnValueRange> translateToAndDimRanges(List<? extends TupleFilter> andFilters, CubeSegment cubeSegment) {
         Map<TblColRef, ColumnValueRange> rangeMap = new HashMap<TblColRef, ColumnValueRange>();
         for (TupleFilter filter : andFilters) {
@@ -566,11 +619,74 @@ public class CubeStorageEngine implements IStorageEngine {
         return keyRange;
     }
 
-    private List<HBaseKeyRange> mergeTooManyRanges(List<HBaseKeyRange> keyRanges) {
+    /**
+     * Coalesces sorted, non-overlapping ranges of a segment once there are
+     * MERGE_KEYRANGE_THRESHOLD of them or more. The smallest gaps, by estimated
+     * rows, are merged until under the threshold. Beyond that a gap cheaper
+     * than a separate scan is scanned through as well, if both sides have
+     * fuzzy keys or both have none, so the fuzzy keys of the merged ranges are
+     * kept to skip rows on the server. Without stats all ranges collapse into
+     * one scan.
+     */
+    List<HBaseKeyRange> mergeTooManyRanges(List<HBaseKeyRange> keyRanges) {
         if (keyRanges.size() < MERGE_KEYRANGE_THRESHOLD) {
             return keyRanges;
         }
-        // TODO: check the distance between range. and merge the large distance range
+
+        List<HBaseKeyRange> ranges = new ArrayList<HBaseKeyRange>(keyRanges);
+        int nGaps = ranges.size() - 1;
+        long[] gapRows = new long[nGaps];
+        Integer[] gapOrder = new Integer[nGaps];
+        ObserverCostModel costModel = new ObserverCostModel();
+        for (int i = 0; i < nGaps; i++) {
+            HBaseKeyRange range = ranges.get(i);
+            gapRows[i] = costModel.estimateRows(range.getCubeSegment(), range.getCuboid(), range.getStopKey(), ranges.get(i + 1).getStartKey());
+            if (gapRows[i] < 0) {
+                return mergeAll(keyRanges);
+            }
+            gapOrder[i] = i;
+        }
+
+        // close the cheap gaps, then the smallest ones until under threshold
+        final long[] rows = gapRows;
+        Arrays.sort(gapOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(rows[o1], rows[o2]);
+            }
+        });
+        long maxGapRows = cubeInstance.getConfig().getQueryScanRangeMergeGapRows();
+        int mustClose = Math.max(0, ranges.size() - (MERGE_KEYRANGE_THRESHOLD - 1));
+        boolean[] closed = new boolean[nGaps];
+        for (int k = 0; k < nGaps; k++) {
+            int gap = gapOrder[k];
+            if (k >= mustClose) {
+                if (gapRows[gap] > maxGapRows)
+                    break;
+                // a non-fuzzy range would clear the fuzzy keys of the other
+                if (ranges.get(gap).getFuzzyKeys().isEmpty() != ranges.get(gap + 1).getFuzzyKeys().isEmpty())
+                    continue;
+            }
+            closed[gap] = true;
+        }
+
+        List<HBaseKeyRange> mergedRanges = new LinkedList<HBaseKeyRange>();
+        int from = 0;
+        for (int i = 0; i < nGaps; i++) {
+            if (closed[i] == false) {
+                mergedRanges.add(mergeKeyRange(ranges, from, i));
+                from = i + 1;
+            }
+        }
+        mergedRanges.add(mergeKeyRange(ranges, from, nGaps));
+
+        if (mergedRanges.size() < ranges.size()) {
+            logger.info("Merging " + ranges.size() + " key ranges into " + mergedRanges.size() + " by gap rows (max " + maxGapRows + ")");
+        }
+        return mergedRanges;
+    }
+
+    private List<HBaseKeyRange> mergeAll(List<HBaseKeyRange> keyRanges) {
         List<HBaseKeyRange> mergedRanges = new LinkedList<HBaseKeyRange>();
         HBaseKeyRange mergedRange = mergeKeyRange(keyRanges, 0, keyRanges.size() - 1);
         mergedRanges.add(mergedRange);
@@ -618,8 +734,8 @@ public class CubeStorageEngine implements IStorageEngine {
         }
     }
 
-    private void setCoprocessor(Set<TblColRef> groupsCopD, List<RowValueDecoder> valueDecoders, StorageContext context) {
-        ObserverEnabler.enableCoprocessorIfBeneficial(cubeInstance, groupsCopD, valueDecoders, context);
+    private void setCoprocessor(Set<TblColRef> groupsCopD, List<RowValueDecoder> valueDecoders, List<HBaseKeyRange> scans, StorageContext context) {
+        ObserverEnabler.enableCoprocessorIfBeneficial(cubeInstance, groupsCopD, valueDecoders, scans, context);
     }
 
 }
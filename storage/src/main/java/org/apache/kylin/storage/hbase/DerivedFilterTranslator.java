@@ -18,6 +18,7 @@
 
 package org.apache.kylin.storage.hbase;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -72,11 +73,29 @@ public class DerivedFilterTranslator {
         }
 
         Set<Array<String>> satisfyingHostRecords = Sets.newHashSet();
-        SingleColumnTuple tuple = new SingleColumnTuple(derivedCol);
-        for (String[] row : lookup.getAllRows()) {
-            tuple.value = row[di];
-            if (compf.evaluate(tuple)) {
-                collect(row, pi, satisfyingHostRecords);
+        FilterOperatorEnum op = compf.getOperator();
+        if (op == FilterOperatorEnum.ISNULL || op == FilterOperatorEnum.ISNOTNULL) {
+            // nulls are not in the lookup table index, scan the rows
+            boolean wantNull = op == FilterOperatorEnum.ISNULL;
+            for (String[] row : lookup.getAllRows()) {
+                String value = row[di];
+                boolean isNull = value == null || value.equals(compf.getNullString());
+                if (isNull == wantNull) {
+                    collect(row, pi, satisfyingHostRecords);
+                }
+            }
+        } else {
+            // the filter depends only on the derived value, evaluate it once per
+            // candidate value and fetch the rows through the lookup table index,
+            // a comparison is never true on a null value
+            SingleColumnTuple tuple = new SingleColumnTuple(derivedCol);
+            for (String value : candidateValues(lookup, di, compf)) {
+                tuple.value = value;
+                if (compf.evaluate(tuple)) {
+                    for (String[] row : lookup.getRowsByValue(di, value)) {
+                        collect(row, pi, satisfyingHostRecords);
+                    }
+                }
             }
         }
 
@@ -93,6 +112,22 @@ public class DerivedFilterTranslator {
         return new Pair<TupleFilter, Boolean>(translated, loosened);
     }
 
+    private static Collection<String> candidateValues(LookupStringTable lookup, int di, CompareTupleFilter compf) {
+        switch (compf.getOperator()) {
+        case EQ:
+        case IN:
+            return compf.getValues();
+        case LT:
+        case LTE:
+            return lookup.getDistinctValues(di, null, compf.getFirstValue());
+        case GT:
+        case GTE:
+            return lookup.getDistinctValues(di, compf.getFirstValue(), null);
+        default:
+            return lookup.getDistinctValues(di, null, null);
+        }
+    }
+
     private static void collect(String[] row, int[] pi, Set<Array<String>> satisfyingHostRecords) {
         // TODO when go beyond IN_THRESHOLD, only keep min/max is enough
         String[] rec = new String[pi.length];
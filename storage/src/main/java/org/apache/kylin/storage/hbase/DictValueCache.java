@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Converted values of one dimension by dictionary ID, kept for the life of a
+ * segment iterator so repeated values are neither decoded nor parsed again.
+ * 
+ * Dictionaries up to maxCachedIds IDs get an array, allocated on first use.
+ * Larger ones get an LRU map of at most maxCachedIds entries. IDs beyond the
+ * dictionary, e.g. the null ID, are never cached.
+ */
+class DictValueCache {
+
+    static final Object MISS = new Object();
+    private static final Object NULL_VALUE = new Object();
+
+    private final int maxId;
+    private final int maxCachedIds;
+    private Object[] array;
+    private Map<Integer, Object> map;
+
+    DictValueCache(int maxId, int maxCachedIds) {
+        this.maxId = maxId;
+        this.maxCachedIds = maxCachedIds;
+    }
+
+    /**
+     * @return the converted value, which may be null, or MISS if not cached
+     */
+    Object get(int id) {
+        Object value;
+        if (array != null) {
+            value = id >= 0 && id < array.length ? array[id] : null;
+        } else if (map != null) {
+            value = map.get(id);
+        } else {
+            value = null;
+        }
+
+        if (value == null)
+            return MISS;
+        return value == NULL_VALUE ? null : value;
+    }
+
+    void put(int id, Object value) {
+        if (id < 0 || id > maxId)
+            return;
+
+        Object v = value == null ? NULL_VALUE : value;
+        if (maxId < maxCachedIds) {
+            if (array == null) {
+                array = new Object[maxId + 1];
+            }
+            array[id] = v;
+        } else {
+            if (map == null) {
+                map = new LinkedHashMap<Integer, Object>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+                        return size() > maxCachedIds;
+                    }
+                };
+            }
+            map.put(id, v);
+        }
+    }
+
+    int size() {
+        if (array != null) {
+            int n = 0;
+            for (Object v : array) {
+                if (v != null)
+                    n++;
+            }
+            return n;
+        }
+        return map == null ? 0 : map.size();
+    }
+
+    boolean isArray() {
+        return array != null;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.persistence.StorageException;
+import org.apache.kylin.cube.kv.RowValueDecoder;
+import org.apache.kylin.metadata.filter.TupleFilter;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.apache.kylin.metadata.tuple.ITupleIterator;
+import org.apache.kylin.storage.StorageContext;
+import org.apache.kylin.storage.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Scans key ranges concurrently and hands tuples over through a bounded
+ * prefetch queue. Scans run on one thread pool shared by all queries of the
+ * server, sized by kylin.query.scan.thread.count. A query takes at most
+ * kylin.query.scan.thread.per.query threads of it, each working through the
+ * pending key ranges one after another with its own value decoders.
+ *
+ * Limit, partial result and threshold are left to the caller, see
+ * SerializedHBaseTupleIterator. The bounded queue stops producers from running
+ * far ahead once the caller stops consuming.
+ */
+public class ParallelScanTupleIterator implements ITupleIterator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelScanTupleIterator.class);
+
+    private static final Object END_OF_TASK = new Object();
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private static ExecutorService sharedExecutor;
+
+    /**
+     * The scan thread pool of this server, created on first use. Idle threads
+     * time out, so a server without parallel scans holds none.
+     */
+    public static synchronized ExecutorService getSharedExecutor(KylinConfig config) {
+        if (sharedExecutor == null) {
+            int poolSize = Math.max(1, config.getConcurrentScanThreadCount());
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("kylin-scan-%d").build());
+            executor.allowCoreThreadTimeOut(true);
+            sharedExecutor = executor;
+            logger.info("Created shared scan thread pool of " + poolSize + " threads");
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Opens the scan of one key range with the value decoders of the calling
+     * scan thread. Tuples of the returned iterator may be reused by it, they
+     * are copied before being queued.
+     */
+    interface RangeScan {
+        ITupleIterator open(Collection<RowValueDecoder> rowValueDecoders);
+
+        String getName();
+    }
+
+    private final BlockingQueue<Object> queue;
+    private final Queue<RangeScan> pendingScans;
+    private final List<Future<?>> futures;
+    private final int taskCount;
+
+    private volatile boolean closed;
+    private int finishedTasks;
+    private ITuple nextTuple;
+
+    public ParallelScanTupleIterator(HConnection conn, List<HBaseKeyRange> keyRanges, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context, KylinConfig config) {
+        this(getSharedExecutor(config), makeScans(conn, keyRanges, dimensions, filter, groupBy, context), rowValueDecoders, config.getQueryScanThreadPerQuery(), config.getQueryScanPrefetchSize());
+    }
+
+    ParallelScanTupleIterator(ExecutorService executor, List<? extends RangeScan> scans, Collection<RowValueDecoder> rowValueDecoders, int maxThreads, int prefetchSize) {
+        this.queue = new LinkedBlockingQueue<Object>(Math.max(prefetchSize, 1));
+        this.pendingScans = new ConcurrentLinkedQueue<RangeScan>(scans);
+        this.taskCount = Math.max(1, Math.min(maxThreads, scans.size()));
+        this.futures = new ArrayList<Future<?>>(taskCount);
+
+        logger.info("Scan " + scans.size() + " key ranges in parallel with " + taskCount + " threads");
+        for (int i = 0; i < taskCount; i++) {
+            futures.add(executor.submit(new ScanTask(rowValueDecoders)));
+        }
+    }
+
+    private static List<RangeScan> makeScans(final HConnection conn, List<HBaseKeyRange> keyRanges, final Collection<TblColRef> dimensions, final TupleFilter filter, final Collection<TblColRef> groupBy, final StorageContext context) {
+        List<RangeScan> scans = new ArrayList<RangeScan>(keyRanges.size());
+        for (final HBaseKeyRange keyRange : keyRanges) {
+            scans.add(new RangeScan() {
+                @Override
+                public ITupleIterator open(Collection<RowValueDecoder> rowValueDecoders) {
+                    return new CubeSegmentTupleIterator(keyRange.getCubeSegment(), Collections.singletonList(keyRange), conn, dimensions, filter, groupBy, rowValueDecoders, context);
+                }
+
+                @Override
+                public String getName() {
+                    return keyRange.getCubeSegment().getStorageLocationIdentifier();
+                }
+            });
+        }
+        return scans;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (nextTuple != null) {
+            return true;
+        }
+        while (finishedTasks < taskCount) {
+            Object item = take();
+            if (item == END_OF_TASK) {
+                finishedTasks++;
+            } else if (item instanceof Throwable) {
+                close();
+                Throwable t = (Throwable) item;
+                if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                }
+                throw new StorageException("Error when scan in parallel", t);
+            } else {
+                nextTuple = (ITuple) item;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public ITuple next() {
+        if (hasNext() == false) {
+            return null;
+        }
+        ITuple r = nextTuple;
+        nextTuple = null;
+        return r;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pendingScans.clear();
+        // the pool is shared, only the tasks of this query are cancelled
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        // unblock producers waiting on a full queue
+        queue.clear();
+    }
+
+    private Object take() {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted when waiting for parallel scan", e);
+        }
+    }
+
+    private boolean put(Object item) {
+        try {
+            while (closed == false) {
+                if (queue.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private static ITuple copy(ITuple tuple) {
+        return tuple instanceof Tuple ? ((Tuple) tuple).makeCopy() : tuple;
+    }
+
+    private class ScanTask implements Runnable {
+
+        private final List<RowValueDecoder> rowValueDecoders;
+
+        ScanTask(Collection<RowValueDecoder> rowValueDecoders) {
+            // decoders hold the decoded values, each task needs its own
+            this.rowValueDecoders = new ArrayList<RowValueDecoder>(rowValueDecoders.size());
+            for (RowValueDecoder decoder : rowValueDecoders) {
+                this.rowValueDecoders.add(new RowValueDecoder(decoder));
+            }
+        }
+
+        @Override
+        public void run() {
+            Throwable error = null;
+            RangeScan scan;
+            while (error == null && closed == false && (scan = pendingScans.poll()) != null) {
+                error = scan(scan);
+                if (error != null && closed == false) {
+                    logger.error("Error when scan table " + scan.getName(), error);
+                }
+            }
+            put(error == null ? END_OF_TASK : error);
+        }
+
+        private Throwable scan(RangeScan scan) {
+            Throwable error = null;
+            ITupleIterator iterator = null;
+            try {
+                iterator = scan.open(rowValueDecoders);
+                while (closed == false && iterator.hasNext()) {
+                    ITuple tuple = iterator.next();
+                    if (tuple == null || put(copy(tuple)) == false) {
+                        break;
+                    }
+                }
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                try {
+                    if (iterator != null) {
+                        iterator.close();
+                    }
+                } catch (Throwable t) {
+                    if (error == null) {
+                        error = t;
+                    }
+                }
+            }
+            return error;
+        }
+    }
+}
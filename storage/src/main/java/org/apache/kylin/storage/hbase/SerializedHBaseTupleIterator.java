@@ -28,41 +28,93 @@ import org.apache.hadoop.hbase.client.HConnection;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.cube.CubeInstance;
 import org.apache.kylin.cube.CubeSegment;
 import org.apache.kylin.cube.kv.RowValueDecoder;
 import org.apache.kylin.metadata.model.TblColRef;
 import org.apache.kylin.storage.StorageContext;
+import org.apache.kylin.storage.cache.CachedTupleIterator;
+import org.apache.kylin.storage.cache.RecordingTupleIterator;
+import org.apache.kylin.storage.cache.SegmentResultCache;
 import org.apache.kylin.metadata.filter.TupleFilter;
 import org.apache.kylin.metadata.tuple.ITuple;
 import org.apache.kylin.metadata.tuple.ITupleIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author xjiang
  */
 public class SerializedHBaseTupleIterator implements ITupleIterator {
 
+    private static final Logger logger = LoggerFactory.getLogger(SerializedHBaseTupleIterator.class);
+
     private static final int PARTIAL_DEFAULT_LIMIT = 10000;
 
     private final StorageContext context;
     private final int partialResultLimit;
-    private final List<CubeSegmentTupleIterator> segmentIteratorList;
-    private final Iterator<CubeSegmentTupleIterator> segmentIteratorIterator;
+    private final List<ITupleIterator> segmentIteratorList;
+    private final Iterator<ITupleIterator> segmentIteratorIterator;
 
     private ITupleIterator segmentIterator;
     private int scanCount;
 
     public SerializedHBaseTupleIterator(HConnection conn, List<HBaseKeyRange> segmentKeyRanges, CubeInstance cube, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context) {
+        this(conn, segmentKeyRanges, cube, dimensions, filter, groupBy, rowValueDecoders, context, null);
+    }
+
+    /**
+     * @param digestKey
+     *            the key to cache segment results with, see
+     *            SegmentResultCache.makeDigestKey(); null to bypass the cache
+     */
+    public SerializedHBaseTupleIterator(HConnection conn, List<HBaseKeyRange> segmentKeyRanges, CubeInstance cube, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context, String digestKey) {
 
         this.context = context;
         int limit = context.getLimit();
         this.partialResultLimit = Math.max(limit, PARTIAL_DEFAULT_LIMIT);
 
-        this.segmentIteratorList = new ArrayList<CubeSegmentTupleIterator>(segmentKeyRanges.size());
+        this.segmentIteratorList = new ArrayList<ITupleIterator>(segmentKeyRanges.size());
+        KylinConfig config = cube.getConfig();
         Map<CubeSegment, List<HBaseKeyRange>> rangesMap = makeRangesMap(segmentKeyRanges);
-        for (Map.Entry<CubeSegment, List<HBaseKeyRange>> entry : rangesMap.entrySet()) {
-            CubeSegmentTupleIterator segIter = new CubeSegmentTupleIterator(entry.getKey(), entry.getValue(), conn, dimensions, filter, groupBy, rowValueDecoders, context);
-            this.segmentIteratorList.add(segIter);
+
+        // replay the segments answered before, only the others are scanned
+        SegmentResultCache resultCache = null;
+        if (digestKey != null) {
+            resultCache = SegmentResultCache.getInstance(config);
+            resultCache.syncReadySegments(cube);
+            for (Iterator<Map.Entry<CubeSegment, List<HBaseKeyRange>>> it = rangesMap.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<CubeSegment, List<HBaseKeyRange>> entry = it.next();
+                List<ITuple> cached = resultCache.get(digestKey, entry.getKey());
+                if (cached != null) {
+                    logger.info("Segment " + entry.getKey().getName() + " answered from cache, " + cached.size() + " tuples");
+                    this.segmentIteratorList.add(new CachedTupleIterator(cached));
+                    it.remove();
+                }
+            }
+        }
+
+        List<HBaseKeyRange> rangesToScan = Lists.newArrayList();
+        for (HBaseKeyRange range : segmentKeyRanges) {
+            if (rangesMap.containsKey(range.getCubeSegment())) {
+                rangesToScan.add(range);
+            }
+        }
+
+        if (config.isQueryScanParallelEnabled() && rangesToScan.size() > 1) {
+            // fan out all segment/key range scans, limit etc. are still checked below
+            // tuples of segments are interleaved here, thus not recorded into the cache
+            ParallelScanTupleIterator parallelIter = new ParallelScanTupleIterator(conn, rangesToScan, dimensions, filter, groupBy, rowValueDecoders, context, config);
+            this.segmentIteratorList.add(parallelIter);
+        } else {
+            for (Map.Entry<CubeSegment, List<HBaseKeyRange>> entry : rangesMap.entrySet()) {
+                ITupleIterator segIter = new CubeSegmentTupleIterator(entry.getKey(), entry.getValue(), conn, dimensions, filter, groupBy, rowValueDecoders, context);
+                if (resultCache != null) {
+                    segIter = new RecordingTupleIterator(segIter, resultCache, digestKey, entry.getKey());
+                }
+                this.segmentIteratorList.add(segIter);
+            }
         }
 
         this.segmentIteratorIterator = this.segmentIteratorList.iterator();
@@ -124,6 +176,14 @@ public class SerializedHBaseTupleIterator implements ITupleIterator {
     @Override
     public void close() {
         context.setTotalScanCount(scanCount);
+        if (context.getCoprocessorEstimate() != null) {
+            // the outcome of the coprocessor decision, to check the cost model against
+            logger.info("Coprocessor " + (context.isCoprocessorEnabled() ? "enabled" : "disabled") + ", " + context.getCoprocessorEstimate() + "; actual rows returned = " + scanCount);
+        }
         segmentIterator.close();
+        // iterators not reached yet may have started scanning already, e.g. the parallel one
+        while (segmentIteratorIterator.hasNext()) {
+            segmentIteratorIterator.next().close();
+        }
     }
 }
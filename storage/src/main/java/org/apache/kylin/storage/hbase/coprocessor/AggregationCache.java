@@ -29,7 +29,7 @@ import java.util.SortedMap;
 @SuppressWarnings("rawtypes")
 public abstract class AggregationCache {
     transient int rowMemBytes;
-    static final int MEMORY_USAGE_CAP = 500 * 1024 * 1024; // 500 MB
+    public static final int MEMORY_USAGE_CAP = 500 * 1024 * 1024; // 500 MB
     protected final SortedMap<CoprocessorProjector.AggrKey, MeasureAggregator[]> aggBufMap;
 
     public AggregationCache() {
@@ -51,7 +51,7 @@ public abstract class AggregationCache {
         return aggBufMap.size();
     }
 
-    public void checkMemoryUsage() {
+    public long getMemBytes() {
         // about memory calculation,
         // http://seniorjava.wordpress.com/2013/09/01/java-objects-memory-size-reference/
         if (rowMemBytes <= 0) {
@@ -63,10 +63,13 @@ public abstract class AggregationCache {
                 }
             }
         }
-        int size = aggBufMap.size();
-        int memUsage = (40 + rowMemBytes) * size;
+        return (40L + rowMemBytes) * aggBufMap.size();
+    }
+
+    public void checkMemoryUsage() {
+        long memUsage = getMemBytes();
         if (memUsage > MEMORY_USAGE_CAP) {
-            throw new RuntimeException("Kylin coprocess memory usage goes beyond cap, (40 + " + rowMemBytes + ") * " + size + " > " + MEMORY_USAGE_CAP + ". Abord coprocessor.");
+            throw new RuntimeException("Kylin coprocess memory usage goes beyond cap, (40 + " + rowMemBytes + ") * " + aggBufMap.size() + " > " + MEMORY_USAGE_CAP + ". Abord coprocessor.");
         }
     }
 }
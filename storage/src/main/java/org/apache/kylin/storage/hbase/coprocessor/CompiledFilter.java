@@ -0,0 +1,460 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.kylin.common.util.BytesUtil;
+import org.apache.kylin.metadata.filter.CompareTupleFilter;
+import org.apache.kylin.metadata.filter.ConstantTupleFilter;
+import org.apache.kylin.metadata.filter.LogicalTupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter.FilterOperatorEnum;
+import org.apache.kylin.metadata.model.TblColRef;
+
+/**
+ * A TupleFilter compiled against a row type, evaluated directly on row key
+ * bytes. Compare filters hold the column offset and the constants as bytes
+ * (dictionary IDs after CoprocessorFilter translation), so no tuple or String
+ * is made per row. Logical filters short circuit like the interpreter.
+ * 
+ * Columns of up to 4 bytes are evaluated in the dictionary ID space: EQ and
+ * ranges become [minId, maxId] intervals, intersected per column under AND,
+ * and IN-lists become bitsets over the IDs. Either way a row costs one read
+ * of the ID plus one interval or bit check, however long the IN-list.
+ * 
+ * Gives the same result as TupleFilter.evaluate() over an ObserverTuple.
+ * compile() returns null for filters it cannot handle, to fall back on the
+ * interpreter.
+ */
+public abstract class CompiledFilter {
+
+    public static final int MAX_ID_BYTES = 4; // IDs read as unsigned int
+    public static final int MAX_BITSET_ID = 1 << 20; // 128 KB bitset at most, larger IDs go binary search
+
+    public static CompiledFilter compile(TupleFilter filter, CoprocessorRowType type) {
+        if (filter == null)
+            return null;
+
+        if (filter instanceof LogicalTupleFilter) {
+            List<? extends TupleFilter> children = filter.getChildren();
+            CompiledFilter[] compiled = new CompiledFilter[children.size()];
+            for (int i = 0; i < compiled.length; i++) {
+                compiled[i] = compile(children.get(i), type);
+                if (compiled[i] == null)
+                    return null;
+            }
+            switch (filter.getOperator()) {
+            case AND:
+                return and(compiled);
+            case OR:
+                return new Or(compiled);
+            case NOT:
+                return compiled.length == 0 ? null : new Not(compiled[0]);
+            default:
+                return null;
+            }
+        }
+
+        if (filter instanceof ConstantTupleFilter) {
+            return new Constant(filter.getValues().isEmpty() == false);
+        }
+
+        if (filter instanceof CompareTupleFilter) {
+            return compileCompare((CompareTupleFilter) filter, type);
+        }
+
+        return null;
+    }
+
+    private static CompiledFilter compileCompare(CompareTupleFilter compf, CoprocessorRowType type) {
+        TblColRef col = compf.getColumn();
+        if (col == null || type.columnIdxMap.containsKey(col) == false)
+            return null;
+
+        int i = type.getColIndexByTblColRef(col);
+        int offset = type.columnOffsets[i];
+        int length = type.columnSizes[i];
+        byte[] nullBytes = compf.getNullString() == null ? null : toBytes(compf.getNullString());
+
+        FilterOperatorEnum op = compf.getOperator();
+        if (op == FilterOperatorEnum.ISNULL || op == FilterOperatorEnum.ISNOTNULL)
+            return null; // not evaluable, never reaches here after translation
+        if (compf.getFirstValue() == null)
+            return null;
+        if (compf.getFirstValue().equals(compf.getNullString()))
+            return new Constant(false); // always false if compare to null
+
+        byte[] value = toBytes(compf.getFirstValue());
+        boolean idSpace = length <= MAX_ID_BYTES && value.length == length;
+        switch (op) {
+        case EQ:
+        case LT:
+        case LTE:
+        case GT:
+        case GTE:
+            if (idSpace)
+                return Interval.of(op, offset, length, nullBytes != null, readId(value, 0, length)).simplify();
+            return new Compare(op, offset, length, nullBytes, value);
+        case NEQ:
+            return new Compare(op, offset, length, nullBytes, value);
+        case IN:
+        case NOTIN:
+            boolean not = op == FilterOperatorEnum.NOTIN;
+            byte[][] sortedValues = toSortedBytes(compf.getValues());
+            BitSet bits = idSpace ? toBitSet(sortedValues, length) : null;
+            if (bits != null)
+                return new InBitSet(not, offset, length, nullBytes != null, bits);
+            return new In(not, offset, length, nullBytes, sortedValues);
+        default:
+            return null;
+        }
+    }
+
+    /** intersects the intervals on the same column, so a range costs one check per row */
+    private static CompiledFilter and(CompiledFilter[] children) {
+        List<CompiledFilter> merged = new ArrayList<CompiledFilter>(children.length);
+        for (CompiledFilter child : children) {
+            if (child instanceof Interval) {
+                Interval interval = (Interval) child;
+                boolean found = false;
+                for (int i = 0; i < merged.size(); i++) {
+                    CompiledFilter other = merged.get(i);
+                    if (other instanceof Interval && ((Interval) other).offset == interval.offset) {
+                        merged.set(i, ((Interval) other).intersect(interval));
+                        found = true;
+                        break;
+                    }
+                }
+                if (found == false)
+                    merged.add(interval);
+            } else {
+                merged.add(child);
+            }
+        }
+
+        for (int i = 0; i < merged.size(); i++) {
+            if (merged.get(i) instanceof Interval) {
+                CompiledFilter simplified = ((Interval) merged.get(i)).simplify();
+                if (simplified instanceof Constant && ((Constant) simplified).value == false)
+                    return simplified; // empty range, nothing passes
+                merged.set(i, simplified);
+            }
+        }
+        return merged.size() == 1 ? merged.get(0) : new And(merged.toArray(new CompiledFilter[merged.size()]));
+    }
+
+    static long readId(byte[] bytes, int offset, int length) {
+        return BytesUtil.readUnsigned(bytes, offset, length) & 0xffffffffL;
+    }
+
+    static long maxId(int length) {
+        return (1L << (8 * length)) - 1; // also the null ID, all 0xff
+    }
+
+    /** returns null if any value is out of the ID space or too large for a bitset */
+    private static BitSet toBitSet(byte[][] sortedValues, int length) {
+        if (sortedValues.length == 0)
+            return new BitSet();
+
+        byte[] last = sortedValues[sortedValues.length - 1];
+        if (last.length != length || readId(last, 0, length) >= MAX_BITSET_ID)
+            return null;
+
+        BitSet bits = new BitSet((int) readId(last, 0, length) + 1);
+        for (byte[] v : sortedValues) {
+            if (v.length != length)
+                return null;
+            bits.set((int) readId(v, 0, length));
+        }
+        return bits;
+    }
+
+    static byte[] toBytes(String dictIdString) {
+        try {
+            return dictIdString.getBytes("ISO-8859-1"); // the reverse of Dictionary.dictIdToString()
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // never happen
+        }
+    }
+
+    private static byte[][] toSortedBytes(Collection<String> values) {
+        byte[][] result = new byte[values.size()][];
+        int i = 0;
+        for (String v : values) {
+            result[i++] = toBytes(v);
+        }
+        Arrays.sort(result, Bytes.BYTES_COMPARATOR);
+        return result;
+    }
+
+    // ============================================================================
+
+    /**
+     * @param rowkey
+     *            the array holding the row key
+     * @param rowkeyOffset
+     *            where the row key starts, column offsets are relative to it
+     */
+    public abstract boolean evaluate(byte[] rowkey, int rowkeyOffset);
+
+    private static class Constant extends CompiledFilter {
+        final boolean value;
+
+        Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean evaluate(byte[] rowkey, int rowkeyOffset) {
+            return value;
+        }
+    }
+
+    private static class And extends CompiledFilter {
+        final CompiledFilter[] children;
+
+        And(CompiledFilter[] children) {
+            this.children = children;
+        }
+
+        @Override
+        public boolean evaluate(byte[] rowkey, int rowkeyOffset) {
+            for (CompiledFilter child : children) {
+                if (child.evaluate(rowkey, rowkeyOffset) == false)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Or extends CompiledFilter {
+        final CompiledFilter[] children;
+
+        Or(CompiledFilter[] children) {
+            this.children = children;
+        }
+
+        @Override
+        public boolean evaluate(byte[] rowkey, int rowkeyOffset) {
+            for (CompiledFilter child : children) {
+                if (child.evaluate(rowkey, rowkeyOffset))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Not extends CompiledFilter {
+        final CompiledFilter child;
+
+        Not(CompiledFilter child) {
+            this.child = child;
+        }
+
+        @Override
+        public boolean evaluate(byte[] rowkey, int rowkeyOffset) {
+            return child.evaluate(rowkey, rowkeyOffset) == false;
+        }
+    }
+
+    private static abstract class ColumnFilter extends CompiledFilter {
+        final int offset;
+        final int length;
+        final byte[] nullBytes;
+
+        ColumnFilter(int offset, int length, byte[] nullBytes) {
+            this.offset = offset;
+            this.length = length;
+            this.nullBytes = nullBytes;
+        }
+
+        boolean isNull(byte[] rowkey, int start) {
+            return nullBytes != null && Bytes.compareTo(rowkey, start, length, nullBytes, 0, nullBytes.length) == 0;
+        }
+    }
+
+    /** minId <= ID <= maxId, the null ID never passes */
+    private static class Interval extends CompiledFilter {
+        final int offset;
+        final int length;
+        final long nullId;
+        final long minId;
+        final long maxId;
+
+        Interval(int offset, int length, long nullId, long minId, long maxId) {
+            this.offset = offset;
+            this.length = length;
+            this.nullId = nullId;
+            this.minId = minId;
+            this.maxId = maxId;
+        }
+
+        static Interval of(FilterOperatorEnum op, int offset, int length, boolean hasNull, long id) {
+            long nullId = hasNull ? maxId(length) : -1;
+            long min = 0;
+            long max = maxId(length);
+            switch (op) {
+            case EQ:
+                min = max = id;
+                break;
+            case LT:
+                max = id - 1;
+                break;
+            case LTE:
+                max = id;
+                break;
+            case GT:
+                min = id + 1;
+                break;
+            case GTE:
+                min = id;
+                break;
+            default:
+                throw new IllegalArgumentException("Not a range operator " + op);
+            }
+            return new Interval(offset, length, nullId, min, max);
+        }
+
+        Interval intersect(Interval other) {
+            return new Interval(offset, length, nullId, Math.max(minId, other.minId), Math.min(maxId, other.maxId));
+        }
+
+        CompiledFilter simplify() {
+            if (minId > maxId || (minId == maxId && minId == nullId))
+                return new Constant(false);
+            return this;
+        }
+
+        @Override
+        public boolean evaluate(byte[] rowkey, int rowkeyOffset) {
+            long id = readId(rowkey, rowkeyOffset + offset, length);
+            return id >= minId && id <= maxId && id != nullId;
+        }
+    }
+
+    /** IN-list as a bitset over the dictionary IDs */
+    private static class InBitSet extends CompiledFilter {
+        final boolean not;
+        final int offset;
+        final int length;
+        final long nullId;
+        final BitSet bits;
+        final int bitsLength;
+
+        InBitSet(boolean not, int offset, int length, boolean hasNull, BitSet bits) {
+            this.not = not;
+            this.offset = offset;
+            this.length = length;
+            this.nullId = hasNull ? maxId(length) : -1;
+            this.bits = bits;
+            this.bitsLength = bits.length();
+        }
+
+        @Override
+        public boolean evaluate(byte[] rowkey, int rowkeyOffset) {
+            long id = readId(rowkey, rowkeyOffset + offset, length);
+            if (id == nullId)
+                return false;
+
+            boolean contains = id < bitsLength && bits.get((int) id);
+            return contains != not;
+        }
+    }
+
+    private static class Compare extends ColumnFilter {
+        final FilterOperatorEnum op;
+        final byte[] value;
+
+        Compare(FilterOperatorEnum op, int offset, int length, byte[] nullBytes, byte[] value) {
+            super(offset, length, nullBytes);
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        public boolean evaluate(byte[] rowkey, int rowkeyOffset) {
+            int start = rowkeyOffset + offset;
+            if (isNull(rowkey, start))
+                return false;
+
+            // unsigned bytes compare like the ISO-8859-1 strings in the interpreter
+            int comp = Bytes.compareTo(rowkey, start, length, value, 0, value.length);
+            switch (op) {
+            case EQ:
+                return comp == 0;
+            case NEQ:
+                return comp != 0;
+            case LT:
+                return comp < 0;
+            case LTE:
+                return comp <= 0;
+            case GT:
+                return comp > 0;
+            case GTE:
+                return comp >= 0;
+            default:
+                return false;
+            }
+        }
+    }
+
+    private static class In extends ColumnFilter {
+        final boolean not;
+        final byte[][] sortedValues;
+
+        In(boolean not, int offset, int length, byte[] nullBytes, byte[][] sortedValues) {
+            super(offset, length, nullBytes);
+            this.not = not;
+            this.sortedValues = sortedValues;
+        }
+
+        @Override
+        public boolean evaluate(byte[] rowkey, int rowkeyOffset) {
+            int start = rowkeyOffset + offset;
+            if (isNull(rowkey, start))
+                return false;
+
+            return contains(rowkey, start) != not;
+        }
+
+        private boolean contains(byte[] rowkey, int start) {
+            int low = 0;
+            int high = sortedValues.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                byte[] v = sortedValues[mid];
+                int comp = Bytes.compareTo(v, 0, v.length, rowkey, start, length);
+                if (comp < 0)
+                    low = mid + 1;
+                else if (comp > 0)
+                    high = mid - 1;
+                else
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -202,6 +202,7 @@ public class CoprocessorFilter {
 
     private final TupleFilter filter;
     private final Set<TblColRef> unstrictlyFilteredColumns;
+    private CompiledFilter compiled;
 
     public CoprocessorFilter(TupleFilter filter, Set<TblColRef> unstrictlyFilteredColumns) {
         this.filter = filter;
@@ -223,4 +224,29 @@ public class CoprocessorFilter {
             return filter.evaluate(tuple);
     }
 
+    /**
+     * Compiles the filter against the row type, so rows can be evaluated on
+     * row key bytes. Stays on the interpreter if the filter is not compilable.
+     * 
+     * @return whether the filter got compiled
+     */
+    public boolean compile(CoprocessorRowType type) {
+        if (filter == null)
+            return true;
+
+        compiled = CompiledFilter.compile(filter, type);
+        return compiled != null;
+    }
+
+    /**
+     * Same as evaluate(tuple), but goes on the row key bytes directly once compiled.
+     * The tuple must be set on the same row key.
+     */
+    public boolean evaluate(ITuple tuple, byte[] rowkey, int rowkeyOffset) {
+        if (compiled != null)
+            return compiled.evaluate(rowkey, rowkeyOffset);
+        else
+            return evaluate(tuple);
+    }
+
 }
@@ -108,6 +108,27 @@ public class CoprocessorProjector {
         this.groupByMask = groupByMask;
     }
 
+    public byte[] getGroupByMask() {
+        return groupByMask;
+    }
+
+    /**
+     * True if the group by bytes are a prefix of the row key, i.e. no group by
+     * byte follows a masked out byte. Rows of the same group are then adjacent
+     * in scan order.
+     */
+    public boolean isRowKeyPrefix() {
+        boolean maskedOut = false;
+        for (int i = 0; i < groupByMask.length; i++) {
+            if (groupByMask[i] == 0) {
+                maskedOut = true;
+            } else if (maskedOut) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public AggrKey getAggrKey(List<Cell> rowCells) {
         int length = groupByMask.length;
         Cell cell = rowCells.get(0);
@@ -19,6 +19,7 @@
 package org.apache.kylin.storage.hbase.coprocessor.endpoint;
 
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
@@ -26,7 +27,10 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.kylin.common.hll.HyperLogLogPlusCounter;
 import org.apache.kylin.common.util.BytesSerializer;
 import org.apache.kylin.common.util.BytesUtil;
+import org.apache.kylin.invertedindex.index.BitMap;
+import org.apache.kylin.invertedindex.index.ColumnValueContainer;
 import org.apache.kylin.invertedindex.index.RawTableRecord;
+import org.apache.kylin.invertedindex.index.Slice;
 import org.apache.kylin.invertedindex.index.TableRecordInfo;
 import org.apache.kylin.invertedindex.index.TableRecordInfoDigest;
 import org.apache.kylin.metadata.measure.MeasureAggregator;
@@ -112,9 +116,13 @@ public class EndpointAggregators {
     final transient HyperLogLogPlusCounter[] hllcs;
     final transient FixedLenMeasureCodec[] measureSerializers;
     final transient Object[] metricValues;
+    final transient LongWritable countValue;
+    final transient int[] rowBatch;
 
     final LongWritable ONE = new LongWritable(1);
 
+    private static final int ROW_BATCH_SIZE = 1024;
+
     public EndpointAggregators(String[] funcNames, String[] dataTypes, MetricInfo[] metricInfos, TableRecordInfoDigest tableInfo) {
         this.funcNames = funcNames;
         this.dataTypes = dataTypes;
@@ -122,6 +130,8 @@ public class EndpointAggregators {
         this.tableRecordInfoDigest = tableInfo;
         this.rawTableRecord = tableInfo.createTableRecordBytes();
         this.byteBuffer = new ImmutableBytesWritable();
+        this.countValue = new LongWritable();
+        this.rowBatch = new int[ROW_BATCH_SIZE];
 
         this.hllcs = new HyperLogLogPlusCounter[this.metricInfos.length];
         this.metricValues = new Object[funcNames.length];
@@ -139,6 +149,15 @@ public class EndpointAggregators {
         return !((funcNames != null) && (funcNames.length != 0));
     }
 
+    /** adds the table columns read by aggregate() */
+    public void collectColumns(BitSet columns) {
+        for (MetricInfo metricInfo : metricInfos) {
+            if (metricInfo.type == MetricType.Normal || metricInfo.type == MetricType.DistinctCount) {
+                columns.set(metricInfo.refIndex);
+            }
+        }
+    }
+
     public MeasureAggregator[] createBuffer() {
         MeasureAggregator[] aggrs = new MeasureAggregator[funcNames.length];
         for (int i = 0; i < aggrs.length; i++) {
@@ -170,26 +189,70 @@ public class EndpointAggregators {
                 continue;
             }
 
-            MetricInfo metricInfo = metricInfos[metricIndex];
-            MeasureAggregator aggregator = measureAggrs[metricIndex];
-            FixedLenMeasureCodec measureSerializer = measureSerializers[metricIndex];
-
             //get the raw bytes
-            rawTableRecord.getValueBytes(metricInfo.refIndex, byteBuffer);
-
-            if (metricInfo.type == MetricType.Normal) {
-                aggregator.aggregate(measureSerializer.read(byteBuffer.get(), byteBuffer.getOffset()));
-            } else if (metricInfo.type == MetricType.DistinctCount) {
-                //TODO: for unified dictionary, this is okay. but if different data blocks uses different dictionary, we'll have to aggregate original data
-                HyperLogLogPlusCounter hllc = hllcs[metricIndex];
-                if (hllc == null) {
-                    int precision = metricInfo.precision;
-                    hllc = new HyperLogLogPlusCounter(precision);
+            rawTableRecord.getValueBytes(metricInfos[metricIndex].refIndex, byteBuffer);
+            aggregateValue(metricIndex, measureAggrs[metricIndex], byteBuffer);
+        }
+    }
+
+    /**
+     * Aggregates the given rows of a slice at once, for rows selected by
+     * bitmaps rather than iterated one by one. Counts come from the bitmap
+     * size. Other metrics are read column by column over batches of row
+     * numbers, all rows of a batch for one metric before the next metric.
+     */
+    public void aggregate(MeasureAggregator[] measureAggrs, BitMap rows, Slice slice) {
+        boolean valuesNeeded = false;
+        for (int metricIndex = 0; metricIndex < metricInfos.length; ++metricIndex) {
+            if (metricInfos[metricIndex].type == MetricType.Count) {
+                countValue.set(rows.size());
+                measureAggrs[metricIndex].aggregate(countValue);
+            } else if (metricInfos[metricIndex].type != MetricType.DimensionAsMetric) {
+                valuesNeeded = true;
+            }
+        }
+        if (valuesNeeded == false) {
+            return;
+        }
+
+        BitMap.IntIterator iterator = rows.iterator();
+        while (iterator.hasNext()) {
+            int n = 0;
+            while (n < rowBatch.length && iterator.hasNext()) {
+                rowBatch[n++] = iterator.next();
+            }
+
+            for (int metricIndex = 0; metricIndex < metricInfos.length; ++metricIndex) {
+                MetricInfo metricInfo = metricInfos[metricIndex];
+                if (metricInfo.type == MetricType.Count || metricInfo.type == MetricType.DimensionAsMetric) {
+                    continue;
                 }
-                hllc.clear();
-                hllc.add(byteBuffer.get(), byteBuffer.getOffset(), byteBuffer.getLength());
-                aggregator.aggregate(hllc);
+
+                ColumnValueContainer container = slice.getColumnValueContainer(metricInfo.refIndex);
+                MeasureAggregator aggregator = measureAggrs[metricIndex];
+                for (int i = 0; i < n; i++) {
+                    container.getValueAt(rowBatch[i], byteBuffer);
+                    aggregateValue(metricIndex, aggregator, byteBuffer);
+                }
+            }
+        }
+    }
+
+    private void aggregateValue(int metricIndex, MeasureAggregator aggregator, ImmutableBytesWritable valueBytes) {
+        MetricInfo metricInfo = metricInfos[metricIndex];
+        if (metricInfo.type == MetricType.Normal) {
+            aggregator.aggregate(measureSerializers[metricIndex].read(valueBytes.get(), valueBytes.getOffset()));
+        } else if (metricInfo.type == MetricType.DistinctCount) {
+            //TODO: for unified dictionary, this is okay. but if different data blocks uses different dictionary, we'll have to aggregate original data
+            HyperLogLogPlusCounter hllc = hllcs[metricIndex];
+            if (hllc == null) {
+                int precision = metricInfo.precision;
+                hllc = new HyperLogLogPlusCounter(precision);
+                hllcs[metricIndex] = hllc;
             }
+            hllc.clear();
+            hllc.add(valueBytes.get(), valueBytes.getOffset(), valueBytes.getLength());
+            aggregator.aggregate(hllc);
         }
     }
 
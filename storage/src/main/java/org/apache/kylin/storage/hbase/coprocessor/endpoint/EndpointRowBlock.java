@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.endpoint;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.kylin.common.util.BytesUtil;
+import org.apache.kylin.invertedindex.index.TableRecordInfoDigest;
+
+import com.ning.compress.lzf.LZFDecoder;
+import com.ning.compress.lzf.LZFEncoder;
+
+/**
+ * A page of raw table records shipped from IIEndpoint to the client.
+ *
+ * Rows are laid out column by column before LZF compression, values of the
+ * same column sit together and compress much better than whole rows. Column c
+ * of row r is at offset(c) * n + r * length(c) of the uncompressed block, where
+ * n is the row count. An empty block encodes to zero bytes.
+ */
+public class EndpointRowBlock {
+
+    private final TableRecordInfoDigest digest;
+    private final int rowLen;
+
+    private byte[] rows; // row by row, as RawTableRecord holds them
+    private int rowCount;
+
+    public EndpointRowBlock(TableRecordInfoDigest digest) {
+        this.digest = digest;
+        this.rowLen = digest.getByteFormLen();
+        this.rows = BytesUtil.EMPTY_BYTE_ARRAY;
+        this.rowCount = 0;
+    }
+
+    public void append(byte[] row) {
+        ensureCapacity(rowCount + 1);
+        System.arraycopy(row, 0, rows, rowCount * rowLen, rowLen);
+        rowCount++;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Copies row i into the given buffer, which must hold at least
+     * getByteFormLen() bytes.
+     */
+    public void getRow(int i, byte[] dest) {
+        System.arraycopy(rows, i * rowLen, dest, 0, rowLen);
+    }
+
+    public void clear() {
+        rowCount = 0;
+    }
+
+    public byte[] encode() {
+        if (rowCount == 0) {
+            return BytesUtil.EMPTY_BYTE_ARRAY;
+        }
+
+        byte[] columnar = new byte[rowCount * rowLen];
+        for (int col = 0; col < digest.getColumnCount(); col++) {
+            int offset = digest.offset(col);
+            int length = digest.length(col);
+            int pos = offset * rowCount;
+            for (int r = 0; r < rowCount; r++) {
+                System.arraycopy(rows, r * rowLen + offset, columnar, pos, length);
+                pos += length;
+            }
+        }
+
+        try {
+            return LZFEncoder.encode(columnar);
+        } catch (Exception e) {
+            throw new RuntimeException("LZF encode failure", e);
+        }
+    }
+
+    public static EndpointRowBlock decode(TableRecordInfoDigest digest, byte[] bytes) {
+        EndpointRowBlock block = new EndpointRowBlock(digest);
+        if (bytes.length == 0) {
+            return block;
+        }
+
+        byte[] columnar;
+        try {
+            columnar = LZFDecoder.decode(bytes);
+        } catch (IOException e) {
+            throw new RuntimeException("LZF decode failure", e);
+        }
+        if (columnar.length % block.rowLen != 0) {
+            throw new IllegalArgumentException("Block of " + columnar.length + " bytes does not match row length " + block.rowLen);
+        }
+
+        int n = columnar.length / block.rowLen;
+        block.ensureCapacity(n);
+        for (int col = 0; col < digest.getColumnCount(); col++) {
+            int offset = digest.offset(col);
+            int length = digest.length(col);
+            int pos = offset * n;
+            for (int r = 0; r < n; r++) {
+                System.arraycopy(columnar, pos, block.rows, r * block.rowLen + offset, length);
+                pos += length;
+            }
+        }
+        block.rowCount = n;
+        return block;
+    }
+
+    private void ensureCapacity(int n) {
+        if (rows.length < n * rowLen) {
+            rows = Arrays.copyOf(rows, Math.max(n, rowCount * 2) * rowLen);
+        }
+    }
+}
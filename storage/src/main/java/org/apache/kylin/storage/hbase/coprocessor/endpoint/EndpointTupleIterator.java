@@ -24,12 +24,18 @@ import java.util.*;
 import com.google.common.collect.Sets;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.HConnection;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.coprocessor.Batch;
 import org.apache.hadoop.hbase.ipc.BlockingRpcCallback;
 import org.apache.hadoop.hbase.ipc.ServerRpcController;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.storage.StorageContext;
+import org.apache.kylin.storage.hbase.ParallelScanTupleIterator;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorRowType;
 import org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos;
@@ -41,6 +47,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.ServiceException;
 
 import org.apache.kylin.invertedindex.IISegment;
 import org.apache.kylin.invertedindex.index.TableRecord;
@@ -125,6 +132,16 @@ public class EndpointTupleIterator implements ITupleIterator {
         this.pushedDownAggregators = EndpointAggregators.fromFunctions(tableRecordInfo, measures);
 
         IIProtos.IIRequest endpointRequest = prepareRequest();
+        if (this.pushedDownAggregators.isEmpty()) {
+            // raw rows can be many, fetch them page by page instead of whole regions at once
+            KylinConfig config = KylinConfig.getInstanceFromEnv();
+            IIProtos.IIRequest pagedRequest = endpointRequest.toBuilder().setPageSize(config.getQueryIIEndpointPageRows()).build();
+            ParallelPageIterator pages = new ParallelPageIterator(ParallelScanTupleIterator.getSharedExecutor(config), new PageFetcher(), pagedRequest, getRegions(conn, tableName), config.getQueryScanThreadPerQuery());
+            this.regionResponsesIterator = Collections.<List<IIProtos.IIResponse.IIRow>> emptyList().iterator();
+            this.tupleIterator = new PagedTupleIterator(pages);
+            return;
+        }
+
         regionResponsesIterator = getResults(endpointRequest, table);
 
         if (this.regionResponsesIterator.hasNext()) {
@@ -195,6 +212,7 @@ public class EndpointTupleIterator implements ITupleIterator {
 
     @Override
     public void close() {
+        tupleIterator.close();
         IOUtils.closeQuietly(table);
         logger.info("Closed after " + rowsInAllMetric + " rows are fetched");
     }
@@ -228,6 +246,35 @@ public class EndpointTupleIterator implements ITupleIterator {
         return results.values().iterator();
     }
 
+    /**
+     * Start and end keys of the regions of the table, in key order.
+     */
+    private static List<Pair<byte[], byte[]>> getRegions(HConnection conn, String tableName) throws IOException {
+        List<Pair<byte[], byte[]>> regions = new ArrayList<Pair<byte[], byte[]>>();
+        for (HRegionLocation location : conn.locateRegions(TableName.valueOf(tableName))) {
+            regions.add(new Pair<byte[], byte[]>(location.getRegionInfo().getStartKey(), location.getRegionInfo().getEndKey()));
+        }
+        return regions;
+    }
+
+    /**
+     * Fetches one page from the region holding its start key. A region split
+     * since the regions were listed only means the page ends at the new
+     * region end and the next one is fetched from the other half.
+     */
+    private class PageFetcher implements ParallelPageIterator.PageFetcher {
+        @Override
+        public IIProtos.IIResponse getPage(IIProtos.IIRequest request) throws IOException {
+            byte[] startKey = request.getStartKey().toByteArray();
+            IIProtos.RowsService.BlockingInterface service = IIProtos.RowsService.newBlockingStub(table.coprocessorService(startKey));
+            try {
+                return service.getRows(null, request);
+            } catch (ServiceException e) {
+                throw new IOException("Error when fetch page from " + Bytes.toStringBinary(startKey), e);
+            }
+        }
+    }
+
     private TupleInfo buildTupleInfo() {
         TupleInfo info = new TupleInfo();
         int index = 0;
@@ -308,40 +355,109 @@ public class EndpointTupleIterator implements ITupleIterator {
 
             index++;
 
-            return makeTuple(this.tableRecord, this.measureValues);
+            return makeTuple(this.tuple, this.tableRecord, this.measureValues);
         }
 
         @Override
         public void close() {
 
         }
+    }
+
+    /**
+     * Internal class to walk the rows of non-aggregated queries page by page,
+     * holding the current page and the pages prefetched by ParallelPageIterator
+     */
+    class PagedTupleIterator implements ITupleIterator {
+        private final ParallelPageIterator pages;
 
-        private ITuple makeTuple(TableRecord tableRecord, List<Object> measureValues) {
-            // groups
-            List<String> columnValues = tableRecord.getOriginTableColumnValues();
-            for (int i = 0; i < columnNames.size(); i++) {
-                TblColRef column = columns.get(i);
-                if (!tuple.hasColumn(column)) {
-                    continue;
+        private EndpointRowBlock block;
+        private int index = 0;
+        // rows of a region server still on the coprocessor before paging
+        private SingleRegionTupleIterator legacyRows;
+
+        //not thread safe!
+        private byte[] rowBuffer;
+        private TableRecord tableRecord;
+        private Tuple tuple;
+
+        public PagedTupleIterator(ParallelPageIterator pages) {
+            this.pages = pages;
+            this.block = new EndpointRowBlock(tableRecordInfo.getDigest());
+            this.rowBuffer = new byte[tableRecordInfo.getDigest().getByteFormLen()];
+            this.tableRecord = tableRecordInfo.createTableRecord();
+            this.tuple = new Tuple(tupleInfo);
+        }
+
+        @Override
+        public boolean hasNext() {
+            // a page may come back empty when the filter rejects everything in it
+            while (index >= block.getRowCount() && (legacyRows == null || !legacyRows.hasNext())) {
+                if (!pages.hasNext()) {
+                    return false;
+                }
+                IIProtos.IIResponse response = pages.next();
+                index = 0;
+                if (response.hasRowBlock()) {
+                    block = EndpointRowBlock.decode(tableRecordInfo.getDigest(), response.getRowBlock().toByteArray());
+                    legacyRows = null;
+                } else {
+                    // an older coprocessor ignores pageSize and returns the whole region as rows
+                    block = new EndpointRowBlock(tableRecordInfo.getDigest());
+                    legacyRows = new SingleRegionTupleIterator(response.getRowsList());
                 }
-                tuple.setDimensionValue(columnNames.get(i), columnValues.get(i));
             }
+            return true;
+        }
 
-            if (measureValues != null) {
-                for (int i = 0; i < measures.size(); ++i) {
-                    if (!measures.get(i).isDimensionAsMetric()) {
-                        String fieldName = measures.get(i).getRewriteFieldName();
-                        Object value = measureValues.get(i);
-                        String dataType = tuple.getDataType(fieldName);
-                        //TODO: currently in II all metrics except HLLC is returned as String
-                        if (dataType.toLowerCase().equalsIgnoreCase("hllc")) {
-                            value = Tuple.convertOptiqCellValue((String) value, dataType);
-                        }
-                        tuple.setMeasureValue(fieldName, value);
+        @Override
+        public ITuple next() {
+            if (!hasNext()) {
+                throw new IllegalStateException("No more Tuple in the PagedTupleIterator");
+            }
+
+            if (index >= block.getRowCount()) {
+                return legacyRows.next();
+            }
+
+            block.getRow(index, rowBuffer);
+            this.tableRecord.setBytes(rowBuffer, 0, rowBuffer.length);
+            index++;
+
+            return makeTuple(this.tuple, this.tableRecord, null);
+        }
+
+        @Override
+        public void close() {
+            pages.close();
+        }
+    }
+
+    private ITuple makeTuple(Tuple tuple, TableRecord tableRecord, List<Object> measureValues) {
+        // groups
+        List<String> columnValues = tableRecord.getOriginTableColumnValues();
+        for (int i = 0; i < columnNames.size(); i++) {
+            TblColRef column = columns.get(i);
+            if (!tuple.hasColumn(column)) {
+                continue;
+            }
+            tuple.setDimensionValue(columnNames.get(i), columnValues.get(i));
+        }
+
+        if (measureValues != null) {
+            for (int i = 0; i < measures.size(); ++i) {
+                if (!measures.get(i).isDimensionAsMetric()) {
+                    String fieldName = measures.get(i).getRewriteFieldName();
+                    Object value = measureValues.get(i);
+                    String dataType = tuple.getDataType(fieldName);
+                    //TODO: currently in II all metrics except HLLC is returned as String
+                    if (dataType.toLowerCase().equalsIgnoreCase("hllc")) {
+                        value = Tuple.convertOptiqCellValue((String) value, dataType);
                     }
+                    tuple.setMeasureValue(fieldName, value);
                 }
             }
-            return tuple;
         }
+        return tuple;
     }
 }
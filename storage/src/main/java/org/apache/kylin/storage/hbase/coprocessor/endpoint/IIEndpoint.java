@@ -23,12 +23,19 @@ import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
 import com.google.protobuf.Service;
 
+import org.apache.kylin.common.util.BytesUtil;
+import org.apache.kylin.dict.Dictionary;
+import org.apache.kylin.invertedindex.index.BitMap;
+import org.apache.kylin.invertedindex.index.BitMapContainer;
+import org.apache.kylin.invertedindex.index.ColumnValueContainer;
 import org.apache.kylin.invertedindex.index.RawTableRecord;
 import org.apache.kylin.invertedindex.index.Slice;
 import org.apache.kylin.invertedindex.index.TableRecordInfoDigest;
 import org.apache.kylin.invertedindex.model.IIDesc;
 import org.apache.kylin.invertedindex.model.IIKeyValueCodec;
+import org.apache.kylin.metadata.filter.TupleFilter;
 import org.apache.kylin.metadata.measure.MeasureAggregator;
+import org.apache.kylin.metadata.model.TblColRef;
 import org.apache.kylin.storage.filter.BitMapFilterEvaluator;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorConstants;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
@@ -36,8 +43,6 @@ import org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorFilter;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorRowType;
 
-import it.uniroma3.mat.extendedset.intset.ConciseSet;
-
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.hbase.Coprocessor;
 import org.apache.hadoop.hbase.CoprocessorEnvironment;
@@ -51,14 +56,23 @@ import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by honma on 11/7/14.
  */
 public class IIEndpoint extends IIProtos.RowsService implements Coprocessor, CoprocessorService {
 
+    /**
+     * Group by columns of more distinct values than this are aggregated row by
+     * row, one bitmap intersection per value would cost more than it saves.
+     */
+    static final int BITMAP_AGGR_MAX_GROUPS = 256;
+
     private RegionCoprocessorEnvironment env;
 
     public IIEndpoint() {
@@ -71,7 +85,32 @@ public class IIEndpoint extends IIProtos.RowsService implements Coprocessor, Cop
         return scan;
     }
 
-    //TODO: protobuf does not provide built-in compression
+    /**
+     * Scan of a paged request, the requested range clipped to this region.
+     */
+    private Scan buildScan(IIProtos.IIRequest request, HRegion region) {
+        Scan scan = buildScan();
+
+        byte[] startKey = request.getStartKey().toByteArray();
+        byte[] regionStartKey = region.getStartKey();
+        scan.setStartRow(Bytes.compareTo(startKey, regionStartKey) > 0 ? startKey : regionStartKey);
+
+        byte[] endKey = request.getEndKey().toByteArray();
+        byte[] regionEndKey = region.getEndKey();
+        if (endKey.length > 0 && (regionEndKey.length == 0 || Bytes.compareTo(endKey, regionEndKey) < 0)) {
+            scan.setStopRow(endKey);
+        } else {
+            scan.setStopRow(regionEndKey);
+        }
+
+        return scan;
+    }
+
+    /**
+     * Requests with a page size and no aggregation are answered one page at a
+     * time, see getPagedResponse(). Others get all rows of the region in one
+     * response.
+     */
     @Override
     public void getRows(RpcController controller, IIProtos.IIRequest request, RpcCallback<IIProtos.IIResponse> done) {
 
@@ -92,18 +131,21 @@ public class IIEndpoint extends IIProtos.RowsService implements Coprocessor, Cop
         HRegion region = null;
         try {
             region = env.getRegion();
-            innerScanner = region.getScanner(buildScan());
+            boolean paged = request.hasPageSize() && aggregators.isEmpty();
+            innerScanner = region.getScanner(paged ? buildScan(request, region) : buildScan());
             region.startRegionOperation();
 
             synchronized (innerScanner) {
                 IIKeyValueCodec codec = new IIKeyValueCodec(tableRecordInfoDigest);
-                //TODO pass projector to codec to skip loading columns
-                Iterable<Slice> slices = codec.decodeKeyValue(new HbaseServerKVIterator(innerScanner));
+                BitSet columns = getNeededColumns(tableRecordInfoDigest, filter, type, projector, aggregators);
+                Iterable<Slice> slices = codec.decodeKeyValue(new HbaseServerKVIterator(innerScanner), columns);
 
-                if (aggregators.isEmpty()) {
+                if (paged) {
+                    response = getPagedResponse(slices, filter, type, tableRecordInfoDigest, request, region.getEndKey());
+                } else if (aggregators.isEmpty()) {
                     response = getNonAggregatedResponse(slices, filter, type);
                 } else {
-                    response = getAggregatedResponse(slices, filter, type, projector, aggregators);
+                    response = getAggregatedResponse(slices, filter, type, projector, aggregators, getGroupByColumns(tableRecordInfoDigest, projector));
                 }
             }
         } catch (IOException ioe) {
@@ -124,23 +166,58 @@ public class IIEndpoint extends IIProtos.RowsService implements Coprocessor, Cop
         done.run(response);
     }
 
+    /**
+     * Columns to decode from the region, null for all. Non-aggregated rows are
+     * returned whole; aggregated ones only need the filter, group by and
+     * measure columns.
+     */
+    private BitSet getNeededColumns(TableRecordInfoDigest digest, CoprocessorFilter filter, CoprocessorRowType type, CoprocessorProjector projector, EndpointAggregators aggregators) {
+        if (aggregators.isEmpty()) {
+            return null;
+        }
+
+        BitSet columns = new BitSet(digest.getColumnCount());
+        if (filter != null) {
+            Set<TblColRef> filterColumns = new HashSet<TblColRef>();
+            TupleFilter.collectColumns(filter.getFilter(), filterColumns);
+            for (TblColRef col : filterColumns) {
+                columns.set(type.getColIndexByTblColRef(col));
+            }
+        }
+
+        columns.or(getGroupByColumns(digest, projector));
+        aggregators.collectColumns(columns);
+        return columns;
+    }
+
+    static BitSet getGroupByColumns(TableRecordInfoDigest digest, CoprocessorProjector projector) {
+        BitSet columns = new BitSet(digest.getColumnCount());
+        byte[] groupByMask = projector.getGroupByMask();
+        for (int col = 0; col < digest.getColumnCount(); col++) {
+            for (int i = digest.offset(col), end = i + digest.length(col); i < end; i++) {
+                if (groupByMask[i] != 0) {
+                    columns.set(col);
+                    break;
+                }
+            }
+        }
+        return columns;
+    }
+
     //TODO check current memory checking is good enough
-    private IIProtos.IIResponse getAggregatedResponse(Iterable<Slice> slices, CoprocessorFilter filter, CoprocessorRowType type, CoprocessorProjector projector, EndpointAggregators aggregators) {
+    private IIProtos.IIResponse getAggregatedResponse(Iterable<Slice> slices, CoprocessorFilter filter, CoprocessorRowType type, CoprocessorProjector projector, EndpointAggregators aggregators, BitSet groupByColumns) {
         EndpointAggregationCache aggCache = new EndpointAggregationCache(aggregators);
         IIProtos.IIResponse.Builder responseBuilder = IIProtos.IIResponse.newBuilder();
         for (Slice slice : slices) {
-            ConciseSet result = null;
+            BitMap result = null;
             if (filter != null) {
                 result = new BitMapFilterEvaluator(new SliceBitMapProvider(slice, type)).evaluate(filter.getFilter());
             }
 
-            Iterator<RawTableRecord> iterator = slice.iterateWithBitmap(result);
-            while (iterator.hasNext()) {
-                byte[] data = iterator.next().getBytes();
-                CoprocessorProjector.AggrKey aggKey = projector.getAggrKey(data);
-                MeasureAggregator[] bufs = aggCache.getBuffer(aggKey);
-                aggregators.aggregate(bufs, data);
-                aggCache.checkMemoryUsage();
+            if (isBitMapAggregatable(slice, groupByColumns)) {
+                aggregateByBitMap(slice, result, groupByColumns, projector, aggregators, aggCache);
+            } else {
+                aggregateByRow(slice, result, projector, aggregators, aggCache);
             }
         }
 
@@ -156,10 +233,84 @@ public class IIEndpoint extends IIProtos.RowsService implements Coprocessor, Cop
         return responseBuilder.build();
     }
 
+    /**
+     * True if the slice can be aggregated by bitmaps, i.e. grouped by nothing
+     * or by a single bitmap indexed column of few enough values.
+     */
+    static boolean isBitMapAggregatable(Slice slice, BitSet groupByColumns) {
+        if (groupByColumns.isEmpty()) {
+            return true;
+        }
+        if (groupByColumns.cardinality() > 1) {
+            return false;
+        }
+        ColumnValueContainer container = slice.getColumnValueContainer(groupByColumns.nextSetBit(0));
+        // one more group for NULL
+        return container instanceof BitMapContainer && container.getMaxValueId() + 2 <= BITMAP_AGGR_MAX_GROUPS;
+    }
+
+    /**
+     * Aggregates each group at once over the rows in both the filter result
+     * and the bitmap of the group value, instead of looking up the group of
+     * every row. Group keys are laid out as the row path makes them, so slices
+     * of either path add up in the same cache.
+     */
+    static void aggregateByBitMap(Slice slice, BitMap filterResult, BitSet groupByColumns, CoprocessorProjector projector, EndpointAggregators aggregators, EndpointAggregationCache aggCache) {
+        TableRecordInfoDigest digest = aggregators.getTableRecordInfoDigest();
+        byte[] keyRow = new byte[digest.getByteFormLen()]; // only the group by bytes count
+
+        int col = groupByColumns.nextSetBit(0);
+        if (col < 0) {
+            BitMap rows = filterResult;
+            if (rows == null) {
+                rows = slice.getBitMapFormat().create();
+                rows.complement(slice.getRecordCount());
+            }
+            if (rows.isEmpty() == false) {
+                aggregators.aggregate(aggCache.getBuffer(projector.getAggrKey(keyRow)), rows, slice);
+                aggCache.checkMemoryUsage();
+            }
+            return;
+        }
+
+        BitMapContainer container = (BitMapContainer) slice.getColumnValueContainer(col);
+        int nValues = container.getMaxValueId() + 1;
+        for (int v = 0; v <= nValues; v++) {
+            BitMap rows = container.getValueBitMap(v);
+            if (filterResult != null) {
+                rows = rows.clone();
+                rows.and(filterResult);
+            }
+            if (rows.isEmpty()) {
+                continue;
+            }
+
+            int valueId = v == nValues ? Dictionary.NULL_ID[digest.length(col)] : v;
+            BytesUtil.writeUnsigned(valueId, keyRow, digest.offset(col), digest.length(col));
+            aggregators.aggregate(aggCache.getBuffer(projector.getAggrKey(keyRow)), rows, slice);
+            aggCache.checkMemoryUsage();
+        }
+    }
+
+    /**
+     * Aggregates the rows in the filter result one by one, all rows if there
+     * is no filter.
+     */
+    static void aggregateByRow(Slice slice, BitMap filterResult, CoprocessorProjector projector, EndpointAggregators aggregators, EndpointAggregationCache aggCache) {
+        Iterator<RawTableRecord> iterator = slice.iterateWithBitmap(filterResult);
+        while (iterator.hasNext()) {
+            byte[] data = iterator.next().getBytes();
+            CoprocessorProjector.AggrKey aggKey = projector.getAggrKey(data);
+            MeasureAggregator[] bufs = aggCache.getBuffer(aggKey);
+            aggregators.aggregate(bufs, data);
+            aggCache.checkMemoryUsage();
+        }
+    }
+
     private IIProtos.IIResponse getNonAggregatedResponse(Iterable<Slice> slices, CoprocessorFilter filter, CoprocessorRowType type) {
         IIProtos.IIResponse.Builder responseBuilder = IIProtos.IIResponse.newBuilder();
         for (Slice slice : slices) {
-            ConciseSet result = null;
+            BitMap result = null;
             if (filter != null) {
                 result = new BitMapFilterEvaluator(new SliceBitMapProvider(slice, type)).evaluate(filter.getFilter());
             }
@@ -175,6 +326,67 @@ public class IIEndpoint extends IIProtos.RowsService implements Coprocessor, Cop
         return responseBuilder.build();
     }
 
+    /**
+     * Returns whole slices until the page holds at least pageSize rows. Rows go
+     * into a columnar, LZF compressed EndpointRowBlock. The client asks again
+     * from nextStartKey, which is absent once the requested range is done. Only
+     * one page is held in memory on either side.
+     */
+    static IIProtos.IIResponse getPagedResponse(Iterable<Slice> slices, CoprocessorFilter filter, CoprocessorRowType type, TableRecordInfoDigest digest, IIProtos.IIRequest request, byte[] regionEndKey) {
+        EndpointRowBlock block = new EndpointRowBlock(digest);
+        byte[] nextStartKey = null;
+
+        Iterator<Slice> sliceIterator = slices.iterator();
+        while (sliceIterator.hasNext()) {
+            Slice slice = sliceIterator.next();
+            BitMap result = null;
+            if (filter != null) {
+                result = new BitMapFilterEvaluator(new SliceBitMapProvider(slice, type)).evaluate(filter.getFilter());
+            }
+
+            Iterator<RawTableRecord> iterator = slice.iterateWithBitmap(result);
+            while (iterator.hasNext()) {
+                block.append(iterator.next().getBytes());
+            }
+
+            if (block.getRowCount() >= request.getPageSize() && sliceIterator.hasNext()) {
+                nextStartKey = getKeyAfter(slice);
+                break;
+            }
+        }
+
+        // region done, continue in the next region if the requested range goes beyond
+        if (nextStartKey == null) {
+            byte[] endKey = request.getEndKey().toByteArray();
+            if (regionEndKey.length > 0 && (endKey.length == 0 || Bytes.compareTo(regionEndKey, endKey) < 0)) {
+                nextStartKey = regionEndKey;
+            }
+        }
+
+        IIProtos.IIResponse.Builder responseBuilder = IIProtos.IIResponse.newBuilder();
+        responseBuilder.setRowBlock(ByteString.copyFrom(block.encode()));
+        if (nextStartKey != null) {
+            responseBuilder.setNextStartKey(ByteString.copyFrom(nextStartKey));
+        }
+        return responseBuilder.build();
+    }
+
+    /**
+     * The smallest row key after all keys of the slice, i.e. its shard and
+     * timestamp prefix plus one.
+     */
+    static byte[] getKeyAfter(Slice slice) {
+        byte[] key = new byte[IIKeyValueCodec.SHARD_LEN + IIKeyValueCodec.TIMEPART_LEN];
+        BytesUtil.writeUnsigned(slice.getShard(), key, 0, IIKeyValueCodec.SHARD_LEN);
+        BytesUtil.writeLong(slice.getTimestamp(), key, IIKeyValueCodec.SHARD_LEN, IIKeyValueCodec.TIMEPART_LEN);
+        for (int i = key.length - 1; i >= 0; i--) {
+            if (++key[i] != 0) {
+                return key;
+            }
+        }
+        return null; // no key after the last possible prefix
+    }
+
     @Override
     public void start(CoprocessorEnvironment env) throws IOException {
         if (env instanceof RegionCoprocessorEnvironment) {
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.endpoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.kylin.common.persistence.StorageException;
+import org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Fetches the pages of a paged IIRequest region by region, up to maxInFlight
+ * regions at a time. Each region has one page in flight, the next page of a
+ * region is asked for as soon as the previous one is taken, so at most
+ * maxInFlight pages wait besides the one being consumed. Pages of different
+ * regions come interleaved.
+ */
+class ParallelPageIterator implements Iterator<IIProtos.IIResponse>, Closeable {
+
+    /**
+     * Fetches one page, the request carries the start key and the end key of
+     * the region.
+     */
+    interface PageFetcher {
+        IIProtos.IIResponse getPage(IIProtos.IIRequest request) throws IOException;
+    }
+
+    private static class RegionCursor {
+        final byte[] endKey;
+        Future<IIProtos.IIResponse> page;
+
+        RegionCursor(byte[] endKey) {
+            this.endKey = endKey;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final PageFetcher fetcher;
+    private final IIProtos.IIRequest request;
+    private final int maxInFlight;
+
+    private final Queue<Pair<byte[], byte[]>> pendingRegions;
+    private final LinkedList<RegionCursor> activeRegions = new LinkedList<RegionCursor>();
+
+    /**
+     * @param regions
+     *            start and end key of each region, empty for the table start
+     *            or end
+     */
+    ParallelPageIterator(ExecutorService executor, PageFetcher fetcher, IIProtos.IIRequest request, List<Pair<byte[], byte[]>> regions, int maxInFlight) {
+        this.executor = executor;
+        this.fetcher = fetcher;
+        this.request = request;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.pendingRegions = new ArrayDeque<Pair<byte[], byte[]>>(regions);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (activeRegions.size() < maxInFlight && pendingRegions.isEmpty() == false) {
+            Pair<byte[], byte[]> region = pendingRegions.poll();
+            RegionCursor cursor = new RegionCursor(region.getSecond());
+            cursor.page = submit(region.getFirst(), cursor.endKey);
+            activeRegions.add(cursor);
+        }
+        return activeRegions.isEmpty() == false;
+    }
+
+    @Override
+    public IIProtos.IIResponse next() {
+        if (hasNext() == false)
+            throw new NoSuchElementException();
+
+        RegionCursor cursor = activeRegions.removeFirst();
+        IIProtos.IIResponse page = await(cursor.page);
+        if (page.hasNextStartKey()) {
+            // prefetch the next page of the region, then give other regions a turn
+            cursor.page = submit(page.getNextStartKey().toByteArray(), cursor.endKey);
+            activeRegions.addLast(cursor);
+        }
+        return page;
+    }
+
+    private Future<IIProtos.IIResponse> submit(byte[] startKey, byte[] endKey) {
+        final IIProtos.IIRequest pageRequest = request.toBuilder().setStartKey(ByteString.copyFrom(startKey)).setEndKey(ByteString.copyFrom(endKey)).build();
+        return executor.submit(new Callable<IIProtos.IIResponse>() {
+            @Override
+            public IIProtos.IIResponse call() throws Exception {
+                return fetcher.getPage(pageRequest);
+            }
+        });
+    }
+
+    private IIProtos.IIResponse await(Future<IIProtos.IIResponse> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted when waiting for endpoint page", e);
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new StorageException("Error when fetch endpoint page", cause);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Cancels the pages in flight, the executor is shared and stays up.
+     */
+    @Override
+    public void close() {
+        for (RegionCursor cursor : activeRegions) {
+            cursor.page.cancel(true);
+        }
+        activeRegions.clear();
+        pendingRegions.clear();
+    }
+}
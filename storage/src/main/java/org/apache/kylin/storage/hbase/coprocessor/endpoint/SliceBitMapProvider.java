@@ -18,13 +18,12 @@
 
 package org.apache.kylin.storage.hbase.coprocessor.endpoint;
 
+import org.apache.kylin.invertedindex.index.BitMap;
 import org.apache.kylin.invertedindex.index.Slice;
 import org.apache.kylin.metadata.model.TblColRef;
 import org.apache.kylin.storage.filter.BitMapFilterEvaluator;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorRowType;
 
-import it.uniroma3.mat.extendedset.intset.ConciseSet;
-
 /**
  * Created by Hongbin Ma(Binmahone) on 11/24/14.
  * <p/>
@@ -42,10 +41,15 @@ public class SliceBitMapProvider implements BitMapFilterEvaluator.BitMapProvider
 
 
     @Override
-    public ConciseSet getBitMap(TblColRef col, Integer startId, Integer endId) {
+    public BitMap getBitMap(TblColRef col, Integer startId, Integer endId) {
         return slice.getColumnValueContainer(type.getColIndexByTblColRef(col)).getBitMap(startId,endId);
     }
 
+    @Override
+    public BitMap newBitMap() {
+        return slice.getBitMapFormat().create();
+    }
+
     @Override
     public int getRecordCount() {
         return this.slice.getRecordCount();
@@ -55,6 +55,39 @@ public final class IIProtos {
          * <code>required bytes aggregator = 4;</code>
          */
         com.google.protobuf.ByteString getAggregator();
+
+        // optional bytes startKey = 5;
+        /**
+         * <code>optional bytes startKey = 5;</code>
+         */
+        boolean hasStartKey();
+
+        /**
+         * <code>optional bytes startKey = 5;</code>
+         */
+        com.google.protobuf.ByteString getStartKey();
+
+        // optional bytes endKey = 6;
+        /**
+         * <code>optional bytes endKey = 6;</code>
+         */
+        boolean hasEndKey();
+
+        /**
+         * <code>optional bytes endKey = 6;</code>
+         */
+        com.google.protobuf.ByteString getEndKey();
+
+        // optional int32 pageSize = 7;
+        /**
+         * <code>optional int32 pageSize = 7;</code>
+         */
+        boolean hasPageSize();
+
+        /**
+         * <code>optional int32 pageSize = 7;</code>
+         */
+        int getPageSize();
     }
 
     /**
@@ -126,6 +159,21 @@ public final class IIProtos {
                         aggregator_ = input.readBytes();
                         break;
                     }
+                    case 42: {
+                        bitField0_ |= 0x00000010;
+                        startKey_ = input.readBytes();
+                        break;
+                    }
+                    case 50: {
+                        bitField0_ |= 0x00000020;
+                        endKey_ = input.readBytes();
+                        break;
+                    }
+                    case 56: {
+                        bitField0_ |= 0x00000040;
+                        pageSize_ = input.readInt32();
+                        break;
+                    }
                     }
                 }
             } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -230,11 +278,68 @@ public final class IIProtos {
             return aggregator_;
         }
 
+        // optional bytes startKey = 5;
+        public static final int STARTKEY_FIELD_NUMBER = 5;
+        private com.google.protobuf.ByteString startKey_;
+
+        /**
+         * <code>optional bytes startKey = 5;</code>
+         */
+        public boolean hasStartKey() {
+            return ((bitField0_ & 0x00000010) == 0x00000010);
+        }
+
+        /**
+         * <code>optional bytes startKey = 5;</code>
+         */
+        public com.google.protobuf.ByteString getStartKey() {
+            return startKey_;
+        }
+
+        // optional bytes endKey = 6;
+        public static final int ENDKEY_FIELD_NUMBER = 6;
+        private com.google.protobuf.ByteString endKey_;
+
+        /**
+         * <code>optional bytes endKey = 6;</code>
+         */
+        public boolean hasEndKey() {
+            return ((bitField0_ & 0x00000020) == 0x00000020);
+        }
+
+        /**
+         * <code>optional bytes endKey = 6;</code>
+         */
+        public com.google.protobuf.ByteString getEndKey() {
+            return endKey_;
+        }
+
+        // optional int32 pageSize = 7;
+        public static final int PAGESIZE_FIELD_NUMBER = 7;
+        private int pageSize_;
+
+        /**
+         * <code>optional int32 pageSize = 7;</code>
+         */
+        public boolean hasPageSize() {
+            return ((bitField0_ & 0x00000040) == 0x00000040);
+        }
+
+        /**
+         * <code>optional int32 pageSize = 7;</code>
+         */
+        public int getPageSize() {
+            return pageSize_;
+        }
+
         private void initFields() {
             type_ = com.google.protobuf.ByteString.EMPTY;
             filter_ = com.google.protobuf.ByteString.EMPTY;
             projector_ = com.google.protobuf.ByteString.EMPTY;
             aggregator_ = com.google.protobuf.ByteString.EMPTY;
+            startKey_ = com.google.protobuf.ByteString.EMPTY;
+            endKey_ = com.google.protobuf.ByteString.EMPTY;
+            pageSize_ = 0;
         }
 
         private byte memoizedIsInitialized = -1;
@@ -278,6 +383,15 @@ public final class IIProtos {
             if (((bitField0_ & 0x00000008) == 0x00000008)) {
                 output.writeBytes(4, aggregator_);
             }
+            if (((bitField0_ & 0x00000010) == 0x00000010)) {
+                output.writeBytes(5, startKey_);
+            }
+            if (((bitField0_ & 0x00000020) == 0x00000020)) {
+                output.writeBytes(6, endKey_);
+            }
+            if (((bitField0_ & 0x00000040) == 0x00000040)) {
+                output.writeInt32(7, pageSize_);
+            }
             getUnknownFields().writeTo(output);
         }
 
@@ -301,6 +415,15 @@ public final class IIProtos {
             if (((bitField0_ & 0x00000008) == 0x00000008)) {
                 size += com.google.protobuf.CodedOutputStream.computeBytesSize(4, aggregator_);
             }
+            if (((bitField0_ & 0x00000010) == 0x00000010)) {
+                size += com.google.protobuf.CodedOutputStream.computeBytesSize(5, startKey_);
+            }
+            if (((bitField0_ & 0x00000020) == 0x00000020)) {
+                size += com.google.protobuf.CodedOutputStream.computeBytesSize(6, endKey_);
+            }
+            if (((bitField0_ & 0x00000040) == 0x00000040)) {
+                size += com.google.protobuf.CodedOutputStream.computeInt32Size(7, pageSize_);
+            }
             size += getUnknownFields().getSerializedSize();
             memoizedSerializedSize = size;
             return size;
@@ -340,6 +463,18 @@ public final class IIProtos {
             if (hasAggregator()) {
                 result = result && getAggregator().equals(other.getAggregator());
             }
+            result = result && (hasStartKey() == other.hasStartKey());
+            if (hasStartKey()) {
+                result = result && getStartKey().equals(other.getStartKey());
+            }
+            result = result && (hasEndKey() == other.hasEndKey());
+            if (hasEndKey()) {
+                result = result && getEndKey().equals(other.getEndKey());
+            }
+            result = result && (hasPageSize() == other.hasPageSize());
+            if (hasPageSize()) {
+                result = result && (getPageSize() == other.getPageSize());
+            }
             result = result && getUnknownFields().equals(other.getUnknownFields());
             return result;
         }
@@ -369,6 +504,18 @@ public final class IIProtos {
                 hash = (37 * hash) + AGGREGATOR_FIELD_NUMBER;
                 hash = (53 * hash) + getAggregator().hashCode();
             }
+            if (hasStartKey()) {
+                hash = (37 * hash) + STARTKEY_FIELD_NUMBER;
+                hash = (53 * hash) + getStartKey().hashCode();
+            }
+            if (hasEndKey()) {
+                hash = (37 * hash) + ENDKEY_FIELD_NUMBER;
+                hash = (53 * hash) + getEndKey().hashCode();
+            }
+            if (hasPageSize()) {
+                hash = (37 * hash) + PAGESIZE_FIELD_NUMBER;
+                hash = (53 * hash) + getPageSize();
+            }
             hash = (29 * hash) + getUnknownFields().hashCode();
             memoizedHashCode = hash;
             return hash;
@@ -477,6 +624,12 @@ public final class IIProtos {
                 bitField0_ = (bitField0_ & ~0x00000004);
                 aggregator_ = com.google.protobuf.ByteString.EMPTY;
                 bitField0_ = (bitField0_ & ~0x00000008);
+                startKey_ = com.google.protobuf.ByteString.EMPTY;
+                bitField0_ = (bitField0_ & ~0x00000010);
+                endKey_ = com.google.protobuf.ByteString.EMPTY;
+                bitField0_ = (bitField0_ & ~0x00000020);
+                pageSize_ = 0;
+                bitField0_ = (bitField0_ & ~0x00000040);
                 return this;
             }
 
@@ -520,6 +673,18 @@ public final class IIProtos {
                     to_bitField0_ |= 0x00000008;
                 }
                 result.aggregator_ = aggregator_;
+                if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+                    to_bitField0_ |= 0x00000010;
+                }
+                result.startKey_ = startKey_;
+                if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+                    to_bitField0_ |= 0x00000020;
+                }
+                result.endKey_ = endKey_;
+                if (((from_bitField0_ & 0x00000040) == 0x00000040)) {
+                    to_bitField0_ |= 0x00000040;
+                }
+                result.pageSize_ = pageSize_;
                 result.bitField0_ = to_bitField0_;
                 onBuilt();
                 return result;
@@ -549,6 +714,15 @@ public final class IIProtos {
                 if (other.hasAggregator()) {
                     setAggregator(other.getAggregator());
                 }
+                if (other.hasStartKey()) {
+                    setStartKey(other.getStartKey());
+                }
+                if (other.hasEndKey()) {
+                    setEndKey(other.getEndKey());
+                }
+                if (other.hasPageSize()) {
+                    setPageSize(other.getPageSize());
+                }
                 this.mergeUnknownFields(other.getUnknownFields());
                 return this;
             }
@@ -750,6 +924,123 @@ public final class IIProtos {
                 return this;
             }
 
+            // optional bytes startKey = 5;
+            private com.google.protobuf.ByteString startKey_ = com.google.protobuf.ByteString.EMPTY;
+
+            /**
+             * <code>optional bytes startKey = 5;</code>
+             */
+            public boolean hasStartKey() {
+                return ((bitField0_ & 0x00000010) == 0x00000010);
+            }
+
+            /**
+             * <code>optional bytes startKey = 5;</code>
+             */
+            public com.google.protobuf.ByteString getStartKey() {
+                return startKey_;
+            }
+
+            /**
+             * <code>optional bytes startKey = 5;</code>
+             */
+            public Builder setStartKey(com.google.protobuf.ByteString value) {
+                if (value == null) {
+                    throw new NullPointerException();
+                }
+                bitField0_ |= 0x00000010;
+                startKey_ = value;
+                onChanged();
+                return this;
+            }
+
+            /**
+             * <code>optional bytes startKey = 5;</code>
+             */
+            public Builder clearStartKey() {
+                bitField0_ = (bitField0_ & ~0x00000010);
+                startKey_ = getDefaultInstance().getStartKey();
+                onChanged();
+                return this;
+            }
+
+            // optional bytes endKey = 6;
+            private com.google.protobuf.ByteString endKey_ = com.google.protobuf.ByteString.EMPTY;
+
+            /**
+             * <code>optional bytes endKey = 6;</code>
+             */
+            public boolean hasEndKey() {
+                return ((bitField0_ & 0x00000020) == 0x00000020);
+            }
+
+            /**
+             * <code>optional bytes endKey = 6;</code>
+             */
+            public com.google.protobuf.ByteString getEndKey() {
+                return endKey_;
+            }
+
+            /**
+             * <code>optional bytes endKey = 6;</code>
+             */
+            public Builder setEndKey(com.google.protobuf.ByteString value) {
+                if (value == null) {
+                    throw new NullPointerException();
+                }
+                bitField0_ |= 0x00000020;
+                endKey_ = value;
+                onChanged();
+                return this;
+            }
+
+            /**
+             * <code>optional bytes endKey = 6;</code>
+             */
+            public Builder clearEndKey() {
+                bitField0_ = (bitField0_ & ~0x00000020);
+                endKey_ = getDefaultInstance().getEndKey();
+                onChanged();
+                return this;
+            }
+
+            // optional int32 pageSize = 7;
+            private int pageSize_ ;
+
+            /**
+             * <code>optional int32 pageSize = 7;</code>
+             */
+            public boolean hasPageSize() {
+                return ((bitField0_ & 0x00000040) == 0x00000040);
+            }
+
+            /**
+             * <code>optional int32 pageSize = 7;</code>
+             */
+            public int getPageSize() {
+                return pageSize_;
+            }
+
+            /**
+             * <code>optional int32 pageSize = 7;</code>
+             */
+            public Builder setPageSize(int value) {
+                bitField0_ |= 0x00000040;
+                pageSize_ = value;
+                onChanged();
+                return this;
+            }
+
+            /**
+             * <code>optional int32 pageSize = 7;</code>
+             */
+            public Builder clearPageSize() {
+                bitField0_ = (bitField0_ & ~0x00000040);
+                pageSize_ = 0;
+                onChanged();
+                return this;
+            }
+
             // @@protoc_insertion_point(builder_scope:IIRequest)
         }
 
@@ -788,6 +1079,28 @@ public final class IIProtos {
          * <code>repeated .IIResponse.IIRow rows = 1;</code>
          */
         org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos.IIResponse.IIRowOrBuilder getRowsOrBuilder(int index);
+
+        // optional bytes rowBlock = 2;
+        /**
+         * <code>optional bytes rowBlock = 2;</code>
+         */
+        boolean hasRowBlock();
+
+        /**
+         * <code>optional bytes rowBlock = 2;</code>
+         */
+        com.google.protobuf.ByteString getRowBlock();
+
+        // optional bytes nextStartKey = 3;
+        /**
+         * <code>optional bytes nextStartKey = 3;</code>
+         */
+        boolean hasNextStartKey();
+
+        /**
+         * <code>optional bytes nextStartKey = 3;</code>
+         */
+        com.google.protobuf.ByteString getNextStartKey();
     }
 
     /**
@@ -847,6 +1160,16 @@ public final class IIProtos {
                         rows_.add(input.readMessage(org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos.IIResponse.IIRow.PARSER, extensionRegistry));
                         break;
                     }
+                    case 18: {
+                        bitField0_ |= 0x00000001;
+                        rowBlock_ = input.readBytes();
+                        break;
+                    }
+                    case 26: {
+                        bitField0_ |= 0x00000002;
+                        nextStartKey_ = input.readBytes();
+                        break;
+                    }
                     }
                 }
             } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -1412,6 +1735,7 @@ public final class IIProtos {
             // @@protoc_insertion_point(class_scope:IIResponse.IIRow)
         }
 
+        private int bitField0_;
         // repeated .IIResponse.IIRow rows = 1;
         public static final int ROWS_FIELD_NUMBER = 1;
         private java.util.List<org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos.IIResponse.IIRow> rows_;
@@ -1451,8 +1775,46 @@ public final class IIProtos {
             return rows_.get(index);
         }
 
+        // optional bytes rowBlock = 2;
+        public static final int ROWBLOCK_FIELD_NUMBER = 2;
+        private com.google.protobuf.ByteString rowBlock_;
+
+        /**
+         * <code>optional bytes rowBlock = 2;</code>
+         */
+        public boolean hasRowBlock() {
+            return ((bitField0_ & 0x00000001) == 0x00000001);
+        }
+
+        /**
+         * <code>optional bytes rowBlock = 2;</code>
+         */
+        public com.google.protobuf.ByteString getRowBlock() {
+            return rowBlock_;
+        }
+
+        // optional bytes nextStartKey = 3;
+        public static final int NEXTSTARTKEY_FIELD_NUMBER = 3;
+        private com.google.protobuf.ByteString nextStartKey_;
+
+        /**
+         * <code>optional bytes nextStartKey = 3;</code>
+         */
+        public boolean hasNextStartKey() {
+            return ((bitField0_ & 0x00000002) == 0x00000002);
+        }
+
+        /**
+         * <code>optional bytes nextStartKey = 3;</code>
+         */
+        public com.google.protobuf.ByteString getNextStartKey() {
+            return nextStartKey_;
+        }
+
         private void initFields() {
             rows_ = java.util.Collections.emptyList();
+            rowBlock_ = com.google.protobuf.ByteString.EMPTY;
+            nextStartKey_ = com.google.protobuf.ByteString.EMPTY;
         }
 
         private byte memoizedIsInitialized = -1;
@@ -1477,6 +1839,12 @@ public final class IIProtos {
             for (int i = 0; i < rows_.size(); i++) {
                 output.writeMessage(1, rows_.get(i));
             }
+            if (((bitField0_ & 0x00000001) == 0x00000001)) {
+                output.writeBytes(2, rowBlock_);
+            }
+            if (((bitField0_ & 0x00000002) == 0x00000002)) {
+                output.writeBytes(3, nextStartKey_);
+            }
             getUnknownFields().writeTo(output);
         }
 
@@ -1491,6 +1859,12 @@ public final class IIProtos {
             for (int i = 0; i < rows_.size(); i++) {
                 size += com.google.protobuf.CodedOutputStream.computeMessageSize(1, rows_.get(i));
             }
+            if (((bitField0_ & 0x00000001) == 0x00000001)) {
+                size += com.google.protobuf.CodedOutputStream.computeBytesSize(2, rowBlock_);
+            }
+            if (((bitField0_ & 0x00000002) == 0x00000002)) {
+                size += com.google.protobuf.CodedOutputStream.computeBytesSize(3, nextStartKey_);
+            }
             size += getUnknownFields().getSerializedSize();
             memoizedSerializedSize = size;
             return size;
@@ -1515,6 +1889,14 @@ public final class IIProtos {
 
             boolean result = true;
             result = result && getRowsList().equals(other.getRowsList());
+            result = result && (hasRowBlock() == other.hasRowBlock());
+            if (hasRowBlock()) {
+                result = result && getRowBlock().equals(other.getRowBlock());
+            }
+            result = result && (hasNextStartKey() == other.hasNextStartKey());
+            if (hasNextStartKey()) {
+                result = result && getNextStartKey().equals(other.getNextStartKey());
+            }
             result = result && getUnknownFields().equals(other.getUnknownFields());
             return result;
         }
@@ -1532,6 +1914,14 @@ public final class IIProtos {
                 hash = (37 * hash) + ROWS_FIELD_NUMBER;
                 hash = (53 * hash) + getRowsList().hashCode();
             }
+            if (hasRowBlock()) {
+                hash = (37 * hash) + ROWBLOCK_FIELD_NUMBER;
+                hash = (53 * hash) + getRowBlock().hashCode();
+            }
+            if (hasNextStartKey()) {
+                hash = (37 * hash) + NEXTSTARTKEY_FIELD_NUMBER;
+                hash = (53 * hash) + getNextStartKey().hashCode();
+            }
             hash = (29 * hash) + getUnknownFields().hashCode();
             memoizedHashCode = hash;
             return hash;
@@ -1639,6 +2029,10 @@ public final class IIProtos {
                 } else {
                     rowsBuilder_.clear();
                 }
+                rowBlock_ = com.google.protobuf.ByteString.EMPTY;
+                bitField0_ = (bitField0_ & ~0x00000002);
+                nextStartKey_ = com.google.protobuf.ByteString.EMPTY;
+                bitField0_ = (bitField0_ & ~0x00000004);
                 return this;
             }
 
@@ -1665,6 +2059,7 @@ public final class IIProtos {
             public org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos.IIResponse buildPartial() {
                 org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos.IIResponse result = new org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos.IIResponse(this);
                 int from_bitField0_ = bitField0_;
+                int to_bitField0_ = 0;
                 if (rowsBuilder_ == null) {
                     if (((bitField0_ & 0x00000001) == 0x00000001)) {
                         rows_ = java.util.Collections.unmodifiableList(rows_);
@@ -1674,6 +2069,15 @@ public final class IIProtos {
                 } else {
                     result.rows_ = rowsBuilder_.build();
                 }
+                if (((from_bitField0_ & 0x00000002) == 0x00000002)) {
+                    to_bitField0_ |= 0x00000001;
+                }
+                result.rowBlock_ = rowBlock_;
+                if (((from_bitField0_ & 0x00000004) == 0x00000004)) {
+                    to_bitField0_ |= 0x00000002;
+                }
+                result.nextStartKey_ = nextStartKey_;
+                result.bitField0_ = to_bitField0_;
                 onBuilt();
                 return result;
             }
@@ -1714,6 +2118,12 @@ public final class IIProtos {
                         }
                     }
                 }
+                if (other.hasRowBlock()) {
+                    setRowBlock(other.getRowBlock());
+                }
+                if (other.hasNextStartKey()) {
+                    setNextStartKey(other.getNextStartKey());
+                }
                 this.mergeUnknownFields(other.getUnknownFields());
                 return this;
             }
@@ -1983,6 +2393,86 @@ public final class IIProtos {
                 return rowsBuilder_;
             }
 
+            // optional bytes rowBlock = 2;
+            private com.google.protobuf.ByteString rowBlock_ = com.google.protobuf.ByteString.EMPTY;
+
+            /**
+             * <code>optional bytes rowBlock = 2;</code>
+             */
+            public boolean hasRowBlock() {
+                return ((bitField0_ & 0x00000002) == 0x00000002);
+            }
+
+            /**
+             * <code>optional bytes rowBlock = 2;</code>
+             */
+            public com.google.protobuf.ByteString getRowBlock() {
+                return rowBlock_;
+            }
+
+            /**
+             * <code>optional bytes rowBlock = 2;</code>
+             */
+            public Builder setRowBlock(com.google.protobuf.ByteString value) {
+                if (value == null) {
+                    throw new NullPointerException();
+                }
+                bitField0_ |= 0x00000002;
+                rowBlock_ = value;
+                onChanged();
+                return this;
+            }
+
+            /**
+             * <code>optional bytes rowBlock = 2;</code>
+             */
+            public Builder clearRowBlock() {
+                bitField0_ = (bitField0_ & ~0x00000002);
+                rowBlock_ = getDefaultInstance().getRowBlock();
+                onChanged();
+                return this;
+            }
+
+            // optional bytes nextStartKey = 3;
+            private com.google.protobuf.ByteString nextStartKey_ = com.google.protobuf.ByteString.EMPTY;
+
+            /**
+             * <code>optional bytes nextStartKey = 3;</code>
+             */
+            public boolean hasNextStartKey() {
+                return ((bitField0_ & 0x00000004) == 0x00000004);
+            }
+
+            /**
+             * <code>optional bytes nextStartKey = 3;</code>
+             */
+            public com.google.protobuf.ByteString getNextStartKey() {
+                return nextStartKey_;
+            }
+
+            /**
+             * <code>optional bytes nextStartKey = 3;</code>
+             */
+            public Builder setNextStartKey(com.google.protobuf.ByteString value) {
+                if (value == null) {
+                    throw new NullPointerException();
+                }
+                bitField0_ |= 0x00000004;
+                nextStartKey_ = value;
+                onChanged();
+                return this;
+            }
+
+            /**
+             * <code>optional bytes nextStartKey = 3;</code>
+             */
+            public Builder clearNextStartKey() {
+                bitField0_ = (bitField0_ & ~0x00000004);
+                nextStartKey_ = getDefaultInstance().getNextStartKey();
+                onChanged();
+                return this;
+            }
+
             // @@protoc_insertion_point(builder_scope:IIResponse)
         }
 
@@ -2171,14 +2661,14 @@ public final class IIProtos {
 
     private static com.google.protobuf.Descriptors.FileDescriptor descriptor;
     static {
-        java.lang.String[] descriptorData = { "\n[storage/src/main/java/org/apache/kylin" + "/storage/hbase/coprocessor/endpoint/prot" + "obuf/II.proto\"P\n\tIIRequest\022\014\n\004type\030\001 \002(\014" + "\022\016\n\006filter\030\002 \002(\014\022\021\n\tprojector\030\003 \002(\014\022\022\n\na" + "ggregator\030\004 \002(\014\"Y\n\nIIResponse\022\037\n\004rows\030\001 " + "\003(\0132\021.IIResponse.IIRow\032*\n\005IIRow\022\017\n\007colum" + "ns\030\001 \002(\014\022\020\n\010measures\030\002 \001(\01421\n\013RowsServic" + "e\022\"\n\007getRows\022\n.IIRequest\032\013.IIResponseBQ\n" + "=org.apache.kylin.storage.hbase.coproces" + "sor.endpoint.generatedB\010IIProtosH\001\210\001\001\240\001\001" };
+        java.lang.String[] descriptorData = { "\n[storage/src/main/java/org/apache/kylin" + "/storage/hbase/coprocessor/endpoint/prot" + "obuf/II.proto\"\204\001\n\tIIRequest\022\014\n\004type\030\001 \002(" + "\014\022\016\n\006filter\030\002 \002(\014\022\021\n\tprojector\030\003 \002(\014\022\022\n\n" + "aggregator\030\004 \002(\014\022\020\n\010startKey\030\005 \001(\014\022\016\n\006en" + "dKey\030\006 \001(\014\022\020\n\010pageSize\030\007 \001(\005\"\201\001\n\nIIRespo" + "nse\022\037\n\004rows\030\001 \003(\0132\021.IIResponse.IIRow\022\020\n\010" + "rowBlock\030\002 \001(\014\022\024\n\014nextStartKey\030\003 \001(\014\032*\n\005" + "IIRow\022\017\n\007columns\030\001 \002(\014\022\020\n\010measures\030\002 \001(\014" + "21\n\013RowsService\022\"\n\007getRows\022\n.IIRequest\032\013" + ".IIResponseBQ\n=org.apache.kylin.storage." + "hbase.coprocessor.endpoint.generatedB\010II" + "ProtosH\001\210\001\001\240\001\001" };
         com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner = new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
             public com.google.protobuf.ExtensionRegistry assignDescriptors(com.google.protobuf.Descriptors.FileDescriptor root) {
                 descriptor = root;
                 internal_static_IIRequest_descriptor = getDescriptor().getMessageTypes().get(0);
-                internal_static_IIRequest_fieldAccessorTable = new com.google.protobuf.GeneratedMessage.FieldAccessorTable(internal_static_IIRequest_descriptor, new java.lang.String[] { "Type", "Filter", "Projector", "Aggregator", });
+                internal_static_IIRequest_fieldAccessorTable = new com.google.protobuf.GeneratedMessage.FieldAccessorTable(internal_static_IIRequest_descriptor, new java.lang.String[] { "Type", "Filter", "Projector", "Aggregator", "StartKey", "EndKey", "PageSize", });
                 internal_static_IIResponse_descriptor = getDescriptor().getMessageTypes().get(1);
-                internal_static_IIResponse_fieldAccessorTable = new com.google.protobuf.GeneratedMessage.FieldAccessorTable(internal_static_IIResponse_descriptor, new java.lang.String[] { "Rows", });
+                internal_static_IIResponse_fieldAccessorTable = new com.google.protobuf.GeneratedMessage.FieldAccessorTable(internal_static_IIResponse_descriptor, new java.lang.String[] { "Rows", "RowBlock", "NextStartKey", });
                 internal_static_IIResponse_IIRow_descriptor = internal_static_IIResponse_descriptor.getNestedTypes().get(0);
                 internal_static_IIResponse_IIRow_fieldAccessorTable = new com.google.protobuf.GeneratedMessage.FieldAccessorTable(internal_static_IIResponse_IIRow_descriptor, new java.lang.String[] { "Columns", "Measures", });
                 return null;
@@ -32,6 +32,7 @@ import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
 import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.regionserver.RegionCoprocessorHost;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
 
 /**
  * @author yangli9
@@ -46,6 +47,16 @@ public class AggregateRegionObserver extends BaseRegionObserver {
     static final String PROJECTOR = "_Projector";
     static final String AGGREGATORS = "_Aggregators";
     static final String FILTER = "_Filter";
+    static final String STREAMING = "_Streaming";
+    static final String ESTIMATE = "_Estimate";
+    static final String OFF_HEAP = "_OffHeap";
+    static final String SPILL_MAX_BYTES = "_SpillMaxBytes";
+
+    /**
+     * Local directory to spill aggregation into, read from hbase-site.xml or
+     * the coprocessor configuration of the region server, never from the scan
+     */
+    public static final String SPILL_DIR_KEY = "kylin.coprocessor.spill.dir";
 
     @Override
     public final RegionScanner postScannerOpen(final ObserverContext<RegionCoprocessorEnvironment> ctxt, final Scan scan, final RegionScanner innerScanner) throws IOException {
@@ -83,6 +94,14 @@ public class AggregateRegionObserver extends BaseRegionObserver {
         byte[] filterBytes = scan.getAttribute(FILTER);
         CoprocessorFilter filter = CoprocessorFilter.deserialize(filterBytes);
 
+        byte[] streamingBytes = scan.getAttribute(STREAMING);
+        boolean streaming = streamingBytes != null && streamingBytes.length > 0 && streamingBytes[0] != 0;
+
+        byte[] estimateBytes = scan.getAttribute(ESTIMATE);
+        String estimate = estimateBytes == null ? null : Bytes.toString(estimateBytes);
+
+        ObserverCacheConfig cacheConfig = ObserverCacheConfig.fromScan(scan, ctxt.getEnvironment().getConfiguration());
+
         // start/end region operation & sync on scanner is suggested by the
         // javadoc of RegionScanner.nextRaw()
         // FIXME: will the lock still work when a iterator is returned? is it safe? Is readonly attribute helping here? by mhb
@@ -90,7 +109,7 @@ public class AggregateRegionObserver extends BaseRegionObserver {
         region.startRegionOperation();
         try {
             synchronized (innerScanner) {
-                return new AggregationScanner(type, filter, projector, aggregators, innerScanner);
+                return new AggregationScanner(type, filter, projector, aggregators, innerScanner, streaming, estimate, cacheConfig);
             }
         } finally {
             region.closeRegionOperation();
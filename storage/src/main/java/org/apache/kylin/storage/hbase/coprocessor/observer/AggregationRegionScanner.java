@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Emits aggregated rows from a cache while holding on to the inner scanner,
+ * which is only closed when this scanner closes.
+ * 
+ * Groups come out in the order of their group by bytes, reseek() skips
+ * forward in that order.
+ */
+abstract class AggregationRegionScanner implements RegionScanner {
+
+    protected final RegionScanner innerScanner;
+    private final byte[] groupByMask; // null to compare whole row keys
+
+    private List<Cell> pendingGroup; // found by reseek(), not emitted yet
+    private boolean pendingHasMore;
+
+    public AggregationRegionScanner(RegionScanner innerScanner, byte[] groupByMask) {
+        this.innerScanner = innerScanner;
+        this.groupByMask = groupByMask;
+    }
+
+    /**
+     * Emits the cells of the next group, returns false if no group follows.
+     */
+    abstract protected boolean nextGroup(List<Cell> results) throws IOException;
+
+    @Override
+    public final boolean next(List<Cell> results) throws IOException {
+        if (pendingGroup != null) {
+            results.addAll(pendingGroup);
+            pendingGroup = null;
+            return pendingHasMore;
+        }
+        return nextGroup(results);
+    }
+
+    @Override
+    public boolean next(List<Cell> result, int limit) throws IOException {
+        return next(result);
+    }
+
+    @Override
+    public boolean nextRaw(List<Cell> result) throws IOException {
+        return next(result);
+    }
+
+    @Override
+    public boolean nextRaw(List<Cell> result, int limit) throws IOException {
+        return next(result);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // AggregateRegionObserver.LOG.info("Kylin Scanner close()");
+        innerScanner.close();
+        // AggregateRegionObserver.LOG.info("Kylin Scanner close() done");
+    }
+
+    @Override
+    public HRegionInfo getRegionInfo() {
+        // AggregateRegionObserver.LOG.info("Kylin Scanner getRegionInfo()");
+        return innerScanner.getRegionInfo();
+    }
+
+    @Override
+    public long getMaxResultSize() {
+        // AggregateRegionObserver.LOG.info("Kylin Scanner getMaxResultSize()");
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean isFilterDone() throws IOException {
+        // AggregateRegionObserver.LOG.info("Kylin Scanner isFilterDone()");
+        return false;
+    }
+
+    /**
+     * Skips the groups before the given row, compared by group by bytes. The
+     * next call to next() returns the first group not before it.
+     */
+    @Override
+    public boolean reseek(byte[] row) throws IOException {
+        List<Cell> group = pendingGroup;
+        boolean hasMore = pendingHasMore;
+        pendingGroup = null;
+        if (group == null) {
+            group = Lists.newArrayList();
+            hasMore = nextGroup(group);
+        }
+
+        while (true) {
+            if (group.isEmpty() == false && compareRow(group.get(0), row) >= 0) {
+                pendingGroup = group;
+                pendingHasMore = hasMore;
+                return true;
+            }
+            if (hasMore == false) {
+                return false;
+            }
+            group.clear();
+            hasMore = nextGroup(group);
+        }
+    }
+
+    private int compareRow(Cell cell, byte[] row) {
+        byte[] array = cell.getRowArray();
+        int offset = cell.getRowOffset();
+        int n = Math.min(cell.getRowLength(), row.length);
+        for (int i = 0; i < n; i++) {
+            if (groupByMask == null || (i < groupByMask.length && groupByMask[i] != 0)) {
+                int comp = (array[offset + i] & 0xff) - (row[i] & 0xff);
+                if (comp != 0)
+                    return comp;
+            }
+        }
+        return groupByMask == null ? cell.getRowLength() - row.length : 0;
+    }
+
+    @Override
+    public long getMvccReadPoint() {
+        // AggregateRegionObserver.LOG.info("Kylin Scanner getMvccReadPoint()");
+        return Long.MAX_VALUE;
+    }
+}
@@ -19,9 +19,12 @@
 package org.apache.kylin.storage.hbase.coprocessor.observer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.kylin.metadata.measure.MeasureAggregator;
+import org.apache.kylin.storage.hbase.coprocessor.AggregationCache;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorFilter;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorRowType;
@@ -29,8 +32,6 @@ import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
 
-import org.apache.kylin.metadata.measure.MeasureAggregator;
-
 /**
  * @author yangli9
  * 
@@ -40,23 +41,58 @@ public class AggregationScanner implements RegionScanner {
     private RegionScanner outerScanner;
 
     public AggregationScanner(CoprocessorRowType type, CoprocessorFilter filter, CoprocessorProjector groupBy, ObserverAggregators aggrs, RegionScanner innerScanner) throws IOException {
+        this(type, filter, groupBy, aggrs, innerScanner, false);
+    }
 
-        AggregateRegionObserver.LOG.info("Kylin Coprocessor start");
+    public AggregationScanner(CoprocessorRowType type, CoprocessorFilter filter, CoprocessorProjector groupBy, ObserverAggregators aggrs, RegionScanner innerScanner, boolean streaming) throws IOException {
+        this(type, filter, groupBy, aggrs, innerScanner, streaming, null);
+    }
+
+    /**
+     * @param estimate the client side cost estimate that enabled the coprocessor, logged next to the actual stats
+     */
+    public AggregationScanner(CoprocessorRowType type, CoprocessorFilter filter, CoprocessorProjector groupBy, ObserverAggregators aggrs, RegionScanner innerScanner, boolean streaming, String estimate) throws IOException {
+        this(type, filter, groupBy, aggrs, innerScanner, streaming, estimate, ObserverCacheConfig.DEFAULT);
+    }
+
+    /**
+     * @param cacheConfig settings of the aggregation cache, sent along by the query server
+     */
+    public AggregationScanner(CoprocessorRowType type, CoprocessorFilter filter, CoprocessorProjector groupBy, ObserverAggregators aggrs, RegionScanner innerScanner, boolean streaming, String estimate, ObserverCacheConfig cacheConfig) throws IOException {
 
-        ObserverAggregationCache aggCache;
         Stats stats = new Stats();
+        stats.estimate = estimate;
 
-        aggCache = buildAggrCache(innerScanner, type, groupBy, aggrs, filter, stats);
-        stats.countOutputRow(aggCache.getSize());
-        this.outerScanner = aggCache.getScanner(innerScanner);
+        if (filter != null && filter.compile(type) == false) {
+            AggregateRegionObserver.LOG.info("Kylin Coprocessor filter not compilable, interpret " + filter.getFilter());
+        }
+
+        // streaming relies on rows of a group being adjacent, double check the mask
+        if (streaming && groupBy.isRowKeyPrefix()) {
+            AggregateRegionObserver.LOG.info("Kylin Coprocessor start, streaming aggregation");
+            this.outerScanner = new StreamingAggregationScanner(type, filter, groupBy, aggrs, innerScanner, stats);
+            return;
+        }
+
+        AggregateRegionObserver.LOG.info("Kylin Coprocessor start");
+
+        SpillableAggregationCache aggCache = new SpillableAggregationCache(groupBy, aggrs, AggregationCache.MEMORY_USAGE_CAP, cacheConfig);
+        try {
+            buildAggrCache(aggCache, innerScanner, type, groupBy, filter, stats);
+            stats.countOutputRow(aggCache.getSize());
+            stats.countMemBytes(aggCache.getMemBytes());
+            stats.countSpill(aggCache.getSpillRuns(), aggCache.getSpillBytes());
+            this.outerScanner = aggCache.getScanner(innerScanner);
+        } finally {
+            // once the scanner is handed out, it deletes the spilled runs on close
+            if (this.outerScanner == null)
+                aggCache.close();
+        }
 
         AggregateRegionObserver.LOG.info("Kylin Coprocessor aggregation done: " + stats);
     }
 
-    @SuppressWarnings("rawtypes")
-    ObserverAggregationCache buildAggrCache(final RegionScanner innerScanner, CoprocessorRowType type, CoprocessorProjector projector, ObserverAggregators aggregators, CoprocessorFilter filter, Stats stats) throws IOException {
-
-        ObserverAggregationCache aggCache = new ObserverAggregationCache(aggregators);
+    void buildAggrCache(SpillableAggregationCache aggCache, final RegionScanner innerScanner, CoprocessorRowType type, CoprocessorProjector projector, CoprocessorFilter filter, Stats stats) throws IOException {
 
         ObserverTuple tuple = new ObserverTuple(type);
         boolean hasMore = true;
@@ -72,16 +108,14 @@ public class AggregationScanner implements RegionScanner {
 
             Cell cell = results.get(0);
             tuple.setUnderlying(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
-            if (filter != null && filter.evaluate(tuple) == false)
+            if (filter != null && filter.evaluate(tuple, cell.getRowArray(), cell.getRowOffset()) == false)
                 continue;
 
             CoprocessorProjector.AggrKey aggKey = projector.getAggrKey(results);
-            MeasureAggregator[] bufs = aggCache.getBuffer(aggKey);
-            aggregators.aggregate(bufs, results);
+            aggCache.aggregate(aggKey, results);
 
             aggCache.checkMemoryUsage();
         }
-        return aggCache;
     }
 
     @Override
@@ -134,10 +168,96 @@ public class AggregationScanner implements RegionScanner {
         return outerScanner.getMvccReadPoint();
     }
 
+    /**
+     * Aggregates one group at a time and emits it as soon as the group by key
+     * changes. Only valid when rows of a group are adjacent in the inner
+     * scanner, see CoprocessorProjector.isRowKeyPrefix().
+     */
+    @SuppressWarnings("rawtypes")
+    private static class StreamingAggregationScanner extends AggregationRegionScanner {
+
+        private final CoprocessorFilter filter;
+        private final CoprocessorProjector projector;
+        private final ObserverAggregators aggregators;
+        private final Stats stats;
+        private final ObserverTuple tuple;
+        private final List<Cell> rowCells = new ArrayList<Cell>();
+        private final MeasureAggregator[] groupBuf;
+
+        private CoprocessorProjector.AggrKey groupKey; // first row key of the current group
+        private boolean innerHasMore = true;
+
+        StreamingAggregationScanner(CoprocessorRowType type, CoprocessorFilter filter, CoprocessorProjector projector, ObserverAggregators aggregators, RegionScanner innerScanner, Stats stats) {
+            super(innerScanner, projector.getGroupByMask());
+            this.filter = filter;
+            this.projector = projector;
+            this.aggregators = aggregators;
+            this.stats = stats;
+            this.tuple = new ObserverTuple(type);
+            this.groupBuf = aggregators.createBuffer();
+        }
+
+        // the region server holds the region operation and synchronizes on
+        // the outer scanner when calling next(), as nextRaw() requires
+        @Override
+        protected boolean nextGroup(List<Cell> results) throws IOException {
+            while (innerHasMore) {
+                rowCells.clear();
+                innerHasMore = innerScanner.nextRaw(rowCells);
+                if (rowCells.isEmpty())
+                    continue;
+
+                stats.countInputRow(rowCells);
+
+                Cell cell = rowCells.get(0);
+                tuple.setUnderlying(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
+                if (filter != null && filter.evaluate(tuple, cell.getRowArray(), cell.getRowOffset()) == false)
+                    continue;
+
+                CoprocessorProjector.AggrKey aggKey = projector.getAggrKey(rowCells);
+                if (groupKey != null && groupKey.compareTo(aggKey) == 0) {
+                    aggregators.aggregate(groupBuf, rowCells);
+                    continue;
+                }
+
+                // key changed, the current group is complete
+                boolean emitted = emitGroup(results);
+                groupKey = aggKey.copy();
+                aggregators.aggregate(groupBuf, rowCells);
+                if (emitted)
+                    return true;
+            }
+
+            if (emitGroup(results)) {
+                AggregateRegionObserver.LOG.info("Kylin Coprocessor streaming aggregation done: " + stats);
+            }
+            return false;
+        }
+
+        private boolean emitGroup(List<Cell> results) {
+            if (groupKey == null)
+                return false;
+
+            ByteBuffer[] rowValues = aggregators.getHColValues(groupBuf);
+            aggregators.makeCells(groupKey.get(), groupKey.offset(), groupKey.length(), rowValues, results);
+            stats.countOutputRow(1);
+
+            groupKey = null;
+            for (MeasureAggregator aggr : groupBuf) {
+                aggr.reset();
+            }
+            return true;
+        }
+    }
+
     private static class Stats {
         long inputRows = 0;
         long inputBytes = 0;
         long outputRows = 0;
+        long memBytes = 0;
+        int spillRuns = 0;
+        long spillBytes = 0;
+        String estimate = null;
 
         // have no outputBytes because that requires actual serialize all the
         // aggregator buffers
@@ -154,9 +274,18 @@ public class AggregationScanner implements RegionScanner {
             outputRows += rowCount;
         }
 
+        public void countMemBytes(long bytes) {
+            memBytes += bytes;
+        }
+
+        public void countSpill(int runs, long bytes) {
+            spillRuns += runs;
+            spillBytes += bytes;
+        }
+
         public String toString() {
             double percent = (double) outputRows / inputRows * 100;
-            return Math.round(percent) + "% = " + outputRows + " (out rows) / " + inputRows + " (in rows); in bytes = " + inputBytes + "; est. out bytes = " + Math.round(inputBytes * percent / 100);
+            return Math.round(percent) + "% = " + outputRows + " (out rows) / " + inputRows + " (in rows); in bytes = " + inputBytes + "; est. out bytes = " + Math.round(inputBytes * percent / 100) + "; cache mem bytes = " + memBytes + "; spill runs = " + spillRuns + "; spill bytes = " + spillBytes + (estimate == null ? "" : "; client " + estimate);
         }
     }
 }
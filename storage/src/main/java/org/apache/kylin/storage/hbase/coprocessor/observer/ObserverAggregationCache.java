@@ -27,10 +27,6 @@ import java.util.Map.Entry;
 import org.apache.kylin.storage.hbase.coprocessor.AggregationCache;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
 import org.apache.hadoop.hbase.Cell;
-import org.apache.hadoop.hbase.HConstants;
-import org.apache.hadoop.hbase.HRegionInfo;
-import org.apache.hadoop.hbase.KeyValue;
-import org.apache.hadoop.hbase.KeyValue.Type;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
 
 import org.apache.kylin.metadata.measure.MeasureAggregator;
@@ -39,16 +35,34 @@ import org.apache.kylin.metadata.measure.MeasureAggregator;
  * @author yangli9
  */
 @SuppressWarnings("rawtypes")
-public class ObserverAggregationCache extends AggregationCache {
+public class ObserverAggregationCache extends AggregationCache implements IObserverAggregationCache {
 
     private final ObserverAggregators aggregators;
+    private final byte[] groupByMask;
 
     public ObserverAggregationCache(ObserverAggregators aggregators) {
+        this(null, aggregators);
+    }
+
+    /**
+     * @param projector
+     *            the group by of the aggregation keys, null to reseek by
+     *            whole row keys
+     */
+    public ObserverAggregationCache(CoprocessorProjector projector, ObserverAggregators aggregators) {
         this.aggregators = aggregators;
+        this.groupByMask = projector == null ? null : projector.getGroupByMask();
+    }
+
+    @Override
+    public void aggregate(CoprocessorProjector.AggrKey aggKey, List<Cell> rowCells) {
+        MeasureAggregator[] bufs = getBuffer(aggKey);
+        aggregators.aggregate(bufs, rowCells);
     }
 
+    @Override
     public RegionScanner getScanner(RegionScanner innerScanner) {
-        return new AggregationRegionScanner(innerScanner);
+        return new ObserverAggregationRegionScanner(innerScanner);
     }
 
     @Override
@@ -56,18 +70,17 @@ public class ObserverAggregationCache extends AggregationCache {
         return aggregators.createBuffer();
     }
 
-    private class AggregationRegionScanner implements RegionScanner {
+    private class ObserverAggregationRegionScanner extends AggregationRegionScanner {
 
-        private final RegionScanner innerScanner;
         private final Iterator<Entry<CoprocessorProjector.AggrKey, MeasureAggregator[]>> iterator;
 
-        public AggregationRegionScanner(RegionScanner innerScanner) {
-            this.innerScanner = innerScanner;
+        public ObserverAggregationRegionScanner(RegionScanner innerScanner) {
+            super(innerScanner, groupByMask);
             this.iterator = aggBufMap.entrySet().iterator();
         }
 
         @Override
-        public boolean next(List<Cell> results) throws IOException {
+        protected boolean nextGroup(List<Cell> results) throws IOException {
             // AggregateRegionObserver.LOG.info("Kylin Scanner next()");
             boolean hasMore = false;
             if (iterator.hasNext()) {
@@ -80,82 +93,10 @@ public class ObserverAggregationCache extends AggregationCache {
         }
 
         private void makeCells(Entry<CoprocessorProjector.AggrKey, MeasureAggregator[]> entry, List<Cell> results) {
-            byte[][] families = aggregators.getHColFamilies();
-            byte[][] qualifiers = aggregators.getHColQualifiers();
-            int nHCols = aggregators.getHColsNum();
-
             CoprocessorProjector.AggrKey rowKey = entry.getKey();
             MeasureAggregator[] aggBuf = entry.getValue();
             ByteBuffer[] rowValues = aggregators.getHColValues(aggBuf);
-
-            if (nHCols == 0) {
-                Cell keyValue = new KeyValue(rowKey.get(), rowKey.offset(), rowKey.length(), //
-                        null, 0, 0, //
-                        null, 0, 0, //
-                        HConstants.LATEST_TIMESTAMP, Type.Put, //
-                        null, 0, 0);
-                results.add(keyValue);
-            } else {
-                for (int i = 0; i < nHCols; i++) {
-                    Cell keyValue = new KeyValue(rowKey.get(), rowKey.offset(), rowKey.length(), //
-                            families[i], 0, families[i].length, //
-                            qualifiers[i], 0, qualifiers[i].length, //
-                            HConstants.LATEST_TIMESTAMP, Type.Put, //
-                            rowValues[i].array(), 0, rowValues[i].position());
-                    results.add(keyValue);
-                }
-            }
-        }
-
-        @Override
-        public boolean next(List<Cell> result, int limit) throws IOException {
-            return next(result);
-        }
-
-        @Override
-        public boolean nextRaw(List<Cell> result) throws IOException {
-            return next(result);
-        }
-
-        @Override
-        public boolean nextRaw(List<Cell> result, int limit) throws IOException {
-            return next(result);
-        }
-
-        @Override
-        public void close() throws IOException {
-            // AggregateRegionObserver.LOG.info("Kylin Scanner close()");
-            innerScanner.close();
-            // AggregateRegionObserver.LOG.info("Kylin Scanner close() done");
-        }
-
-        @Override
-        public HRegionInfo getRegionInfo() {
-            // AggregateRegionObserver.LOG.info("Kylin Scanner getRegionInfo()");
-            return innerScanner.getRegionInfo();
-        }
-
-        @Override
-        public long getMaxResultSize() {
-            // AggregateRegionObserver.LOG.info("Kylin Scanner getMaxResultSize()");
-            return Long.MAX_VALUE;
-        }
-
-        @Override
-        public boolean isFilterDone() throws IOException {
-            // AggregateRegionObserver.LOG.info("Kylin Scanner isFilterDone()");
-            return false;
-        }
-
-        @Override
-        public boolean reseek(byte[] row) throws IOException {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public long getMvccReadPoint() {
-            // AggregateRegionObserver.LOG.info("Kylin Scanner getMvccReadPoint()");
-            return Long.MAX_VALUE;
+            aggregators.makeCells(rowKey.get(), rowKey.offset(), rowKey.length(), rowValues, results);
         }
     }
 
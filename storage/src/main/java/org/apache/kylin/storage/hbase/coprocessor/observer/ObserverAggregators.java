@@ -27,6 +27,9 @@ import java.util.List;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorConstants;
 
 import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValue.Type;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import org.apache.kylin.common.util.BytesSerializer;
@@ -180,7 +183,7 @@ public class ObserverAggregators {
         }
     }
 
-    private Cell findCell(HCol col, List<Cell> cells) {
+    Cell findCell(HCol col, List<Cell> cells) {
         // cells are ordered by timestamp asc, thus search from back, first hit
         // is the latest version
         for (int i = cells.size() - 1; i >= 0; i--) {
@@ -214,6 +217,27 @@ public class ObserverAggregators {
         return result;
     }
 
+    public void makeCells(byte[] rowKey, int rowKeyOffset, int rowKeyLength, ByteBuffer[] rowValues, List<Cell> results) {
+        if (nHCols == 0) {
+            Cell keyValue = new KeyValue(rowKey, rowKeyOffset, rowKeyLength, //
+                    null, 0, 0, //
+                    null, 0, 0, //
+                    HConstants.LATEST_TIMESTAMP, Type.Put, //
+                    null, 0, 0);
+            results.add(keyValue);
+        } else {
+            for (int i = 0; i < nHCols; i++) {
+                HCol col = hcols[i];
+                Cell keyValue = new KeyValue(rowKey, rowKeyOffset, rowKeyLength, //
+                        col.family, 0, col.family.length, //
+                        col.qualifier, 0, col.qualifier.length, //
+                        HConstants.LATEST_TIMESTAMP, Type.Put, //
+                        rowValues[i].array(), 0, rowValues[i].position());
+                results.add(keyValue);
+            }
+        }
+    }
+
     public ByteBuffer[] getHColValues(MeasureAggregator[] aggrs) {
         int i = 0;
         for (int ci = 0; ci < nHCols; ci++) {
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import java.io.File;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.kylin.common.KylinConfig;
+
+/**
+ * Settings of the aggregation cache in the region observer. They are read
+ * from KylinConfig on the query server and go along with the scan, as the
+ * region server has no KylinConfig. A scan without them gets the defaults.
+ * The spill directory is the exception, it is a local path of the region
+ * server and comes from the region server configuration only.
+ */
+public class ObserverCacheConfig {
+
+    public static final long DEFAULT_SPILL_MAX_BYTES = 10L * 1024 * 1024 * 1024; // 10 GB
+
+    public static final ObserverCacheConfig DEFAULT = new ObserverCacheConfig(false, DEFAULT_SPILL_MAX_BYTES, null);
+
+    public static ObserverCacheConfig fromKylinConfig(KylinConfig config) {
+        return new ObserverCacheConfig(config.isCoprocessorOffHeapEnabled(), config.getCoprocessorSpillMaxBytes(), null);
+    }
+
+    static ObserverCacheConfig fromScan(Scan scan, Configuration regionServerConf) {
+        byte[] offHeapBytes = scan.getAttribute(AggregateRegionObserver.OFF_HEAP);
+        boolean offHeap = offHeapBytes != null && offHeapBytes.length > 0 && offHeapBytes[0] != 0;
+
+        byte[] spillMaxBytes = scan.getAttribute(AggregateRegionObserver.SPILL_MAX_BYTES);
+        long spillMax = spillMaxBytes == null ? DEFAULT_SPILL_MAX_BYTES : Bytes.toLong(spillMaxBytes);
+
+        String spillDir = regionServerConf == null ? null : regionServerConf.get(AggregateRegionObserver.SPILL_DIR_KEY);
+
+        return new ObserverCacheConfig(offHeap, spillMax, spillDir);
+    }
+
+    // ============================================================================
+
+    private final boolean offHeap;
+    private final long spillMaxBytes;
+    private final File spillDir;
+
+    /**
+     * @param spillDir local directory to spill into, null or empty for java.io.tmpdir
+     */
+    public ObserverCacheConfig(boolean offHeap, long spillMaxBytes, String spillDir) {
+        this.offHeap = offHeap;
+        this.spillMaxBytes = spillMaxBytes;
+        this.spillDir = spillDir == null || spillDir.isEmpty() ? null : new File(spillDir);
+    }
+
+    /** whether PackedAggregationCache keeps its slabs in direct memory */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /** the coprocessor aborts when spilled bytes go beyond this */
+    public long getSpillMaxBytes() {
+        return spillMaxBytes;
+    }
+
+    /** null for java.io.tmpdir */
+    public File getSpillDir() {
+        return spillDir;
+    }
+
+    void setScanAttributes(Scan scan) {
+        scan.setAttribute(AggregateRegionObserver.OFF_HEAP, new byte[] { (byte) (offHeap ? 0x01 : 0x00) });
+        scan.setAttribute(AggregateRegionObserver.SPILL_MAX_BYTES, Bytes.toBytes(spillMaxBytes));
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.kylin.common.util.BytesUtil;
+import org.apache.kylin.cube.CubeSegment;
+import org.apache.kylin.cube.cuboid.Cuboid;
+import org.apache.kylin.cube.kv.RowConstants;
+import org.apache.kylin.dict.Dictionary;
+import org.apache.kylin.metadata.MetadataConstants;
+import org.apache.kylin.metadata.MetadataManager;
+import org.apache.kylin.metadata.model.DataModelDesc.RealizationCapacity;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.storage.hbase.HBaseKeyRange;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Estimates how many rows a query scans and how many the observer would
+ * return after aggregation, to tell whether server side aggregation pays off.
+ * 
+ * Column cardinality comes from the segment dictionary, or from the HLL
+ * cardinality of the source table for non-dictionary columns. Cuboid rows are
+ * the product of column cardinalities, capped by the segment input records.
+ * The fraction of a cuboid covered by a key range is derived from the
+ * dictionary IDs in its start and stop keys. Each region aggregates on its own,
+ * so a group may come back once per region.
+ */
+public class ObserverCostModel {
+
+    // per region size by cube capacity, see RangeKeyDistributionReducer
+    static final long ONE_GIGA_BYTES = 1024L * 1024L * 1024L;
+    static final int SMALL_CUT = 10;
+    static final int MEDIUM_CUT = 20;
+    static final int LARGE_CUT = 100;
+
+    private final Map<TblColRef, Long> tableCardinality = Maps.newHashMap();
+
+    public Estimate estimate(Collection<HBaseKeyRange> keyRanges, Collection<TblColRef> groupBy) {
+        Estimate est = new Estimate();
+        for (HBaseKeyRange keyRange : keyRanges) {
+            est.maxBitsToScan = Math.max(est.maxBitsToScan, getBitsToScan(keyRange.getStartKey(), keyRange.getStopKey()));
+            if (est.hasStats == false)
+                continue;
+
+            CubeSegment seg = keyRange.getCubeSegment();
+            Cuboid cuboid = keyRange.getCuboid();
+
+            double cuboidRows = getCuboidRows(seg, cuboid);
+            double groupRows = 1;
+            for (TblColRef col : cuboid.getColumns()) {
+                if (groupBy.contains(col)) {
+                    long card = getCardinality(seg, col);
+                    groupRows = card <= 0 ? Double.POSITIVE_INFINITY : groupRows * card;
+                }
+            }
+            if (Double.isInfinite(cuboidRows)) {
+                est.hasStats = false;
+                continue;
+            }
+
+            double fraction = getRangeFraction(seg, cuboid, keyRange.getStartKey(), keyRange.getStopKey());
+            double rowsToScan = cuboidRows * fraction;
+            int regions = getRegionsToScan(seg, fraction);
+            double rowsToReturn = Math.min(rowsToScan, groupRows * regions);
+
+            est.rowsToScan += (long) rowsToScan;
+            est.rowsToReturn += (long) rowsToReturn;
+            est.regions += regions;
+        }
+        return est;
+    }
+
+    /**
+     * @return estimated rows of the cuboid between the two keys, or -1 if
+     *         unknown
+     */
+    public long estimateRows(CubeSegment seg, Cuboid cuboid, byte[] startKey, byte[] stopKey) {
+        double cuboidRows = getCuboidRows(seg, cuboid);
+        if (Double.isInfinite(cuboidRows))
+            return -1;
+        return (long) (cuboidRows * getRangeFraction(seg, cuboid, startKey, stopKey));
+    }
+
+    /**
+     * @return product of column cardinalities capped by segment input
+     *         records, infinity if any cardinality is unknown
+     */
+    double getCuboidRows(CubeSegment seg, Cuboid cuboid) {
+        double cuboidRows = 1;
+        for (TblColRef col : cuboid.getColumns()) {
+            long card = getCardinality(seg, col);
+            if (card <= 0)
+                return Double.POSITIVE_INFINITY;
+            cuboidRows *= card;
+        }
+        if (seg.getInputRecords() > 0) {
+            cuboidRows = Math.min(cuboidRows, seg.getInputRecords());
+        }
+        return cuboidRows;
+    }
+
+    /**
+     * Walks the row key columns; leading columns fixed to one value narrow the
+     * range by their cardinality, the first column taking a range narrows it by
+     * the share of IDs in between, and later columns are not constrained.
+     */
+    double getRangeFraction(CubeSegment seg, Cuboid cuboid, byte[] startKey, byte[] stopKey) {
+        double fraction = 1;
+        int offset = RowConstants.ROWKEY_CUBOIDID_LEN;
+        for (TblColRef col : cuboid.getColumns()) {
+            int colLen = seg.getColumnLength(col);
+            if (offset + colLen > startKey.length || offset + colLen > stopKey.length)
+                break;
+
+            boolean sameValue = BytesUtil.compareBytes(startKey, offset, stopKey, offset, colLen) == 0;
+            Dictionary<?> dict = seg.getDictionary(col);
+            long card = getCardinality(seg, col);
+            if (sameValue) {
+                if (card > 0)
+                    fraction /= card;
+                offset += colLen;
+                continue;
+            }
+
+            if (dict != null && colLen <= 4) {
+                long minId = dict.getMinId();
+                long maxId = dict.getMaxId();
+                long startId = Math.max(minId, readUnsignedLong(startKey, offset, colLen));
+                long stopId = Math.min(maxId, readUnsignedLong(stopKey, offset, colLen));
+                fraction *= Math.max(0, stopId - startId + 1) / (double) (maxId - minId + 1);
+            }
+            break;
+        }
+        return fraction;
+    }
+
+    private long readUnsignedLong(byte[] bytes, int offset, int size) {
+        long r = 0;
+        for (int i = 0; i < size; i++) {
+            r = (r << 8) | (bytes[offset + i] & 0xff);
+        }
+        return r;
+    }
+
+    private int getRegionsToScan(CubeSegment seg, double fraction) {
+        RealizationCapacity capacity = seg.getCubeDesc().getModel().getCapacity();
+        int cut;
+        if (capacity == RealizationCapacity.SMALL)
+            cut = SMALL_CUT;
+        else if (capacity == RealizationCapacity.LARGE)
+            cut = LARGE_CUT;
+        else
+            cut = MEDIUM_CUT;
+
+        double bytesToScan = seg.getSizeKB() * 1024.0 * fraction;
+        return Math.max(1, (int) Math.ceil(bytesToScan / (cut * ONE_GIGA_BYTES)));
+    }
+
+    /**
+     * @return column cardinality, or -1 if unknown
+     */
+    long getCardinality(CubeSegment seg, TblColRef col) {
+        Dictionary<?> dict = seg.getDictionary(col);
+        if (dict != null) {
+            return (long) dict.getMaxId() - dict.getMinId() + 1;
+        }
+
+        Long card = tableCardinality.get(col);
+        if (card == null) {
+            card = getTableCardinality(seg, col);
+            tableCardinality.put(col, card);
+        }
+        return card;
+    }
+
+    private long getTableCardinality(CubeSegment seg, TblColRef col) {
+        if (col.getTable() == null)
+            return -1;
+
+        MetadataManager metaMgr = MetadataManager.getInstance(seg.getCubeInstance().getConfig());
+        String scard = metaMgr.getTableDescExd(col.getTable()).get(MetadataConstants.TABLE_EXD_CARDINALITY);
+        if (StringUtils.isEmpty(scard))
+            return -1;
+
+        String[] cards = StringUtils.split(scard, ",");
+        int index = col.getColumn().getZeroBasedIndex();
+        if (index < 0 || index >= cards.length)
+            return -1;
+        try {
+            return Long.parseLong(cards[index].trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static int getBitsToScan(byte[] startKey, byte[] stopKey) {
+        // find the first bit difference from the beginning
+        int totalBits = startKey.length * 8;
+        int bitsToScan = totalBits;
+        for (int i = 0; i < totalBits; i++) {
+            int byteIdx = i / 8;
+            int bitIdx = 7 - i % 8;
+            byte bitMask = (byte) (1 << bitIdx);
+            if ((startKey[byteIdx] & bitMask) == (stopKey[byteIdx] & bitMask))
+                bitsToScan--;
+            else
+                break;
+        }
+        return bitsToScan;
+    }
+
+    public static class Estimate {
+        boolean hasStats = true;
+        long rowsToScan;
+        long rowsToReturn;
+        int regions;
+        int maxBitsToScan;
+
+        public boolean hasStats() {
+            return hasStats;
+        }
+
+        public long getRowsToScan() {
+            return rowsToScan;
+        }
+
+        public long getRowsToReturn() {
+            return rowsToReturn;
+        }
+
+        public int getRegions() {
+            return regions;
+        }
+
+        public int getMaxBitsToScan() {
+            return maxBitsToScan;
+        }
+
+        public double getReductionRatio() {
+            return rowsToScan == 0 ? 1 : (double) rowsToReturn / rowsToScan;
+        }
+
+        @Override
+        public String toString() {
+            if (hasStats == false)
+                return "no stats; max bits to scan = " + maxBitsToScan;
+            return "est. rows to scan = " + rowsToScan + "; est. rows to return = " + rowsToReturn + "; est. regions = " + regions + "; max bits to scan = " + maxBitsToScan;
+        }
+    }
+}
@@ -20,6 +20,7 @@ package org.apache.kylin.storage.hbase.coprocessor.observer;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -30,6 +31,8 @@ import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.storage.StorageContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +45,7 @@ import org.apache.kylin.cube.cuboid.Cuboid;
 import org.apache.kylin.cube.kv.RowValueDecoder;
 import org.apache.kylin.metadata.model.TblColRef;
 import org.apache.kylin.metadata.filter.TupleFilter;
+import org.apache.kylin.storage.hbase.HBaseKeyRange;
 import org.apache.kylin.storage.hbase.RegionScannerAdapter;
 import org.apache.kylin.storage.hbase.ResultScannerAdapter;
 
@@ -68,9 +72,17 @@ public class ObserverEnabler {
         CoprocessorProjector projector = CoprocessorProjector.makeForObserver(segment, cuboid, groupBy);
         ObserverAggregators aggrs = ObserverAggregators.fromValueDecoders(rowValueDecoders);
 
+        // group by a row key prefix, rows arrive grouped and can be aggregated on the fly
+        boolean streaming = projector.isRowKeyPrefix();
+        if (streaming) {
+            logger.info("Coprocessor streams aggregated rows because group by is a row key prefix");
+        }
+
+        ObserverCacheConfig cacheConfig = ObserverCacheConfig.fromKylinConfig(segment.getCubeInstance().getConfig());
+
         if (DEBUG_LOCAL_COPROCESSOR) {
             RegionScanner innerScanner = new RegionScannerAdapter(table.getScanner(scan));
-            AggregationScanner aggrScanner = new AggregationScanner(type, filter, projector, aggrs, innerScanner);
+            AggregationScanner aggrScanner = new AggregationScanner(type, filter, projector, aggrs, innerScanner, streaming, context.getCoprocessorEstimate(), cacheConfig);
             return new ResultScannerAdapter(aggrScanner);
         } else {
             scan.setAttribute(AggregateRegionObserver.COPROCESSOR_ENABLE, new byte[] { 0x01 });
@@ -78,18 +90,22 @@ public class ObserverEnabler {
             scan.setAttribute(AggregateRegionObserver.PROJECTOR, CoprocessorProjector.serialize(projector));
             scan.setAttribute(AggregateRegionObserver.AGGREGATORS, ObserverAggregators.serialize(aggrs));
             scan.setAttribute(AggregateRegionObserver.FILTER, CoprocessorFilter.serialize(filter));
+            scan.setAttribute(AggregateRegionObserver.STREAMING, new byte[] { (byte) (streaming ? 0x01 : 0x00) });
+            cacheConfig.setScanAttributes(scan);
+            if (context.getCoprocessorEstimate() != null) {
+                scan.setAttribute(AggregateRegionObserver.ESTIMATE, Bytes.toBytes(context.getCoprocessorEstimate()));
+            }
             return table.getScanner(scan);
         }
     }
 
-    public static void enableCoprocessorIfBeneficial(CubeInstance cube, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context) {
-        if (isCoprocessorBeneficial(cube, groupBy, rowValueDecoders, context)) {
+    public static void enableCoprocessorIfBeneficial(CubeInstance cube, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, List<HBaseKeyRange> keyRanges, StorageContext context) {
+        if (isCoprocessorBeneficial(cube, groupBy, rowValueDecoders, keyRanges, context)) {
             context.enableCoprocessor();
         }
     }
 
-    private static boolean isCoprocessorBeneficial(CubeInstance cube, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context) {
-
+    private static boolean isCoprocessorBeneficial(CubeInstance cube, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, List<HBaseKeyRange> keyRanges, StorageContext context) {
 
         String forceFlag = System.getProperty(FORCE_COPROCESSOR);
         if (forceFlag != null) {
@@ -119,25 +135,29 @@ public class ObserverEnabler {
             return false;
         }
 
-        logger.info("Coprocessor is enabled to aggregate " + toAggr + ", returning " + groupBy);
-        return true;
-    }
+        // the estimate goes along with the scan, so the coprocessor logs it next to the actual stats
+        ObserverCostModel.Estimate est = new ObserverCostModel().estimate(keyRanges, groupBy);
+        context.setCoprocessorEstimate(est.toString());
 
-    @SuppressWarnings("unused")
-    private static int getBitsToScan(byte[] startKey, byte[] stopKey) {
-        // find the first bit difference from the beginning
-        int totalBits = startKey.length * 8;
-        int bitsToScan = totalBits;
-        for (int i = 0; i < totalBits; i++) {
-            int byteIdx = i / 8;
-            int bitIdx = 7 - i % 8;
-            byte bitMask = (byte) (1 << bitIdx);
-            if ((startKey[byteIdx] & bitMask) == (stopKey[byteIdx] & bitMask))
-                bitsToScan--;
-            else
-                break;
+        KylinConfig config = cube.getConfig();
+        if (est.getMaxBitsToScan() < config.getCoprocessorScanBitsThreshold()) {
+            logger.info("Coprocessor is disabled because key ranges are too narrow, " + est);
+            return false;
+        }
+
+        if (est.hasStats()) {
+            if (est.getRowsToScan() < config.getCoprocessorMinScanRows()) {
+                logger.info("Coprocessor is disabled because too few rows to scan, " + est);
+                return false;
+            }
+            if (est.getReductionRatio() > config.getCoprocessorMaxReductionRatio()) {
+                logger.info("Coprocessor is disabled because aggregation reduces too few rows, " + est);
+                return false;
+            }
         }
-        return bitsToScan;
+
+        logger.info("Coprocessor is enabled to aggregate " + toAggr + ", returning " + groupBy + ", " + est);
+        return true;
     }
 
     public static void forceCoprocessorOn() {
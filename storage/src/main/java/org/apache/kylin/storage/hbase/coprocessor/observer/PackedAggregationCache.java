@@ -0,0 +1,413 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.kylin.metadata.measure.MeasureAggregator;
+import org.apache.kylin.metadata.model.FunctionDesc;
+import org.apache.kylin.storage.hbase.coprocessor.AggregationCache;
+import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
+import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverAggregators.HCol;
+
+import com.google.common.collect.Lists;
+
+/**
+ * An aggregation cache that keeps groups in slab memory instead of one TreeMap
+ * entry and a MeasureAggregator[] per group.
+ * 
+ * Groups are found through an open-addressing hash table over the row key
+ * bytes selected by the group by mask. Each entry is laid out as the row key,
+ * one 8 bytes slot per measure and one flag byte per measure. It only applies
+ * when every measure is a SUM, COUNT, MAX or MIN of long or double, see
+ * isApplicable(). Entries are sorted once, right before they are emitted, and
+ * memory usage is the exact size of slabs and hash table.
+ */
+public class PackedAggregationCache implements IObserverAggregationCache {
+
+    static final int SLAB_SIZE = 256 * 1024; // 256 KB
+    static final int INIT_CAPACITY = 1024; // must be power of 2
+
+    enum SlotType {
+        LONG_SUM(true), LONG_MAX(true), LONG_MIN(true), DOUBLE_SUM(false), DOUBLE_MAX(false), DOUBLE_MIN(false);
+
+        final boolean isLong;
+
+        SlotType(boolean isLong) {
+            this.isLong = isLong;
+        }
+    }
+
+    public static boolean isApplicable(ObserverAggregators aggregators) {
+        for (HCol col : aggregators.hcols) {
+            for (int j = 0; j < col.nMeasures; j++) {
+                if (toSlotType(col.funcNames[j], col.dataTypes[j]) == null)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    static SlotType toSlotType(String funcName, String dataType) {
+        boolean isLong = MeasureAggregator.isInteger(dataType);
+        boolean isDouble = MeasureAggregator.isDouble(dataType);
+        if (isLong == false && isDouble == false)
+            return null;
+
+        if (FunctionDesc.FUNC_SUM.equalsIgnoreCase(funcName) || FunctionDesc.FUNC_COUNT.equalsIgnoreCase(funcName))
+            return isLong ? SlotType.LONG_SUM : SlotType.DOUBLE_SUM;
+        else if (FunctionDesc.FUNC_MAX.equalsIgnoreCase(funcName))
+            return isLong ? SlotType.LONG_MAX : SlotType.DOUBLE_MAX;
+        else if (FunctionDesc.FUNC_MIN.equalsIgnoreCase(funcName))
+            return isLong ? SlotType.LONG_MIN : SlotType.DOUBLE_MIN;
+        else
+            return null;
+    }
+
+    // ============================================================================
+
+    private final ObserverAggregators aggregators;
+    private final byte[] groupByMask;
+    private final int keyLength;
+    private final SlotType[] slotTypes;
+    private final int flagsOffset;
+    private final int entrySize;
+    private final int entriesPerSlab;
+    private final boolean offHeap;
+    private final List<ByteBuffer> slabs;
+
+    private int[] table; // entry + 1, 0 means empty
+    private int[] tableHashes;
+    private int size;
+
+    public PackedAggregationCache(CoprocessorProjector projector, ObserverAggregators aggregators) {
+        this(projector, aggregators, false);
+    }
+
+    /**
+     * @param offHeap
+     *            slabs in direct memory, which is only given back on GC and
+     *            competes with the off-heap block cache of the region server
+     */
+
+    public PackedAggregationCache(CoprocessorProjector projector, ObserverAggregators aggregators, boolean offHeap) {
+        this.aggregators = aggregators;
+        this.groupByMask = projector.getGroupByMask();
+        this.keyLength = groupByMask.length;
+
+        this.slotTypes = new SlotType[aggregators.nTotalMeasures];
+        int slot = 0;
+        for (HCol col : aggregators.hcols) {
+            for (int j = 0; j < col.nMeasures; j++) {
+                slotTypes[slot] = toSlotType(col.funcNames[j], col.dataTypes[j]);
+                if (slotTypes[slot] == null)
+                    throw new IllegalArgumentException("Measure " + col.funcNames[j] + "(" + col.dataTypes[j] + ") can't be packed");
+                slot++;
+            }
+        }
+
+        this.flagsOffset = keyLength + 8 * slotTypes.length;
+        this.entrySize = flagsOffset + slotTypes.length;
+        this.entriesPerSlab = Math.max(1, SLAB_SIZE / entrySize);
+        this.offHeap = offHeap;
+        this.slabs = Lists.newArrayList();
+
+        this.table = new int[INIT_CAPACITY];
+        this.tableHashes = new int[INIT_CAPACITY];
+        this.size = 0;
+    }
+
+    @Override
+    public void aggregate(CoprocessorProjector.AggrKey aggKey, List<Cell> rowCells) {
+        int entry = getOrCreateEntry(aggKey);
+        ByteBuffer slab = slabOf(entry);
+        int pos = positionOf(entry);
+
+        int slot = 0;
+        for (int ci = 0; ci < aggregators.nHCols; ci++) {
+            HCol col = aggregators.hcols[ci];
+            Cell cell = aggregators.findCell(col, rowCells);
+
+            if (cell == null) {
+                slot += col.nMeasures;
+                continue;
+            }
+
+            ByteBuffer input = ByteBuffer.wrap(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+            col.measureCodec.decode(input, col.measureValues);
+            for (int j = 0; j < col.nMeasures; j++)
+                aggregateSlot(slab, pos, slot++, col.measureValues[j]);
+        }
+    }
+
+    private void aggregateSlot(ByteBuffer slab, int pos, int slot, Object value) {
+        int slotPos = pos + keyLength + 8 * slot;
+        int flagPos = pos + flagsOffset + slot;
+        boolean isSet = slab.get(flagPos) != 0;
+
+        switch (slotTypes[slot]) {
+        case LONG_SUM:
+            slab.putLong(slotPos, slab.getLong(slotPos) + ((LongWritable) value).get());
+            break;
+        case LONG_MAX: {
+            long v = ((LongWritable) value).get();
+            if (isSet == false || v > slab.getLong(slotPos))
+                slab.putLong(slotPos, v);
+            break;
+        }
+        case LONG_MIN: {
+            long v = ((LongWritable) value).get();
+            if (isSet == false || v < slab.getLong(slotPos))
+                slab.putLong(slotPos, v);
+            break;
+        }
+        case DOUBLE_SUM:
+            slab.putDouble(slotPos, slab.getDouble(slotPos) + ((DoubleWritable) value).get());
+            break;
+        case DOUBLE_MAX: {
+            double v = ((DoubleWritable) value).get();
+            if (isSet == false || v > slab.getDouble(slotPos))
+                slab.putDouble(slotPos, v);
+            break;
+        }
+        case DOUBLE_MIN: {
+            double v = ((DoubleWritable) value).get();
+            if (isSet == false || v < slab.getDouble(slotPos))
+                slab.putDouble(slotPos, v);
+            break;
+        }
+        default:
+            throw new IllegalStateException();
+        }
+        slab.put(flagPos, (byte) 1);
+    }
+
+    private int getOrCreateEntry(CoprocessorProjector.AggrKey aggKey) {
+        byte[] data = aggKey.get();
+        int offset = aggKey.offset();
+        int hash = aggKey.hashCode();
+
+        int mask = table.length - 1;
+        int i = spread(hash) & mask;
+        while (table[i] != 0) {
+            int entry = table[i] - 1;
+            if (tableHashes[i] == hash && keyEquals(entry, data, offset))
+                return entry;
+            i = (i + 1) & mask;
+        }
+
+        int entry = newEntry(data, offset);
+        table[i] = entry + 1;
+        tableHashes[i] = hash;
+        if (size * 4L > table.length * 3L) {
+            rehash(table.length * 2);
+        }
+        return entry;
+    }
+
+    private int newEntry(byte[] data, int offset) {
+        int entry = size++;
+        if (entry / entriesPerSlab == slabs.size()) {
+            int bytes = entriesPerSlab * entrySize;
+            slabs.add(offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes));
+        }
+        ByteBuffer slab = slabOf(entry);
+        int pos = positionOf(entry);
+        for (int i = 0; i < keyLength; i++) {
+            slab.put(pos + i, data[offset + i]);
+        }
+        return entry;
+    }
+
+    private void rehash(int newCapacity) {
+        int[] newTable = new int[newCapacity];
+        int[] newHashes = new int[newCapacity];
+        int mask = newCapacity - 1;
+        for (int j = 0; j < table.length; j++) {
+            if (table[j] == 0)
+                continue;
+            int i = spread(tableHashes[j]) & mask;
+            while (newTable[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            newTable[i] = table[j];
+            newHashes[i] = tableHashes[j];
+        }
+        this.table = newTable;
+        this.tableHashes = newHashes;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private ByteBuffer slabOf(int entry) {
+        return slabs.get(entry / entriesPerSlab);
+    }
+
+    private int positionOf(int entry) {
+        return (entry % entriesPerSlab) * entrySize;
+    }
+
+    private boolean keyEquals(int entry, byte[] data, int offset) {
+        ByteBuffer slab = slabOf(entry);
+        int pos = positionOf(entry);
+        for (int i = 0; i < keyLength; i++) {
+            if (groupByMask[i] != 0 && slab.get(pos + i) != data[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    private int compareEntries(int a, int b) {
+        ByteBuffer slabA = slabOf(a);
+        ByteBuffer slabB = slabOf(b);
+        int posA = positionOf(a);
+        int posB = positionOf(b);
+        for (int i = 0; i < keyLength; i++) {
+            if (groupByMask[i] != 0) {
+                int comp = (slabA.get(posA + i) & 0xff) - (slabB.get(posB + i) & 0xff);
+                if (comp != 0)
+                    return comp;
+            }
+        }
+        return 0;
+    }
+
+    int[] sortEntries() {
+        int[] entries = new int[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = i;
+        }
+        mergeSort(entries, new int[size], 0, size);
+        return entries;
+    }
+
+    private void mergeSort(int[] a, int[] tmp, int from, int to) {
+        if (to - from < 2)
+            return;
+
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid);
+        mergeSort(a, tmp, mid, to);
+        if (compareEntries(a[mid - 1], a[mid]) <= 0)
+            return;
+
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            a[k++] = compareEntries(tmp[i], tmp[j]) <= 0 ? tmp[i++] : tmp[j++];
+        }
+        while (i < mid) {
+            a[k++] = tmp[i++];
+        }
+        while (j < to) {
+            a[k++] = tmp[j++];
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getMemBytes() {
+        long slabBytes = (long) slabs.size() * entriesPerSlab * entrySize;
+        long tableBytes = 8L * table.length; // table and tableHashes
+        return slabBytes + tableBytes;
+    }
+
+    @Override
+    public void checkMemoryUsage() {
+        long memUsage = getMemBytes();
+        if (memUsage > AggregationCache.MEMORY_USAGE_CAP) {
+            throw new RuntimeException("Kylin coprocess memory usage goes beyond cap, " + memUsage + " bytes for " + size + " groups > " + AggregationCache.MEMORY_USAGE_CAP + ". Abort coprocessor.");
+        }
+    }
+
+    @Override
+    public RegionScanner getScanner(RegionScanner innerScanner) {
+        return new PackedAggregationRegionScanner(innerScanner);
+    }
+
+    private class PackedAggregationRegionScanner extends AggregationRegionScanner {
+
+        private final int[] sortedEntries;
+        private final byte[] rowKey;
+        private final ByteBuffer[] rowValues;
+        private final Object[] slotValues;
+        private int next;
+
+        public PackedAggregationRegionScanner(RegionScanner innerScanner) {
+            super(innerScanner, groupByMask);
+            this.sortedEntries = sortEntries();
+            this.rowKey = new byte[keyLength];
+            this.rowValues = new ByteBuffer[aggregators.nHCols];
+            this.slotValues = new Object[slotTypes.length];
+            for (int i = 0; i < slotTypes.length; i++) {
+                slotValues[i] = slotTypes[i].isLong ? new LongWritable() : new DoubleWritable();
+            }
+            this.next = 0;
+        }
+
+        @Override
+        protected boolean nextGroup(List<Cell> results) throws IOException {
+            boolean hasMore = false;
+            if (next < sortedEntries.length) {
+                makeCells(sortedEntries[next++], results);
+                hasMore = next < sortedEntries.length;
+            }
+            return hasMore;
+        }
+
+        private void makeCells(int entry, List<Cell> results) {
+            ByteBuffer slab = slabOf(entry);
+            int pos = positionOf(entry);
+            for (int i = 0; i < keyLength; i++) {
+                rowKey[i] = slab.get(pos + i);
+            }
+
+            int slot = 0;
+            for (int ci = 0; ci < aggregators.nHCols; ci++) {
+                HCol col = aggregators.hcols[ci];
+                for (int j = 0; j < col.nMeasures; j++, slot++) {
+                    int slotPos = pos + keyLength + 8 * slot;
+                    Object value = slotValues[slot];
+                    if (slotTypes[slot].isLong)
+                        ((LongWritable) value).set(slab.getLong(slotPos));
+                    else
+                        ((DoubleWritable) value).set(slab.getDouble(slotPos));
+                    col.measureValues[j] = value;
+                }
+                col.measureBuf.clear();
+                col.measureCodec.encode(col.measureValues, col.measureBuf);
+                rowValues[ci] = col.measureBuf;
+            }
+
+            aggregators.makeCells(rowKey, 0, keyLength, rowValues, results);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.kylin.metadata.measure.MeasureAggregator;
+import org.apache.kylin.storage.hbase.coprocessor.AggregationCache;
+import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
+
+import com.google.common.collect.Lists;
+
+/**
+ * An aggregation cache that spills to local disk instead of aborting when the
+ * in-memory cache goes beyond the memory cap.
+ * 
+ * Each spill writes the groups of the in-memory cache as a sorted run into a
+ * temp file and starts over with an empty cache. When emitting, the runs and
+ * the last in-memory cache are merged by row key and groups appearing in more
+ * than one run are aggregated again. Only when the spilled bytes go beyond
+ * the disk cap does the coprocessor abort like before.
+ * 
+ * The cache owns its run files. A run is deleted once the merge has read it
+ * through, the rest when the merging scanner closes. Whoever builds the
+ * cache must call close() if it fails before the scanner is handed out.
+ */
+@SuppressWarnings("rawtypes")
+public class SpillableAggregationCache implements IObserverAggregationCache {
+
+    private final CoprocessorProjector projector;
+    private final ObserverAggregators aggregators;
+    private final long memCap;
+    private final ObserverCacheConfig cacheConfig;
+    private final List<File> runFiles;
+    private final List<Long> runGroups;
+
+    private IObserverAggregationCache memCache;
+    private long spillBytes;
+    private long totalGroups;
+
+    public SpillableAggregationCache(CoprocessorProjector projector, ObserverAggregators aggregators) {
+        this(projector, aggregators, AggregationCache.MEMORY_USAGE_CAP);
+    }
+
+    public SpillableAggregationCache(CoprocessorProjector projector, ObserverAggregators aggregators, long memCap) {
+        this(projector, aggregators, memCap, ObserverCacheConfig.DEFAULT);
+    }
+
+    public SpillableAggregationCache(CoprocessorProjector projector, ObserverAggregators aggregators, long memCap, ObserverCacheConfig cacheConfig) {
+        this.projector = projector;
+        this.aggregators = aggregators;
+        this.memCap = memCap;
+        this.cacheConfig = cacheConfig;
+        this.runFiles = Lists.newArrayList();
+        this.runGroups = Lists.newArrayList();
+        this.memCache = newMemCache();
+    }
+
+    private IObserverAggregationCache newMemCache() {
+        // primitive measures can be packed into slabs, no object per group
+        if (PackedAggregationCache.isApplicable(aggregators)) {
+            return new PackedAggregationCache(projector, aggregators, cacheConfig.isOffHeap());
+        } else {
+            return new ObserverAggregationCache(projector, aggregators);
+        }
+    }
+
+    @Override
+    public void aggregate(CoprocessorProjector.AggrKey aggKey, List<Cell> rowCells) {
+        memCache.aggregate(aggKey, rowCells);
+    }
+
+    // the number of groups before merge, groups spilled more than once are counted more than once
+    @Override
+    public long getSize() {
+        return totalGroups + memCache.getSize();
+    }
+
+    @Override
+    public long getMemBytes() {
+        return memCache.getMemBytes();
+    }
+
+    public int getSpillRuns() {
+        return runFiles.size();
+    }
+
+    public long getSpillBytes() {
+        return spillBytes;
+    }
+
+    @Override
+    public void checkMemoryUsage() {
+        if (memCache.getMemBytes() <= memCap)
+            return;
+
+        try {
+            spill();
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Kylin coprocessor failed to spill aggregation cache to disk. Abort coprocessor.", e);
+        }
+
+        long spillCap = cacheConfig.getSpillMaxBytes();
+        if (spillBytes > spillCap) {
+            close();
+            throw new RuntimeException("Kylin coprocess spill bytes goes beyond cap, " + spillBytes + " > " + spillCap + ". Abort coprocessor.");
+        }
+    }
+
+    private void spill() throws IOException {
+        File file = File.createTempFile("kylin_aggr_spill_", ".run", cacheConfig.getSpillDir());
+        runFiles.add(file);
+
+        long groups = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            // the scanner of a cache emits groups in row key order, which makes a sorted run;
+            // no inner scanner to close as the spill scanner is never closed
+            RegionScanner sorted = memCache.getScanner(null);
+            List<Cell> cells = Lists.newArrayList();
+            boolean hasMore = true;
+            while (hasMore) {
+                cells.clear();
+                hasMore = sorted.next(cells);
+                if (cells.isEmpty())
+                    continue;
+
+                writeGroup(cells, out);
+                groups++;
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+
+        runGroups.add(groups);
+        totalGroups += groups;
+        spillBytes += file.length();
+        AggregateRegionObserver.LOG.info("Kylin Coprocessor spilled " + groups + " groups, " + file.length() + " bytes to " + file + ", memory was " + memCache.getMemBytes() + " bytes");
+
+        memCache = newMemCache();
+    }
+
+    private void writeGroup(List<Cell> cells, DataOutputStream out) throws IOException {
+        Cell first = cells.get(0);
+        out.writeInt(first.getRowLength());
+        out.write(first.getRowArray(), first.getRowOffset(), first.getRowLength());
+        for (int i = 0; i < aggregators.nHCols; i++) {
+            Cell cell = aggregators.findCell(aggregators.hcols[i], cells);
+            out.writeInt(cell.getValueLength());
+            out.write(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+        }
+    }
+
+    @Override
+    public RegionScanner getScanner(RegionScanner innerScanner) {
+        if (runFiles.isEmpty()) {
+            return memCache.getScanner(innerScanner);
+        }
+
+        try {
+            return new MergingRegionScanner(innerScanner);
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Kylin coprocessor failed to read spilled aggregation cache. Abort coprocessor.", e);
+        }
+    }
+
+    /**
+     * Deletes the run files. Called by the merging scanner when it closes;
+     * callers only need it when the scanner is never obtained.
+     */
+    public void close() {
+        for (File file : runFiles) {
+            deleteRunFile(file);
+        }
+    }
+
+    private static void deleteRunFile(File file) {
+        if (file.exists() && file.delete() == false) {
+            AggregateRegionObserver.LOG.warn("Failed to delete " + file);
+        }
+    }
+
+    // ============================================================================
+
+    private abstract static class SortedRun {
+        final List<Cell> cells = Lists.newArrayList();
+
+        // move to the next group, false if the run is exhausted
+        abstract boolean advance() throws IOException;
+
+        abstract void close();
+
+        Cell first() {
+            return cells.get(0);
+        }
+    }
+
+    private static class MemCacheRun extends SortedRun {
+        final RegionScanner scanner;
+        boolean hasMore = true;
+
+        MemCacheRun(RegionScanner scanner) {
+            this.scanner = scanner;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            cells.clear();
+            while (hasMore && cells.isEmpty()) {
+                hasMore = scanner.next(cells);
+            }
+            return cells.isEmpty() == false;
+        }
+
+        @Override
+        void close() {
+        }
+    }
+
+    private class FileRun extends SortedRun {
+        final File file;
+        final DataInputStream in;
+        final ByteBuffer[] values;
+        long remaining;
+
+        FileRun(File file, long groups) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.values = new ByteBuffer[aggregators.nHCols];
+            this.remaining = groups;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            cells.clear();
+            if (remaining <= 0)
+                return false;
+
+            byte[] rowKey = readBytes();
+            for (int i = 0; i < values.length; i++) {
+                byte[] value = readBytes();
+                values[i] = ByteBuffer.wrap(value);
+                values[i].position(value.length);
+            }
+            aggregators.makeCells(rowKey, 0, rowKey.length, values, cells);
+            remaining--;
+            return true;
+        }
+
+        private byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        @Override
+        void close() {
+            IOUtils.closeQuietly(in);
+            deleteRunFile(file);
+        }
+    }
+
+    private class MergingRegionScanner extends AggregationRegionScanner {
+
+        private final byte[] groupByMask;
+        private final PriorityQueue<SortedRun> queue;
+        private final List<SortedRun> runs;
+
+        public MergingRegionScanner(RegionScanner innerScanner) throws IOException {
+            super(innerScanner, projector.getGroupByMask());
+            this.groupByMask = projector.getGroupByMask();
+            this.queue = new PriorityQueue<SortedRun>(runFiles.size() + 1, new Comparator<SortedRun>() {
+                @Override
+                public int compare(SortedRun r1, SortedRun r2) {
+                    return compareRowKey(r1.first(), r2.first());
+                }
+            });
+
+            this.runs = Lists.newArrayList();
+            for (int i = 0; i < runFiles.size(); i++) {
+                runs.add(new FileRun(runFiles.get(i), runGroups.get(i)));
+            }
+            runs.add(new MemCacheRun(memCache.getScanner(null)));
+
+            for (SortedRun run : runs) {
+                if (run.advance())
+                    queue.add(run);
+            }
+        }
+
+        private int compareRowKey(Cell c1, Cell c2) {
+            byte[] a1 = c1.getRowArray();
+            byte[] a2 = c2.getRowArray();
+            int o1 = c1.getRowOffset();
+            int o2 = c2.getRowOffset();
+            for (int i = 0; i < groupByMask.length; i++) {
+                if (groupByMask[i] != 0) {
+                    int comp = (a1[o1 + i] & 0xff) - (a2[o2 + i] & 0xff);
+                    if (comp != 0)
+                        return comp;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        protected boolean nextGroup(List<Cell> results) throws IOException {
+            if (queue.isEmpty())
+                return false;
+
+            SortedRun run = queue.poll();
+            Cell first = run.first();
+            byte[] rowKey = new byte[first.getRowLength()];
+            System.arraycopy(first.getRowArray(), first.getRowOffset(), rowKey, 0, rowKey.length);
+
+            MeasureAggregator[] aggBuf = aggregators.createBuffer();
+            aggregators.aggregate(aggBuf, run.cells);
+            requeue(run);
+
+            // the same group may appear in several runs
+            while (queue.isEmpty() == false && compareRowKey(queue.peek().first(), first) == 0) {
+                run = queue.poll();
+                aggregators.aggregate(aggBuf, run.cells);
+                requeue(run);
+            }
+
+            aggregators.makeCells(rowKey, 0, rowKey.length, aggregators.getHColValues(aggBuf), results);
+            return queue.isEmpty() == false;
+        }
+
+        private void requeue(SortedRun run) throws IOException {
+            if (run.advance())
+                queue.add(run);
+            else
+                run.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                for (SortedRun run : runs) {
+                    run.close();
+                }
+            } finally {
+                SpillableAggregationCache.this.close();
+                super.close();
+            }
+        }
+    }
+}
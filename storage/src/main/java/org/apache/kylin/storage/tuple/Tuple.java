@@ -18,15 +18,13 @@
 
 package org.apache.kylin.storage.tuple;
 
-import java.math.BigDecimal;
-import java.util.Date;
 import java.util.List;
 
+import org.apache.kylin.common.hll.HyperLogLogPlusCounter;
 import org.apache.kylin.common.util.Array;
 import org.apache.kylin.cube.CubeManager;
 import org.apache.kylin.cube.CubeSegment;
 import org.apache.kylin.cube.model.CubeDesc.DeriveInfo;
-import org.apache.kylin.dict.DateStrDictionary;
 import org.apache.kylin.dict.lookup.LookupStringTable;
 import org.apache.kylin.metadata.model.TblColRef;
 import org.apache.kylin.metadata.tuple.ITuple;
@@ -82,35 +80,45 @@ public class Tuple implements ITuple {
         return info.getDataType(fieldName);
     }
 
-    private void setFieldObjectValue(String fieldName, Object fieldValue) {
-        int index = info.getFieldIndex(fieldName);
-        values[index] = fieldValue;
+    public void setDimensionValue(String fieldName, String fieldValue) {
+        setDimensionValue(info.getFieldIndex(fieldName), fieldValue);
     }
 
-    public void setDimensionValue(String fieldName, String fieldValue) {
-        Object objectValue = convertOptiqCellValue(fieldValue, getDataType(fieldName));
-        setFieldObjectValue(fieldName, objectValue);
+    public void setDimensionValue(int index, String fieldValue) {
+        values[index] = info.getCellType(index).convert(fieldValue);
+    }
+
+    /**
+     * Sets a value already converted by the field's TupleCellType, e.g. one
+     * cached per dictionary ID.
+     */
+    public void setConvertedValue(int index, Object fieldValue) {
+        values[index] = fieldValue;
     }
 
     public void setMeasureValue(String fieldName, Object fieldValue) {
-        String dataType = info.getDataType(fieldName);
-        // special handling for BigDecimal, allow double be aggregated as
-        // BigDecimal during cube build for best precision
-        if ("double".equals(dataType) && fieldValue instanceof BigDecimal) {
-            fieldValue = ((BigDecimal) fieldValue).doubleValue();
-        } else if ("integer".equals(dataType) && !(fieldValue instanceof Integer)) {
-            fieldValue = ((Number) fieldValue).intValue();
-        } else if ("float".equals(dataType) && fieldValue instanceof BigDecimal) {
-            fieldValue = ((BigDecimal) fieldValue).floatValue();
-        }
+        setMeasureValue(info.getFieldIndex(fieldName), fieldValue);
+    }
 
-        setFieldObjectValue(fieldName, fieldValue);
+    public void setMeasureValue(int index, Object fieldValue) {
+        values[index] = info.getCellType(index).convertMeasure(fieldValue);
     }
 
     public boolean hasColumn(TblColRef column) {
         return info.hasColumn(column);
     }
 
+    // iterators reuse one tuple per scan and decoders one HLL counter per measure,
+    // a copy is needed to hand a tuple over to another thread or to keep it
+    public Tuple makeCopy() {
+        Tuple copy = new Tuple(info);
+        for (int i = 0; i < values.length; i++) {
+            Object v = values[i];
+            copy.values[i] = v instanceof HyperLogLogPlusCounter ? new HyperLogLogPlusCounter((HyperLogLogPlusCounter) v) : v;
+        }
+        return copy;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -124,38 +132,7 @@ public class Tuple implements ITuple {
     }
 
     public static Object convertOptiqCellValue(String strValue, String dataType) {
-        if (strValue == null)
-            return null;
-
-        if ((strValue.equals("") || strValue.equals("\\N")) && !dataType.equals("string"))
-            return null;
-
-        // TODO use data type enum instead of string comparison
-        if ("date".equals(dataType)) {
-            // convert epoch time
-            Date dateValue = DateStrDictionary.stringToDate(strValue); // NOTE: forces GMT timezone
-            long millis = dateValue.getTime();
-            long days = millis / (1000 * 3600 * 24);
-            return Integer.valueOf((int) days); // Optiq expects Integer instead of Long. by honma
-        } else if ("tinyint".equals(dataType)) {
-            return Byte.valueOf(strValue);
-        } else if ("short".equals(dataType) || "smallint".equals(dataType)) {
-            return Short.valueOf(strValue);
-        } else if ("integer".equals(dataType)) {
-            return Integer.valueOf(strValue);
-        } else if ("long".equals(dataType) || "bigint".equals(dataType)) {
-            return Long.valueOf(strValue);
-        } else if ("double".equals(dataType)) {
-            return Double.valueOf(strValue);
-        } else if ("decimal".equals(dataType)) {
-            return new BigDecimal(strValue);
-        } else if ("timestamp".equals(dataType)) {
-            return Long.valueOf(DateStrDictionary.stringToMillis(strValue));
-        } else if ("float".equals(dataType)){
-            return Float.valueOf(strValue);
-        } else {
-            return strValue;
-        }
+        return TupleCellType.of(dataType).convert(strValue);
     }
 
     // ============================================================================
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.tuple;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.apache.kylin.dict.DateStrDictionary;
+
+/**
+ * The Java type Optiq expects for a column data type. Resolved once per field
+ * of a TupleInfo, so converting a cell needs no comparison of type names.
+ */
+public enum TupleCellType {
+
+    STRING {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return strValue;
+        }
+    },
+    // other types like varchar are passed as string too, but empty means null
+    OTHER {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return strValue;
+        }
+    },
+    DATE {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            // convert epoch time
+            Date dateValue = DateStrDictionary.stringToDate(strValue); // NOTE: forces GMT timezone
+            long millis = dateValue.getTime();
+            long days = millis / (1000 * 3600 * 24);
+            return Integer.valueOf((int) days); // Optiq expects Integer instead of Long. by honma
+        }
+    },
+    TINYINT {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return Byte.valueOf(strValue);
+        }
+    },
+    SMALLINT {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return Short.valueOf(strValue);
+        }
+    },
+    INTEGER {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return Integer.valueOf(strValue);
+        }
+
+        @Override
+        public Object convertMeasure(Object value) {
+            return value == null || value instanceof Integer ? value : Integer.valueOf(((Number) value).intValue());
+        }
+    },
+    BIGINT {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return Long.valueOf(strValue);
+        }
+    },
+    DOUBLE {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return Double.valueOf(strValue);
+        }
+
+        @Override
+        public Object convertMeasure(Object value) {
+            // allow double be aggregated as BigDecimal during cube build for best precision
+            return value instanceof BigDecimal ? Double.valueOf(((BigDecimal) value).doubleValue()) : value;
+        }
+    },
+    DECIMAL {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return new BigDecimal(strValue);
+        }
+    },
+    TIMESTAMP {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return Long.valueOf(DateStrDictionary.stringToMillis(strValue));
+        }
+    },
+    FLOAT {
+        @Override
+        Object convertNonEmpty(String strValue) {
+            return Float.valueOf(strValue);
+        }
+
+        @Override
+        public Object convertMeasure(Object value) {
+            return value instanceof BigDecimal ? Float.valueOf(((BigDecimal) value).floatValue()) : value;
+        }
+    };
+
+    // TODO use data type enum instead of string comparison
+    public static TupleCellType of(String dataType) {
+        if ("string".equals(dataType)) {
+            return STRING;
+        } else if ("date".equals(dataType)) {
+            return DATE;
+        } else if ("tinyint".equals(dataType)) {
+            return TINYINT;
+        } else if ("short".equals(dataType) || "smallint".equals(dataType)) {
+            return SMALLINT;
+        } else if ("integer".equals(dataType)) {
+            return INTEGER;
+        } else if ("long".equals(dataType) || "bigint".equals(dataType)) {
+            return BIGINT;
+        } else if ("double".equals(dataType)) {
+            return DOUBLE;
+        } else if ("decimal".equals(dataType)) {
+            return DECIMAL;
+        } else if ("timestamp".equals(dataType)) {
+            return TIMESTAMP;
+        } else if ("float".equals(dataType)) {
+            return FLOAT;
+        } else {
+            return OTHER;
+        }
+    }
+
+    /**
+     * Converts a dimension value decoded from row key or lookup table.
+     */
+    public Object convert(String strValue) {
+        if (strValue == null)
+            return null;
+
+        if (this != STRING && (strValue.equals("") || strValue.equals("\\N")))
+            return null;
+
+        return convertNonEmpty(strValue);
+    }
+
+    abstract Object convertNonEmpty(String strValue);
+
+    /**
+     * Converts a measure value from its aggregator.
+     */
+    public Object convertMeasure(Object value) {
+        return value;
+    }
+}
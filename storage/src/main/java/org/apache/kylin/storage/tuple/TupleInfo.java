@@ -38,6 +38,7 @@ public class TupleInfo {
     private final List<String> fields;
     private final List<TblColRef> columns;
     private final List<String> dataTypes;
+    private final List<TupleCellType> cellTypes;
     private final List<IDerivedColumnFiller> derivedColumnFillers;
 
     public TupleInfo() {
@@ -46,6 +47,7 @@ public class TupleInfo {
         fields = new ArrayList<String>();
         columns = new ArrayList<TblColRef>();
         dataTypes = new ArrayList<String>();
+        cellTypes = new ArrayList<TupleCellType>();
         derivedColumnFillers = new ArrayList<IDerivedColumnFiller>();
     }
 
@@ -63,6 +65,10 @@ public class TupleInfo {
         return dataTypes.get(idx);
     }
 
+    public TupleCellType getCellType(int index) {
+        return cellTypes.get(index);
+    }
+
     public int getFieldIndex(String fieldName) {
         return fieldMap.get(fieldName);
     }
@@ -95,6 +101,11 @@ public class TupleInfo {
             dataTypes.set(index, dataType);
         else
             dataTypes.add(index, dataType);
+
+        if (cellTypes.size() > index)
+            cellTypes.set(index, TupleCellType.of(dataType));
+        else
+            cellTypes.add(index, TupleCellType.of(dataType));
     }
 
     public int size() {
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.hll.HyperLogLogPlusCounter;
+import org.apache.kylin.cube.CubeInstance;
+import org.apache.kylin.cube.CubeSegment;
+import org.apache.kylin.metadata.filter.LogicalTupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter.FilterOperatorEnum;
+import org.apache.kylin.metadata.model.FunctionDesc;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.metadata.realization.SQLDigest;
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.apache.kylin.metadata.tuple.ITupleIterator;
+import org.apache.kylin.storage.StorageContext;
+import org.apache.kylin.storage.filter.FilterBaseTest;
+import org.apache.kylin.storage.tuple.Tuple;
+import org.apache.kylin.storage.tuple.TupleInfo;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SegmentResultCacheTest extends FilterBaseTest {
+
+    @Test
+    public void testDigestKeyNormalized() {
+        List<TblColRef> columns = buildGroups();
+        List<TblColRef> reversed = Lists.reverse(columns);
+
+        LogicalTupleFilter and1 = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and1.addChild(buildCompareFilter(columns, 0));
+        and1.addChild(buildCompareFilter(columns, 1));
+        LogicalTupleFilter and2 = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and2.addChild(buildCompareFilter(columns, 1));
+        and2.addChild(buildCompareFilter(columns, 0));
+
+        String key1 = SegmentResultCache.makeDigestKey(digest(and1, columns), new StorageContext());
+        String key2 = SegmentResultCache.makeDigestKey(digest(and2, reversed), new StorageContext());
+        assertNotNull(key1);
+        assertEquals(key1, key2);
+
+        String key3 = SegmentResultCache.makeDigestKey(digest(buildOrFilter(columns), columns), new StorageContext());
+        assertFalse(key1.equals(key3));
+
+        TupleFilter otherAnd = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        otherAnd.addChild(buildCompareFilter(columns, 0));
+        otherAnd.addChild(buildCompareFilter(columns, 0));
+        String key4 = SegmentResultCache.makeDigestKey(digest(otherAnd, columns), new StorageContext());
+        assertFalse(key1.equals(key4));
+    }
+
+    @Test
+    public void testEstimateBytes() {
+        List<ITuple> narrow = tuples(100, "x");
+        List<ITuple> wide = tuples(100, "a much longer dimension value of many more characters");
+        assertTrue(SegmentResultCache.estimateBytes(wide) > SegmentResultCache.estimateBytes(narrow));
+        assertTrue(SegmentResultCache.estimateBytes(tuples(200, "x")) > SegmentResultCache.estimateBytes(narrow));
+
+        assertEquals(0, SegmentResultCache.estimateValueBytes(null));
+        assertEquals(16, SegmentResultCache.estimateValueBytes(Long.valueOf(1)));
+        assertEquals(40 + 2 * 3, SegmentResultCache.estimateValueBytes("abc"));
+    }
+
+    @Test
+    public void testBoundedByBytes() {
+        List<ITuple> tuples = tuples(100, "value");
+        long entryBytes = SegmentResultCache.estimateBytes(tuples);
+
+        // room for about 40 entries, the bytes bound and not the tuple count applies
+        SegmentResultCache cache = new SegmentResultCache(entryBytes * 40, 10000);
+        for (int i = 0; i < 100; i++) {
+            cache.put("digest" + i, segment("seg" + i), tuples);
+        }
+        assertTrue(cache.size() <= 40);
+        assertTrue(cache.size() > 0);
+        assertNotNull(cache.get("digest99", segment("seg99")));
+
+        // entries over the row limit are never cached
+        SegmentResultCache small = new SegmentResultCache(Long.MAX_VALUE, 50);
+        small.put("digest", segment("seg"), tuples);
+        assertEquals(0, small.size());
+    }
+
+    @Test
+    public void testHLLCRoundTrip() {
+        SegmentResultCache cache = new SegmentResultCache(Long.MAX_VALUE, 10000);
+        CubeSegment seg = segment("seg");
+
+        // counters are consumed as read, the way the SQL engine copies them into its aggregate
+        List<HyperLogLogPlusCounter> fresh = new ArrayList<HyperLogLogPlusCounter>();
+        ITupleIterator recording = new RecordingTupleIterator(new HLLCTupleIterator(50), cache, "digest", seg);
+        while (recording.hasNext()) {
+            fresh.add(new HyperLogLogPlusCounter((HyperLogLogPlusCounter) recording.next().getValue("UV")));
+        }
+        recording.close();
+
+        List<ITuple> cached = cache.get("digest", seg);
+        assertNotNull(cached);
+        List<HyperLogLogPlusCounter> replayed = new ArrayList<HyperLogLogPlusCounter>();
+        ITupleIterator replaying = new CachedTupleIterator(cached);
+        while (replaying.hasNext()) {
+            replayed.add((HyperLogLogPlusCounter) replaying.next().getValue("UV"));
+        }
+        replaying.close();
+
+        assertEquals(fresh, replayed);
+        // each cached row holds its own counter and is weighed with it
+        HyperLogLogPlusCounter first = replayed.get(0);
+        assertTrue(SegmentResultCache.estimateBytes(cached) >= (long) replayed.size() * first.getMemBytes());
+    }
+
+    @Test
+    public void testOffByDefault() {
+        assertFalse(KylinConfig.getKylinConfigFromInputStream(new ByteArrayInputStream(new byte[0])).isQueryStorageCacheEnabled());
+    }
+
+    private List<ITuple> tuples(int n, String dimValue) {
+        TupleInfo info = new TupleInfo();
+        info.setField("DIM", null, "varchar", 0);
+        info.setField("MEASURE", null, "bigint", 1);
+        List<ITuple> result = Lists.newArrayList();
+        for (int i = 0; i < n; i++) {
+            Tuple tuple = new Tuple(info);
+            tuple.setDimensionValue(0, dimValue);
+            tuple.setMeasureValue(1, Long.valueOf(i));
+            result.add(tuple);
+        }
+        return result;
+    }
+
+    /** row i counts i + 1 distinct values in one tuple and one counter reused by all rows, like a segment scan */
+    private static class HLLCTupleIterator implements ITupleIterator {
+        final int n;
+        final Tuple tuple;
+        final HyperLogLogPlusCounter counter = new HyperLogLogPlusCounter();
+        int i = 0;
+
+        HLLCTupleIterator(int n) {
+            this.n = n;
+            TupleInfo info = new TupleInfo();
+            info.setField("DIM", null, "varchar", 0);
+            info.setField("UV", null, "bigint", 1);
+            this.tuple = new Tuple(info);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return i < n;
+        }
+
+        @Override
+        public ITuple next() {
+            counter.clear();
+            for (int j = 0; j <= i; j++) {
+                counter.add("value" + j);
+            }
+            tuple.setDimensionValue(0, "row" + i);
+            tuple.setMeasureValue(1, counter);
+            i++;
+            return tuple;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private CubeSegment segment(String uuid) {
+        CubeInstance cube = new CubeInstance();
+        cube.setName("test_cube");
+        CubeSegment seg = new CubeSegment();
+        seg.setCubeInstance(cube);
+        seg.setUuid(uuid);
+        seg.setLastBuildTime(1);
+        return seg;
+    }
+
+    private SQLDigest digest(TupleFilter filter, List<TblColRef> columns) {
+        return new SQLDigest("DEFAULT.TEST_KYLIN_FACT", filter, null, columns, columns, columns, Collections.<TblColRef> emptyList(), Collections.<FunctionDesc> emptyList());
+    }
+}
@@ -25,9 +25,9 @@ import org.apache.kylin.metadata.filter.*;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
-import it.uniroma3.mat.extendedset.intset.ConciseSet;
-
 import com.google.common.collect.Lists;
+import org.apache.kylin.invertedindex.index.BitMap;
+import org.apache.kylin.invertedindex.index.BitMapFormat;
 import org.apache.kylin.metadata.model.ColumnDesc;
 import org.apache.kylin.metadata.model.TableDesc;
 import org.apache.kylin.metadata.model.TblColRef;
@@ -60,15 +60,21 @@ public class BitMapFilterEvaluatorTest {
         private static final int MAX_ID = 8;
         private static final int REC_COUNT = 10;
 
+        private final BitMapFormat format;
+
+        MockBitMapProivder(BitMapFormat format) {
+            this.format = format;
+        }
+
         @Override
-        public ConciseSet getBitMap(TblColRef col, Integer startId, Integer endId) {
+        public BitMap getBitMap(TblColRef col, Integer startId, Integer endId) {
             if (!col.equals(colA))
                 return null;
 
             // i-th record has value ID i, and last record has value null
             if (startId == null && endId == null) {
                 //entry for getting null value
-                ConciseSet s = new ConciseSet();
+                BitMap s = newBitMap();
                 s.add(getRecordCount() - 1);
                 return s;
             }
@@ -82,20 +88,20 @@ public class BitMapFilterEvaluatorTest {
                 end = endId;
             }
 
-            ConciseSet ret = new ConciseSet();
+            BitMap ret = newBitMap();
             for (int i = start; i <= end; ++i) {
-                ConciseSet temp = getBitMap(col, i);
-                ret.addAll(temp);
+                BitMap temp = getBitMap(col, i);
+                ret.or(temp);
             }
             return ret;
         }
 
-        public ConciseSet getBitMap(TblColRef col, int valueId) {
+        public BitMap getBitMap(TblColRef col, int valueId) {
             if (!col.equals(colA))
                 return null;
 
             // i-th record has value ID i, and last record has value null
-            ConciseSet bitMap = new ConciseSet();
+            BitMap bitMap = newBitMap();
             if (valueId < 0 || valueId > getMaxValueId(col)) // null
                 bitMap.add(getRecordCount() - 1);
             else
@@ -104,6 +110,11 @@ public class BitMapFilterEvaluatorTest {
             return bitMap;
         }
 
+        @Override
+        public BitMap newBitMap() {
+            return format.create();
+        }
+
         @Override
         public int getRecordCount() {
             return REC_COUNT;
@@ -115,9 +126,9 @@ public class BitMapFilterEvaluatorTest {
         }
     }
 
-    BitMapFilterEvaluator eval = new BitMapFilterEvaluator(new MockBitMapProivder());
+    BitMapFilterEvaluator eval = new BitMapFilterEvaluator(new MockBitMapProivder(BitMapFormat.DEFAULT));
     ArrayList<CompareTupleFilter> basicFilters = Lists.newArrayList();
-    ArrayList<ConciseSet> basicResults = Lists.newArrayList();
+    ArrayList<BitMap> basicResults = Lists.newArrayList();
 
     public BitMapFilterEvaluatorTest() {
         basicFilters.add(compare(colA, FilterOperatorEnum.ISNULL));
@@ -163,8 +174,8 @@ public class BitMapFilterEvaluatorTest {
         for (int i = 0; i < basicFilters.size(); i++) {
             for (int j = 0; j < basicFilters.size(); j++) {
                 LogicalTupleFilter f = logical(FilterOperatorEnum.AND, basicFilters.get(i), basicFilters.get(j));
-                ConciseSet r = basicResults.get(i).clone();
-                r.retainAll(basicResults.get(j));
+                BitMap r = basicResults.get(i).clone();
+                r.and(basicResults.get(j));
                 assertEquals(r, eval.evaluate(f));
             }
         }
@@ -175,13 +186,25 @@ public class BitMapFilterEvaluatorTest {
         for (int i = 0; i < basicFilters.size(); i++) {
             for (int j = 0; j < basicFilters.size(); j++) {
                 LogicalTupleFilter f = logical(FilterOperatorEnum.OR, basicFilters.get(i), basicFilters.get(j));
-                ConciseSet r = basicResults.get(i).clone();
-                r.addAll(basicResults.get(j));
+                BitMap r = basicResults.get(i).clone();
+                r.or(basicResults.get(j));
                 assertEquals(r, eval.evaluate(f));
             }
         }
     }
 
+    @Test
+    public void testAllFormats() {
+        for (BitMapFormat format : BitMapFormat.values()) {
+            BitMapFilterEvaluator formatEval = new BitMapFilterEvaluator(new MockBitMapProivder(format));
+            for (int i = 0; i < basicFilters.size(); i++) {
+                BitMap r = formatEval.evaluate(basicFilters.get(i));
+                assertEquals(format, r.getFormat());
+                assertEquals(format.convert(basicResults.get(i)), r);
+            }
+        }
+    }
+
     @Test
     public void testNotEvaluable() {
         CompareTupleFilter notEvaluable = compare(colB, FilterOperatorEnum.EQ, 0);
@@ -219,8 +242,8 @@ public class BitMapFilterEvaluatorTest {
         return new ConstantTupleFilter(idToStr(id));
     }
 
-    public static ConciseSet set(int... ints) {
-        ConciseSet set = new ConciseSet();
+    public static BitMap set(int... ints) {
+        BitMap set = BitMapFormat.DEFAULT.create();
         for (int i : ints)
             set.add(i);
         return set;
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.kylin.common.hll.HyperLogLogPlusCounter;
+import org.apache.kylin.common.util.LocalFileMetadataTestCase;
+import org.apache.kylin.cube.CubeManager;
+import org.apache.kylin.cube.kv.RowValueDecoder;
+import org.apache.kylin.cube.model.CubeDesc;
+import org.apache.kylin.cube.model.HBaseColumnDesc;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.apache.kylin.metadata.tuple.ITupleIterator;
+import org.apache.kylin.storage.tuple.Tuple;
+import org.apache.kylin.storage.tuple.TupleInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Measures of test_kylin_cube_without_slr_desc: f1:m holds GMV_SUM, GMV_MIN,
+ * GMV_MAX as decimal, TRANS_CNT and the holistic SELLER_CNT_LONG; f2:m holds
+ * the HLL counters.
+ */
+public class AggregatingTupleIteratorTest extends LocalFileMetadataTestCase {
+
+    CubeDesc cubeDesc;
+    TblColRef dimension;
+    HBaseColumnDesc f1;
+    HBaseColumnDesc f2;
+
+    @Before
+    public void setUp() throws Exception {
+        this.createTestMetadata();
+        cubeDesc = CubeManager.getInstance(getTestConfig()).getCube("test_kylin_cube_without_slr_ready").getDescriptor();
+        dimension = cubeDesc.getRowkey().getRowKeyColumns()[0].getColRef();
+        f1 = cubeDesc.getHBaseMapping().getColumnFamily()[0].getColumns()[0];
+        f2 = cubeDesc.getHBaseMapping().getColumnFamily()[1].getColumns()[0];
+    }
+
+    @After
+    public void after() throws Exception {
+        this.cleanupTestMetadata();
+    }
+
+    @Test
+    public void testIsSupported() {
+        // SUM, MIN, MAX and COUNT
+        assertTrue(AggregatingTupleIterator.isSupported(Lists.newArrayList(decoder(f1, 0, 1, 2, 3))));
+        // HLL count distinct
+        assertTrue(AggregatingTupleIterator.isSupported(Lists.newArrayList(decoder(f1, 0), decoder(f2, 0, 1))));
+        // holistic count distinct can't be merged
+        assertFalse(AggregatingTupleIterator.isSupported(Lists.newArrayList(decoder(f1, 0, 4))));
+        // measures not projected don't count
+        assertTrue(AggregatingTupleIterator.isSupported(Lists.<RowValueDecoder> newArrayList()));
+    }
+
+    @Test
+    public void testSumMinMaxCount() {
+        RowValueDecoder decoder = decoder(f1, 0, 1, 2, 3);
+        TupleInfo info = tupleInfo(decoder);
+        List<Tuple> input = Lists.newArrayList( //
+                tuple(info, "A", "1.5", "1.5", "1.5", 1L), //
+                tuple(info, "B", "4", "4", "4", 3L), //
+                tuple(info, "A", "2.5", "2.5", "2.5", 2L));
+
+        List<ITuple> output = aggregate(input, decoder);
+        assertEquals(2, output.size());
+        assertGroup(output.get(0), "A", "4.0", "1.5", "2.5", 3L);
+        assertGroup(output.get(1), "B", "4", "4", "4", 3L);
+    }
+
+    @Test
+    public void testNullMeasures() {
+        RowValueDecoder decoder = decoder(f1, 0, 1, 2, 3);
+        TupleInfo info = tupleInfo(decoder);
+        List<Tuple> input = Lists.newArrayList( //
+                tuple(info, "A", null, null, null, 1L), //
+                tuple(info, "A", "2", "2", "2", 1L), //
+                tuple(info, "A", null, null, null, 1L), //
+                tuple(info, "B", null, null, null, null), //
+                tuple(info, null, "1", "1", "1", 1L), //
+                tuple(info, null, "3", "3", "3", 1L));
+
+        List<ITuple> output = aggregate(input, decoder);
+        assertEquals(3, output.size());
+        // nulls are skipped, not counted as zero
+        assertGroup(output.get(0), "A", "2", "2", "2", 3L);
+        // a group of nulls only stays null
+        assertGroup(output.get(1), "B", null, null, null, null);
+        // null is a group of its own
+        assertGroup(output.get(2), null, "4", "1", "3", 2L);
+    }
+
+    @Test
+    public void testHLLCountDistinct() {
+        RowValueDecoder decoder = decoder(f2, 0);
+        TupleInfo info = new TupleInfo();
+        info.setField("DIM", dimension, "string", 0);
+        info.setField(decoder.getNames().get(0), null, "bigint", 1);
+
+        HyperLogLogPlusCounter c1 = new HyperLogLogPlusCounter(10);
+        c1.add("a");
+        c1.add("b");
+        HyperLogLogPlusCounter c2 = new HyperLogLogPlusCounter(10);
+        c2.add("b");
+        c2.add("c");
+        List<Tuple> input = Lists.newArrayList();
+        for (HyperLogLogPlusCounter c : new HyperLogLogPlusCounter[] { c1, c2 }) {
+            Tuple tuple = new Tuple(info);
+            tuple.setDimensionValue(0, "A");
+            tuple.setMeasureValue(1, c);
+            input.add(tuple);
+        }
+
+        List<ITuple> output = aggregate(input, decoder);
+        assertEquals(1, output.size());
+        assertEquals(3, ((HyperLogLogPlusCounter) output.get(0).getAllValues()[1]).getCountEstimate());
+        // inputs are not modified
+        assertEquals(2, c1.getCountEstimate());
+    }
+
+    @Test
+    public void testMaxGroups() {
+        RowValueDecoder decoder = decoder(f1, 0, 1, 2, 3);
+        TupleInfo info = tupleInfo(decoder);
+        List<Tuple> input = Lists.newArrayList( //
+                tuple(info, "A", "1", "1", "1", 1L), //
+                tuple(info, "B", "2", "2", "2", 1L), //
+                tuple(info, "A", "3", "3", "3", 1L), //
+                tuple(info, "C", "4", "4", "4", 1L), //
+                tuple(info, "A", "5", "5", "5", 1L), //
+                tuple(info, "D", "6", "6", "6", 1L));
+
+        // groups so far come first, the rest is passed through as is
+        List<ITuple> output = aggregate(input, decoder, 2);
+        assertEquals(5, output.size());
+        assertGroup(output.get(0), "A", "4", "1", "3", 2L);
+        assertGroup(output.get(1), "B", "2", "2", "2", 1L);
+        assertGroup(output.get(2), "C", "4", "4", "4", 1L);
+        assertGroup(output.get(3), "A", "5", "5", "5", 1L);
+        assertGroup(output.get(4), "D", "6", "6", "6", 1L);
+
+        assertEquals(6, aggregate(input, decoder, 0).size());
+    }
+
+    private RowValueDecoder decoder(HBaseColumnDesc column, int... indexes) {
+        RowValueDecoder decoder = new RowValueDecoder(column);
+        for (int i : indexes) {
+            decoder.setIndex(i);
+        }
+        return decoder;
+    }
+
+    // DIM, GMV_SUM, GMV_MIN, GMV_MAX, TRANS_CNT
+    private TupleInfo tupleInfo(RowValueDecoder decoder) {
+        TupleInfo info = new TupleInfo();
+        info.setField("DIM", dimension, "string", 0);
+        for (int i = 0; i < 4; i++) {
+            info.setField(decoder.getNames().get(i), null, i < 3 ? "decimal" : "bigint", i + 1);
+        }
+        return info;
+    }
+
+    private Tuple tuple(TupleInfo info, String dim, String sum, String min, String max, Long count) {
+        Tuple tuple = new Tuple(info);
+        tuple.setDimensionValue(0, dim);
+        tuple.setMeasureValue(1, sum == null ? null : new BigDecimal(sum));
+        tuple.setMeasureValue(2, min == null ? null : new BigDecimal(min));
+        tuple.setMeasureValue(3, max == null ? null : new BigDecimal(max));
+        tuple.setMeasureValue(4, count);
+        return tuple;
+    }
+
+    private void assertGroup(ITuple tuple, String dim, String sum, String min, String max, Long count) {
+        Object[] values = tuple.getAllValues();
+        assertEquals(dim, values[0]);
+        assertDecimal(sum, values[1]);
+        assertDecimal(min, values[2]);
+        assertDecimal(max, values[3]);
+        assertEquals(count, values[4]);
+    }
+
+    private void assertDecimal(String expected, Object actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else {
+            assertEquals(0, new BigDecimal(expected).compareTo((BigDecimal) actual));
+        }
+    }
+
+    private List<ITuple> aggregate(List<Tuple> input, RowValueDecoder decoder) {
+        return aggregate(input, decoder, Integer.MAX_VALUE);
+    }
+
+    private List<ITuple> aggregate(List<Tuple> input, RowValueDecoder decoder, int maxGroups) {
+        final Iterator<Tuple> it = input.iterator();
+        ITupleIterator source = new ITupleIterator() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public ITuple next() {
+                return it.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        AggregatingTupleIterator iterator = new AggregatingTupleIterator(source, Lists.newArrayList(decoder), maxGroups);
+        List<ITuple> result = Lists.newArrayList();
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        iterator.close();
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import org.apache.kylin.storage.StorageContext;
+import org.junit.Test;
+
+public class CubeSegmentTupleIteratorTest {
+
+    static final long MAX_RESULT_SIZE = 8L * 1024 * 1024;
+
+    @Test
+    public void testScanCaching() {
+        StorageContext context = new StorageContext();
+
+        // rows unknown, the old default
+        assertEquals(CubeSegmentTupleIterator.SCAN_CACHE, CubeSegmentTupleIterator.getScanCaching(-1, context, MAX_RESULT_SIZE, 100));
+        // point lookups don't over-fetch, one more row to see the end of the range
+        assertEquals(CubeSegmentTupleIterator.MIN_SCAN_CACHE, CubeSegmentTupleIterator.getScanCaching(0, context, MAX_RESULT_SIZE, 100));
+        assertEquals(101, CubeSegmentTupleIterator.getScanCaching(100, context, MAX_RESULT_SIZE, 100));
+        // large ranges are capped
+        assertEquals(CubeSegmentTupleIterator.MAX_SCAN_CACHE, CubeSegmentTupleIterator.getScanCaching(1000000, context, MAX_RESULT_SIZE, 100));
+        // a batch fits in the max result size
+        assertEquals(MAX_RESULT_SIZE / 4096, CubeSegmentTupleIterator.getScanCaching(1000000, context, MAX_RESULT_SIZE, 4096));
+        // wide rows still fetch the minimum
+        assertEquals(CubeSegmentTupleIterator.MIN_SCAN_CACHE, CubeSegmentTupleIterator.getScanCaching(1000000, context, MAX_RESULT_SIZE, 16 * 1024 * 1024));
+    }
+
+    @Test
+    public void testScanCachingWithLimit() {
+        StorageContext context = new StorageContext();
+        context.setLimit(10);
+        context.enableLimit();
+
+        assertEquals(11, CubeSegmentTupleIterator.getScanCaching(-1, context, MAX_RESULT_SIZE, 100));
+        assertEquals(11, CubeSegmentTupleIterator.getScanCaching(100000, context, MAX_RESULT_SIZE, 100));
+        assertEquals(6, CubeSegmentTupleIterator.getScanCaching(5, context, MAX_RESULT_SIZE, 100));
+    }
+
+    @Test
+    public void testDictValueCacheOfSmallDictionary() {
+        DictValueCache cache = new DictValueCache(99, 1000);
+        assertSame(DictValueCache.MISS, cache.get(5));
+        assertFalse(cache.isArray()); // allocated on first put
+
+        cache.put(5, Long.valueOf(5));
+        cache.put(6, null);
+        assertTrue(cache.isArray());
+        assertEquals(Long.valueOf(5), cache.get(5));
+        assertNull(cache.get(6)); // a cached null is not a miss
+        assertSame(DictValueCache.MISS, cache.get(7));
+
+        // the null ID is beyond the dictionary and never cached
+        cache.put(0xff, "null");
+        assertSame(DictValueCache.MISS, cache.get(0xff));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDictValueCacheOfLargeDictionary() {
+        DictValueCache cache = new DictValueCache(1000000, 100);
+        for (int id = 0; id < 1000; id++) {
+            cache.put(id, Integer.valueOf(id));
+            cache.get(0); // keep the first one hot
+        }
+        assertFalse(cache.isArray());
+        assertEquals(100, cache.size());
+        assertEquals(Integer.valueOf(0), cache.get(0));
+        assertEquals(Integer.valueOf(999), cache.get(999));
+        assertSame(DictValueCache.MISS, cache.get(1));
+    }
+
+    @Test
+    public void testCacheBlocks() {
+        assertTrue(CubeSegmentTupleIterator.isCacheBlocks(-1, 1000000));
+        assertTrue(CubeSegmentTupleIterator.isCacheBlocks(1000000, 1000000));
+        assertFalse(CubeSegmentTupleIterator.isCacheBlocks(1000001, 1000000));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.kylin.common.util.LocalFileMetadataTestCase;
+import org.apache.kylin.cube.CubeInstance;
+import org.apache.kylin.cube.CubeManager;
+import org.apache.kylin.cube.CubeSegment;
+import org.apache.kylin.cube.cuboid.Cuboid;
+import org.apache.kylin.cube.kv.RowConstants;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverCostModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class CubeStorageEngineTest extends LocalFileMetadataTestCase {
+
+    CubeInstance cube;
+    CubeSegment seg;
+    CubeStorageEngine engine;
+
+    // CAL_DT, LSTG_SITE_ID and SLR_SEGMENT_CD, all with dictionaries
+    Cuboid cuboid;
+    long maxGapRows;
+
+    @Before
+    public void setUp() throws Exception {
+        this.createTestMetadata();
+        cube = CubeManager.getInstance(getTestConfig()).getCube("test_kylin_cube_without_slr_ready");
+        seg = cube.getLatestReadySegment();
+        engine = new CubeStorageEngine(cube);
+        cuboid = Cuboid.findById(cube.getDescriptor(), 0x83L);
+        maxGapRows = cube.getConfig().getQueryScanRangeMergeGapRows();
+    }
+
+    @After
+    public void after() throws Exception {
+        this.cleanupTestMetadata();
+    }
+
+    @Test
+    public void testNoMergeUnderThreshold() {
+        HBaseKeyRange r1 = pointRange(cuboid, 0, 0, 0);
+        HBaseKeyRange r2 = pointRange(cuboid, 0, 0, 1);
+        HBaseKeyRange r3 = pointRange(cuboid, 50, 0, 0);
+        assertTrue(gapRows(r1, r2) <= maxGapRows);
+
+        // a cheap gap alone does not widen the scans
+        List<HBaseKeyRange> ranges = Lists.newArrayList(r1, r2, r3);
+        assertEquals(ranges, engine.mergeTooManyRanges(ranges));
+    }
+
+    @Test
+    public void testMergeOverThresholdKeepsFuzzyKeys() {
+        // A, B fuzzy and C, D non-fuzzy and fuzzy, each pair a cheap gap apart
+        List<HBaseKeyRange> ranges = Lists.newArrayList();
+        ranges.add(fuzzy(pointRange(cuboid, 0, 0, 0)));
+        ranges.add(fuzzy(pointRange(cuboid, 0, 0, 1)));
+        ranges.add(pointRange(cuboid, 100, 0, 0));
+        ranges.add(fuzzy(pointRange(cuboid, 100, 0, 2)));
+        for (int i = 4; i < CubeStorageEngine.MERGE_KEYRANGE_THRESHOLD; i++) {
+            ranges.add(pointRange(cuboid, 100 * i - 50, 0, 0));
+        }
+        assertTrue(gapRows(ranges.get(0), ranges.get(1)) <= gapRows(ranges.get(2), ranges.get(3)));
+        assertTrue(gapRows(ranges.get(2), ranges.get(3)) <= maxGapRows);
+        for (int i = 3; i < ranges.size() - 1; i++) {
+            assertTrue(gapRows(ranges.get(i), ranges.get(i + 1)) > maxGapRows);
+        }
+
+        // the smallest gap must close, the other cheap one would drop fuzzy keys and stays
+        List<HBaseKeyRange> merged = engine.mergeTooManyRanges(ranges);
+        assertEquals(CubeStorageEngine.MERGE_KEYRANGE_THRESHOLD - 1, merged.size());
+        assertArrayEquals(ranges.get(0).getStartKey(), merged.get(0).getStartKey());
+        assertArrayEquals(ranges.get(1).getStopKey(), merged.get(0).getStopKey());
+        assertEquals(2, merged.get(0).getFuzzyKeys().size());
+    }
+
+    @Test
+    public void testMergeSmallestGapsOverThreshold() {
+        List<HBaseKeyRange> ranges = Lists.newArrayList();
+        for (int i = 0; i < CubeStorageEngine.MERGE_KEYRANGE_THRESHOLD; i++) {
+            // the first gap is the smallest
+            ranges.add(pointRange(cuboid, i == 0 ? 0 : 100 * i - 50, 0, 0));
+        }
+        for (int i = 0; i < ranges.size() - 1; i++) {
+            assertTrue(gapRows(ranges.get(i), ranges.get(i + 1)) > maxGapRows);
+        }
+
+        List<HBaseKeyRange> merged = engine.mergeTooManyRanges(ranges);
+        assertEquals(CubeStorageEngine.MERGE_KEYRANGE_THRESHOLD - 1, merged.size());
+        assertArrayEquals(ranges.get(0).getStartKey(), merged.get(0).getStartKey());
+        assertArrayEquals(ranges.get(1).getStopKey(), merged.get(0).getStopKey());
+    }
+
+    @Test
+    public void testMergeAllWithoutStats() {
+        // LSTG_FORMAT_NAME has no dictionary and no cardinality
+        Cuboid base = Cuboid.findById(cube.getDescriptor(), Cuboid.getBaseCuboidId(cube.getDescriptor()));
+
+        List<HBaseKeyRange> ranges = Lists.newArrayList();
+        for (int i = 0; i < CubeStorageEngine.MERGE_KEYRANGE_THRESHOLD - 1; i++) {
+            ranges.add(pointRange(base, i, 0, 0));
+        }
+        assertEquals(ranges.size(), engine.mergeTooManyRanges(ranges).size());
+
+        ranges.add(pointRange(base, CubeStorageEngine.MERGE_KEYRANGE_THRESHOLD, 0, 0));
+        List<HBaseKeyRange> merged = engine.mergeTooManyRanges(ranges);
+        assertEquals(1, merged.size());
+        assertArrayEquals(ranges.get(0).getStartKey(), merged.get(0).getStartKey());
+        assertArrayEquals(ranges.get(ranges.size() - 1).getStopKey(), merged.get(0).getStopKey());
+    }
+
+    private HBaseKeyRange fuzzy(HBaseKeyRange range) {
+        range.getFuzzyKeys().add(new Pair<byte[], byte[]>(range.getStartKey(), new byte[range.getStartKey().length]));
+        return range;
+    }
+
+    private long gapRows(HBaseKeyRange range, HBaseKeyRange next) {
+        return new ObserverCostModel().estimateRows(seg, range.getCuboid(), range.getStopKey(), next.getStartKey());
+    }
+
+    /**
+     * A range fixing the first columns of the cuboid to the given IDs above
+     * their dictionary minimum, the other columns are zeros.
+     */
+    private HBaseKeyRange pointRange(Cuboid cuboid, int... ids) {
+        int len = RowConstants.ROWKEY_CUBOIDID_LEN;
+        for (TblColRef col : cuboid.getColumns()) {
+            len += seg.getColumnLength(col);
+        }
+        byte[] key = new byte[len];
+        System.arraycopy(Bytes.toBytes(cuboid.getId()), 0, key, 0, RowConstants.ROWKEY_CUBOIDID_LEN);
+
+        int offset = RowConstants.ROWKEY_CUBOIDID_LEN;
+        for (int i = 0; i < ids.length && i < cuboid.getColumns().size(); i++) {
+            TblColRef col = cuboid.getColumns().get(i);
+            int colLen = seg.getColumnLength(col);
+            int id = ids[i] + (seg.getDictionary(col) == null ? 0 : seg.getDictionary(col).getMinId());
+            for (int k = colLen - 1; k >= 0; k--) {
+                key[offset + k] = (byte) id;
+                id >>>= 8;
+            }
+            offset += colLen;
+        }
+        return new HBaseKeyRange(seg, cuboid, key, key, new ArrayList<Pair<byte[], byte[]>>(), new ArrayList<Collection<ColumnValueRange>>(), 0, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.kylin.common.util.LocalFileMetadataTestCase;
+import org.apache.kylin.cube.CubeManager;
+import org.apache.kylin.cube.model.CubeDesc;
+import org.apache.kylin.cube.model.CubeDesc.DeriveInfo;
+import org.apache.kylin.dict.lookup.LookupStringTable;
+import org.apache.kylin.dict.lookup.ReadableTable;
+import org.apache.kylin.dict.lookup.TableReader;
+import org.apache.kylin.dict.lookup.TableSignature;
+import org.apache.kylin.metadata.MetadataManager;
+import org.apache.kylin.metadata.filter.ColumnTupleFilter;
+import org.apache.kylin.metadata.filter.CompareTupleFilter;
+import org.apache.kylin.metadata.filter.ConstantTupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter.FilterOperatorEnum;
+import org.apache.kylin.metadata.model.TableDesc;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Translation of filters on WEEK_BEG_DT, derived from CAL_DT, must give the
+ * same host values through the lookup table index as a scan of all rows.
+ */
+public class DerivedFilterTranslatorTest extends LocalFileMetadataTestCase {
+
+    TblColRef derived;
+    DeriveInfo hostInfo;
+    int derivedIdx;
+    List<String[]> rows;
+    LookupStringTable lookup;
+
+    @Before
+    public void setUp() throws Exception {
+        this.createTestMetadata();
+        CubeDesc cubeDesc = CubeManager.getInstance(getTestConfig()).getCube("test_kylin_cube_without_slr_ready").getDescriptor();
+        derived = cubeDesc.findColumnRef("EDW.TEST_CAL_DT", "WEEK_BEG_DT");
+        hostInfo = cubeDesc.getHostInfo(derived);
+        derivedIdx = derived.getColumn().getZeroBasedIndex();
+
+        TableDesc tableDesc = MetadataManager.getInstance(getTestConfig()).getTableDesc("EDW.TEST_CAL_DT");
+        rows = Lists.newArrayList();
+        rows.add(row(tableDesc, "2012-01-01", "2012-01-01"));
+        rows.add(row(tableDesc, "2012-01-02", "2012-01-01"));
+        rows.add(row(tableDesc, "2012-01-08", "2012-01-08"));
+        rows.add(row(tableDesc, "2012-01-15", "2012-01-15"));
+        rows.add(row(tableDesc, "2012-01-20", null));
+        lookup = new LookupStringTable(tableDesc, hostInfo.dimension.getJoin().getPrimaryKey(), new ListTable(rows));
+    }
+
+    @After
+    public void after() throws Exception {
+        this.cleanupTestMetadata();
+    }
+
+    @Test
+    public void testEqualAndIn() {
+        assertSameAsScan(compare(FilterOperatorEnum.EQ, "2012-01-01"), "2012-01-01", "2012-01-02");
+        assertSameAsScan(compare(FilterOperatorEnum.EQ, "2012-02-01"));
+        assertSameAsScan(compare(FilterOperatorEnum.IN, "2012-01-08", "2012-01-15", "2012-02-01"), "2012-01-08", "2012-01-15");
+    }
+
+    @Test
+    public void testRanges() {
+        assertSameAsScan(compare(FilterOperatorEnum.LT, "2012-01-08"), "2012-01-01", "2012-01-02");
+        assertSameAsScan(compare(FilterOperatorEnum.LTE, "2012-01-08"), "2012-01-01", "2012-01-02", "2012-01-08");
+        assertSameAsScan(compare(FilterOperatorEnum.GT, "2012-01-08"), "2012-01-15");
+        assertSameAsScan(compare(FilterOperatorEnum.GTE, "2012-01-08"), "2012-01-08", "2012-01-15");
+        assertSameAsScan(compare(FilterOperatorEnum.GT, "2012-01-15"));
+        // between values of the table
+        assertSameAsScan(compare(FilterOperatorEnum.LT, "2012-01-05"), "2012-01-01", "2012-01-02");
+    }
+
+    @Test
+    public void testNotEqual() {
+        // the null cell does not satisfy NEQ
+        assertSameAsScan(compare(FilterOperatorEnum.NEQ, "2012-01-01"), "2012-01-08", "2012-01-15");
+    }
+
+    @Test
+    public void testNull() {
+        assertSameAsScan(compare(FilterOperatorEnum.ISNULL), "2012-01-20");
+        assertSameAsScan(compare(FilterOperatorEnum.ISNOTNULL), "2012-01-01", "2012-01-02", "2012-01-08", "2012-01-15");
+    }
+
+    private void assertSameAsScan(CompareTupleFilter compf, String... expectedHostValues) {
+        Pair<TupleFilter, Boolean> translated = DerivedFilterTranslator.translate(lookup, hostInfo, compf);
+        assertFalse(translated.getSecond());
+
+        Set<String> hostValues = Sets.newHashSet();
+        if (translated.getFirst() != ConstantTupleFilter.FALSE) {
+            hostValues.addAll(((CompareTupleFilter) translated.getFirst()).getValues());
+        }
+        assertEquals(scanRows(compf), hostValues);
+        assertEquals(Sets.newHashSet(expectedHostValues), hostValues);
+    }
+
+    // the translation before the lookup table index, evaluating every row
+    private Set<String> scanRows(CompareTupleFilter compf) {
+        Set<String> result = Sets.newHashSet();
+        for (String[] row : rows) {
+            String value = row[derivedIdx];
+            boolean match;
+            if (compf.getOperator() == FilterOperatorEnum.ISNULL) {
+                match = value == null;
+            } else if (compf.getOperator() == FilterOperatorEnum.ISNOTNULL) {
+                match = value != null;
+            } else {
+                match = compf.evaluate(tuple(value));
+            }
+            if (match) {
+                result.add(row[0]);
+            }
+        }
+        return result;
+    }
+
+    private CompareTupleFilter compare(FilterOperatorEnum op, String... values) {
+        CompareTupleFilter compf = new CompareTupleFilter(op);
+        compf.addChild(new ColumnTupleFilter(derived));
+        if (values.length > 0) {
+            compf.addChild(new ConstantTupleFilter(Arrays.asList(values)));
+        }
+        return compf;
+    }
+
+    private ITuple tuple(final String value) {
+        return new ITuple() {
+            @Override
+            public List<String> getAllFields() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public List<TblColRef> getAllColumns() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Object[] getAllValues() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Object getValue(TblColRef col) {
+                assertEquals(derived, col);
+                return value;
+            }
+
+            @Override
+            public Object getValue(String field) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // CAL_DT and WEEK_BEG_DT set, other columns null
+    private String[] row(TableDesc tableDesc, String calDt, String weekBegDt) {
+        String[] row = new String[tableDesc.getColumns().length];
+        row[tableDesc.findColumnByName("CAL_DT").getZeroBasedIndex()] = calDt;
+        row[tableDesc.findColumnByName("WEEK_BEG_DT").getZeroBasedIndex()] = weekBegDt;
+        return row;
+    }
+
+    private static class ListTable implements ReadableTable {
+        final List<String[]> rows;
+
+        ListTable(List<String[]> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public TableReader getReader() throws IOException {
+            final Iterator<String[]> it = rows.iterator();
+            return new TableReader() {
+                String[] current;
+
+                @Override
+                public boolean next() throws IOException {
+                    current = it.hasNext() ? it.next() : null;
+                    return current != null;
+                }
+
+                @Override
+                public String[] getRow() {
+                    return current;
+                }
+
+                @Override
+                public void setExpectedColumnNumber(int expectedColumnNumber) {
+                }
+
+                @Override
+                public void close() throws IOException {
+                }
+            };
+        }
+
+        @Override
+        public TableSignature getSignature() throws IOException {
+            return null;
+        }
+
+        @Override
+        public String getColumnDelimeter() throws IOException {
+            return DELIM_COMMA;
+        }
+    }
+}
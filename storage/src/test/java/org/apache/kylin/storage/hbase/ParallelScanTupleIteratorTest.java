@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kylin.common.hll.HyperLogLogPlusCounter;
+import org.apache.kylin.cube.kv.RowValueDecoder;
+import org.apache.kylin.metadata.tuple.ITuple;
+import org.apache.kylin.metadata.tuple.ITupleIterator;
+import org.apache.kylin.storage.tuple.Tuple;
+import org.apache.kylin.storage.tuple.TupleInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelScanTupleIteratorTest {
+
+    ExecutorService executor;
+    TupleInfo tupleInfo;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+        tupleInfo = new TupleInfo();
+        tupleInfo.setField("SRC", null, "varchar", 0);
+        tupleInfo.setField("N", null, "bigint", 1);
+    }
+
+    @After
+    public void cleanUp() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testAllTuplesOfAllRanges() {
+        List<FakeScan> scans = new ArrayList<FakeScan>();
+        for (int i = 0; i < 5; i++) {
+            scans.add(new FakeScan("range" + i, 1000, -1));
+        }
+
+        // fewer threads than ranges and a small queue, threads take turns on ranges
+        ParallelScanTupleIterator iterator = new ParallelScanTupleIterator(executor, scans, Collections.<RowValueDecoder> emptyList(), 2, 16);
+        Map<String, List<Long>> received = new HashMap<String, List<Long>>();
+        ITuple previous = null;
+        while (iterator.hasNext()) {
+            Tuple tuple = (Tuple) iterator.next();
+            assertNotSame(previous, tuple); // copies, not the tuple reused by the scan
+            previous = tuple;
+
+            String src = (String) tuple.getValue("SRC");
+            List<Long> values = received.get(src);
+            if (values == null) {
+                values = new ArrayList<Long>();
+                received.put(src, values);
+            }
+            values.add((Long) tuple.getValue("N"));
+        }
+        iterator.close();
+
+        assertEquals(5, received.size());
+        for (FakeScan scan : scans) {
+            List<Long> values = received.get(scan.getName());
+            assertEquals(1000, values.size());
+            // tuples of one range keep their order
+            for (int i = 0; i < values.size(); i++) {
+                assertEquals(i, values.get(i).longValue());
+            }
+            assertTrue(scan.closed.getCount() == 0);
+        }
+    }
+
+    @Test
+    public void testHLLCountDistinctOfTwoRanges() {
+        List<HLLCScan> scans = new ArrayList<HLLCScan>();
+        scans.add(new HLLCScan("range0", 100));
+        scans.add(new HLLCScan("range1", 100));
+
+        ParallelScanTupleIterator iterator = new ParallelScanTupleIterator(executor, scans, Collections.<RowValueDecoder> emptyList(), 2, 4);
+        Map<String, List<HyperLogLogPlusCounter>> received = new HashMap<String, List<HyperLogLogPlusCounter>>();
+        while (iterator.hasNext()) {
+            Tuple tuple = (Tuple) iterator.next();
+            String src = (String) tuple.getValue("SRC");
+            List<HyperLogLogPlusCounter> counters = received.get(src);
+            if (counters == null) {
+                counters = new ArrayList<HyperLogLogPlusCounter>();
+                received.put(src, counters);
+            }
+            counters.add((HyperLogLogPlusCounter) tuple.getValue("UV"));
+        }
+        iterator.close();
+
+        // the scans refill one counter per row, each received tuple must keep its own
+        assertEquals(2, received.size());
+        for (HLLCScan scan : scans) {
+            List<HyperLogLogPlusCounter> counters = received.get(scan.getName());
+            assertEquals(100, counters.size());
+            for (int i = 0; i < counters.size(); i++) {
+                assertNotSame(scan.counter, counters.get(i));
+                assertEquals(HLLCScan.counterOf(scan.getName(), i), counters.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testEarlyClose() throws InterruptedException {
+        List<FakeScan> scans = new ArrayList<FakeScan>();
+        for (int i = 0; i < 3; i++) {
+            scans.add(new FakeScan("range" + i, Long.MAX_VALUE, -1));
+        }
+
+        ParallelScanTupleIterator iterator = new ParallelScanTupleIterator(executor, scans, Collections.<RowValueDecoder> emptyList(), 3, 4);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(iterator.hasNext());
+            iterator.next();
+        }
+        iterator.close();
+        // a closed iterator ends instead of waiting for producers
+        assertFalse(iterator.hasNext());
+
+        // producers blocked on the full queue give up and close their scans
+        for (FakeScan scan : scans) {
+            assertTrue(scan.closed.await(10, TimeUnit.SECONDS));
+        }
+        // the executor is not owned by the iterator and stays usable
+        assertFalse(executor.isShutdown());
+    }
+
+    @Test
+    public void testErrorOfWorker() {
+        List<FakeScan> scans = new ArrayList<FakeScan>();
+        scans.add(new FakeScan("good", 100, -1));
+        scans.add(new FakeScan("bad", 100, 50));
+
+        ParallelScanTupleIterator iterator = new ParallelScanTupleIterator(executor, scans, Collections.<RowValueDecoder> emptyList(), 2, 16);
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+            }
+            fail("error of the failed scan should reach the consumer");
+        } catch (IllegalStateException e) {
+            assertEquals("fail at 50", e.getMessage());
+        }
+    }
+
+    /** counts from 0 to n - 1 in a reused tuple, throws at failAt if not negative */
+    class FakeScan implements ParallelScanTupleIterator.RangeScan {
+        final String name;
+        final long n;
+        final long failAt;
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        FakeScan(String name, long n, long failAt) {
+            this.name = name;
+            this.n = n;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public ITupleIterator open(Collection<RowValueDecoder> rowValueDecoders) {
+            final Tuple tuple = new Tuple(tupleInfo);
+            tuple.setConvertedValue(0, name);
+            return new ITupleIterator() {
+                long i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < n;
+                }
+
+                @Override
+                public ITuple next() {
+                    if (i == failAt) {
+                        throw new IllegalStateException("fail at " + i);
+                    }
+                    tuple.setConvertedValue(1, i++);
+                    return tuple;
+                }
+
+                @Override
+                public void close() {
+                    closed.countDown();
+                }
+            };
+        }
+    }
+
+    /** row i holds the distinct count of i + 1 values in a counter reused by all rows, like RowValueDecoder does */
+    static class HLLCScan implements ParallelScanTupleIterator.RangeScan {
+        final String name;
+        final long n;
+        final HyperLogLogPlusCounter counter = new HyperLogLogPlusCounter();
+
+        HLLCScan(String name, long n) {
+            this.name = name;
+            this.n = n;
+        }
+
+        static HyperLogLogPlusCounter counterOf(String name, long i) {
+            HyperLogLogPlusCounter c = new HyperLogLogPlusCounter();
+            fill(c, name, i);
+            return c;
+        }
+
+        static void fill(HyperLogLogPlusCounter c, String name, long i) {
+            c.clear();
+            for (long j = 0; j <= i; j++) {
+                c.add(name + "-" + j);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public ITupleIterator open(Collection<RowValueDecoder> rowValueDecoders) {
+            TupleInfo info = new TupleInfo();
+            info.setField("SRC", null, "varchar", 0);
+            info.setField("UV", null, "bigint", 1);
+            final Tuple tuple = new Tuple(info);
+            tuple.setConvertedValue(0, name);
+            return new ITupleIterator() {
+                long i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < n;
+                }
+
+                @Override
+                public ITuple next() {
+                    fill(counter, name, i++);
+                    tuple.setMeasureValue(1, counter);
+                    return tuple;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.kylin.common.util.BytesUtil;
+import org.apache.kylin.dict.Dictionary;
+import org.apache.kylin.metadata.filter.ColumnTupleFilter;
+import org.apache.kylin.metadata.filter.CompareTupleFilter;
+import org.apache.kylin.metadata.filter.ConstantTupleFilter;
+import org.apache.kylin.metadata.filter.ExtractTupleFilter;
+import org.apache.kylin.metadata.filter.LogicalTupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter;
+import org.apache.kylin.metadata.filter.TupleFilter.FilterOperatorEnum;
+import org.apache.kylin.metadata.model.ColumnDesc;
+import org.apache.kylin.metadata.model.TableDesc;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverTuple;
+import org.junit.Test;
+
+public class CompiledFilterTest {
+
+    private static final FilterOperatorEnum[] COMPARE_OPS = { FilterOperatorEnum.EQ, FilterOperatorEnum.NEQ, FilterOperatorEnum.LT, FilterOperatorEnum.LTE, FilterOperatorEnum.GT, FilterOperatorEnum.GTE, FilterOperatorEnum.IN, FilterOperatorEnum.NOTIN };
+
+    private final Random rand = new Random(20150401);
+    private final TblColRef[] cols = { newCol("A"), newCol("B") };
+    private final CoprocessorRowType type = new CoprocessorRowType(cols, new int[] { 1, 2 });
+
+    @Test
+    public void testSameAsInterpreter() {
+        ObserverTuple tuple = new ObserverTuple(type);
+        int compared = 0;
+        for (int f = 0; f < 200; f++) {
+            TupleFilter filter = randomFilter(3);
+            CompiledFilter compiled = CompiledFilter.compile(filter, type);
+            assertNotNull(filter.toString(), compiled);
+
+            for (int r = 0; r < 100; r++) {
+                byte[] rowkey = randomRowKey(3);
+                tuple.setUnderlying(rowkey, 3, rowkey.length - 3);
+                assertEquals(filter.toString(), filter.evaluate(tuple), compiled.evaluate(rowkey, 3));
+                compared++;
+            }
+        }
+        assertEquals(20000, compared);
+    }
+
+    @Test
+    public void testLargeInList() {
+        TblColRef col = newCol("C");
+        CoprocessorRowType type3 = new CoprocessorRowType(new TblColRef[] { col }, new int[] { 3 });
+        ObserverTuple tuple = new ObserverTuple(type3);
+
+        // small IDs go to a bitset, a large one falls back to binary search
+        for (int maxId : new int[] { 5000, CompiledFilter.MAX_BITSET_ID * 2 }) {
+            for (FilterOperatorEnum op : new FilterOperatorEnum[] { FilterOperatorEnum.IN, FilterOperatorEnum.NOTIN }) {
+                List<String> values = new ArrayList<String>();
+                for (int i = 0; i < 3000; i++) {
+                    values.add(id3(rand.nextInt(maxId)));
+                }
+                CompareTupleFilter in = new CompareTupleFilter(op);
+                in.setNullString(nullId(3));
+                in.addChild(new ColumnTupleFilter(col));
+                in.addChild(new ConstantTupleFilter(values));
+                CompiledFilter compiled = CompiledFilter.compile(in, type3);
+
+                for (int r = 0; r < 2000; r++) {
+                    byte[] rowkey = new byte[8 + 3];
+                    String v = r % 100 == 0 ? nullId(3) : r % 2 == 0 ? values.get(rand.nextInt(values.size())) : id3(rand.nextInt(maxId + 10));
+                    System.arraycopy(CompiledFilter.toBytes(v), 0, rowkey, 8, 3);
+                    tuple.setUnderlying(rowkey, 0, rowkey.length);
+                    assertEquals(in.evaluate(tuple), compiled.evaluate(rowkey, 0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRangeIntersect() {
+        LogicalTupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(compare(cols[0], FilterOperatorEnum.GT, id(1, 2)));
+        and.addChild(compare(cols[0], FilterOperatorEnum.LT, id(1, 2)));
+        assertFalse(CompiledFilter.compile(and, type).evaluate(rowKey(id(1, 2).charAt(0), id(2, 1)), 0));
+
+        and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(compare(cols[0], FilterOperatorEnum.GTE, id(1, 2)));
+        and.addChild(compare(cols[0], FilterOperatorEnum.LTE, id(1, 2)));
+        CompiledFilter compiled = CompiledFilter.compile(and, type);
+        assertTrue(compiled.evaluate(rowKey(id(1, 2).charAt(0), id(2, 1)), 0));
+        assertFalse(compiled.evaluate(rowKey(id(1, 3).charAt(0), id(2, 1)), 0));
+        assertFalse(compiled.evaluate(rowKey(0xff, id(2, 1)), 0));
+    }
+
+    @Test
+    public void testNull() {
+        CompareTupleFilter eq = compare(cols[1], FilterOperatorEnum.EQ, id(2, 5));
+        CompiledFilter compiled = CompiledFilter.compile(eq, type);
+        assertFalse(compiled.evaluate(rowKey(1, nullId(2)), 0));
+        assertTrue(compiled.evaluate(rowKey(1, id(2, 5)), 0));
+
+        // compare to null is always false
+        CompareTupleFilter neqNull = compare(cols[1], FilterOperatorEnum.NEQ, nullId(2));
+        assertFalse(CompiledFilter.compile(neqNull, type).evaluate(rowKey(1, id(2, 5)), 0));
+    }
+
+    @Test
+    public void testNotCompilable() {
+        assertNull(CompiledFilter.compile(null, type));
+
+        // column out of the row type
+        assertNull(CompiledFilter.compile(compare(newCol("C"), FilterOperatorEnum.EQ, id(1, 1)), type));
+
+        LogicalTupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(compare(cols[0], FilterOperatorEnum.EQ, id(1, 1)));
+        and.addChild(new ExtractTupleFilter(FilterOperatorEnum.EXTRACT));
+        assertNull(CompiledFilter.compile(and, type));
+    }
+
+    private TupleFilter randomFilter(int depth) {
+        int pick = rand.nextInt(depth > 0 ? 6 : 3);
+        if (pick == 0)
+            return rand.nextBoolean() ? ConstantTupleFilter.TRUE : ConstantTupleFilter.FALSE;
+        if (pick < 3) {
+            int c = rand.nextInt(cols.length);
+            int size = type.columnSizes[c];
+            FilterOperatorEnum op = COMPARE_OPS[rand.nextInt(COMPARE_OPS.length)];
+            List<String> values = new ArrayList<String>();
+            int n = (op == FilterOperatorEnum.IN || op == FilterOperatorEnum.NOTIN) ? 1 + rand.nextInt(4) : 1;
+            for (int i = 0; i < n; i++) {
+                values.add(rand.nextInt(20) == 0 ? nullId(size) : id(size, rand.nextInt(8)));
+            }
+            CompareTupleFilter compf = new CompareTupleFilter(op);
+            compf.setNullString(nullId(size));
+            compf.addChild(new ColumnTupleFilter(cols[c]));
+            compf.addChild(new ConstantTupleFilter(values));
+            return compf;
+        }
+
+        FilterOperatorEnum op = pick == 3 ? FilterOperatorEnum.AND : pick == 4 ? FilterOperatorEnum.OR : FilterOperatorEnum.NOT;
+        LogicalTupleFilter logical = new LogicalTupleFilter(op);
+        int n = op == FilterOperatorEnum.NOT ? 1 : 1 + rand.nextInt(3);
+        for (int i = 0; i < n; i++) {
+            logical.addChild(randomFilter(depth - 1));
+        }
+        return logical;
+    }
+
+    private byte[] randomRowKey(int offset) {
+        byte[] a = rand.nextInt(10) == 0 ? nullBytes(1) : idBytes(1, rand.nextInt(8));
+        byte[] b = rand.nextInt(10) == 0 ? nullBytes(2) : idBytes(2, rand.nextInt(8));
+        byte[] rowkey = new byte[offset + 8 + 3];
+        System.arraycopy(a, 0, rowkey, offset + 8, 1);
+        System.arraycopy(b, 0, rowkey, offset + 9, 2);
+        return rowkey;
+    }
+
+    private byte[] rowKey(int a, String b) {
+        byte[] rowkey = new byte[8 + 3];
+        rowkey[8] = (byte) a;
+        System.arraycopy(CompiledFilter.toBytes(b), 0, rowkey, 9, 2);
+        return rowkey;
+    }
+
+    private static CompareTupleFilter compare(TblColRef col, FilterOperatorEnum op, String value) {
+        CompareTupleFilter compf = new CompareTupleFilter(op);
+        compf.setNullString(nullId(col.getName().equals("A") ? 1 : 2));
+        compf.addChild(new ColumnTupleFilter(col));
+        compf.addChild(new ConstantTupleFilter(value));
+        return compf;
+    }
+
+    private static String id(int size, int id) {
+        byte[] bytes = idBytes(size, id);
+        return Dictionary.dictIdToString(bytes, 0, bytes.length);
+    }
+
+    private static byte[] idBytes(int size, int id) {
+        byte[] bytes = new byte[size];
+        // spread over the byte range so unsigned compare is exercised, 0xff is left for null
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) ((id * 37 + i * 101) % 255);
+        }
+        return bytes;
+    }
+
+    private static String id3(int id) {
+        byte[] bytes = new byte[3];
+        BytesUtil.writeUnsigned(id, bytes, 0, 3);
+        return Dictionary.dictIdToString(bytes, 0, bytes.length);
+    }
+
+    private static String nullId(int size) {
+        byte[] bytes = nullBytes(size);
+        return Dictionary.dictIdToString(bytes, 0, bytes.length);
+    }
+
+    private static byte[] nullBytes(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = Dictionary.NULL;
+        }
+        return bytes;
+    }
+
+    private static TblColRef newCol(String name) {
+        TableDesc table = new TableDesc();
+        table.setName("T");
+        ColumnDesc col = new ColumnDesc();
+        col.setTable(table);
+        col.setName(name);
+        return new TblColRef(col);
+    }
+}
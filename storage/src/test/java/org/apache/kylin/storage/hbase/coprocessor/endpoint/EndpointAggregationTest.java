@@ -18,13 +18,19 @@
 
 package org.apache.kylin.storage.hbase.coprocessor.endpoint;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 import org.apache.kylin.common.util.LocalFileMetadataTestCase;
 import org.apache.kylin.invertedindex.IIInstance;
 import org.apache.kylin.invertedindex.IIManager;
+import org.apache.kylin.invertedindex.index.BitMap;
+import org.apache.kylin.invertedindex.index.BitMapContainer;
+import org.apache.kylin.invertedindex.index.ColumnValueContainer;
+import org.apache.kylin.invertedindex.index.CompressedValueContainer;
+import org.apache.kylin.invertedindex.index.Slice;
 import org.apache.kylin.invertedindex.index.TableRecord;
 import org.apache.kylin.invertedindex.index.TableRecordInfo;
+import org.apache.kylin.invertedindex.index.TableRecordInfoDigest;
 import org.apache.kylin.metadata.MetadataManager;
 import org.apache.kylin.metadata.measure.MeasureAggregator;
 import org.apache.kylin.metadata.filter.ColumnTupleFilter;
@@ -34,6 +40,7 @@ import org.apache.kylin.metadata.filter.TupleFilter;
 import org.apache.kylin.metadata.model.*;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorFilter;
 import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.junit.After;
 import org.junit.Before;
@@ -193,4 +200,150 @@ public class EndpointAggregationTest extends LocalFileMetadataTestCase {
 
     }
 
+    @Test
+    public void testIsBitMapAggregatable() {
+        Slice slice = mockSlice(tableData);
+        int formatNameCol = tableRecordInfo.findColumn(findColumn("LSTG_FORMAT_NAME"));
+        int siteIdCol = tableRecordInfo.findColumn(findColumn("LSTG_SITE_ID"));
+        int calDtCol = tableRecordInfo.findColumn(findColumn("CAL_DT"));
+
+        assertTrue(IIEndpoint.isBitMapAggregatable(slice, new BitSet()));
+        assertTrue(IIEndpoint.isBitMapAggregatable(slice, columns(formatNameCol)));
+        // more than one group by column, or one without bitmaps, falls back to rows
+        assertFalse(IIEndpoint.isBitMapAggregatable(slice, columns(formatNameCol, siteIdCol)));
+        assertFalse(IIEndpoint.isBitMapAggregatable(slice, columns(calDtCol)));
+
+        // so does a column of too many values, NULL is one more group
+        assertTrue(IIEndpoint.isBitMapAggregatable(singleColumnSlice(IIEndpoint.BITMAP_AGGR_MAX_GROUPS - 2), columns(0)));
+        assertFalse(IIEndpoint.isBitMapAggregatable(singleColumnSlice(IIEndpoint.BITMAP_AGGR_MAX_GROUPS - 1), columns(0)));
+    }
+
+    @Test
+    public void testBitMapAggregateByGroup() {
+        List<TableRecord> records = new ArrayList<TableRecord>(tableData);
+        records.add(mockNullFormatRecord());
+        Slice slice = mockSlice(records);
+        Collection<TblColRef> groupBy = Collections.singleton(findColumn("LSTG_FORMAT_NAME"));
+        CoprocessorProjector projector = CoprocessorProjector.makeForEndpoint(tableRecordInfo, groupBy);
+
+        // Auction, Others and NULL, keyed as the row path keys them
+        Map<CoprocessorProjector.AggrKey, String> groups = checkSameAsRows(slice, null, projector);
+        assertEquals(3, groups.size());
+        for (TableRecord record : records) {
+            assertTrue(groups.containsKey(projector.getAggrKey(record.getBytes()).copy()));
+        }
+
+        // the first and the last row, the latter in the NULL group
+        groups = checkSameAsRows(slice, bitmapOf(slice, 0, 3), projector);
+        assertEquals(2, groups.size());
+        assertTrue(groups.containsKey(projector.getAggrKey(records.get(3).getBytes()).copy()));
+
+        // nothing passes the filter
+        assertTrue(checkSameAsRows(slice, bitmapOf(slice), projector).isEmpty());
+    }
+
+    @Test
+    public void testBitMapAggregateWithoutGroup() {
+        List<TableRecord> records = new ArrayList<TableRecord>(tableData);
+        records.add(mockNullFormatRecord());
+        Slice slice = mockSlice(records);
+        CoprocessorProjector projector = CoprocessorProjector.makeForEndpoint(tableRecordInfo, new HashSet<TblColRef>());
+
+        // no filter aggregates the complement of nothing, i.e. all rows
+        assertEquals(1, checkSameAsRows(slice, null, projector).size());
+        assertEquals(1, checkSameAsRows(slice, bitmapOf(slice, 1, 2), projector).size());
+        assertTrue(checkSameAsRows(slice, bitmapOf(slice), projector).isEmpty());
+    }
+
+    /**
+     * Aggregates the slice by bitmaps and by rows, checks both give the same
+     * groups and values and returns them.
+     */
+    private Map<CoprocessorProjector.AggrKey, String> checkSameAsRows(Slice slice, BitMap filterResult, CoprocessorProjector projector) {
+        BitSet groupByColumns = IIEndpoint.getGroupByColumns(tableRecordInfo.getDigest(), projector);
+        assertTrue(IIEndpoint.isBitMapAggregatable(slice, groupByColumns));
+
+        EndpointAggregationCache byBitMap = new EndpointAggregationCache(aggregators);
+        IIEndpoint.aggregateByBitMap(slice, filterResult, groupByColumns, projector, aggregators, byBitMap);
+        EndpointAggregationCache byRow = new EndpointAggregationCache(aggregators);
+        IIEndpoint.aggregateByRow(slice, filterResult, projector, aggregators, byRow);
+
+        Map<CoprocessorProjector.AggrKey, String> groups = toMap(byBitMap);
+        assertEquals(toMap(byRow), groups);
+        return groups;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private Map<CoprocessorProjector.AggrKey, String> toMap(EndpointAggregationCache cache) {
+        Map<CoprocessorProjector.AggrKey, String> result = new HashMap<CoprocessorProjector.AggrKey, String>();
+        for (Map.Entry<CoprocessorProjector.AggrKey, MeasureAggregator[]> entry : cache.getAllEntries()) {
+            MeasureAggregator[] bufs = entry.getValue();
+            result.put(entry.getKey(), bufs[0].getState() + "," + bufs[1].getState());
+        }
+        return result;
+    }
+
+    private TblColRef findColumn(String name) {
+        return this.ii.getDescriptor().findColumnRef("DEFAULT.TEST_KYLIN_FACT", name);
+    }
+
+    private BitSet columns(int... cols) {
+        BitSet result = new BitSet();
+        for (int col : cols) {
+            result.set(col);
+        }
+        return result;
+    }
+
+    private BitMap bitmapOf(Slice slice, int... rows) {
+        BitMap result = slice.getBitMapFormat().create();
+        for (int row : rows) {
+            result.add(row);
+        }
+        return result;
+    }
+
+    private TableRecord mockNullFormatRecord() {
+        TableRecord record = tableRecordInfo.createTableRecord();
+        record.setBytes(tableData.get(0).getBytes(), 0, tableRecordInfo.getDigest().getByteFormLen());
+        record.setValueString(tableRecordInfo.findColumn(findColumn("LSTG_FORMAT_NAME")), null);
+        record.setValueString(tableRecordInfo.findColumn(findColumn("PRICE")), "50");
+        return record;
+    }
+
+    /** a slice of one bitmap column whose values go up to maxValueId */
+    private Slice singleColumnSlice(int maxValueId) {
+        TableRecordInfoDigest digest = new TableRecordInfoDigest(1, 2, new int[] { 0 }, new int[] { maxValueId }, new int[] { 2 }, new boolean[] { false }, null);
+        BitMapContainer container = new BitMapContainer(digest, 0);
+        container.append(new ImmutableBytesWritable(new byte[2]));
+        container.closeForChange();
+        return new Slice(digest, (short) 0, 0, new ColumnValueContainer[] { container });
+    }
+
+    private Slice mockSlice(List<TableRecord> records) {
+        TableRecordInfoDigest digest = tableRecordInfo.getDigest();
+        ColumnValueContainer[] containers = new ColumnValueContainer[digest.getColumnCount()];
+        for (int i : tableRecordInfo.getDescriptor().getBitmapColumns()) {
+            containers[i] = new BitMapContainer(digest, i);
+        }
+        for (int i : tableRecordInfo.getDescriptor().getValueColumns()) {
+            containers[i] = new CompressedValueContainer(digest, i, records.size());
+        }
+        for (int i : tableRecordInfo.getDescriptor().getMetricsColumns()) {
+            containers[i] = new CompressedValueContainer(digest, i, records.size());
+        }
+
+        ImmutableBytesWritable temp = new ImmutableBytesWritable();
+        for (TableRecord record : records) {
+            for (int i = 0; i < containers.length; i++) {
+                record.getValueBytes(i, temp);
+                containers[i].append(temp);
+            }
+        }
+        for (ColumnValueContainer container : containers) {
+            container.closeForChange();
+        }
+        return new Slice(digest, (short) 0, 0, containers);
+    }
+
 }
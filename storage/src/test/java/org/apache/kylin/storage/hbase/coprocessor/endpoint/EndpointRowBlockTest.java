@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.endpoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.kylin.common.util.LocalFileMetadataTestCase;
+import org.apache.kylin.invertedindex.IIInstance;
+import org.apache.kylin.invertedindex.IIManager;
+import org.apache.kylin.invertedindex.index.TableRecordInfo;
+import org.apache.kylin.invertedindex.index.TableRecordInfoDigest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EndpointRowBlockTest extends LocalFileMetadataTestCase {
+
+    TableRecordInfoDigest digest;
+
+    @Before
+    public void setup() throws IOException {
+        this.createTestMetadata();
+        IIInstance ii = IIManager.getInstance(getTestConfig()).getII("test_kylin_ii");
+        this.digest = new TableRecordInfo(ii.getFirstSegment()).getDigest();
+    }
+
+    @After
+    public void cleanUp() {
+        cleanupTestMetadata();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Random rand = new Random(0);
+        List<byte[]> rows = new ArrayList<byte[]>();
+        EndpointRowBlock block = new EndpointRowBlock(digest);
+        for (int i = 0; i < 1000; i++) {
+            byte[] row = new byte[digest.getByteFormLen()];
+            rand.nextBytes(row);
+            rows.add(row);
+            block.append(row);
+        }
+
+        EndpointRowBlock decoded = EndpointRowBlock.decode(digest, block.encode());
+        assertEquals(rows.size(), decoded.getRowCount());
+        byte[] buf = new byte[digest.getByteFormLen()];
+        for (int i = 0; i < rows.size(); i++) {
+            decoded.getRow(i, buf);
+            assertArrayEquals(rows.get(i), buf);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        EndpointRowBlock block = new EndpointRowBlock(digest);
+        assertEquals(0, block.encode().length);
+        assertEquals(0, EndpointRowBlock.decode(digest, block.encode()).getRowCount());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.endpoint;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.kylin.common.util.BytesUtil;
+import org.apache.kylin.common.util.LocalFileMetadataTestCase;
+import org.apache.kylin.invertedindex.IIInstance;
+import org.apache.kylin.invertedindex.IIManager;
+import org.apache.kylin.invertedindex.index.BitMapContainer;
+import org.apache.kylin.invertedindex.index.ColumnValueContainer;
+import org.apache.kylin.invertedindex.index.CompressedValueContainer;
+import org.apache.kylin.invertedindex.index.Slice;
+import org.apache.kylin.invertedindex.index.TableRecordInfo;
+import org.apache.kylin.invertedindex.index.TableRecordInfoDigest;
+import org.apache.kylin.invertedindex.model.IIKeyValueCodec;
+import org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class IIEndpointTest extends LocalFileMetadataTestCase {
+
+    static final byte[] REGION_END = Bytes.toBytes("r");
+
+    TableRecordInfo tableRecordInfo;
+    TableRecordInfoDigest digest;
+
+    @Before
+    public void setup() throws IOException {
+        this.createTestMetadata();
+        IIInstance ii = IIManager.getInstance(getTestConfig()).getII("test_kylin_ii");
+        this.tableRecordInfo = new TableRecordInfo(ii.getFirstSegment());
+        this.digest = tableRecordInfo.getDigest();
+    }
+
+    @After
+    public void cleanUp() {
+        cleanupTestMetadata();
+    }
+
+    @Test
+    public void testGetKeyAfter() {
+        byte[] expected = new byte[IIKeyValueCodec.SHARD_LEN + IIKeyValueCodec.TIMEPART_LEN];
+        BytesUtil.writeUnsigned(1, expected, 0, IIKeyValueCodec.SHARD_LEN);
+        BytesUtil.writeLong(0x100, expected, IIKeyValueCodec.SHARD_LEN, IIKeyValueCodec.TIMEPART_LEN);
+        assertArrayEquals(expected, IIEndpoint.getKeyAfter(newSlice(1, 0xff, 1)));
+
+        // the carry goes into the shard
+        BytesUtil.writeUnsigned(2, expected, 0, IIKeyValueCodec.SHARD_LEN);
+        BytesUtil.writeLong(0, expected, IIKeyValueCodec.SHARD_LEN, IIKeyValueCodec.TIMEPART_LEN);
+        assertArrayEquals(expected, IIEndpoint.getKeyAfter(newSlice(1, -1L, 1)));
+
+        // nothing after the last shard and timestamp
+        assertNull(IIEndpoint.getKeyAfter(newSlice(0xffff, -1L, 1)));
+    }
+
+    @Test
+    public void testPageEndsAfterWholeSlice() {
+        List<Slice> slices = newSlices(3, 4);
+        IIProtos.IIResponse response = IIEndpoint.getPagedResponse(slices, null, null, digest, newRequest(5, new byte[0]), REGION_END);
+
+        // the page is full in the middle of the second slice, which is returned whole
+        assertEquals(8, getRowCount(response));
+        assertArrayEquals(IIEndpoint.getKeyAfter(slices.get(1)), response.getNextStartKey().toByteArray());
+
+        // the rest of the region, from where the page ended
+        response = IIEndpoint.getPagedResponse(slices.subList(2, 3), null, null, digest, newRequest(5, new byte[0]), REGION_END);
+        assertEquals(4, getRowCount(response));
+        assertArrayEquals(REGION_END, response.getNextStartKey().toByteArray());
+    }
+
+    @Test
+    public void testRegionEndHandoff() {
+        List<Slice> slices = newSlices(3, 4);
+
+        // a full page on the last slice still hands over to the next region
+        IIProtos.IIResponse response = IIEndpoint.getPagedResponse(slices, null, null, digest, newRequest(12, new byte[0]), REGION_END);
+        assertEquals(12, getRowCount(response));
+        assertArrayEquals(REGION_END, response.getNextStartKey().toByteArray());
+
+        // the requested range ends with the region
+        response = IIEndpoint.getPagedResponse(slices, null, null, digest, newRequest(100, REGION_END), REGION_END);
+        assertEquals(12, getRowCount(response));
+        assertFalse(response.hasNextStartKey());
+
+        // the requested range ends before the region end
+        response = IIEndpoint.getPagedResponse(slices, null, null, digest, newRequest(100, Bytes.toBytes("q")), REGION_END);
+        assertFalse(response.hasNextStartKey());
+
+        // the last region
+        response = IIEndpoint.getPagedResponse(slices, null, null, digest, newRequest(100, new byte[0]), new byte[0]);
+        assertEquals(12, getRowCount(response));
+        assertFalse(response.hasNextStartKey());
+    }
+
+    @Test
+    public void testEmptyPage() {
+        List<Slice> none = new ArrayList<Slice>();
+        IIProtos.IIResponse response = IIEndpoint.getPagedResponse(none, null, null, digest, newRequest(5, new byte[0]), REGION_END);
+        assertEquals(0, getRowCount(response));
+        assertArrayEquals(REGION_END, response.getNextStartKey().toByteArray());
+
+        response = IIEndpoint.getPagedResponse(none, null, null, digest, newRequest(5, new byte[0]), new byte[0]);
+        assertEquals(0, getRowCount(response));
+        assertFalse(response.hasNextStartKey());
+    }
+
+    private int getRowCount(IIProtos.IIResponse response) {
+        return EndpointRowBlock.decode(digest, response.getRowBlock().toByteArray()).getRowCount();
+    }
+
+    private IIProtos.IIRequest newRequest(int pageSize, byte[] endKey) {
+        return IIProtos.IIRequest.newBuilder() //
+                .setType(ByteString.EMPTY).setFilter(ByteString.EMPTY).setProjector(ByteString.EMPTY).setAggregator(ByteString.EMPTY) //
+                .setStartKey(ByteString.EMPTY).setEndKey(ByteString.copyFrom(endKey)).setPageSize(pageSize).build();
+    }
+
+    private List<Slice> newSlices(int nSlices, int nRows) {
+        List<Slice> slices = new ArrayList<Slice>();
+        for (int i = 0; i < nSlices; i++) {
+            slices.add(newSlice(0, i, nRows));
+        }
+        return slices;
+    }
+
+    private Slice newSlice(int shard, long timestamp, int nRows) {
+        ColumnValueContainer[] containers = new ColumnValueContainer[digest.getColumnCount()];
+        for (int i : tableRecordInfo.getDescriptor().getBitmapColumns()) {
+            containers[i] = new BitMapContainer(digest, i);
+        }
+        for (int i : tableRecordInfo.getDescriptor().getValueColumns()) {
+            containers[i] = new CompressedValueContainer(digest, i, nRows);
+        }
+        for (int i : tableRecordInfo.getDescriptor().getMetricsColumns()) {
+            containers[i] = new CompressedValueContainer(digest, i, nRows);
+        }
+
+        ImmutableBytesWritable cell = new ImmutableBytesWritable();
+        for (int r = 0; r < nRows; r++) {
+            for (int i = 0; i < containers.length; i++) {
+                cell.set(new byte[digest.length(i)]); // value ID 0
+                containers[i].append(cell);
+            }
+        }
+        for (ColumnValueContainer container : containers) {
+            container.closeForChange();
+        }
+        return new Slice(digest, (short) shard, timestamp, containers);
+    }
+}
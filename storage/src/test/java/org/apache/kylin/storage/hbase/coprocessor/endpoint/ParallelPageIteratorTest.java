@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.endpoint;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.kylin.common.persistence.StorageException;
+import org.apache.kylin.storage.hbase.coprocessor.endpoint.generated.IIProtos;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+
+public class ParallelPageIteratorTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void cleanUp() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Serves pages by start key, a page is its name and the start key of the
+     * next page of the region, if any. Requests to unknown start keys fail.
+     */
+    private static class FakeFetcher implements ParallelPageIterator.PageFetcher {
+        final Map<String, String[]> pages = new HashMap<String, String[]>();
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        void addPage(String startKey, String name, String nextStartKey) {
+            pages.put(startKey, new String[] { name, nextStartKey });
+        }
+
+        @Override
+        public IIProtos.IIResponse getPage(IIProtos.IIRequest request) throws IOException {
+            int n = inFlight.incrementAndGet();
+            try {
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), n));
+                }
+                String startKey = request.getStartKey().toStringUtf8();
+                requests.add(startKey + "-" + request.getEndKey().toStringUtf8());
+                Thread.sleep(10);
+
+                String[] page = pages.get(startKey);
+                if (page == null)
+                    throw new IOException("No page at " + startKey);
+                IIProtos.IIResponse.Builder builder = IIProtos.IIResponse.newBuilder().setRowBlock(ByteString.copyFromUtf8(page[0]));
+                if (page[1] != null)
+                    builder.setNextStartKey(ByteString.copyFromUtf8(page[1]));
+                return builder.build();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testPagesOfAllRegions() {
+        FakeFetcher fetcher = new FakeFetcher();
+        // region ["", "b"), the second page is empty
+        fetcher.addPage("", "a0", "a1");
+        fetcher.addPage("a1", "", "a2");
+        fetcher.addPage("a2", "a2", null);
+        // region ["b", "d"), nothing in it
+        fetcher.addPage("b", "", null);
+        // region ["d", ""), one page
+        fetcher.addPage("d", "d0", null);
+
+        List<String> pages = new ArrayList<String>();
+        ParallelPageIterator it = new ParallelPageIterator(executor, fetcher, newRequest(), regions("", "b", "d", ""), 2);
+        try {
+            while (it.hasNext()) {
+                pages.add(it.next().getRowBlock().toStringUtf8());
+            }
+        } finally {
+            it.close();
+        }
+
+        // every page once, the pages of a region in order
+        assertEquals(5, pages.size());
+        assertTrue(pages.containsAll(Arrays.asList("a0", "", "a2", "d0")));
+        assertTrue(pages.indexOf("a0") < pages.indexOf("a2"));
+
+        // each request carries the end key of its region
+        assertEquals(5, fetcher.requests.size());
+        assertTrue(fetcher.requests.containsAll(Arrays.asList("-b", "a1-b", "a2-b", "b-d", "d-")));
+        assertTrue(fetcher.maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void testNextPageIsPrefetched() {
+        FakeFetcher fetcher = new FakeFetcher();
+        fetcher.addPage("", "p0", "k1");
+        fetcher.addPage("k1", "p1", "k2");
+        fetcher.addPage("k2", "p2", null);
+
+        // fetches run at submit, so the requests made so far are all known
+        ParallelPageIterator it = new ParallelPageIterator(MoreExecutors.sameThreadExecutor(), fetcher, newRequest(), regions("", ""), 4);
+        try {
+            assertEquals("p0", it.next().getRowBlock().toStringUtf8());
+            // the second page is asked for before it is taken
+            assertEquals(2, fetcher.requests.size());
+            assertEquals("p1", it.next().getRowBlock().toStringUtf8());
+            assertEquals("p2", it.next().getRowBlock().toStringUtf8());
+            assertFalse(it.hasNext());
+        } finally {
+            it.close();
+        }
+    }
+
+    @Test
+    public void testNoRegions() {
+        ParallelPageIterator it = new ParallelPageIterator(executor, new FakeFetcher(), newRequest(), new ArrayList<Pair<byte[], byte[]>>(), 2);
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    @Test(expected = StorageException.class)
+    public void testFetchFailure() {
+        FakeFetcher fetcher = new FakeFetcher();
+        fetcher.addPage("", "a0", "a1"); // no page at a1
+
+        ParallelPageIterator it = new ParallelPageIterator(executor, fetcher, newRequest(), regions("", ""), 2);
+        try {
+            while (it.hasNext()) {
+                it.next();
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    private IIProtos.IIRequest newRequest() {
+        return IIProtos.IIRequest.newBuilder() //
+                .setType(ByteString.EMPTY).setFilter(ByteString.EMPTY).setProjector(ByteString.EMPTY).setAggregator(ByteString.EMPTY) //
+                .setPageSize(10).build();
+    }
+
+    /** regions between each two boundaries */
+    private List<Pair<byte[], byte[]>> regions(String... boundaries) {
+        List<Pair<byte[], byte[]>> regions = new ArrayList<Pair<byte[], byte[]>>();
+        for (int i = 0; i + 1 < boundaries.length; i++) {
+            regions.add(new Pair<byte[], byte[]>(Bytes.toBytes(boundaries[i]), Bytes.toBytes(boundaries[i + 1])));
+        }
+        return regions;
+    }
+}
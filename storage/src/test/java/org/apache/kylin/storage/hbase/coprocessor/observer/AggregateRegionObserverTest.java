@@ -25,6 +25,7 @@ import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 
@@ -155,6 +156,57 @@ public class AggregateRegionObserverTest {
         aggrScanner.close();
     }
 
+    @Test
+    public void testStreaming() throws IOException {
+
+        CoprocessorRowType rowType = newRowType();
+        CoprocessorProjector projector = new CoprocessorProjector(mask);
+        assertTrue(projector.isRowKeyPrefix());
+        ObserverAggregators aggregators = new ObserverAggregators(new HCol[] { c1, c2 });
+        CoprocessorFilter filter = CoprocessorFilter.deserialize(null);
+
+        // a real region scanner returns rows in key order
+        ArrayList<Cell> sortedInput = Lists.newArrayList(cellsInput);
+        Collections.sort(sortedInput, KeyValue.COMPARATOR);
+        MockupRegionScanner innerScanner = new MockupRegionScanner(sortedInput);
+
+        RegionScanner aggrScanner = new AggregationScanner(rowType, filter, projector, aggregators, innerScanner, true);
+        List<String> result = Lists.newArrayList();
+        ArrayList<Cell> cells = Lists.newArrayList();
+
+        // the first group is out before the input is exhausted
+        assertTrue(aggrScanner.next(cells));
+        assertTrue(innerScanner.i < sortedInput.size());
+
+        boolean hasMore = true;
+        while (true) {
+            for (Cell cell : cells) {
+                HCol hcol = ObserverAggregators.match(c1, cell) ? c1 : c2;
+                hcol.measureCodec.decode(ByteBuffer.wrap(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength()), hcol.measureValues);
+                String rowKey = toString(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength(), mask);
+                result.add(rowKey + ", " + Bytes.toString(hcol.family) + ":" + Bytes.toString(hcol.qualifier) + ", " + Arrays.toString(hcol.measureValues));
+            }
+            if (hasMore == false)
+                break;
+            cells.clear();
+            hasMore = aggrScanner.next(cells);
+        }
+        aggrScanner.close();
+
+        assertEquals(Arrays.asList( //
+                "\\x01\\x01\\x00\\x00, f:q1, [22.0, 3]", //
+                "\\x01\\x01\\x00\\x00, f:q2, [44.0]", //
+                "\\x02\\x02\\x00\\x00, f:q1, [26.0, 7]", //
+                "\\x02\\x02\\x00\\x00, f:q2, [48.0]"), result);
+    }
+
+    @Test
+    public void testIsRowKeyPrefix() {
+        assertTrue(new CoprocessorProjector(new byte[] { (byte) 0xff, (byte) 0xff, 0, 0 }).isRowKeyPrefix());
+        assertTrue(new CoprocessorProjector(new byte[] { (byte) 0xff, (byte) 0xff }).isRowKeyPrefix());
+        assertFalse(new CoprocessorProjector(new byte[] { (byte) 0xff, 0, (byte) 0xff, 0 }).isRowKeyPrefix());
+    }
+
     @Test
     public void testNoMeasure() throws IOException {
 
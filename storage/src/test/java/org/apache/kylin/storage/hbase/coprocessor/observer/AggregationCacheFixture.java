@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValue.Type;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.kylin.cube.kv.RowConstants;
+import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
+import org.apache.kylin.storage.hbase.coprocessor.observer.AggregateRegionObserverTest.MockupRegionScanner;
+import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverAggregators.HCol;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Rows and checks shared by the tests of the observer aggregation caches.
+ * ObserverAggregationCache is the reference every other cache must agree with.
+ */
+public class AggregationCacheFixture {
+
+    public static final byte[] MASK = new byte[] { (byte) 0xff, (byte) 0xff, 0, 0 };
+    public static final byte[] FAMILY = Bytes.toBytes("f");
+
+    private final ByteBuffer buf = ByteBuffer.allocate(RowConstants.ROWVALUE_BUFFER_SIZE);
+    private final HCol[] hcols;
+
+    public AggregationCacheFixture(HCol... hcols) {
+        this.hcols = hcols;
+    }
+
+    public CoprocessorProjector newProjector() {
+        return new CoprocessorProjector(MASK);
+    }
+
+    /**
+     * Asserts the cache emits the same rows as ObserverAggregationCache, returns the rows.
+     */
+    public List<String> assertSameAsReference(IObserverAggregationCache cache, List<List<Cell>> rows) throws IOException {
+        List<String> expected = aggregate(new ObserverAggregationCache(new ObserverAggregators(hcols)), rows);
+        assertEquals(expected, aggregate(cache, rows));
+        return expected;
+    }
+
+    /**
+     * Feeds the rows into the cache and decodes what it emits, one string per cell.
+     */
+    public List<String> aggregate(IObserverAggregationCache cache, List<List<Cell>> rows) throws IOException {
+        CoprocessorProjector projector = newProjector();
+        for (List<Cell> row : rows) {
+            cache.aggregate(projector.getAggrKey(row), row);
+            cache.checkMemoryUsage();
+        }
+
+        List<String> result = Lists.newArrayList();
+        RegionScanner scanner = cache.getScanner(new MockupRegionScanner(new ArrayList<Cell>()));
+        List<Cell> cells = Lists.newArrayList();
+        boolean hasMore = true;
+        while (hasMore) {
+            cells.clear();
+            hasMore = scanner.next(cells);
+            for (Cell cell : cells) {
+                String rowKey = Bytes.toStringBinary(cell.getRowArray(), cell.getRowOffset(), 2);
+                HCol hcol = match(cell);
+                if (hcol == null) {
+                    result.add(rowKey);
+                    continue;
+                }
+                hcol.measureCodec.decode(ByteBuffer.wrap(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength()), hcol.measureValues);
+                result.add(rowKey + ", " + Bytes.toString(hcol.qualifier) + ", " + Arrays.toString(hcol.measureValues));
+            }
+        }
+        scanner.close();
+        return result;
+    }
+
+    private HCol match(Cell cell) {
+        for (HCol hcol : hcols) {
+            if (ObserverAggregators.match(hcol, cell))
+                return hcol;
+        }
+        return null;
+    }
+
+    public Cell newCell(byte[] key, HCol col, Object[] values) {
+        buf.clear();
+        col.measureCodec.encode(values, buf);
+
+        return new KeyValue(key, 0, key.length, //
+                col.family, 0, col.family.length, //
+                col.qualifier, 0, col.qualifier.length, //
+                HConstants.LATEST_TIMESTAMP, Type.Put, //
+                buf.array(), 0, buf.position());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.kylin.common.util.LocalFileMetadataTestCase;
+import org.apache.kylin.cube.CubeInstance;
+import org.apache.kylin.cube.CubeManager;
+import org.apache.kylin.cube.CubeSegment;
+import org.apache.kylin.cube.cuboid.Cuboid;
+import org.apache.kylin.cube.kv.RowConstants;
+import org.apache.kylin.dict.Dictionary;
+import org.apache.kylin.metadata.model.TblColRef;
+import org.apache.kylin.storage.StorageContext;
+import org.apache.kylin.storage.hbase.ColumnValueRange;
+import org.apache.kylin.storage.hbase.HBaseKeyRange;
+import org.apache.kylin.storage.hbase.RowValueDecoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The cost model on a cuboid of dictionary columns only: CAL_DT, LSTG_SITE_ID
+ * and SLR_SEGMENT_CD.
+ */
+public class ObserverCostModelTest extends LocalFileMetadataTestCase {
+
+    CubeInstance cube;
+    CubeSegment seg;
+    Cuboid cuboid;
+    ObserverCostModel costModel;
+
+    @Before
+    public void setUp() throws Exception {
+        this.createTestMetadata();
+        cube = CubeManager.getInstance(getTestConfig()).getCube("test_kylin_cube_without_slr_ready");
+        seg = cube.getLatestReadySegment();
+        cuboid = Cuboid.findById(cube.getDescriptor(), 0x83L);
+        costModel = new ObserverCostModel();
+        assertEquals(3, cuboid.getColumns().size());
+    }
+
+    @After
+    public void after() throws Exception {
+        this.cleanupTestMetadata();
+    }
+
+    @Test
+    public void testCardinality() {
+        double product = 1;
+        for (TblColRef col : cuboid.getColumns()) {
+            Dictionary<?> dict = seg.getDictionary(col);
+            assertEquals(dict.getMaxId() - dict.getMinId() + 1, costModel.getCardinality(seg, col));
+            product *= costModel.getCardinality(seg, col);
+        }
+        assertEquals(product, costModel.getCuboidRows(seg, cuboid), 0.5);
+    }
+
+    @Test
+    public void testRangeFraction() {
+        assertEquals(1.0, costModel.getRangeFraction(seg, cuboid, key(0x00), key(0xff)), 1e-9);
+
+        // first column fixed to one value
+        TblColRef first = cuboid.getColumns().get(0);
+        byte[] start = key(0x00);
+        byte[] stop = key(0xff);
+        writeId(start, first, minId(first));
+        writeId(stop, first, minId(first));
+        assertEquals(1.0 / costModel.getCardinality(seg, first), costModel.getRangeFraction(seg, cuboid, start, stop), 1e-9);
+
+        // first column taking ten values
+        writeId(stop, first, minId(first) + 9);
+        assertEquals(10.0 / costModel.getCardinality(seg, first), costModel.getRangeFraction(seg, cuboid, start, stop), 1e-9);
+    }
+
+    @Test
+    public void testEstimate() {
+        List<HBaseKeyRange> keyRanges = Collections.singletonList(keyRange(key(0x00), key(0xff)));
+        long cuboidRows = (long) costModel.getCuboidRows(seg, cuboid);
+
+        // no group by, one row back per region
+        ObserverCostModel.Estimate est = costModel.estimate(keyRanges, Collections.<TblColRef> emptyList());
+        assertTrue(est.hasStats());
+        assertEquals(cuboidRows, est.getRowsToScan());
+        assertEquals(1, est.getRegions());
+        assertEquals(1, est.getRowsToReturn());
+        assertTrue(est.getReductionRatio() < 0.01);
+        assertEquals(cuboidRows, costModel.estimateRows(seg, cuboid, key(0x00), key(0xff)));
+
+        // group by every column, nothing to reduce
+        est = costModel.estimate(keyRanges, cuboid.getColumns());
+        assertEquals(est.getRowsToScan(), est.getRowsToReturn());
+        assertEquals(1.0, est.getReductionRatio(), 1e-9);
+    }
+
+    @Test
+    public void testBitsToScan() {
+        assertEquals(0, ObserverCostModel.getBitsToScan(new byte[] { 1, 2 }, new byte[] { 1, 2 }));
+        assertEquals(1, ObserverCostModel.getBitsToScan(new byte[] { 1, 2 }, new byte[] { 1, 3 }));
+        assertEquals(16, ObserverCostModel.getBitsToScan(new byte[] { 0, 0 }, new byte[] { (byte) 0x80, 0 }));
+    }
+
+    @Test
+    public void testEnablerOnNarrowRange() {
+        StorageContext context = new StorageContext();
+        context.setCuboid(cuboid);
+        byte[] point = key(0x00);
+        List<HBaseKeyRange> keyRanges = Lists.newArrayList(keyRange(point, point));
+
+        ObserverEnabler.enableCoprocessorIfBeneficial(cube, Collections.<TblColRef> emptyList(), Collections.<RowValueDecoder> emptyList(), keyRanges, context);
+        assertFalse(context.isCoprocessorEnabled());
+        // the estimate is kept to be logged along with the scan
+        assertNotNull(context.getCoprocessorEstimate());
+        assertTrue(context.getCoprocessorEstimate().contains("max bits to scan = 0"));
+    }
+
+    @Test
+    public void testEnablerNothingToAggregate() {
+        StorageContext context = new StorageContext();
+        context.setCuboid(cuboid);
+        List<HBaseKeyRange> keyRanges = Lists.newArrayList(keyRange(key(0x00), key(0xff)));
+
+        ObserverEnabler.enableCoprocessorIfBeneficial(cube, cuboid.getColumns(), Collections.<RowValueDecoder> emptyList(), keyRanges, context);
+        assertFalse(context.isCoprocessorEnabled());
+        assertNull(context.getCoprocessorEstimate());
+    }
+
+    private HBaseKeyRange keyRange(byte[] startKey, byte[] stopKey) {
+        return new HBaseKeyRange(seg, cuboid, startKey, stopKey, new ArrayList<Pair<byte[], byte[]>>(), new ArrayList<Collection<ColumnValueRange>>(), 0, Long.MAX_VALUE);
+    }
+
+    private byte[] key(int fill) {
+        int len = RowConstants.ROWKEY_CUBOIDID_LEN;
+        for (TblColRef col : cuboid.getColumns()) {
+            len += seg.getColumnLength(col);
+        }
+        byte[] key = new byte[len];
+        for (int i = RowConstants.ROWKEY_CUBOIDID_LEN; i < len; i++) {
+            key[i] = (byte) fill;
+        }
+        System.arraycopy(cuboid.getBytes(), 0, key, 0, RowConstants.ROWKEY_CUBOIDID_LEN);
+        return key;
+    }
+
+    private int minId(TblColRef col) {
+        return seg.getDictionary(col).getMinId();
+    }
+
+    private void writeId(byte[] key, TblColRef col, int id) {
+        int offset = RowConstants.ROWKEY_CUBOIDID_LEN;
+        for (TblColRef c : cuboid.getColumns()) {
+            if (c.equals(col))
+                break;
+            offset += seg.getColumnLength(c);
+        }
+        int len = seg.getColumnLength(col);
+        for (int i = len - 1; i >= 0; i--) {
+            key[offset + i] = (byte) id;
+            id >>>= 8;
+        }
+    }
+}
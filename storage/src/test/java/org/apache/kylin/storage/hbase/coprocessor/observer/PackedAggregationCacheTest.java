@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
+import org.apache.kylin.storage.hbase.coprocessor.observer.AggregateRegionObserverTest.MockupRegionScanner;
+import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverAggregators.HCol;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * PackedAggregationCache must produce the same rows as ObserverAggregationCache.
+ */
+public class PackedAggregationCacheTest {
+
+    byte[] mask = AggregationCacheFixture.MASK;
+    byte[] family = AggregationCacheFixture.FAMILY;
+
+    HCol c1 = new HCol(family, Bytes.toBytes("q1"), new String[] { "SUM", "COUNT", "MAX" }, new String[] { "long", "long", "long" });
+    HCol c2 = new HCol(family, Bytes.toBytes("q2"), new String[] { "SUM", "MIN" }, new String[] { "double", "double" });
+
+    AggregationCacheFixture fixture = new AggregationCacheFixture(c1, c2);
+
+    @Test
+    public void testApplicable() {
+        assertTrue(PackedAggregationCache.isApplicable(new ObserverAggregators(new HCol[] { c1, c2 })));
+        assertTrue(PackedAggregationCache.isApplicable(new ObserverAggregators(new HCol[] {})));
+
+        HCol decimal = new HCol(family, Bytes.toBytes("q3"), new String[] { "SUM" }, new String[] { "decimal" });
+        assertFalse(PackedAggregationCache.isApplicable(new ObserverAggregators(new HCol[] { c1, decimal })));
+    }
+
+    @Test
+    public void testSameAsObserverAggregationCache() throws IOException {
+        // enough groups to rehash and to span several slabs
+        List<List<Cell>> rows = Lists.newArrayList();
+        for (int i = 0; i < 50000; i++) {
+            int group = (i * 7919) % 20000;
+            byte[] key = new byte[] { (byte) (group >> 8), (byte) group, (byte) i, (byte) (i >> 8) };
+            List<Cell> row = Lists.newArrayList();
+            row.add(fixture.newCell(key, c1, new Object[] { new LongWritable(i), new LongWritable(1), new LongWritable(i % 100) }));
+            row.add(fixture.newCell(key, c2, new Object[] { new DoubleWritable(i * 0.5), new DoubleWritable(-i) }));
+            rows.add(row);
+        }
+
+        List<String> expected = fixture.assertSameAsReference(new PackedAggregationCache(new CoprocessorProjector(mask), new ObserverAggregators(new HCol[] { c1, c2 }), false), rows);
+        fixture.assertSameAsReference(new PackedAggregationCache(new CoprocessorProjector(mask), new ObserverAggregators(new HCol[] { c1, c2 }), true), rows);
+        assertEquals(20000 * 2, expected.size());
+    }
+
+    @Test
+    public void testReseek() throws IOException {
+        CoprocessorProjector projector = new CoprocessorProjector(mask);
+        PackedAggregationCache cache = new PackedAggregationCache(projector, new ObserverAggregators(new HCol[] { c1 }));
+        for (int group = 0; group < 100; group += 2) {
+            byte[] key = new byte[] { 0, (byte) group, 9, 9 };
+            List<Cell> row = Lists.newArrayList(fixture.newCell(key, c1, new Object[] { new LongWritable(group), new LongWritable(1), new LongWritable(group) }));
+            cache.aggregate(projector.getAggrKey(key), row);
+        }
+
+        RegionScanner scanner = cache.getScanner(new MockupRegionScanner(new ArrayList<Cell>()));
+        List<Cell> cells = Lists.newArrayList();
+
+        // odd groups do not exist, the scanner stops at the next even one, bytes outside the mask are ignored
+        assertTrue(scanner.reseek(new byte[] { 0, 31, (byte) 0xff, (byte) 0xff }));
+        assertTrue(scanner.next(cells));
+        assertEquals(1, cells.size());
+        assertEquals(32, cells.get(0).getRowArray()[cells.get(0).getRowOffset() + 1]);
+
+        // seeking backwards does not rewind
+        cells.clear();
+        assertTrue(scanner.reseek(new byte[] { 0, 0, 0, 0 }));
+        assertTrue(scanner.next(cells));
+        assertEquals(34, cells.get(0).getRowArray()[cells.get(0).getRowOffset() + 1]);
+
+        cells.clear();
+        assertTrue(scanner.reseek(new byte[] { 0, 98, 0, 0 }));
+        assertFalse(scanner.next(cells));
+        assertEquals(98, cells.get(0).getRowArray()[cells.get(0).getRowOffset() + 1]);
+
+        assertFalse(scanner.reseek(new byte[] { 0, 99, 0, 0 }));
+        scanner.close();
+    }
+
+    @Test
+    public void testMemBytes() {
+        PackedAggregationCache cache = new PackedAggregationCache(new CoprocessorProjector(mask), new ObserverAggregators(new HCol[] { c1, c2 }), false);
+        long empty = cache.getMemBytes();
+        assertEquals(8L * PackedAggregationCache.INIT_CAPACITY, empty);
+
+        CoprocessorProjector projector = new CoprocessorProjector(mask);
+        List<Cell> row = Lists.newArrayList();
+        byte[] key = new byte[] { 1, 2, 3, 4 };
+        row.add(fixture.newCell(key, c1, new Object[] { new LongWritable(1), new LongWritable(1), new LongWritable(1) }));
+        cache.aggregate(projector.getAggrKey(key), row);
+        assertEquals(1, cache.getSize());
+        assertEquals(empty + PackedAggregationCache.SLAB_SIZE / 49 * 49, cache.getMemBytes()); // 4 + 8 * 5 + 5 bytes per entry
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.hbase.coprocessor.observer;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.kylin.storage.hbase.coprocessor.CoprocessorProjector;
+import org.apache.kylin.storage.hbase.coprocessor.observer.ObserverAggregators.HCol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * SpillableAggregationCache must produce the same rows no matter how many times it spills.
+ */
+public class SpillableAggregationCacheTest {
+
+    byte[] mask = AggregationCacheFixture.MASK;
+    byte[] family = AggregationCacheFixture.FAMILY;
+
+    HCol c1 = new HCol(family, Bytes.toBytes("q1"), new String[] { "SUM", "COUNT" }, new String[] { "long", "long" });
+    HCol c2 = new HCol(family, Bytes.toBytes("q2"), new String[] { "SUM" }, new String[] { "decimal" });
+
+    AggregationCacheFixture fixture = new AggregationCacheFixture(c1, c2);
+    List<List<Cell>> rows = Lists.newArrayList();
+    File spillDir;
+
+    @Before
+    public void setup() {
+        for (int i = 0; i < 20000; i++) {
+            int group = (i * 7919) % 5000;
+            byte[] key = new byte[] { (byte) (group >> 8), (byte) group, (byte) i, (byte) (i >> 8) };
+            List<Cell> row = Lists.newArrayList();
+            row.add(fixture.newCell(key, c1, new Object[] { new LongWritable(i), new LongWritable(1) }));
+            row.add(fixture.newCell(key, c2, new Object[] { new BigDecimal(i + ".5") }));
+            rows.add(row);
+        }
+        spillDir = Files.createTempDir();
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    @Test
+    public void testPackedSpill() throws IOException {
+        // one slab plus a hash table of 2048 slots, spills when the table grows
+        verifySpill(new HCol[] { c1 }, PackedAggregationCache.SLAB_SIZE + 8 * 2048);
+    }
+
+    @Test
+    public void testObjectSpill() throws IOException {
+        verifySpill(new HCol[] { c1, c2 }, 64 * 1024);
+    }
+
+    @Test
+    public void testSpillCapDeletesRuns() throws IOException {
+        ObserverCacheConfig config = new ObserverCacheConfig(false, 1024, spillDir.getPath());
+        SpillableAggregationCache cache = new SpillableAggregationCache(new CoprocessorProjector(mask), new ObserverAggregators(new HCol[] { c1, c2 }), 64 * 1024, config);
+        try {
+            fixture.aggregate(cache, rows);
+            fail("spill bytes should go beyond cap");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("beyond cap"));
+        }
+        assertEquals(1, cache.getSpillRuns());
+        assertEquals(0, spillDir.list().length);
+    }
+
+    @Test
+    public void testCloseWithoutScanner() {
+        ObserverCacheConfig config = new ObserverCacheConfig(false, ObserverCacheConfig.DEFAULT_SPILL_MAX_BYTES, spillDir.getPath());
+        SpillableAggregationCache cache = new SpillableAggregationCache(new CoprocessorProjector(mask), new ObserverAggregators(new HCol[] { c1, c2 }), 64 * 1024, config);
+        CoprocessorProjector projector = fixture.newProjector();
+        for (List<Cell> row : rows) {
+            cache.aggregate(projector.getAggrKey(row), row);
+            cache.checkMemoryUsage();
+        }
+        assertTrue(cache.getSpillRuns() > 1);
+        assertEquals(cache.getSpillRuns(), spillDir.list().length);
+
+        // as done when the region scan fails before the scanner is handed out
+        cache.close();
+        assertEquals(0, spillDir.list().length);
+    }
+
+    @Test
+    public void testSpillDirFromRegionServer() {
+        Scan scan = new Scan();
+        new ObserverCacheConfig(true, 1024, "/client/dir").setScanAttributes(scan);
+        scan.setAttribute("_SpillDir", Bytes.toBytes("/client/dir"));
+
+        // the scan carries no directory, a region server without one uses java.io.tmpdir
+        ObserverCacheConfig config = ObserverCacheConfig.fromScan(scan, new Configuration(false));
+        assertTrue(config.isOffHeap());
+        assertEquals(1024, config.getSpillMaxBytes());
+        assertNull(config.getSpillDir());
+
+        Configuration conf = new Configuration(false);
+        conf.set(AggregateRegionObserver.SPILL_DIR_KEY, spillDir.getPath());
+        assertEquals(spillDir, ObserverCacheConfig.fromScan(scan, conf).getSpillDir());
+    }
+
+    private void verifySpill(HCol[] hcols, long memCap) throws IOException {
+        AggregationCacheFixture fixture = new AggregationCacheFixture(hcols);
+
+        SpillableAggregationCache noSpill = new SpillableAggregationCache(new CoprocessorProjector(mask), new ObserverAggregators(hcols));
+        List<String> expected = fixture.assertSameAsReference(noSpill, rows);
+        assertEquals(5000 * hcols.length, expected.size());
+        assertEquals(0, noSpill.getSpillRuns());
+
+        ObserverCacheConfig config = new ObserverCacheConfig(false, ObserverCacheConfig.DEFAULT_SPILL_MAX_BYTES, spillDir.getPath());
+        SpillableAggregationCache spill = new SpillableAggregationCache(new CoprocessorProjector(mask), new ObserverAggregators(hcols), memCap, config);
+        fixture.assertSameAsReference(spill, rows);
+        assertTrue(spill.getSpillRuns() > 1);
+        assertTrue(spill.getSpillBytes() > 0);
+
+        // runs are spilled into the configured directory and gone once the scanner closes
+        assertEquals(0, spillDir.list().length);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.storage.tuple;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class TupleCellTypeTest {
+
+    @Test
+    public void testOf() {
+        assertEquals(TupleCellType.STRING, TupleCellType.of("string"));
+        assertEquals(TupleCellType.DATE, TupleCellType.of("date"));
+        assertEquals(TupleCellType.SMALLINT, TupleCellType.of("short"));
+        assertEquals(TupleCellType.SMALLINT, TupleCellType.of("smallint"));
+        assertEquals(TupleCellType.BIGINT, TupleCellType.of("long"));
+        assertEquals(TupleCellType.BIGINT, TupleCellType.of("bigint"));
+        assertEquals(TupleCellType.OTHER, TupleCellType.of("varchar(256)"));
+        assertEquals(TupleCellType.OTHER, TupleCellType.of(null));
+    }
+
+    @Test
+    public void testConvert() {
+        assertEquals(Byte.valueOf((byte) 1), TupleCellType.TINYINT.convert("1"));
+        assertEquals(Short.valueOf((short) 2), TupleCellType.SMALLINT.convert("2"));
+        assertEquals(Integer.valueOf(3), TupleCellType.INTEGER.convert("3"));
+        assertEquals(Long.valueOf(4), TupleCellType.BIGINT.convert("4"));
+        assertEquals(Double.valueOf(5.5), TupleCellType.DOUBLE.convert("5.5"));
+        assertEquals(Float.valueOf(6.5f), TupleCellType.FLOAT.convert("6.5"));
+        assertEquals(new BigDecimal("7.25"), TupleCellType.DECIMAL.convert("7.25"));
+        assertEquals("abc", TupleCellType.OTHER.convert("abc"));
+
+        // days since epoch, as Optiq expects
+        assertEquals(Integer.valueOf(1), TupleCellType.DATE.convert("1970-01-02"));
+        assertEquals(Long.valueOf(24L * 3600 * 1000), TupleCellType.TIMESTAMP.convert("1970-01-02 00:00:00"));
+    }
+
+    @Test
+    public void testConvertNull() {
+        assertNull(TupleCellType.BIGINT.convert(null));
+        assertNull(TupleCellType.STRING.convert(null));
+
+        // empty and \N are null except for strings
+        assertNull(TupleCellType.BIGINT.convert(""));
+        assertNull(TupleCellType.DATE.convert("\\N"));
+        assertNull(TupleCellType.OTHER.convert(""));
+        assertEquals("", TupleCellType.STRING.convert(""));
+        assertEquals("\\N", TupleCellType.STRING.convert("\\N"));
+    }
+
+    @Test
+    public void testConvertMeasure() {
+        assertEquals(Integer.valueOf(3), TupleCellType.INTEGER.convertMeasure(Long.valueOf(3)));
+        assertNull(TupleCellType.INTEGER.convertMeasure(null));
+        assertEquals(Double.valueOf(1.5), TupleCellType.DOUBLE.convertMeasure(new BigDecimal("1.5")));
+        assertEquals(Float.valueOf(1.5f), TupleCellType.FLOAT.convertMeasure(new BigDecimal("1.5")));
+        Long value = Long.valueOf(7);
+        assertSame(value, TupleCellType.BIGINT.convertMeasure(value));
+    }
+}